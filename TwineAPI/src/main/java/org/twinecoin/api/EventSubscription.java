@@ -0,0 +1,43 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.api;
+
+import org.twinecoin.api.data.NodeEvent;
+
+/**
+ * A subscriber's view of the node event stream.<br>
+ * <br>
+ * Events are buffered for a limited time.  A subscriber that falls too far
+ * behind skips the events that were overwritten, and the number skipped is
+ * added to its dropped count.  Publishers never wait for subscribers.
+ */
+public interface EventSubscription {
+	/**
+	 * Gets the next event without waiting
+	 *
+	 * @return the event, or null if there are no new events
+	 */
+	public NodeEvent poll();
+
+	/**
+	 * Gets the next event, waiting for one to be published
+	 *
+	 * @param timeoutMillis the maximum time to wait
+	 * @return the event, or null if the timeout expired or the subscription
+	 * is closed
+	 */
+	public NodeEvent take(long timeoutMillis) throws InterruptedException;
+
+	/**
+	 * Gets the number of events this subscriber missed because it fell behind
+	 */
+	public long getDroppedCount();
+
+	/**
+	 * Ends the subscription
+	 */
+	public void close();
+}
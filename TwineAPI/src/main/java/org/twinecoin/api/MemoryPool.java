@@ -5,5 +5,76 @@
  */
 package org.twinecoin.api;
 
+import java.util.List;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+
+/**
+ * Pool of unconfirmed transactions.<br>
+ * <br>
+ * Transactions may spend outputs of other pool transactions.  The pool is
+ * bounded in memory and drops the transactions with the lowest fee rate when
+ * it is full.
+ */
 public interface MemoryPool {
+	/**
+	 * Result of adding a transaction
+	 */
+	public enum Result {
+		ACCEPTED,
+		ALREADY_KNOWN,
+		INVALID,
+		MISSING_INPUTS,
+		CONFLICT,
+		FEE_TOO_LOW,
+		TOO_LONG_CHAIN,
+		POOL_FULL
+	}
+
+	/**
+	 * Adds a transaction to the pool
+	 *
+	 * @param tx the transaction
+	 * @return the result
+	 */
+	public Result addTransaction(Transaction tx);
+
+	/**
+	 * Gets a transaction
+	 *
+	 * @param txid the txid
+	 * @return the transaction, or null if it is not in the pool
+	 */
+	public Transaction getTransaction(byte[] txid);
+
+	/**
+	 * Checks if a transaction is in the pool
+	 */
+	public boolean contains(byte[] txid);
+
+	/**
+	 * Gets the pool transaction spending an output
+	 *
+	 * @return the transaction, or null if no pool transaction spends it
+	 */
+	public Transaction getSpender(OutPoint outPoint);
+
+	/**
+	 * Removes the transactions in a block, and any pool transactions that
+	 * conflict with them.  The transactions must be in block order.
+	 *
+	 * @param transactions the block's transactions
+	 */
+	public void removeForBlock(List<Transaction> transactions);
+
+	/**
+	 * Gets the number of transactions in the pool
+	 */
+	public int size();
+
+	/**
+	 * Gets the approximate memory used by the pool
+	 */
+	public long getMemoryUsage();
 }
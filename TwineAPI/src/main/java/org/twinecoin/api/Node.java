@@ -46,4 +46,12 @@ public interface Node {
 	 * Gets the ConfigurationManager
 	 */
 	public ConfigurationManager getConfigurationManager();
+
+	/**
+	 * Subscribes to tip, block and memory pool events.  Events published
+	 * before the call are not seen.
+	 *
+	 * @return the subscription, which must be closed when no longer needed
+	 */
+	public EventSubscription subscribe();
 }
@@ -5,6 +5,84 @@
  */
 package org.twinecoin.api;
 
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+
+/**
+ * Tracks the set of unspent transaction outputs.<br>
+ * <br>
+ * Changes are applied one block at a time.  Outputs are added and spent as
+ * the block is processed and {@link #setBestBlock} marks the end of the
+ * block.  Changes may be held in memory until the next flush.
+ */
 public interface OutputTracker {
+	/**
+	 * Gets an unspent output
+	 *
+	 * @param outPoint the output reference
+	 * @return the output, or null if the output is unknown or spent
+	 */
+	public UnspentOutput getOutput(OutPoint outPoint);
+
+	/**
+	 * Adds a newly created output.  The outpoint must not already be unspent.
+	 *
+	 * @param outPoint the output reference
+	 * @param output the output
+	 */
+	public void addOutput(OutPoint outPoint, UnspentOutput output);
+
+	/**
+	 * Spends an output
+	 *
+	 * @param outPoint the output reference
+	 * @return the spent output, or null if the output was not unspent
+	 */
+	public UnspentOutput spendOutput(OutPoint outPoint);
+
+	/**
+	 * Marks the end of a block.  All changes since the previous call belong to
+	 * this block.
+	 *
+	 * @param blockHash the hash of the block
+	 * @param height the height of the block
+	 */
+	public void setBestBlock(byte[] blockHash, int height);
+
+	/**
+	 * Gets the hash of the block most recently passed to setBestBlock
+	 */
+	public byte[] getBestBlock();
+
+	/**
+	 * Gets the height of the block most recently passed to setBestBlock
+	 */
+	public int getBestHeight();
+
+	/**
+	 * Gets the commitment to the unspent output set at the best block.  This
+	 * is the digest of a {@link org.twinecoin.common.MuHash} over every
+	 * unspent outpoint and output.
+	 *
+	 * @return the 32 byte commitment
+	 */
+	public byte[] getCommitment();
+
+	/**
+	 * Gets the commitment to the unspent output set at a height on the
+	 * current chain
+	 *
+	 * @param height the block height
+	 * @return the 32 byte commitment, or null if the height is above the best
+	 * block or no commitment was recorded for it
+	 */
+	public byte[] getCommitment(int height);
 
+	/**
+	 * Writes all pending changes to persistent storage and waits for the
+	 * write to complete.
+	 *
+	 * @return true on success
+	 */
+	public boolean flush();
 }
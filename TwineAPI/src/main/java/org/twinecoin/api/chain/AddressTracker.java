@@ -5,6 +5,38 @@
  */
 package org.twinecoin.api.chain;
 
+import java.util.List;
+
+import org.twinecoin.api.data.AddressHistoryEntry;
+
+/**
+ * Tracks the transaction history of each address.<br>
+ * <br>
+ * An address is identified by the SHA256 of its output script.  The history
+ * of an address is every transaction that created an output with the script
+ * or spent such an output, oldest first.
+ */
 public interface AddressTracker {
+	/**
+	 * Gets the number of transactions in the history of an address
+	 *
+	 * @param scriptHash the SHA256 of the output script
+	 * @return the number of transactions, or -1 if the index could not be read
+	 */
+	public long getHistorySize(byte[] scriptHash);
+
+	/**
+	 * Gets a page of the history of an address
+	 *
+	 * @param scriptHash the SHA256 of the output script
+	 * @param offset the index of the first entry, 0 for the oldest
+	 * @param count the maximum number of entries
+	 * @return the entries, oldest first, or null if the index could not be read
+	 */
+	public List<AddressHistoryEntry> getHistory(byte[] scriptHash, long offset, int count);
 
+	/**
+	 * Gets the height of the last block added to the index
+	 */
+	public int getBestHeight();
 }
@@ -28,6 +28,15 @@ public interface ChainTracker {
 
 	/**
 	 * Gets the AddressTracker
+	 *
+	 * @return the tracker, or null if the address index is disabled
 	 */
 	public AddressTracker getAddressTracker();
+
+	/**
+	 * Gets the FilterTracker
+	 *
+	 * @return the tracker, or null if the filter index is disabled
+	 */
+	public FilterTracker getFilterTracker();
 }
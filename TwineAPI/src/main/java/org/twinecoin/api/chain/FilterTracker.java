@@ -0,0 +1,43 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.api.chain;
+
+import java.util.List;
+
+/**
+ * Serves compact block filters to light clients.<br>
+ * <br>
+ * Each block has a Golomb coded set filter of the output scripts it creates
+ * and spends.  The filter headers form a chain, where each header is the
+ * SHA256 of the filter's SHA256 and the previous header, so a client can check
+ * filters from one peer against headers from another.
+ */
+public interface FilterTracker {
+	/**
+	 * Gets the filters for a range of blocks
+	 *
+	 * @param startHeight the height of the first block
+	 * @param stopHeight the height of the last block (inclusive)
+	 * @return the filters in height order, or null if the range is not indexed
+	 * or could not be read
+	 */
+	public List<byte[]> getFilters(int startHeight, int stopHeight);
+
+	/**
+	 * Gets the filter headers for a range of blocks
+	 *
+	 * @param startHeight the height of the first block
+	 * @param stopHeight the height of the last block (inclusive)
+	 * @return the headers in height order, or null if the range is not indexed
+	 * or could not be read
+	 */
+	public List<byte[]> getFilterHeaders(int startHeight, int stopHeight);
+
+	/**
+	 * Gets the height of the last block with a stored filter
+	 */
+	public int getBestHeight();
+}
@@ -0,0 +1,50 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.api.data;
+
+/**
+ * A transaction that paid to or spent from an address, identified by the
+ * height of its block and its position in the block
+ */
+public final class AddressHistoryEntry {
+	private final int height;
+	private final int position;
+
+	public AddressHistoryEntry(int height, int position) {
+		this.height = height;
+		this.position = position;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the position of the transaction in its block
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof AddressHistoryEntry)) {
+			return false;
+		}
+		AddressHistoryEntry other = (AddressHistoryEntry) o;
+		return height == other.height && position == other.position;
+	}
+
+	@Override
+	public int hashCode() {
+		return height * 31 + position;
+	}
+
+	@Override
+	public String toString() {
+		return height + ":" + position;
+	}
+}
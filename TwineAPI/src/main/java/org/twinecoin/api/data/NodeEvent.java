@@ -0,0 +1,102 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.api.data;
+
+/**
+ * A change to the chain or memory pool, published to subscribers in the
+ * order it happened
+ */
+public final class NodeEvent {
+	public enum Type {
+		/**
+		 * The best block changed, the hash and height are the new tip
+		 */
+		TIP_CHANGED(1),
+		BLOCK_CONNECTED(2),
+		BLOCK_DISCONNECTED(3),
+		/**
+		 * A transaction entered the memory pool, the hash is the txid
+		 */
+		TRANSACTION_ACCEPTED(4),
+		/**
+		 * A transaction left the memory pool without being mined, because it
+		 * was evicted or conflicted with a block
+		 */
+		TRANSACTION_EVICTED(5);
+
+		private final int code;
+
+		private Type(int code) {
+			this.code = code;
+		}
+
+		/**
+		 * Gets the code of the type in the binary encoding
+		 */
+		public int getCode() {
+			return code;
+		}
+
+		/**
+		 * Gets a type from its code
+		 *
+		 * @return the type, or null if the code is unknown
+		 */
+		public static Type fromCode(int code) {
+			for (Type type : values()) {
+				if (type.code == code) {
+					return type;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final long sequence;
+	private final Type type;
+	private final byte[] hash;
+	private final int height;
+
+	/**
+	 * @param sequence the position of the event in the stream
+	 * @param type the type
+	 * @param hash the block hash or txid
+	 * @param height the block height, or -1 for transaction events
+	 */
+	public NodeEvent(long sequence, Type type, byte[] hash, int height) {
+		this.sequence = sequence;
+		this.type = type;
+		this.hash = hash;
+		this.height = height;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the block hash or txid.  The array must not be modified.
+	 */
+	public byte[] getHash() {
+		return hash;
+	}
+
+	/**
+	 * Gets the block height, or -1 for transaction events
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public String toString() {
+		return sequence + ":" + type + ":" + height;
+	}
+}
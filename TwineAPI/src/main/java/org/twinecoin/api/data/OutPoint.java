@@ -0,0 +1,85 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.api.data;
+
+import java.util.Arrays;
+
+/**
+ * Reference to a transaction output.<br>
+ * <br>
+ * OutPoints are ordered by txid (unsigned, byte by byte) and then by output
+ * index.  The txid array is not copied and must not be modified.
+ */
+public final class OutPoint implements Comparable<OutPoint> {
+	public static final int TXID_LENGTH = 32;
+
+	private final byte[] txid;
+	private final int index;
+
+	public OutPoint(byte[] txid, int index) {
+		if (txid == null) {
+			throw new NullPointerException("Txid may not be null");
+		}
+		if (txid.length != TXID_LENGTH) {
+			throw new IllegalArgumentException("Txid must be " + TXID_LENGTH + " bytes, " + txid.length);
+		}
+		if (index < 0) {
+			throw new IllegalArgumentException("Output index may not be negative, " + index);
+		}
+		this.txid = txid;
+		this.index = index;
+	}
+
+	public byte[] getTxid() {
+		return txid;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	@Override
+	public int compareTo(OutPoint other) {
+		byte[] otherTxid = other.txid;
+		for (int i = 0; i < TXID_LENGTH; i++) {
+			int diff = (txid[i] & 0xFF) - (otherTxid[i] & 0xFF);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return index < other.index ? -1 : (index == other.index ? 0 : 1);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (!(o instanceof OutPoint)) {
+			return false;
+		}
+		OutPoint other = (OutPoint) o;
+		return index == other.index && Arrays.equals(txid, other.txid);
+	}
+
+	@Override
+	public int hashCode() {
+		// The txid is a hash, so the first 4 bytes are already well mixed
+		int h = ((txid[0] & 0xFF) << 24) | ((txid[1] & 0xFF) << 16) | ((txid[2] & 0xFF) << 8) | (txid[3] & 0xFF);
+		return h ^ (index * 0x9E3779B9);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(TXID_LENGTH * 2 + 12);
+		for (byte b : txid) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		sb.append(':').append(index);
+		return sb.toString();
+	}
+}
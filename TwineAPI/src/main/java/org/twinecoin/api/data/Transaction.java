@@ -0,0 +1,171 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.api.data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.twinecoin.common.SHA256;
+import org.twinecoin.common.VarInt;
+
+/**
+ * An immutable transaction.<br>
+ * <br>
+ * Serialization<br>
+ * - version (4 bytes, big endian)<br>
+ * - input count (varint), then for each input the txid, the output index
+ * (varint), the script length (varint), the script and the sequence (4 bytes)
+ * <br>
+ * - output count (varint), then for each output the value (varint), the
+ * script length (varint) and the script<br>
+ * - lock time (4 bytes)<br>
+ * <br>
+ * The txid is the double SHA256 of the serialization.
+ */
+public final class Transaction {
+	private final int version;
+	private final List<TxInput> inputs;
+	private final List<TxOutput> outputs;
+	private final int lockTime;
+	private final byte[] serialized;
+	private final byte[] txid;
+
+	public Transaction(int version, List<TxInput> inputs, List<TxOutput> outputs, int lockTime) {
+		this.version = version;
+		this.inputs = Collections.unmodifiableList(new ArrayList<TxInput>(inputs));
+		this.outputs = Collections.unmodifiableList(new ArrayList<TxOutput>(outputs));
+		this.lockTime = lockTime;
+		this.serialized = serialize(version, this.inputs, this.outputs, lockTime);
+		this.txid = computeTxid(serialized);
+	}
+
+	private Transaction(int version, List<TxInput> inputs, List<TxOutput> outputs, int lockTime, byte[] serialized) {
+		this.version = version;
+		this.inputs = Collections.unmodifiableList(inputs);
+		this.outputs = Collections.unmodifiableList(outputs);
+		this.lockTime = lockTime;
+		this.serialized = serialized;
+		this.txid = computeTxid(serialized);
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public List<TxInput> getInputs() {
+		return inputs;
+	}
+
+	public List<TxOutput> getOutputs() {
+		return outputs;
+	}
+
+	public int getLockTime() {
+		return lockTime;
+	}
+
+	/**
+	 * Gets the txid.  The array must not be modified.
+	 */
+	public byte[] getTxid() {
+		return txid;
+	}
+
+	/**
+	 * Gets the serialized transaction.  The array must not be modified.
+	 */
+	public byte[] getSerialized() {
+		return serialized;
+	}
+
+	/**
+	 * Gets the size of the serialized transaction in bytes
+	 */
+	public int getSize() {
+		return serialized.length;
+	}
+
+	/**
+	 * Gets the sum of the output values
+	 */
+	public long getOutputValue() {
+		long total = 0;
+		for (TxOutput output : outputs) {
+			total += output.getValue();
+		}
+		return total;
+	}
+
+	/**
+	 * Reads a serialized transaction
+	 *
+	 * @throws RuntimeException if the transaction is malformed
+	 */
+	public static Transaction read(ByteBuffer buf) {
+		int start = buf.position();
+		int version = buf.getInt();
+		int inputCount = VarInt.readInt(buf);
+		List<TxInput> inputs = new ArrayList<TxInput>(Math.min(inputCount, buf.remaining() / 36));
+		for (int i = 0; i < inputCount; i++) {
+			byte[] prevTxid = new byte[OutPoint.TXID_LENGTH];
+			buf.get(prevTxid);
+			OutPoint outPoint = new OutPoint(prevTxid, VarInt.readInt(buf));
+			byte[] script = new byte[VarInt.readInt(buf)];
+			buf.get(script);
+			inputs.add(new TxInput(outPoint, script, buf.getInt()));
+		}
+		int outputCount = VarInt.readInt(buf);
+		List<TxOutput> outputs = new ArrayList<TxOutput>(Math.min(outputCount, buf.remaining() / 2));
+		for (int i = 0; i < outputCount; i++) {
+			long value = VarInt.read(buf);
+			byte[] script = new byte[VarInt.readInt(buf)];
+			buf.get(script);
+			outputs.add(new TxOutput(value, script));
+		}
+		int lockTime = buf.getInt();
+
+		byte[] serialized = new byte[buf.position() - start];
+		ByteBuffer copy = buf.duplicate();
+		copy.position(start);
+		copy.get(serialized);
+		return new Transaction(version, inputs, outputs, lockTime, serialized);
+	}
+
+	private static byte[] serialize(int version, List<TxInput> inputs, List<TxOutput> outputs, int lockTime) {
+		int size = 4 + VarInt.size(inputs.size()) + VarInt.size(outputs.size()) + 4;
+		for (TxInput input : inputs) {
+			size += OutPoint.TXID_LENGTH + VarInt.size(input.getOutPoint().getIndex()) + VarInt.size(input.getScript().length) + input.getScript().length + 4;
+		}
+		for (TxOutput output : outputs) {
+			size += VarInt.size(output.getValue()) + VarInt.size(output.getScript().length) + output.getScript().length;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(version);
+		VarInt.write(buf, inputs.size());
+		for (TxInput input : inputs) {
+			buf.put(input.getOutPoint().getTxid());
+			VarInt.write(buf, input.getOutPoint().getIndex());
+			VarInt.write(buf, input.getScript().length);
+			buf.put(input.getScript());
+			buf.putInt(input.getSequence());
+		}
+		VarInt.write(buf, outputs.size());
+		for (TxOutput output : outputs) {
+			VarInt.write(buf, output.getValue());
+			VarInt.write(buf, output.getScript().length);
+			buf.put(output.getScript());
+		}
+		buf.putInt(lockTime);
+		return buf.array();
+	}
+
+	private static byte[] computeTxid(byte[] serialized) {
+		byte[] first = SHA256.getDigest(serialized, 0, serialized.length);
+		return SHA256.getDigest(first, 0, first.length);
+	}
+}
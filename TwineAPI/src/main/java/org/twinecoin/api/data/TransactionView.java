@@ -0,0 +1,256 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.api.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.twinecoin.common.SHA256;
+import org.twinecoin.common.VarInt;
+
+/**
+ * A serialized transaction read in place from a buffer.<br>
+ * <br>
+ * Wrapping a transaction only finds where its input list, output list and
+ * end are.  Fields are read from the buffer when they are accessed, and the
+ * txid is hashed from the buffer without copying the transaction, so a
+ * transaction that is only hashed or relayed is never decoded.  The offsets
+ * of individual inputs and outputs are found the first time one is
+ * accessed.<br>
+ * <br>
+ * The buffer may be a heap buffer, a direct network buffer or a memory
+ * mapped file.  Its contents must not change while the view is in use.  The
+ * serialization is described in {@link Transaction}.
+ */
+public final class TransactionView {
+	private final ByteBuffer buf;
+	private final int start;
+	private final int end;
+	private final int inputCount;
+	private final int inputsOffset;
+	private final int outputCount;
+	private final int outputsOffset;
+
+	private int[] inputOffsets;
+	private int[] outputOffsets;
+	private byte[] txid;
+
+	private TransactionView(ByteBuffer buf, int start, int end, int inputCount, int inputsOffset, int outputCount, int outputsOffset) {
+		this.buf = buf;
+		this.start = start;
+		this.end = end;
+		this.inputCount = inputCount;
+		this.inputsOffset = inputsOffset;
+		this.outputCount = outputCount;
+		this.outputsOffset = outputsOffset;
+	}
+
+	/**
+	 * Wraps the transaction at the position of a buffer.  The position is
+	 * moved to the end of the transaction.
+	 *
+	 * @throws RuntimeException if the transaction is malformed
+	 */
+	public static TransactionView wrap(ByteBuffer buf) {
+		ByteBuffer view = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int start = buf.position();
+		int[] end = new int[1];
+
+		int inputCount = readLength(view, start + 4, end);
+		int inputsOffset = end[0];
+		int offset = inputsOffset;
+		for (int i = 0; i < inputCount; i++) {
+			offset = skipInput(view, offset, end);
+		}
+		int outputCount = readLength(view, offset, end);
+		int outputsOffset = end[0];
+		offset = outputsOffset;
+		for (int i = 0; i < outputCount; i++) {
+			offset = skipOutput(view, offset, end);
+		}
+		offset = checkBounds(view, offset + 4);
+
+		buf.position(offset);
+		return new TransactionView(view, start, offset, inputCount, inputsOffset, outputCount, outputsOffset);
+	}
+
+	public int getVersion() {
+		return buf.getInt(start);
+	}
+
+	public int getLockTime() {
+		return buf.getInt(end - 4);
+	}
+
+	/**
+	 * Gets the size of the serialized transaction in bytes
+	 */
+	public int getSize() {
+		return end - start;
+	}
+
+	public int getInputCount() {
+		return inputCount;
+	}
+
+	public int getOutputCount() {
+		return outputCount;
+	}
+
+	/**
+	 * Gets the txid, the double SHA256 of the serialization.  The array must
+	 * not be modified.
+	 */
+	public byte[] getTxid() {
+		byte[] id = txid;
+		if (id == null) {
+			byte[] first = SHA256.getDigest(getSerialized());
+			id = SHA256.getDigest(first, 0, first.length);
+			txid = id;
+		}
+		return id;
+	}
+
+	/**
+	 * Gets the serialized transaction as a read-only buffer that shares the
+	 * underlying memory
+	 */
+	public ByteBuffer getSerialized() {
+		return slice(start, end);
+	}
+
+	/**
+	 * Gets the output spent by an input
+	 */
+	public OutPoint getOutPoint(int index) {
+		int offset = getInputOffset(index);
+		byte[] prevTxid = new byte[OutPoint.TXID_LENGTH];
+		ByteBuffer dup = buf.duplicate();
+		dup.position(offset);
+		dup.get(prevTxid);
+		return new OutPoint(prevTxid, readLength(buf, offset + OutPoint.TXID_LENGTH, null));
+	}
+
+	/**
+	 * Decodes an input
+	 */
+	public TxInput getInput(int index) {
+		int offset = getInputOffset(index);
+		int[] end = new int[1];
+		readLength(buf, offset + OutPoint.TXID_LENGTH, end);
+		int scriptLength = readLength(buf, end[0], end);
+		byte[] script = new byte[scriptLength];
+		ByteBuffer dup = buf.duplicate();
+		dup.position(end[0]);
+		dup.get(script);
+		return new TxInput(getOutPoint(index), script, buf.getInt(end[0] + scriptLength));
+	}
+
+	/**
+	 * Gets the value of an output without decoding its script
+	 */
+	public long getOutputValue(int index) {
+		return VarInt.read(buf, getOutputOffset(index), null);
+	}
+
+	/**
+	 * Gets the script of an output as a read-only buffer that shares the
+	 * underlying memory
+	 */
+	public ByteBuffer getOutputScript(int index) {
+		int[] end = new int[1];
+		VarInt.read(buf, getOutputOffset(index), end);
+		int scriptLength = readLength(buf, end[0], end);
+		return slice(end[0], end[0] + scriptLength);
+	}
+
+	/**
+	 * Decodes an output
+	 */
+	public TxOutput getOutput(int index) {
+		ByteBuffer scriptBuf = getOutputScript(index);
+		byte[] script = new byte[scriptBuf.remaining()];
+		scriptBuf.get(script);
+		return new TxOutput(getOutputValue(index), script);
+	}
+
+	/**
+	 * Decodes the whole transaction
+	 */
+	public Transaction toTransaction() {
+		return Transaction.read(getSerialized());
+	}
+
+	private int getInputOffset(int index) {
+		if (index < 0 || index >= inputCount) {
+			throw new IndexOutOfBoundsException("Input " + index + " of " + inputCount);
+		}
+		int[] offsets = inputOffsets;
+		if (offsets == null) {
+			offsets = new int[inputCount];
+			int[] end = new int[1];
+			int offset = inputsOffset;
+			for (int i = 0; i < inputCount; i++) {
+				offsets[i] = offset;
+				offset = skipInput(buf, offset, end);
+			}
+			inputOffsets = offsets;
+		}
+		return offsets[index];
+	}
+
+	private int getOutputOffset(int index) {
+		if (index < 0 || index >= outputCount) {
+			throw new IndexOutOfBoundsException("Output " + index + " of " + outputCount);
+		}
+		int[] offsets = outputOffsets;
+		if (offsets == null) {
+			offsets = new int[outputCount];
+			int[] end = new int[1];
+			int offset = outputsOffset;
+			for (int i = 0; i < outputCount; i++) {
+				offsets[i] = offset;
+				offset = skipOutput(buf, offset, end);
+			}
+			outputOffsets = offsets;
+		}
+		return offsets[index];
+	}
+
+	private ByteBuffer slice(int from, int to) {
+		ByteBuffer dup = buf.asReadOnlyBuffer();
+		dup.limit(to);
+		dup.position(from);
+		return dup.slice();
+	}
+
+	private static int skipInput(ByteBuffer buf, int offset, int[] end) {
+		readLength(buf, offset + OutPoint.TXID_LENGTH, end);
+		int scriptLength = readLength(buf, end[0], end);
+		return checkBounds(buf, end[0] + scriptLength + 4);
+	}
+
+	private static int skipOutput(ByteBuffer buf, int offset, int[] end) {
+		VarInt.read(buf, offset, end);
+		int scriptLength = readLength(buf, end[0], end);
+		return checkBounds(buf, end[0] + scriptLength);
+	}
+
+	private static int readLength(ByteBuffer buf, int offset, int[] end) {
+		long value = VarInt.read(buf, offset, end);
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Variable length integer out of range for int, " + value);
+		}
+		return (int) value;
+	}
+
+	private static int checkBounds(ByteBuffer buf, int offset) {
+		if (offset < 0 || offset > buf.limit()) {
+			throw new IllegalArgumentException("Transaction extends past the end of the buffer");
+		}
+		return offset;
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.api.data;
+
+/**
+ * A transaction input.  The script array is not copied and must not be
+ * modified.
+ */
+public final class TxInput {
+	private final OutPoint outPoint;
+	private final byte[] script;
+	private final int sequence;
+
+	public TxInput(OutPoint outPoint, byte[] script, int sequence) {
+		if (outPoint == null || script == null) {
+			throw new NullPointerException("OutPoint and script may not be null");
+		}
+		this.outPoint = outPoint;
+		this.script = script;
+		this.sequence = sequence;
+	}
+
+	public OutPoint getOutPoint() {
+		return outPoint;
+	}
+
+	public byte[] getScript() {
+		return script;
+	}
+
+	public int getSequence() {
+		return sequence;
+	}
+}
@@ -0,0 +1,31 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.api.data;
+
+/**
+ * A transaction output.  The script array is not copied and must not be
+ * modified.
+ */
+public final class TxOutput {
+	private final long value;
+	private final byte[] script;
+
+	public TxOutput(long value, byte[] script) {
+		if (script == null) {
+			throw new NullPointerException("Script may not be null");
+		}
+		this.value = value;
+		this.script = script;
+	}
+
+	public long getValue() {
+		return value;
+	}
+
+	public byte[] getScript() {
+		return script;
+	}
+}
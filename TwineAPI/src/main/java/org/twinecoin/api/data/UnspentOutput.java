@@ -0,0 +1,43 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.api.data;
+
+/**
+ * An unspent transaction output together with the height of the block that
+ * created it.  The script array is not copied and must not be modified.
+ */
+public final class UnspentOutput {
+	private final long value;
+	private final byte[] script;
+	private final int height;
+	private final boolean coinbase;
+
+	public UnspentOutput(long value, byte[] script, int height, boolean coinbase) {
+		if (script == null) {
+			throw new NullPointerException("Script may not be null");
+		}
+		this.value = value;
+		this.script = script;
+		this.height = height;
+		this.coinbase = coinbase;
+	}
+
+	public long getValue() {
+		return value;
+	}
+
+	public byte[] getScript() {
+		return script;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean isCoinbase() {
+		return coinbase;
+	}
+}
@@ -0,0 +1,321 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of direct and heap buffers.<br>
+ * <br>
+ * Requested sizes are rounded up to a power of two between {@link #MIN_SIZE}
+ * and {@link #MAX_SIZE}.  Released buffers are kept in a slab for each size
+ * class and buffer type, up to a total number of bytes.  Larger buffers are
+ * allocated on each request and are not pooled.<br>
+ * <br>
+ * Each thread has a magazine of up to {@link #getMagazineSize()} released
+ * buffers per slab, so most acquires and releases only touch thread local
+ * state.  Magazines spill to and refill from the shared slabs, which are
+ * lock-free queues.  Buffers left in the magazine of a thread that exits are
+ * reclaimed by the garbage collector, so pools used by short-lived threads
+ * should not have magazines.<br>
+ * <br>
+ * Direct buffers can be passed to native code, including through JNA,
+ * without copying.<br>
+ * <br>
+ * In debug mode the pool records where each outstanding buffer was acquired,
+ * so leaked buffers can be reported, and rejects buffers released twice.
+ */
+public class ByteBufferPool {
+	private static final int MIN_SHIFT = 8;
+	private static final int MAX_SHIFT = 20;
+	private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+	public static final int MIN_SIZE = 1 << MIN_SHIFT;
+	public static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+	public static final long DEFAULT_MAX_POOLED_BYTES = 64L << 20;
+	public static final int DEFAULT_MAGAZINE_SIZE = 8;
+
+	private static final ByteBufferPool shared = new ByteBufferPool(DEFAULT_MAX_POOLED_BYTES, DEFAULT_MAGAZINE_SIZE, Boolean.getBoolean("twinecoin.bufferpool.debug"));
+
+	private final long maxPooledBytes;
+	private final int magazineSize;
+	private final boolean debug;
+	private final Slab[] slabs;
+	private final ThreadLocal<Magazine[]> magazines;
+	private final AtomicLong pooledBytes;
+	private final LongAdder acquireCount;
+	private final LongAdder allocateCount;
+	private final LongAdder releaseCount;
+	private final Map<ByteBuffer, Throwable> outstanding;
+
+	/**
+	 * Gets the pool shared by the node.  Debug mode is enabled by the
+	 * twinecoin.bufferpool.debug system property.
+	 */
+	public static ByteBufferPool getShared() {
+		return shared;
+	}
+
+	/**
+	 * @param maxPooledBytes the maximum number of bytes held by the shared
+	 * slabs
+	 * @param magazineSize the number of buffers each thread keeps per slab, or
+	 * 0 for no thread local magazines
+	 * @param debug true to track outstanding buffers
+	 */
+	public ByteBufferPool(long maxPooledBytes, int magazineSize, boolean debug) {
+		this.maxPooledBytes = maxPooledBytes;
+		this.magazineSize = magazineSize;
+		this.debug = debug;
+		this.slabs = new Slab[CLASSES * 2];
+		for (int i = 0; i < slabs.length; i++) {
+			slabs[i] = new Slab();
+		}
+		this.magazines = new ThreadLocal<Magazine[]>() {
+			@Override
+			protected Magazine[] initialValue() {
+				return new Magazine[CLASSES * 2];
+			}
+		};
+		this.pooledBytes = new AtomicLong();
+		this.acquireCount = new LongAdder();
+		this.allocateCount = new LongAdder();
+		this.releaseCount = new LongAdder();
+		this.outstanding = debug ? Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>()) : null;
+	}
+
+	/**
+	 * Gets a buffer with a position of 0 and a limit of the requested size.
+	 * Its capacity may be larger.
+	 *
+	 * @param size the size in bytes
+	 * @param direct true for a direct buffer, false for a heap buffer with an
+	 * accessible array
+	 */
+	public ByteBuffer acquire(int size, boolean direct) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative buffer size " + size);
+		}
+		acquireCount.increment();
+		int sizeClass = getSizeClass(size);
+		ByteBuffer buf = null;
+		if (sizeClass >= 0) {
+			int index = sizeClass * 2 + (direct ? 1 : 0);
+			if (magazineSize > 0) {
+				buf = getMagazine(index).pop();
+			}
+			if (buf == null) {
+				buf = slabs[index].poll();
+			}
+			if (buf == null) {
+				buf = allocate(1 << (sizeClass + MIN_SHIFT), direct);
+			}
+		} else {
+			buf = allocate(size, direct);
+		}
+		buf.clear();
+		buf.limit(size);
+		if (debug) {
+			outstanding.put(buf, new Throwable("Buffer acquired"));
+		}
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool.  The buffer must not be used after it is
+	 * released.  Buffers larger than {@link #MAX_SIZE} and buffers that could
+	 * not have come from the pool are ignored.
+	 *
+	 * @throws IllegalArgumentException in debug mode, if the buffer is not
+	 * outstanding
+	 */
+	public void release(ByteBuffer buf) {
+		releaseCount.increment();
+		if (debug && outstanding.remove(buf) == null) {
+			throw new IllegalArgumentException("Buffer released twice or not acquired from the pool");
+		}
+		int capacity = buf.capacity();
+		int sizeClass = getSizeClass(capacity);
+		if (sizeClass < 0 || capacity != 1 << (sizeClass + MIN_SHIFT) || buf.isReadOnly()) {
+			return;
+		}
+		if (!buf.isDirect() && !(buf.hasArray() && buf.arrayOffset() == 0 && buf.array().length == capacity)) {
+			return;
+		}
+		int index = sizeClass * 2 + (buf.isDirect() ? 1 : 0);
+		if (magazineSize > 0) {
+			Magazine magazine = getMagazine(index);
+			if (!magazine.push(buf)) {
+				// Half of a full magazine moves to the slab, so the thread
+				// can keep releasing without touching it each time
+				int spill = Math.max(1, magazineSize / 2);
+				for (int i = 0; i < spill; i++) {
+					slabs[index].offer(magazine.pop());
+				}
+				magazine.push(buf);
+			}
+		} else {
+			slabs[index].offer(buf);
+		}
+	}
+
+	public int getMagazineSize() {
+		return magazineSize;
+	}
+
+	public boolean isDebug() {
+		return debug;
+	}
+
+	/**
+	 * Gets the number of acquire calls
+	 */
+	public long getAcquireCount() {
+		return acquireCount.sum();
+	}
+
+	/**
+	 * Gets the number of buffers allocated because no released buffer was
+	 * available
+	 */
+	public long getAllocateCount() {
+		return allocateCount.sum();
+	}
+
+	/**
+	 * Gets the number of release calls
+	 */
+	public long getReleaseCount() {
+		return releaseCount.sum();
+	}
+
+	/**
+	 * Gets the number of acquired buffers not yet released
+	 */
+	public long getOutstandingCount() {
+		return acquireCount.sum() - releaseCount.sum();
+	}
+
+	/**
+	 * Gets the number of bytes held by the shared slabs.  Buffers in thread
+	 * magazines are not included.
+	 */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/**
+	 * Logs the acquiring stack trace of each outstanding buffer.  Only
+	 * available in debug mode.
+	 *
+	 * @return the number of outstanding buffers, or -1 if not in debug mode
+	 */
+	public int reportLeaks(Logger logger) {
+		if (!debug) {
+			return -1;
+		}
+		List<Map.Entry<ByteBuffer, Throwable>> leaks;
+		synchronized (outstanding) {
+			leaks = new ArrayList<Map.Entry<ByteBuffer, Throwable>>(outstanding.entrySet());
+		}
+		for (Map.Entry<ByteBuffer, Throwable> leak : leaks) {
+			logger.log(Level.WARNING, "Buffer of " + leak.getKey().capacity() + " bytes not released", leak.getValue());
+		}
+		return leaks.size();
+	}
+
+	private Magazine getMagazine(int index) {
+		Magazine[] threadMagazines = magazines.get();
+		Magazine magazine = threadMagazines[index];
+		if (magazine == null) {
+			magazine = new Magazine(magazineSize);
+			threadMagazines[index] = magazine;
+		}
+		return magazine;
+	}
+
+	private ByteBuffer allocate(int capacity, boolean direct) {
+		allocateCount.increment();
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Gets the size class for a size, or -1 if the size is too large to pool
+	 */
+	private static int getSizeClass(int size) {
+		if (size > MAX_SIZE) {
+			return -1;
+		}
+		if (size <= MIN_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/**
+	 * Released buffers of one size class and type, shared by all threads
+	 */
+	private class Slab {
+		private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		ByteBuffer poll() {
+			ByteBuffer buf = buffers.poll();
+			if (buf != null) {
+				pooledBytes.addAndGet(-buf.capacity());
+			}
+			return buf;
+		}
+
+		void offer(ByteBuffer buf) {
+			if (pooledBytes.addAndGet(buf.capacity()) > maxPooledBytes) {
+				pooledBytes.addAndGet(-buf.capacity());
+				return;
+			}
+			buffers.offer(buf);
+		}
+	}
+
+	/**
+	 * Released buffers of one size class and type, owned by a thread
+	 */
+	private static class Magazine {
+		private final ByteBuffer[] buffers;
+		private int count;
+
+		Magazine(int size) {
+			this.buffers = new ByteBuffer[size];
+			this.count = 0;
+		}
+
+		ByteBuffer pop() {
+			if (count == 0) {
+				return null;
+			}
+			ByteBuffer buf = buffers[--count];
+			buffers[count] = null;
+			return buf;
+		}
+
+		boolean push(ByteBuffer buf) {
+			if (count == buffers.length) {
+				return false;
+			}
+			buffers[count++] = buf;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.common;
+
+import java.math.BigInteger;
+
+/**
+ * Multiplicative set hash over the integers modulo 2^3072 - 1103717.<br>
+ * <br>
+ * Each element is expanded to a 3072 bit number using SHA256 in counter mode.
+ * Inserting an element multiplies the numerator by that number and removing
+ * an element multiplies the denominator, so both are a single modular
+ * multiplication.  The hash of a set does not depend on the order that
+ * elements were inserted and removed.<br>
+ * <br>
+ * The digest divides the numerator by the denominator, which needs a modular
+ * inverse.  This is much slower than an update, so the digest should only be
+ * computed once per block.
+ */
+public class MuHash {
+	public static final int BYTES = 384;
+
+	private static final int BITS = BYTES * 8;
+	private static final BigInteger C = BigInteger.valueOf(1103717);
+	private static final BigInteger MODULUS = BigInteger.ONE.shiftLeft(BITS).subtract(C);
+	private static final BigInteger MASK = BigInteger.ONE.shiftLeft(BITS).subtract(BigInteger.ONE);
+
+	private BigInteger numerator;
+	private BigInteger denominator;
+
+	/**
+	 * Creates the hash of the empty set
+	 */
+	public MuHash() {
+		this.numerator = BigInteger.ONE;
+		this.denominator = BigInteger.ONE;
+	}
+
+	/**
+	 * Creates a hash from its serialized form
+	 *
+	 * @param state a value returned by {@link #serialize}
+	 */
+	public MuHash(byte[] state) {
+		if (state.length != BYTES) {
+			throw new IllegalArgumentException("MuHash state must be " + BYTES + " bytes");
+		}
+		this.numerator = new BigInteger(1, state);
+		this.denominator = BigInteger.ONE;
+		if (numerator.compareTo(MODULUS) >= 0) {
+			throw new IllegalArgumentException("MuHash state is not reduced");
+		}
+	}
+
+	public MuHash(MuHash hash) {
+		this.numerator = hash.numerator;
+		this.denominator = hash.denominator;
+	}
+
+	/**
+	 * Adds an element to the set
+	 */
+	public void insert(byte[] element) {
+		numerator = multiply(numerator, toNumber(element));
+	}
+
+	/**
+	 * Removes an element from the set
+	 */
+	public void remove(byte[] element) {
+		denominator = multiply(denominator, toNumber(element));
+	}
+
+	/**
+	 * Adds all the elements of another set
+	 */
+	public void combine(MuHash other) {
+		numerator = multiply(numerator, other.numerator);
+		denominator = multiply(denominator, other.denominator);
+	}
+
+	/**
+	 * Gets the 32 byte digest of the set
+	 */
+	public byte[] getDigest() {
+		byte[] state = serialize();
+		return SHA256.getDigest(state, 0, state.length);
+	}
+
+	/**
+	 * Gets the normalized 384 byte state.  The denominator is folded into the
+	 * numerator, so later updates are cheaper until the next removal.
+	 */
+	public byte[] serialize() {
+		normalize();
+		byte[] encoded = numerator.toByteArray();
+		byte[] state = new byte[BYTES];
+		int length = Math.min(encoded.length, BYTES);
+		System.arraycopy(encoded, encoded.length - length, state, BYTES - length, length);
+		return state;
+	}
+
+	private void normalize() {
+		if (!denominator.equals(BigInteger.ONE)) {
+			numerator = numerator.multiply(denominator.modInverse(MODULUS)).mod(MODULUS);
+			denominator = BigInteger.ONE;
+		}
+	}
+
+	private static BigInteger toNumber(byte[] element) {
+		byte[] seed = SHA256.getDigest(element, 0, element.length);
+		byte[] expanded = new byte[BYTES];
+		byte[] counter = new byte[1];
+		for (int i = 0; i < BYTES / 32; i++) {
+			counter[0] = (byte) i;
+			System.arraycopy(SHA256.getDigest(seed, counter), 0, expanded, i * 32, 32);
+		}
+		return reduce(new BigInteger(1, expanded));
+	}
+
+	private static BigInteger multiply(BigInteger a, BigInteger b) {
+		return reduce(a.multiply(b));
+	}
+
+	/**
+	 * Reduces using 2^3072 = C (mod p), so no division is needed
+	 */
+	private static BigInteger reduce(BigInteger x) {
+		while (x.bitLength() > BITS) {
+			x = x.and(MASK).add(x.shiftRight(BITS).multiply(C));
+		}
+		if (x.compareTo(MODULUS) >= 0) {
+			x = x.subtract(MODULUS);
+		}
+		return x;
+	}
+}
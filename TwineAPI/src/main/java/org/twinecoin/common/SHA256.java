@@ -7,11 +7,14 @@ package org.twinecoin.common;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class SHA256 {
 
+	private final static int STREAM_BUFFER_SIZE = 8192;
+
 	private final static ThreadLocal<MessageDigest> localSHA256MD = new ThreadLocal<MessageDigest>() {
 		protected MessageDigest initialValue() {
 			return createSHA256MessageDigest();
@@ -32,14 +35,46 @@ public class SHA256 {
 
 	public static byte[] getDigest(InputStream in) throws IOException {
 		MessageDigest md = getMessageDigest();
-		byte[] buf = new byte[8192];
-		int read = 0;
-		while (read >= 0) {
-			read = in.read(buf);
-			if (read >= 0) {
-				md.update(buf, 0, read);
+		ByteBufferPool pool = ByteBufferPool.getShared();
+		ByteBuffer buf = pool.acquire(STREAM_BUFFER_SIZE, false);
+		try {
+			byte[] array = buf.array();
+			int read = 0;
+			while (read >= 0) {
+				read = in.read(array, 0, buf.limit());
+				if (read >= 0) {
+					md.update(array, 0, read);
+				}
 			}
+		} finally {
+			pool.release(buf);
 		}
 		return md.digest();
 	}
+
+	public static byte[] getDigest(byte[] data, int offset, int length) {
+		MessageDigest md = getMessageDigest();
+		md.update(data, offset, length);
+		return md.digest();
+	}
+
+	/**
+	 * Gets the digest of the remaining bytes in a buffer.  The buffer position
+	 * is moved to its limit.
+	 */
+	public static byte[] getDigest(ByteBuffer buf) {
+		MessageDigest md = getMessageDigest();
+		md.update(buf);
+		return md.digest();
+	}
+
+	/**
+	 * Gets the digest of the concatenation of two arrays
+	 */
+	public static byte[] getDigest(byte[] a, byte[] b) {
+		MessageDigest md = getMessageDigest();
+		md.update(a);
+		md.update(b);
+		return md.digest();
+	}
 }
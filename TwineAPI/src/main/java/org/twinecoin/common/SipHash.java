@@ -0,0 +1,117 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.common;
+
+/**
+ * SipHash-2-4 keyed hash with a 128 bit key and 64 bit output.<br>
+ * <br>
+ * Message words are read little endian, as in the reference implementation.
+ */
+public class SipHash {
+
+	/**
+	 * Gets the hash of a byte array
+	 *
+	 * @param k0 the first 8 bytes of the key, little endian
+	 * @param k1 the last 8 bytes of the key, little endian
+	 */
+	public static long hash(long k0, long k1, byte[] data) {
+		return hash(k0, k1, data, 0, data.length);
+	}
+
+	public static long hash(long k0, long k1, byte[] data, int offset, int length) {
+		long v0 = 0x736f6d6570736575L ^ k0;
+		long v1 = 0x646f72616e646f6dL ^ k1;
+		long v2 = 0x6c7967656e657261L ^ k0;
+		long v3 = 0x7465646279746573L ^ k1;
+
+		int end = offset + (length & ~7);
+		for (int i = offset; i < end; i += 8) {
+			long m = readLong(data, i);
+			v3 ^= m;
+			for (int r = 0; r < 2; r++) {
+				v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+				v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+				v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+				v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+			}
+			v0 ^= m;
+		}
+
+		long m = ((long) length) << 56;
+		for (int i = 0; i < (length & 7); i++) {
+			m |= (data[end + i] & 0xFFL) << (8 * i);
+		}
+		v3 ^= m;
+		for (int r = 0; r < 2; r++) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+		v0 ^= m;
+
+		v2 ^= 0xFF;
+		for (int r = 0; r < 4; r++) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+		return v0 ^ v1 ^ v2 ^ v3;
+	}
+
+	/**
+	 * Gets the hash of a message that has been read into little endian words,
+	 * which avoids reading bytes when the same message is hashed with many
+	 * keys
+	 *
+	 * @param words the message words
+	 * @param offset the index of the first word
+	 * @param count the number of words, so the message is 8 * count bytes
+	 */
+	public static long hash(long k0, long k1, long[] words, int offset, int count) {
+		long v0 = 0x736f6d6570736575L ^ k0;
+		long v1 = 0x646f72616e646f6dL ^ k1;
+		long v2 = 0x6c7967656e657261L ^ k0;
+		long v3 = 0x7465646279746573L ^ k1;
+
+		for (int i = offset; i <= offset + count; i++) {
+			long m = i < offset + count ? words[i] : ((long) count * 8) << 56;
+			v3 ^= m;
+			for (int r = 0; r < 2; r++) {
+				v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+				v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+				v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+				v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+			}
+			v0 ^= m;
+		}
+
+		v2 ^= 0xFF;
+		for (int r = 0; r < 4; r++) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+		return v0 ^ v1 ^ v2 ^ v3;
+	}
+
+	/**
+	 * Reads 8 bytes as a little endian long
+	 */
+	public static long readLong(byte[] data, int offset) {
+		return (data[offset] & 0xFFL)
+				| ((data[offset + 1] & 0xFFL) << 8)
+				| ((data[offset + 2] & 0xFFL) << 16)
+				| ((data[offset + 3] & 0xFFL) << 24)
+				| ((data[offset + 4] & 0xFFL) << 32)
+				| ((data[offset + 5] & 0xFFL) << 40)
+				| ((data[offset + 6] & 0xFFL) << 48)
+				| ((data[offset + 7] & 0xFFL) << 56);
+	}
+}
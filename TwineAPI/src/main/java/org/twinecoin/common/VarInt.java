@@ -0,0 +1,143 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned variable length integers, 7 bits per byte, least significant
+ * group first.  The top bit of each byte is set if more bytes follow.
+ */
+public class VarInt {
+	public static final int MAX_LENGTH = 10;
+
+	public static int size(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	public static int write(byte[] buf, int offset, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buf[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[offset++] = (byte) value;
+		return offset;
+	}
+
+	public static void write(ByteBuffer buf, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	public static void write(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	public static long read(ByteBuffer buf) {
+		long value = 0;
+		int shift = 0;
+		while (shift < 64) {
+			byte b = buf.get();
+			value |= ((long) (b & 0x7F)) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+		}
+		throw new IllegalArgumentException("Variable length integer exceeds 64 bits");
+	}
+
+	/**
+	 * Reads a value from an array.  The end of the value is written to
+	 * end[0] when end is not null.
+	 */
+	public static long read(byte[] buf, int offset, int[] end) {
+		long value = 0;
+		int shift = 0;
+		while (shift < 64) {
+			if (offset >= buf.length) {
+				throw new BufferUnderflowException();
+			}
+			byte b = buf[offset++];
+			value |= ((long) (b & 0x7F)) << shift;
+			if ((b & 0x80) == 0) {
+				if (end != null) {
+					end[0] = offset;
+				}
+				return value;
+			}
+			shift += 7;
+		}
+		throw new IllegalArgumentException("Variable length integer exceeds 64 bits");
+	}
+
+	/**
+	 * Reads a value at an absolute offset in a buffer without moving its
+	 * position.  The end of the value is written to end[0] when end is not
+	 * null.
+	 */
+	public static long read(ByteBuffer buf, int offset, int[] end) {
+		long value = 0;
+		int shift = 0;
+		while (shift < 64) {
+			if (offset >= buf.limit()) {
+				throw new BufferUnderflowException();
+			}
+			byte b = buf.get(offset++);
+			value |= ((long) (b & 0x7F)) << shift;
+			if ((b & 0x80) == 0) {
+				if (end != null) {
+					end[0] = offset;
+				}
+				return value;
+			}
+			shift += 7;
+		}
+		throw new IllegalArgumentException("Variable length integer exceeds 64 bits");
+	}
+
+	public static long read(InputStream in) throws IOException {
+		long value = 0;
+		int shift = 0;
+		while (shift < 64) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("End of stream inside variable length integer");
+			}
+			value |= ((long) (b & 0x7F)) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+		}
+		throw new IOException("Variable length integer exceeds 64 bits");
+	}
+
+	public static int readInt(ByteBuffer buf) {
+		long value = read(buf);
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Variable length integer out of range for int, " + value);
+		}
+		return (int) value;
+	}
+}
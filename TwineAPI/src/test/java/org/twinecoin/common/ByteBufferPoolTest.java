@@ -0,0 +1,138 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+public class ByteBufferPoolTest {
+
+	@Test
+	public void testSizeClasses() {
+		ByteBufferPool pool = new ByteBufferPool(1 << 20, 4, false);
+
+		ByteBuffer small = pool.acquire(1, false);
+		assertEquals("Unexpected limit", 1, small.limit());
+		assertEquals("Unexpected capacity", ByteBufferPool.MIN_SIZE, small.capacity());
+		assertTrue("Heap buffer without array", small.hasArray());
+
+		ByteBuffer direct = pool.acquire(5000, true);
+		assertTrue("Buffer not direct", direct.isDirect());
+		assertEquals("Capacity not rounded up", 8192, direct.capacity());
+		assertEquals("Unexpected limit", 5000, direct.limit());
+
+		ByteBuffer large = pool.acquire(ByteBufferPool.MAX_SIZE + 1, false);
+		assertEquals("Unexpected oversized capacity", ByteBufferPool.MAX_SIZE + 1, large.capacity());
+
+		// Released buffers are reused by size class and type
+		pool.release(direct);
+		assertNotSame("Direct buffer returned as heap buffer", direct, pool.acquire(5000, false));
+		direct.put(0, (byte) 1).limit(10);
+		ByteBuffer reused = pool.acquire(8000, true);
+		assertSame("Direct buffer not reused", direct, reused);
+		assertEquals("Reused buffer not reset", 8000, reused.limit());
+
+		pool.release(large);
+		assertEquals("Unexpected acquire count", 5, pool.getAcquireCount());
+		assertEquals("Unexpected allocate count", 4, pool.getAllocateCount());
+		assertEquals("Unexpected outstanding count", 3, pool.getOutstandingCount());
+
+		// Oversized and sliced buffers are not pooled
+		assertNotSame("Oversized buffer pooled", large, pool.acquire(ByteBufferPool.MAX_SIZE + 1, false));
+		ByteBuffer slice = ByteBuffer.wrap(new byte[8193], 1, 8192).slice();
+		pool.release(slice);
+		assertNotSame("Sliced buffer pooled", slice, pool.acquire(8192, false));
+	}
+
+	@Test
+	public void testMagazines() throws InterruptedException {
+		final ByteBufferPool pool = new ByteBufferPool(1 << 20, 4, false);
+		final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 10; i++) {
+			buffers.add(pool.acquire(1000, true));
+		}
+		for (ByteBuffer buf : buffers) {
+			pool.release(buf);
+		}
+		// Full magazines spill half their buffers to the shared slab
+		assertEquals("Unexpected pooled bytes", 6 * 1024, pool.getPooledBytes());
+
+		// Another thread takes from the shared slab
+		final List<ByteBuffer> taken = new ArrayList<ByteBuffer>();
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 6; i++) {
+					taken.add(pool.acquire(1000, true));
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		assertEquals("Slab not drained", 0, pool.getPooledBytes());
+		assertEquals("Unexpected allocate count", 10, pool.getAllocateCount());
+		for (ByteBuffer buf : taken) {
+			assertTrue("Unknown buffer taken from slab", buffers.contains(buf));
+		}
+
+		// The magazine still holds the remaining buffers
+		assertTrue("Magazine buffer not reused", buffers.contains(pool.acquire(1000, true)));
+		assertEquals("Unexpected allocate count", 10, pool.getAllocateCount());
+	}
+
+	@Test
+	public void testMaxPooledBytes() {
+		ByteBufferPool pool = new ByteBufferPool(4096, 0, false);
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 4; i++) {
+			buffers.add(pool.acquire(2048, false));
+		}
+		for (ByteBuffer buf : buffers) {
+			pool.release(buf);
+		}
+		assertEquals("Pool limit exceeded", 4096, pool.getPooledBytes());
+		pool.acquire(2048, false);
+		pool.acquire(2048, false);
+		pool.acquire(2048, false);
+		assertEquals("Unexpected allocate count", 5, pool.getAllocateCount());
+	}
+
+	@Test
+	public void testLeakTracking() {
+		ByteBufferPool pool = new ByteBufferPool(1 << 20, 4, true);
+		Logger logger = Logger.getLogger(ByteBufferPoolTest.class.getSimpleName());
+		logger.setUseParentHandlers(false);
+		logger.setLevel(Level.OFF);
+
+		ByteBuffer released = pool.acquire(100, true);
+		pool.acquire(100, false);
+		pool.release(released);
+		assertEquals("Unexpected leak count", 1, pool.reportLeaks(logger));
+		try {
+			pool.release(released);
+			fail("Double release accepted");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			pool.release(ByteBuffer.allocate(256));
+			fail("Foreign buffer accepted");
+		} catch (IllegalArgumentException e) {
+		}
+		assertFalse("Debug pool without leak report", new ByteBufferPool(1 << 20, 4, false).reportLeaks(logger) >= 0);
+	}
+}
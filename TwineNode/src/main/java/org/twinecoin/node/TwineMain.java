@@ -6,6 +6,7 @@
 package org.twinecoin.node;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.logging.Logger;
 
 import org.twinecoin.api.node.Consensus;
@@ -51,5 +52,25 @@ public class TwineMain {
 			twineLogger.getLogger().severe("Unable to load consensus library");
 			System.exit(-1);
 		}
+
+		final TwineNode node;
+		try {
+			node = new TwineNode(config, logger);
+		} catch (IOException e) {
+			logger.severe("Shuting down: Unable to open chain state, " + e.getMessage());
+			System.exit(-1);
+			return;
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
+			@Override
+			public void run() {
+				node.close();
+			}
+		});
+
+		if (config.getBooleanParameter("importbootstrap") && !node.importBootstrap()) {
+			logger.warning("Bootstrap import did not complete");
+		}
 	}
 }
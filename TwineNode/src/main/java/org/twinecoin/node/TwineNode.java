@@ -5,21 +5,290 @@
  */
 package org.twinecoin.node;
 
+import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import org.twinecoin.api.EventSubscription;
 import org.twinecoin.api.Node;
+import org.twinecoin.api.chain.AddressTracker;
 import org.twinecoin.api.chain.ChainTracker;
+import org.twinecoin.api.chain.FilterTracker;
+import org.twinecoin.api.data.NodeEvent;
 import org.twinecoin.api.node.ConfigurationManager;
+import org.twinecoin.common.ByteBufferPool;
+import org.twinecoin.common.Convert;
+import org.twinecoin.node.address.TwineAddressTracker;
+import org.twinecoin.node.block.AssumeValid;
+import org.twinecoin.node.block.ScriptVerifier;
+import org.twinecoin.node.bootstrap.BootstrapImporter;
 import org.twinecoin.node.config.TwineConfigurationManager;
+import org.twinecoin.node.event.EventRing;
+import org.twinecoin.node.event.EventServer;
+import org.twinecoin.node.filter.TwineFilterTracker;
+import org.twinecoin.node.mempool.FeeEstimator;
+import org.twinecoin.node.mempool.MemoryPoolEntry;
+import org.twinecoin.node.mempool.MemoryPoolListener;
+import org.twinecoin.node.mempool.TwineMemoryPool;
+import org.twinecoin.node.net.AddressManager;
+import org.twinecoin.node.net.BlockingPeerNetwork;
+import org.twinecoin.node.net.InventoryRelay;
+import org.twinecoin.node.net.Peer;
+import org.twinecoin.node.net.PeerListener;
+import org.twinecoin.node.net.PeerNetwork;
+import org.twinecoin.node.net.SelectorPeerNetwork;
+import org.twinecoin.node.net.VirtualThreads;
+import org.twinecoin.node.output.ChainListener;
+import org.twinecoin.node.output.KeyValueOutputStore;
+import org.twinecoin.node.output.TwineOutputTracker;
+import org.twinecoin.node.output.snapshot.OutputSnapshotReader;
+import org.twinecoin.node.output.snapshot.OutputSnapshotWriter;
+import org.twinecoin.node.output.undo.UndoPruner;
+import org.twinecoin.node.output.undo.UndoStore;
+import org.twinecoin.node.rpc.NodeRpcMethods;
+import org.twinecoin.node.rpc.RpcServer;
+import org.twinecoin.node.store.KeyValueStore;
+import org.twinecoin.node.store.lsm.LsmStore;
 
 public class TwineNode implements Node {
+	public static final String FEE_ESTIMATES_FILE = "fee_estimates.dat";
+	public static final String PEERS_FILE = "peers.dat";
+
 	private final ConfigurationManager config;
 	private final Logger logger;
+	private final KeyValueStore chainState;
+	private final KeyValueOutputStore outputStore;
+	private final UndoStore undoStore;
+	private final TwineOutputTracker outputTracker;
+	private final ExecutorService pruneExecutor;
+	private final UndoPruner undoPruner;
+	private final TwineMemoryPool memoryPool;
+	private final FeeEstimator feeEstimator;
+	private final KeyValueStore addressIndex;
+	private final TwineAddressTracker addressTracker;
+	private final KeyValueStore filterIndex;
+	private final ExecutorService filterExecutor;
+	private final TwineFilterTracker filterTracker;
+	private final ChainTracker chainTracker;
+	private final PeerNetwork network;
+	private final ScheduledExecutorService relayExecutor;
+	private final InventoryRelay relay;
+	private final AddressManager addressManager;
+	private final ExecutorService rpcExecutor;
+	private final RpcServer rpcServer;
+	private final EventRing events;
+	private final EventServer eventServer;
+	private final File snapshotFile;
+	private final File bootstrapFile;
+	private final File feeEstimatesFile;
+	private volatile ScriptVerifier scriptVerifier;
+	private volatile BootstrapImporter importer;
+	private volatile boolean closing;
 
 	public TwineNode(TwineConfigurationManager config, Logger logger) throws IOException {
 		this.logger = logger;
 		this.config = config;
+
+		int dbThreads = (int) config.getIntegerParameter("dbthreads");
+		long dbCache = config.getIntegerParameter("dbcache") << 20;
+		long dbFlush = config.getIntegerParameter("dbflush") * 1000;
+
+		this.chainState = new LsmStore(new File(config.getRootDir(), "chainstate"), logger, dbThreads);
+		this.outputStore = new KeyValueOutputStore(chainState);
+		this.snapshotFile = new File(config.getRootDir(), config.getStringParameter("snapshot"));
+		this.bootstrapFile = new File(config.getRootDir(), config.getStringParameter("bootstrap"));
+
+		if (config.getBooleanParameter("loadsnapshot") && outputStore.getBestBlock() == null) {
+			loadSnapshot();
+		}
+
+		this.undoStore = new UndoStore(new File(config.getRootDir(), "blocks"), chainState, logger);
+		this.outputTracker = new TwineOutputTracker(outputStore, undoStore, logger, dbCache, dbFlush);
+
+		long prune = config.getIntegerParameter("prune") << 20;
+		if (prune > 0) {
+			this.pruneExecutor = Executors.newSingleThreadExecutor();
+			this.undoPruner = new UndoPruner(undoStore, pruneExecutor, logger, prune);
+			outputTracker.addListener(undoPruner);
+		} else {
+			this.pruneExecutor = null;
+			this.undoPruner = null;
+		}
+
+		long maxMempool = config.getIntegerParameter("maxmempool") << 20;
+		this.memoryPool = new TwineMemoryPool(outputTracker, logger, maxMempool, config.getIntegerParameter("minrelayfee"));
+		this.feeEstimatesFile = new File(config.getRootDir(), FEE_ESTIMATES_FILE);
+		this.feeEstimator = new FeeEstimator(logger, outputStore.getBestHeight());
+		feeEstimator.load(feeEstimatesFile);
+		memoryPool.addListener(feeEstimator);
+		// Block removals reach the estimator before the block does
+		outputTracker.addListener(new ChainListener() {
+			@Override
+			public void blockConnected(byte[] blockHash, int height) {
+				feeEstimator.processBlock(height);
+			}
+
+			@Override
+			public void blockDisconnected(byte[] blockHash, int height) {
+			}
+		});
+
+		if (config.getBooleanParameter("addressindex")) {
+			this.addressIndex = new LsmStore(new File(config.getRootDir(), "addressindex"), logger, dbThreads);
+			this.addressTracker = new TwineAddressTracker(addressIndex, logger);
+			if (addressTracker.getBestHeight() < outputTracker.getBestHeight()) {
+				logger.warning("Address index at height " + addressTracker.getBestHeight() + " is behind the chain state at height " + outputTracker.getBestHeight() + " and can not be updated, the index must be built from the genesis block");
+			}
+		} else {
+			this.addressIndex = null;
+			this.addressTracker = null;
+		}
+
+		if (config.getBooleanParameter("blockfilterindex")) {
+			this.filterIndex = new LsmStore(new File(config.getRootDir(), "filterindex"), logger, dbThreads);
+			this.filterExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			this.filterTracker = new TwineFilterTracker(filterIndex, logger, filterExecutor);
+		} else {
+			this.filterIndex = null;
+			this.filterExecutor = null;
+			this.filterTracker = null;
+		}
+
+		this.chainTracker = new ChainTracker() {
+			@Override
+			public Node getNode() {
+				return TwineNode.this;
+			}
+
+			@Override
+			public AddressTracker getAddressTracker() {
+				return addressTracker;
+			}
+
+			@Override
+			public FilterTracker getFilterTracker() {
+				return filterTracker;
+			}
+		};
+
+		this.events = new EventRing();
+		memoryPool.addListener(new MemoryPoolListener() {
+			@Override
+			public void transactionAdded(MemoryPoolEntry entry) {
+				events.publish(NodeEvent.Type.TRANSACTION_ACCEPTED, entry.getTransaction().getTxid(), -1);
+			}
+
+			@Override
+			public void transactionRemoved(MemoryPoolEntry entry, RemovalReason reason) {
+				if (reason != RemovalReason.BLOCK) {
+					events.publish(NodeEvent.Type.TRANSACTION_EVICTED, entry.getTransaction().getTxid(), -1);
+				}
+			}
+		});
+		outputTracker.addListener(new ChainListener() {
+			@Override
+			public void blockConnected(byte[] blockHash, int height) {
+				events.publish(NodeEvent.Type.BLOCK_CONNECTED, blockHash, height);
+				events.publish(NodeEvent.Type.TIP_CHANGED, blockHash, height);
+			}
+
+			@Override
+			public void blockDisconnected(byte[] blockHash, int height) {
+				events.publish(NodeEvent.Type.BLOCK_DISCONNECTED, blockHash, height);
+				events.publish(NodeEvent.Type.TIP_CHANGED, outputTracker.getBestBlock(), height - 1);
+			}
+		});
+
+		this.addressManager = new AddressManager(logger);
+		addressManager.load(new File(config.getRootDir(), PEERS_FILE));
+
+		if (config.getBooleanParameter("listen")) {
+			this.relayExecutor = Executors.newSingleThreadScheduledExecutor();
+			this.relay = new InventoryRelay(relayExecutor, logger);
+			memoryPool.addListener(relay);
+			PeerListener listener = new PeerListener() {
+				@Override
+				public void connected(Peer peer) {
+					TwineNode.this.logger.fine("Peer connected, " + peer);
+					if (!peer.isInbound()) {
+						TwineNode.this.addressManager.good(peer.getAddress());
+					}
+					relay.addPeer(peer);
+				}
+
+				@Override
+				public void messageReceived(Peer peer, String command, ByteBuffer payload) {
+					TwineNode.this.logger.finest("Received " + command + " from " + peer);
+					if (InventoryRelay.INV_COMMAND.equals(command) && !relay.inventoryReceived(peer, payload)) {
+						peer.close();
+					}
+				}
+
+				@Override
+				public void disconnected(Peer peer) {
+					TwineNode.this.logger.fine("Peer disconnected, " + peer);
+					relay.removePeer(peer);
+				}
+			};
+			ThreadFactory virtualThreads = null;
+			if (config.getBooleanParameter("virtualthreads")) {
+				virtualThreads = VirtualThreads.getFactory("peer-");
+				if (virtualThreads == null) {
+					logger.warning("Virtual threads require JDK 21, using network threads");
+				}
+			}
+			if (virtualThreads != null) {
+				this.network = new BlockingPeerNetwork(listener, logger, virtualThreads);
+			} else {
+				this.network = new SelectorPeerNetwork(listener, logger, (int) config.getIntegerParameter("netthreads"));
+			}
+			network.listen(new InetSocketAddress((int) config.getIntegerParameter("port")));
+		} else {
+			this.network = null;
+			this.relayExecutor = null;
+			this.relay = null;
+		}
+
+		if (config.getBooleanParameter("rpc")) {
+			ThreadFactory virtualThreads = null;
+			if (config.getBooleanParameter("virtualthreads")) {
+				virtualThreads = VirtualThreads.getFactory("rpc-");
+			}
+			if (virtualThreads != null) {
+				this.rpcExecutor = Executors.newCachedThreadPool(virtualThreads);
+			} else {
+				this.rpcExecutor = Executors.newFixedThreadPool((int) config.getIntegerParameter("rpcthreads"));
+			}
+			this.rpcServer = new RpcServer(logger, rpcExecutor);
+			new NodeRpcMethods(outputTracker, memoryPool, feeEstimator, addressTracker, filterTracker).register(rpcServer);
+			rpcServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), (int) config.getIntegerParameter("rpcport")));
+		} else {
+			this.rpcExecutor = null;
+			this.rpcServer = null;
+		}
+
+		if (config.getBooleanParameter("events")) {
+			ThreadFactory threads = null;
+			if (config.getBooleanParameter("virtualthreads")) {
+				threads = VirtualThreads.getFactory("events-");
+			}
+			if (threads == null) {
+				threads = Executors.defaultThreadFactory();
+			}
+			this.eventServer = new EventServer(events, logger, threads);
+			eventServer.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), (int) config.getIntegerParameter("eventport")));
+		} else {
+			this.eventServer = null;
+		}
 	}
 
 	@Override
@@ -29,11 +298,233 @@ public class TwineNode implements Node {
 
 	@Override
 	public ChainTracker getChainTracker() {
-		return null;
+		return chainTracker;
 	}
 
 	@Override
 	public ConfigurationManager getConfigurationManager() {
 		return config;
 	}
+
+	@Override
+	public EventSubscription subscribe() {
+		return events.subscribe();
+	}
+
+	public TwineOutputTracker getOutputTracker() {
+		return outputTracker;
+	}
+
+	public TwineMemoryPool getMemoryPool() {
+		return memoryPool;
+	}
+
+	public FeeEstimator getFeeEstimator() {
+		return feeEstimator;
+	}
+
+	/**
+	 * Gets the address index
+	 *
+	 * @return the index, or null if the addressindex parameter is not set
+	 */
+	public TwineAddressTracker getAddressTracker() {
+		return addressTracker;
+	}
+
+	/**
+	 * Gets the block filter index
+	 *
+	 * @return the index, or null if the blockfilterindex parameter is not set
+	 */
+	public TwineFilterTracker getFilterTracker() {
+		return filterTracker;
+	}
+
+	/**
+	 * Gets the peer network
+	 *
+	 * @return the network, or null if the listen parameter is not set
+	 */
+	public PeerNetwork getNetwork() {
+		return network;
+	}
+
+	public AddressManager getAddressManager() {
+		return addressManager;
+	}
+
+	/**
+	 * Gets the JSON-RPC server
+	 *
+	 * @return the server, or null if the rpc parameter is not set
+	 */
+	public RpcServer getRpcServer() {
+		return rpcServer;
+	}
+
+	/**
+	 * Gets the event stream server
+	 *
+	 * @return the server, or null if the events parameter is not set
+	 */
+	public EventServer getEventServer() {
+		return eventServer;
+	}
+
+	/**
+	 * Imports the blocks in the bootstrap file that are above the best block
+	 *
+	 * @return true if every block in the file was connected
+	 */
+	public boolean importBootstrap() {
+		if (!bootstrapFile.isFile()) {
+			logger.warning("Bootstrap file not found, " + bootstrapFile);
+			return false;
+		}
+		AssumeValid assumeValid = null;
+		String assumed = config.getStringParameter("assumevalid");
+		if (scriptVerifier == null) {
+			logger.warning("No script verifier is set, bootstrap blocks are imported without script checks" + (assumed != null ? " and assumevalid is ignored" : ""));
+		} else if (assumed != null) {
+			try {
+				assumeValid = new AssumeValid(Convert.hexToBytes(assumed), new BigInteger(config.getStringParameter("minimumchainwork"), 16));
+			} catch (IllegalArgumentException e) {
+				logger.warning("Invalid assumed-valid block, checking every script, " + e.getMessage());
+			}
+		}
+		// The read and connect stages have a thread each
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
+		BootstrapImporter bootstrapImporter = new BootstrapImporter(outputTracker, addressTracker, filterTracker, scriptVerifier, assumeValid, logger, threads);
+		bootstrapImporter.setMemoryPool(memoryPool);
+		importer = bootstrapImporter;
+		// close() stops the import once it can see it
+		if (closing) {
+			return false;
+		}
+		try {
+			return bootstrapImporter.importFile(bootstrapFile);
+		} finally {
+			importer = null;
+		}
+	}
+
+	/**
+	 * Sets the script verifier for bootstrap imports.  The consensus library
+	 * has no script interface, so there is none by default and no scripts are
+	 * checked.
+	 */
+	public void setScriptVerifier(ScriptVerifier scriptVerifier) {
+		this.scriptVerifier = scriptVerifier;
+	}
+
+	/**
+	 * Stops a running bootstrap import, flushes pending state and closes the
+	 * databases
+	 */
+	public void close() {
+		closing = true;
+		BootstrapImporter running = importer;
+		if (running != null) {
+			// The import flushes the blocks it connected before it ends
+			running.stop();
+		}
+		if (eventServer != null) {
+			eventServer.close();
+		}
+		if (rpcServer != null) {
+			rpcServer.close();
+			rpcExecutor.shutdown();
+		}
+		if (network != null) {
+			network.close();
+			relay.close();
+			relayExecutor.shutdown();
+		}
+		addressManager.close();
+		feeEstimator.save(feeEstimatesFile);
+		if (!outputTracker.close()) {
+			logger.severe("Unable to flush unspent output cache on shutdown");
+		} else if (config.getBooleanParameter("dumpsnapshot")) {
+			dumpSnapshot();
+		}
+		if (pruneExecutor != null) {
+			outputTracker.removeListener(undoPruner);
+			pruneExecutor.shutdown();
+			try {
+				pruneExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			undoStore.close();
+		} catch (IOException e) {
+			logger.severe("Unable to close undo store, " + e.getMessage());
+		}
+		try {
+			chainState.close();
+		} catch (IOException e) {
+			logger.severe("Unable to close chain state database, " + e.getMessage());
+		}
+		if (addressIndex != null) {
+			try {
+				addressIndex.close();
+			} catch (IOException e) {
+				logger.severe("Unable to close address index database, " + e.getMessage());
+			}
+		}
+		if (filterIndex != null) {
+			filterTracker.flush();
+			filterExecutor.shutdown();
+			try {
+				filterIndex.close();
+			} catch (IOException e) {
+				logger.severe("Unable to close filter index database, " + e.getMessage());
+			}
+		}
+		if (ByteBufferPool.getShared().reportLeaks(logger) > 0) {
+			logger.warning("Buffers not returned to the pool on shutdown");
+		}
+	}
+
+	private void loadSnapshot() throws IOException {
+		if (!snapshotFile.isFile()) {
+			logger.warning("Snapshot file not found, " + snapshotFile);
+			return;
+		}
+		// The set hash in the file is chosen by whoever wrote it, so it must
+		// match the output set commitment from a trusted node
+		String commitment = config.getStringParameter("snapshotcommitment");
+		if (commitment == null) {
+			logger.severe("Snapshot not loaded, no trusted snapshotcommitment is configured");
+			return;
+		}
+		byte[] expectedCommitment;
+		try {
+			expectedCommitment = Convert.hexToBytes(commitment);
+		} catch (IllegalArgumentException e) {
+			logger.severe("Snapshot not loaded, invalid snapshotcommitment, " + e.getMessage());
+			return;
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			new OutputSnapshotReader(logger, executor).load(snapshotFile, outputStore, expectedCommitment);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void dumpSnapshot() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			new OutputSnapshotWriter(logger, executor, threads).write(outputStore, snapshotFile);
+		} catch (IOException e) {
+			logger.severe("Unable to write snapshot, " + e.getMessage());
+		} finally {
+			executor.shutdown();
+		}
+	}
 }
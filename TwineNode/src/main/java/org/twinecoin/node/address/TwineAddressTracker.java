@@ -0,0 +1,379 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.address;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.twinecoin.api.chain.AddressTracker;
+import org.twinecoin.api.data.AddressHistoryEntry;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.SHA256;
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.output.OutputView;
+import org.twinecoin.node.store.KeyValueStore;
+import org.twinecoin.node.store.WriteBatch;
+
+/**
+ * Address index backed by a key-value store.<br>
+ * <br>
+ * The history of each address is a posting list of (height, position)
+ * entries split into segments of {@link #SEGMENT_ENTRIES} entries.  Entries
+ * are delta encoded as varints.  The height delta from the previous entry is
+ * written first, then the position delta if the height is unchanged, or the
+ * position if not.  The first entry of a segment is relative to (0, 0), so
+ * each segment can be decoded alone and a page only reads the segments it
+ * covers.<br>
+ * <br>
+ * Full segments are never rewritten.  New entries are appended to the bytes
+ * of the last segment, which needs the last entry, so it is kept with the
+ * entry count.<br>
+ * <br>
+ * Keys<br>
+ * - 'a' + script hash + segment (4 bytes, big endian) - segment entries<br>
+ * - 'n' + script hash - entry count, last height and last position (varints)
+ * <br>
+ * - 'h' + height (4 bytes, big endian) - script hashes and entry counts added
+ * by the block, used to unwind it<br>
+ * - 'B' - best height (varint)
+ */
+public class TwineAddressTracker implements AddressTracker {
+	public static final int SEGMENT_ENTRIES = 512;
+
+	// Blocks deeper than this can not be disconnected
+	public static final int UNDO_DEPTH = 1000;
+
+	static final byte SEGMENT_PREFIX = 'a';
+	static final byte COUNT_PREFIX = 'n';
+	static final byte UNDO_PREFIX = 'h';
+	static final byte[] BEST_HEIGHT_KEY = new byte[] {'B'};
+
+	private final KeyValueStore store;
+	private final Logger logger;
+
+	private volatile int bestHeight;
+
+	public TwineAddressTracker(KeyValueStore store, Logger logger) throws IOException {
+		this.store = store;
+		this.logger = logger;
+		byte[] best = store.get(BEST_HEIGHT_KEY);
+		this.bestHeight = best == null ? -1 : (int) VarInt.read(best, 0, new int[1]);
+	}
+
+	/**
+	 * Gets the address identifier for an output script
+	 */
+	public static byte[] getScriptHash(byte[] script) {
+		return SHA256.getDigest(script, 0, script.length);
+	}
+
+	@Override
+	public long getHistorySize(byte[] scriptHash) {
+		try {
+			byte[] count = store.get(encodeCountKey(scriptHash));
+			return count == null ? 0 : VarInt.read(count, 0, new int[1]);
+		} catch (IOException e) {
+			logger.severe("Unable to read address index, " + e.getMessage());
+			return -1;
+		}
+	}
+
+	@Override
+	public List<AddressHistoryEntry> getHistory(byte[] scriptHash, long offset, int count) {
+		long size = getHistorySize(scriptHash);
+		if (size < 0) {
+			return null;
+		}
+		long end = Math.min(size, offset + count);
+		List<AddressHistoryEntry> entries = new ArrayList<AddressHistoryEntry>((int) Math.max(end - offset, 0));
+		try {
+			for (long next = offset; next < end; ) {
+				int segment = (int) (next / SEGMENT_ENTRIES);
+				byte[] value = store.get(encodeSegmentKey(scriptHash, segment));
+				if (value == null) {
+					logger.severe("Address index segment " + segment + " missing");
+					return null;
+				}
+				int skip = (int) (next - (long) segment * SEGMENT_ENTRIES);
+				int take = (int) Math.min(end - next, SEGMENT_ENTRIES - skip);
+				decode(value, skip, take, entries);
+				next += take;
+			}
+		} catch (IOException e) {
+			logger.severe("Unable to read address index, " + e.getMessage());
+			return null;
+		}
+		return entries;
+	}
+
+	@Override
+	public int getBestHeight() {
+		return bestHeight;
+	}
+
+	/**
+	 * Adds the transactions of a block to the index.  The index starts at the
+	 * genesis block, so that every history is complete.
+	 *
+	 * @param height the height of the block, which must follow the best
+	 * height, or be 0 for an empty index
+	 * @param transactions the transactions of the block
+	 * @param spent the outputs spent by the block that were created by
+	 * earlier blocks
+	 * @return true on success
+	 */
+	public synchronized boolean connectBlock(int height, List<Transaction> transactions, OutputView spent) {
+		if (height != bestHeight + 1) {
+			logger.severe("Address index block at height " + height + " does not follow " + bestHeight);
+			return false;
+		}
+		try {
+			Map<ByteBuffer, List<Integer>> touched = getTouched(transactions, spent);
+
+			WriteBatch batch = new WriteBatch();
+			ByteBuffer undo = ByteBuffer.allocate(VarInt.MAX_LENGTH + touched.size() * (32 + VarInt.MAX_LENGTH));
+			VarInt.write(undo, touched.size());
+			for (Map.Entry<ByteBuffer, List<Integer>> entry : touched.entrySet()) {
+				byte[] scriptHash = entry.getKey().array();
+				append(batch, scriptHash, height, entry.getValue());
+				undo.put(scriptHash);
+				VarInt.write(undo, entry.getValue().size());
+			}
+			batch.put(encodeUndoKey(height), Arrays.copyOf(undo.array(), undo.position()));
+			if (height - UNDO_DEPTH >= 0) {
+				batch.delete(encodeUndoKey(height - UNDO_DEPTH));
+			}
+			batch.put(BEST_HEIGHT_KEY, encodeVarInts(height));
+			store.write(batch);
+			bestHeight = height;
+			return true;
+		} catch (IOException e) {
+			logger.severe("Unable to update address index at height " + height + ", " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Removes the best block from the index
+	 *
+	 * @return true on success
+	 */
+	public synchronized boolean disconnectBlock(int height) {
+		if (height != bestHeight) {
+			logger.severe("Address index can only disconnect the best block " + bestHeight + ", not " + height);
+			return false;
+		}
+		try {
+			byte[] undo = store.get(encodeUndoKey(height));
+			if (undo == null) {
+				logger.severe("No address index undo data for height " + height);
+				return false;
+			}
+			WriteBatch batch = new WriteBatch();
+			ByteBuffer buf = ByteBuffer.wrap(undo);
+			int scripts = VarInt.readInt(buf);
+			for (int i = 0; i < scripts; i++) {
+				byte[] scriptHash = new byte[32];
+				buf.get(scriptHash);
+				truncate(batch, scriptHash, VarInt.readInt(buf));
+			}
+			batch.delete(encodeUndoKey(height));
+			batch.put(BEST_HEIGHT_KEY, encodeVarInts(height - 1));
+			store.write(batch);
+			bestHeight = height - 1;
+			return true;
+		} catch (IOException e) {
+			logger.severe("Unable to disconnect address index block at height " + height + ", " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the positions of the transactions that touch each script, in block
+	 * order without repeats
+	 */
+	private static Map<ByteBuffer, List<Integer>> getTouched(List<Transaction> transactions, OutputView spent) throws IOException {
+		Map<ByteBuffer, List<Integer>> touched = new LinkedHashMap<ByteBuffer, List<Integer>>();
+		Map<ByteBuffer, Transaction> inBlock = new HashMap<ByteBuffer, Transaction>();
+		for (int position = 0; position < transactions.size(); position++) {
+			Transaction tx = transactions.get(position);
+			if (position > 0) {
+				for (TxInput input : tx.getInputs()) {
+					OutPoint outPoint = input.getOutPoint();
+					byte[] script = null;
+					Transaction parent = inBlock.get(ByteBuffer.wrap(outPoint.getTxid()));
+					if (parent != null && outPoint.getIndex() < parent.getOutputs().size()) {
+						script = parent.getOutputs().get(outPoint.getIndex()).getScript();
+					} else {
+						UnspentOutput output = spent.getOutput(outPoint);
+						if (output != null) {
+							script = output.getScript();
+						}
+					}
+					if (script != null) {
+						touch(touched, script, position);
+					}
+				}
+			}
+			for (TxOutput output : tx.getOutputs()) {
+				touch(touched, output.getScript(), position);
+			}
+			inBlock.put(ByteBuffer.wrap(tx.getTxid()), tx);
+		}
+		return touched;
+	}
+
+	private static void touch(Map<ByteBuffer, List<Integer>> touched, byte[] script, int position) {
+		ByteBuffer key = ByteBuffer.wrap(getScriptHash(script));
+		List<Integer> positions = touched.get(key);
+		if (positions == null) {
+			positions = new ArrayList<Integer>(1);
+			touched.put(key, positions);
+		}
+		if (positions.isEmpty() || positions.get(positions.size() - 1) != position) {
+			positions.add(position);
+		}
+	}
+
+	private void append(WriteBatch batch, byte[] scriptHash, int height, List<Integer> positions) throws IOException {
+		byte[] countValue = store.get(encodeCountKey(scriptHash));
+		long count = 0;
+		int lastHeight = 0;
+		int lastPosition = 0;
+		if (countValue != null) {
+			int[] end = new int[1];
+			count = VarInt.read(countValue, 0, end);
+			lastHeight = (int) VarInt.read(countValue, end[0], end);
+			lastPosition = (int) VarInt.read(countValue, end[0], end);
+		}
+
+		int segment = (int) (count / SEGMENT_ENTRIES);
+		byte[] tail = count % SEGMENT_ENTRIES == 0 ? new byte[0] : store.get(encodeSegmentKey(scriptHash, segment));
+		ByteBuffer buf = ByteBuffer.allocate(tail.length + Math.min(positions.size(), SEGMENT_ENTRIES) * 2 * VarInt.MAX_LENGTH);
+		buf.put(tail);
+		for (int position : positions) {
+			if (count % SEGMENT_ENTRIES == 0) {
+				if (buf.position() > 0) {
+					// The segment is full, so later entries start a new one
+					batch.put(encodeSegmentKey(scriptHash, segment), Arrays.copyOf(buf.array(), buf.position()));
+					segment++;
+					buf.clear();
+				}
+				lastHeight = 0;
+				lastPosition = 0;
+			}
+			VarInt.write(buf, height - lastHeight);
+			VarInt.write(buf, height == lastHeight ? position - lastPosition : position);
+			lastHeight = height;
+			lastPosition = position;
+			count++;
+		}
+		batch.put(encodeSegmentKey(scriptHash, segment), Arrays.copyOf(buf.array(), buf.position()));
+		batch.put(encodeCountKey(scriptHash), encodeVarInts(count, lastHeight, lastPosition));
+	}
+
+	private void truncate(WriteBatch batch, byte[] scriptHash, int removed) throws IOException {
+		byte[] countValue = store.get(encodeCountKey(scriptHash));
+		if (countValue == null) {
+			throw new IOException("Address index count missing during disconnect");
+		}
+		long count = VarInt.read(countValue, 0, new int[1]) - removed;
+		int lastSegment = (int) ((count + removed - 1) / SEGMENT_ENTRIES);
+		int segment = (int) (count / SEGMENT_ENTRIES);
+		int kept = (int) (count % SEGMENT_ENTRIES);
+		for (int s = kept == 0 ? segment : segment + 1; s <= lastSegment; s++) {
+			batch.delete(encodeSegmentKey(scriptHash, s));
+		}
+		if (count == 0) {
+			batch.delete(encodeCountKey(scriptHash));
+			return;
+		}
+
+		// Find the new last entry and cut the segment after it
+		int lastIndex = (int) ((count - 1) / SEGMENT_ENTRIES);
+		byte[] value = store.get(encodeSegmentKey(scriptHash, lastIndex));
+		if (value == null) {
+			throw new IOException("Address index segment missing during disconnect");
+		}
+		int entriesInSegment = (int) (count - (long) lastIndex * SEGMENT_ENTRIES);
+		ByteBuffer buf = ByteBuffer.wrap(value);
+		int height = 0;
+		int position = 0;
+		for (int i = 0; i < entriesInSegment; i++) {
+			int heightDelta = VarInt.readInt(buf);
+			int positionValue = VarInt.readInt(buf);
+			position = heightDelta == 0 ? position + positionValue : positionValue;
+			height += heightDelta;
+		}
+		if (kept != 0) {
+			batch.put(encodeSegmentKey(scriptHash, lastIndex), Arrays.copyOf(value, buf.position()));
+		}
+		batch.put(encodeCountKey(scriptHash), encodeVarInts(count, height, position));
+	}
+
+	/**
+	 * Decodes entries of a segment
+	 *
+	 * @param skip the number of entries to skip
+	 * @param take the number of entries to decode after the skipped entries
+	 */
+	static void decode(byte[] value, int skip, int take, List<AddressHistoryEntry> entries) {
+		ByteBuffer buf = ByteBuffer.wrap(value);
+		int height = 0;
+		int position = 0;
+		for (int i = 0; i < skip + take; i++) {
+			int heightDelta = VarInt.readInt(buf);
+			int positionValue = VarInt.readInt(buf);
+			position = heightDelta == 0 ? position + positionValue : positionValue;
+			height += heightDelta;
+			if (i >= skip) {
+				entries.add(new AddressHistoryEntry(height, position));
+			}
+		}
+	}
+
+	static byte[] encodeSegmentKey(byte[] scriptHash, int segment) {
+		byte[] key = new byte[1 + 32 + 4];
+		key[0] = SEGMENT_PREFIX;
+		System.arraycopy(scriptHash, 0, key, 1, 32);
+		key[33] = (byte) (segment >>> 24);
+		key[34] = (byte) (segment >>> 16);
+		key[35] = (byte) (segment >>> 8);
+		key[36] = (byte) segment;
+		return key;
+	}
+
+	static byte[] encodeCountKey(byte[] scriptHash) {
+		byte[] key = new byte[1 + 32];
+		key[0] = COUNT_PREFIX;
+		System.arraycopy(scriptHash, 0, key, 1, 32);
+		return key;
+	}
+
+	static byte[] encodeUndoKey(int height) {
+		return new byte[] {UNDO_PREFIX, (byte) (height >>> 24), (byte) (height >>> 16), (byte) (height >>> 8), (byte) height};
+	}
+
+	private static byte[] encodeVarInts(long... values) {
+		byte[] buf = new byte[values.length * VarInt.MAX_LENGTH];
+		int length = 0;
+		for (long value : values) {
+			length = VarInt.write(buf, length, value);
+		}
+		return Arrays.copyOf(buf, length);
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.block;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.common.SHA256;
+
+/**
+ * Finds the blocks of a header chain that are covered by an assumed-valid
+ * block.<br>
+ * <br>
+ * Script checks may be skipped for the assumed-valid block and its
+ * ancestors, if the block is in the header chain and the chain has at least
+ * the minimum work.  Every other check is still made.  Headers are added in
+ * height order, starting with the genesis block.<br>
+ * <br>
+ * The hashes of the headers up to the assumed-valid block are kept, so each
+ * block can be checked against the scanned chain before it is connected.
+ */
+public class AssumeValid {
+	private static final BigInteger TWO_256 = BigInteger.ONE.shiftLeft(256);
+
+	private final byte[] blockHash;
+	private final BigInteger minimumWork;
+
+	private byte[] lastHash;
+	private byte[] hashes;
+	private int headerCount;
+	private BigInteger chainWork;
+	private int assumedHeight;
+
+	/**
+	 * @param blockHash the hash of the assumed-valid block
+	 * @param minimumWork the work the header chain must have
+	 */
+	public AssumeValid(byte[] blockHash, BigInteger minimumWork) {
+		if (blockHash.length != OutPoint.TXID_LENGTH) {
+			throw new IllegalArgumentException("Block hash must be " + OutPoint.TXID_LENGTH + " bytes");
+		}
+		this.blockHash = blockHash.clone();
+		this.minimumWork = minimumWork;
+		this.lastHash = null;
+		this.hashes = new byte[OutPoint.TXID_LENGTH * 1024];
+		this.headerCount = 0;
+		this.chainWork = BigInteger.ZERO;
+		this.assumedHeight = -1;
+	}
+
+	/**
+	 * Adds the next header of the chain
+	 *
+	 * @param header a buffer with the header at its position, which is not
+	 * moved
+	 * @return false if the header does not follow the last header, in which
+	 * case it is not added
+	 */
+	public boolean addHeader(ByteBuffer header) {
+		ByteBuffer view = header.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int start = view.position();
+		if (lastHash != null) {
+			for (int i = 0; i < lastHash.length; i++) {
+				if (view.get(start + BlockView.PREVIOUS_HASH_OFFSET + i) != lastHash[i]) {
+					return false;
+				}
+			}
+		}
+		view.limit(start + CompactBlock.HEADER_LENGTH);
+		byte[] first = SHA256.getDigest(view.slice());
+		lastHash = SHA256.getDigest(first, 0, first.length);
+		chainWork = chainWork.add(getWork(view.getInt(start + BlockView.TARGET_OFFSET)));
+		if (assumedHeight < 0) {
+			int offset = headerCount * OutPoint.TXID_LENGTH;
+			if (offset == hashes.length) {
+				hashes = Arrays.copyOf(hashes, hashes.length * 2);
+			}
+			System.arraycopy(lastHash, 0, hashes, offset, OutPoint.TXID_LENGTH);
+			if (Arrays.equals(lastHash, blockHash)) {
+				assumedHeight = headerCount;
+			}
+		}
+		headerCount++;
+		return true;
+	}
+
+	public byte[] getBlockHash() {
+		return blockHash.clone();
+	}
+
+	/**
+	 * Gets the number of headers added
+	 */
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	/**
+	 * Gets the total work of the headers added
+	 */
+	public BigInteger getChainWork() {
+		return chainWork;
+	}
+
+	/**
+	 * Gets the height up to which script checks may be skipped
+	 *
+	 * @return the height of the assumed-valid block, or -1 if it has not
+	 * been found or the chain does not have the minimum work
+	 */
+	public int getSkipHeight() {
+		if (assumedHeight < 0 || chainWork.compareTo(minimumWork) < 0) {
+			return -1;
+		}
+		return assumedHeight;
+	}
+
+	/**
+	 * Checks that a block is the assumed-valid block or one of its ancestors
+	 *
+	 * @param height the height of the block
+	 * @param hash the hash of the block
+	 * @return true if the block is the header at that height and script checks
+	 * may be skipped for it
+	 */
+	public boolean isCovered(int height, byte[] hash) {
+		if (height < 0 || height > getSkipHeight()) {
+			return false;
+		}
+		int offset = height * OutPoint.TXID_LENGTH;
+		for (int i = 0; i < OutPoint.TXID_LENGTH; i++) {
+			if (hashes[offset + i] != hash[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the expected number of hashes needed to find a block, 2^256 /
+	 * (target + 1)
+	 *
+	 * @param target the target in compact form, the exponent byte then 3
+	 * mantissa bytes
+	 * @return the work, or zero if the target is zero, negative or too large
+	 */
+	public static BigInteger getWork(int target) {
+		int exponent = target >>> 24;
+		int mantissa = target & 0x007FFFFF;
+		if ((target & 0x00800000) != 0 || mantissa == 0 || exponent > 34) {
+			return BigInteger.ZERO;
+		}
+		BigInteger value = BigInteger.valueOf(mantissa);
+		value = exponent <= 3 ? value.shiftRight(8 * (3 - exponent)) : value.shiftLeft(8 * (exponent - 3));
+		if (value.signum() == 0 || value.bitLength() > 256) {
+			return BigInteger.ZERO;
+		}
+		return TWO_256.divide(value.add(BigInteger.ONE));
+	}
+}
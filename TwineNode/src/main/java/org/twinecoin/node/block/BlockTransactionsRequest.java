@@ -0,0 +1,101 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.block;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.common.VarInt;
+
+/**
+ * A request for the transactions of a compact block that could not be found
+ * locally.<br>
+ * <br>
+ * Serialization<br>
+ * - block hash (32 bytes)<br>
+ * - position count (varint), then each position as the difference from the
+ * previous position plus one (varint)
+ */
+public class BlockTransactionsRequest {
+	private final byte[] blockHash;
+	private final int[] positions;
+
+	/**
+	 * @param blockHash the hash of the block
+	 * @param positions the positions of the requested transactions, in
+	 * increasing order
+	 */
+	public BlockTransactionsRequest(byte[] blockHash, int[] positions) {
+		this.blockHash = blockHash;
+		this.positions = positions;
+	}
+
+	public byte[] getBlockHash() {
+		return blockHash;
+	}
+
+	public int[] getPositions() {
+		return positions;
+	}
+
+	/**
+	 * Selects the requested transactions from a block
+	 *
+	 * @return the transactions, or null if a position is outside the block
+	 */
+	public List<Transaction> select(List<Transaction> transactions) {
+		List<Transaction> selected = new ArrayList<Transaction>(positions.length);
+		for (int position : positions) {
+			if (position >= transactions.size()) {
+				return null;
+			}
+			selected.add(transactions.get(position));
+		}
+		return selected;
+	}
+
+	public byte[] serialize() {
+		ByteBuffer buf = ByteBuffer.allocate(blockHash.length + VarInt.MAX_LENGTH * (positions.length + 1));
+		buf.put(blockHash);
+		VarInt.write(buf, positions.length);
+		int last = -1;
+		for (int position : positions) {
+			VarInt.write(buf, position - last - 1);
+			last = position;
+		}
+		byte[] serialized = new byte[buf.position()];
+		buf.flip();
+		buf.get(serialized);
+		return serialized;
+	}
+
+	/**
+	 * Reads a serialized request
+	 *
+	 * @throws RuntimeException if the request is malformed
+	 */
+	public static BlockTransactionsRequest read(ByteBuffer buf) {
+		byte[] blockHash = new byte[32];
+		buf.get(blockHash);
+		int count = VarInt.readInt(buf);
+		if (count < 0 || count > buf.remaining()) {
+			throw new IllegalArgumentException("Block transactions request count out of range, " + count);
+		}
+		int[] positions = new int[count];
+		long last = -1;
+		for (int i = 0; i < count; i++) {
+			long position = last + 1 + VarInt.read(buf);
+			if (position <= last || position > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Block transactions request position out of range, " + position);
+			}
+			positions[i] = (int) position;
+			last = position;
+		}
+		return new BlockTransactionsRequest(blockHash, positions);
+	}
+}
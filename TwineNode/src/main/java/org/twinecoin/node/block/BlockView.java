@@ -0,0 +1,174 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.block;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.twinecoin.api.data.TransactionView;
+import org.twinecoin.common.SHA256;
+import org.twinecoin.common.VarInt;
+
+/**
+ * A serialized block read in place from a buffer.<br>
+ * <br>
+ * Serialization<br>
+ * - header ({@link CompactBlock#HEADER_LENGTH} bytes), the version (4 bytes),
+ * the previous block hash, the merkle root and the time, target and nonce
+ * (4 bytes each)<br>
+ * - transaction count (varint), then each transaction<br>
+ * <br>
+ * Transactions are located as they are first accessed, by wrapping the
+ * transactions before them as {@link TransactionView}s over the same
+ * buffer.  The views are kept, so each txid is hashed at most once.<br>
+ * <br>
+ * The buffer may be a network buffer or a memory mapped block file, and its
+ * contents must not change while the view is in use.
+ */
+public final class BlockView {
+	static final int PREVIOUS_HASH_OFFSET = 4;
+	static final int MERKLE_ROOT_OFFSET = 36;
+	static final int TARGET_OFFSET = 72;
+
+	private final ByteBuffer buf;
+	private final int start;
+	private final int transactionCount;
+
+	// The transactions found so far, and the end of the last one
+	private final TransactionView[] transactions;
+	private int located;
+	private int locatedEnd;
+
+	private BlockView(ByteBuffer buf, int start, int transactionCount, int transactionsOffset) {
+		this.buf = buf;
+		this.start = start;
+		this.transactionCount = transactionCount;
+		this.transactions = new TransactionView[transactionCount];
+		this.located = 0;
+		this.locatedEnd = transactionsOffset;
+	}
+
+	/**
+	 * Wraps the block that starts at the position of a buffer.  The buffer
+	 * position is not moved.
+	 *
+	 * @throws RuntimeException if the header or transaction count is malformed
+	 */
+	public static BlockView wrap(ByteBuffer buf) {
+		ByteBuffer view = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int start = buf.position();
+		int[] end = new int[1];
+		long count = VarInt.read(view, start + CompactBlock.HEADER_LENGTH, end);
+		// Each transaction is at least 10 bytes
+		if (count < 0 || count > (view.limit() - end[0]) / 10) {
+			throw new IllegalArgumentException("Invalid transaction count, " + count);
+		}
+		return new BlockView(view, start, (int) count, end[0]);
+	}
+
+	/**
+	 * Gets the header as a read-only buffer that shares the underlying memory
+	 */
+	public ByteBuffer getHeader() {
+		ByteBuffer dup = buf.asReadOnlyBuffer();
+		dup.limit(start + CompactBlock.HEADER_LENGTH);
+		dup.position(start);
+		return dup.slice();
+	}
+
+	/**
+	 * Gets the block hash, the double SHA256 of the header
+	 */
+	public byte[] getBlockHash() {
+		byte[] first = SHA256.getDigest(getHeader());
+		return SHA256.getDigest(first, 0, first.length);
+	}
+
+	/**
+	 * Gets the hash of the previous block from the header
+	 */
+	public byte[] getPreviousBlockHash() {
+		return readHeaderHash(PREVIOUS_HASH_OFFSET);
+	}
+
+	/**
+	 * Gets the merkle root recorded in the header
+	 */
+	public byte[] getHeaderMerkleRoot() {
+		return readHeaderHash(MERKLE_ROOT_OFFSET);
+	}
+
+	public int getTransactionCount() {
+		return transactionCount;
+	}
+
+	/**
+	 * Gets a view of a transaction
+	 *
+	 * @throws RuntimeException if the block is malformed up to the transaction
+	 */
+	public synchronized TransactionView getTransaction(int index) {
+		if (index < 0 || index >= transactionCount) {
+			throw new IndexOutOfBoundsException("Transaction " + index + " of " + transactionCount);
+		}
+		if (located <= index) {
+			ByteBuffer dup = buf.duplicate();
+			dup.position(locatedEnd);
+			while (located <= index) {
+				transactions[located++] = TransactionView.wrap(dup);
+			}
+			locatedEnd = dup.position();
+		}
+		return transactions[index];
+	}
+
+	/**
+	 * Gets views of all the transactions
+	 */
+	public List<TransactionView> getTransactions() {
+		if (transactionCount > 0) {
+			getTransaction(transactionCount - 1);
+		}
+		return Collections.unmodifiableList(Arrays.asList(transactions));
+	}
+
+	/**
+	 * Gets the size of the serialized block in bytes
+	 *
+	 * @throws RuntimeException if the block is malformed
+	 */
+	public int getSize() {
+		if (transactionCount > 0) {
+			getTransaction(transactionCount - 1);
+		}
+		synchronized (this) {
+			return locatedEnd - start;
+		}
+	}
+
+	/**
+	 * Gets the merkle root of the transactions, hashed from the buffer
+	 */
+	public byte[] getMerkleRoot() {
+		List<byte[]> txids = new ArrayList<byte[]>(transactionCount);
+		for (int i = 0; i < transactionCount; i++) {
+			txids.add(getTransaction(i).getTxid());
+		}
+		return PartialBlock.getMerkleRootFromTxids(txids);
+	}
+
+	private byte[] readHeaderHash(int offset) {
+		byte[] hash = new byte[32];
+		ByteBuffer dup = buf.duplicate();
+		dup.position(start + offset);
+		dup.get(hash);
+		return hash;
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.block;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.common.Pair;
+import org.twinecoin.common.SHA256;
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.mempool.ShortIdIndex;
+
+/**
+ * A block announced as its header and a 6 byte short ID for each
+ * transaction.<br>
+ * <br>
+ * The short ID is the SipHash-2-4 of the txid, truncated to 48 bits.  The
+ * SipHash keys are the first 16 bytes of the SHA256 of the header and a nonce
+ * chosen by the sender, so short IDs can not be targeted across blocks.
+ * Transactions the receiver is unlikely to have, such as the coinbase, are
+ * sent in full.<br>
+ * <br>
+ * Serialization<br>
+ * - header ({@link #HEADER_LENGTH} bytes)<br>
+ * - nonce (8 bytes)<br>
+ * - short ID count (varint), then each short ID (6 bytes, little endian)<br>
+ * - prefilled count (varint), then for each the position as the difference
+ * from the previous position plus one (varint) and the transaction
+ */
+public class CompactBlock {
+	public static final int HEADER_LENGTH = 80;
+	public static final int SHORT_ID_LENGTH = 6;
+
+	private final byte[] header;
+	private final long nonce;
+	private final long[] shortIds;
+	private final List<Pair<Integer, Transaction>> prefilled;
+	private final long k0;
+	private final long k1;
+
+	/**
+	 * @param header the block header
+	 * @param nonce the short ID nonce
+	 * @param shortIds the short IDs of the transactions that are not prefilled,
+	 * in block order
+	 * @param prefilled the prefilled transactions and their positions in the
+	 * block, in increasing position order
+	 */
+	public CompactBlock(byte[] header, long nonce, long[] shortIds, List<Pair<Integer, Transaction>> prefilled) {
+		if (header.length != HEADER_LENGTH) {
+			throw new IllegalArgumentException("Block header must be " + HEADER_LENGTH + " bytes");
+		}
+		this.header = header;
+		this.nonce = nonce;
+		this.shortIds = shortIds;
+		this.prefilled = Collections.unmodifiableList(prefilled);
+
+		ByteBuffer keySource = ByteBuffer.allocate(HEADER_LENGTH + 8).order(ByteOrder.LITTLE_ENDIAN);
+		keySource.put(header);
+		keySource.putLong(nonce);
+		ByteBuffer keys = ByteBuffer.wrap(SHA256.getDigest(keySource.array(), 0, keySource.capacity())).order(ByteOrder.LITTLE_ENDIAN);
+		this.k0 = keys.getLong();
+		this.k1 = keys.getLong();
+	}
+
+	/**
+	 * Creates a compact block with the first transaction prefilled
+	 */
+	public static CompactBlock create(byte[] header, long nonce, List<Transaction> transactions) {
+		CompactBlock keyed = new CompactBlock(header, nonce, new long[0], Collections.<Pair<Integer, Transaction>>emptyList());
+		long[] shortIds = new long[Math.max(transactions.size() - 1, 0)];
+		for (int i = 1; i < transactions.size(); i++) {
+			shortIds[i - 1] = keyed.getShortId(transactions.get(i).getTxid());
+		}
+		List<Pair<Integer, Transaction>> prefilled = new ArrayList<Pair<Integer, Transaction>>(1);
+		if (!transactions.isEmpty()) {
+			prefilled.add(new Pair<Integer, Transaction>(0, transactions.get(0)));
+		}
+		return new CompactBlock(header, nonce, shortIds, prefilled);
+	}
+
+	public byte[] getHeader() {
+		return header;
+	}
+
+	/**
+	 * Gets the block hash, the double SHA256 of the header
+	 */
+	public byte[] getBlockHash() {
+		byte[] first = SHA256.getDigest(header, 0, header.length);
+		return SHA256.getDigest(first, 0, first.length);
+	}
+
+	public long getNonce() {
+		return nonce;
+	}
+
+	public long[] getShortIds() {
+		return shortIds;
+	}
+
+	public List<Pair<Integer, Transaction>> getPrefilled() {
+		return prefilled;
+	}
+
+	/**
+	 * Gets the number of transactions in the block
+	 */
+	public int getTransactionCount() {
+		return shortIds.length + prefilled.size();
+	}
+
+	public long getK0() {
+		return k0;
+	}
+
+	public long getK1() {
+		return k1;
+	}
+
+	/**
+	 * Gets the short ID of a txid for this block
+	 */
+	public long getShortId(byte[] txid) {
+		return ShortIdIndex.getShortId(k0, k1, txid);
+	}
+
+	public byte[] serialize() {
+		int size = HEADER_LENGTH + 8 + VarInt.MAX_LENGTH * 2 + shortIds.length * SHORT_ID_LENGTH;
+		for (Pair<Integer, Transaction> entry : prefilled) {
+			size += VarInt.MAX_LENGTH + entry.getB().getSize();
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.put(header);
+		buf.order(ByteOrder.LITTLE_ENDIAN).putLong(nonce).order(ByteOrder.BIG_ENDIAN);
+		VarInt.write(buf, shortIds.length);
+		for (long shortId : shortIds) {
+			for (int i = 0; i < SHORT_ID_LENGTH; i++) {
+				buf.put((byte) (shortId >>> (8 * i)));
+			}
+		}
+		VarInt.write(buf, prefilled.size());
+		int last = -1;
+		for (Pair<Integer, Transaction> entry : prefilled) {
+			VarInt.write(buf, entry.getA() - last - 1);
+			last = entry.getA();
+			buf.put(entry.getB().getSerialized());
+		}
+		byte[] serialized = new byte[buf.position()];
+		buf.flip();
+		buf.get(serialized);
+		return serialized;
+	}
+
+	/**
+	 * Reads a serialized compact block
+	 *
+	 * @throws RuntimeException if the compact block is malformed
+	 */
+	public static CompactBlock read(ByteBuffer buf) {
+		byte[] header = new byte[HEADER_LENGTH];
+		buf.get(header);
+		long nonce = Long.reverseBytes(buf.getLong());
+		int shortIdCount = VarInt.readInt(buf);
+		if (shortIdCount < 0 || shortIdCount > buf.remaining() / SHORT_ID_LENGTH) {
+			throw new IllegalArgumentException("Compact block short ID count out of range, " + shortIdCount);
+		}
+		long[] shortIds = new long[shortIdCount];
+		for (int i = 0; i < shortIdCount; i++) {
+			long shortId = 0;
+			for (int j = 0; j < SHORT_ID_LENGTH; j++) {
+				shortId |= (buf.get() & 0xFFL) << (8 * j);
+			}
+			shortIds[i] = shortId;
+		}
+		int prefilledCount = VarInt.readInt(buf);
+		if (prefilledCount < 0 || prefilledCount > buf.remaining()) {
+			throw new IllegalArgumentException("Compact block prefilled count out of range, " + prefilledCount);
+		}
+		List<Pair<Integer, Transaction>> prefilled = new ArrayList<Pair<Integer, Transaction>>(prefilledCount);
+		long last = -1;
+		for (int i = 0; i < prefilledCount; i++) {
+			long position = last + 1 + VarInt.read(buf);
+			if (position <= last || position >= shortIdCount + prefilledCount) {
+				throw new IllegalArgumentException("Compact block prefilled position out of range, " + position);
+			}
+			prefilled.add(new Pair<Integer, Transaction>((int) position, Transaction.read(buf)));
+			last = position;
+		}
+		return new CompactBlock(header, nonce, shortIds, prefilled);
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.block;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.common.Pair;
+import org.twinecoin.common.SHA256;
+import org.twinecoin.node.mempool.ShortIdIndex;
+import org.twinecoin.node.mempool.TwineMemoryPool;
+
+/**
+ * A block being rebuilt from a compact block.<br>
+ * <br>
+ * Prefilled transactions are placed first and the remaining positions are
+ * matched against the memory pool by short ID.  Any positions that are still
+ * empty are requested from the peer with {@link #getRequest()} and filled
+ * with {@link #fill(List)}.<br>
+ * <br>
+ * A short ID can match the wrong transaction, so the rebuilt block must be
+ * checked against the merkle root in its header, see
+ * {@link #getMerkleRoot(List)}.  If it does not match, the full block should
+ * be requested.
+ */
+public class PartialBlock {
+	private final CompactBlock block;
+	private final Transaction[] transactions;
+	private final int[] shortIdPositions;
+	private int missing;
+
+	private PartialBlock(CompactBlock block, Transaction[] transactions, int[] shortIdPositions, int missing) {
+		this.block = block;
+		this.transactions = transactions;
+		this.shortIdPositions = shortIdPositions;
+		this.missing = missing;
+	}
+
+	/**
+	 * Rebuilds as much of a compact block as possible from the memory pool
+	 *
+	 * @return the partial block, or null if the compact block can not be
+	 * rebuilt from short IDs and the full block should be requested
+	 */
+	public static PartialBlock reconstruct(CompactBlock block, TwineMemoryPool pool) {
+		int count = block.getTransactionCount();
+		long[] shortIds = block.getShortIds();
+		List<Pair<Integer, Transaction>> prefilled = block.getPrefilled();
+		Transaction[] transactions = new Transaction[count];
+		int[] shortIdPositions = new int[shortIds.length];
+
+		int next = 0;
+		int shortIdCount = 0;
+		for (int position = 0; position < count; position++) {
+			if (next < prefilled.size() && prefilled.get(next).getA() == position) {
+				transactions[position] = prefilled.get(next++).getB();
+			} else if (shortIdCount < shortIds.length) {
+				shortIdPositions[shortIdCount++] = position;
+			} else {
+				return null;
+			}
+		}
+		if (next != prefilled.size()) {
+			return null;
+		}
+
+		ShortIdIndex index = new ShortIdIndex(block.getK0(), block.getK1(), shortIds);
+		if (index.hasDuplicates()) {
+			return null;
+		}
+		pool.findShortIds(index);
+		for (int i = 0; i < shortIds.length; i++) {
+			transactions[shortIdPositions[i]] = index.get(i);
+		}
+		return new PartialBlock(block, transactions, shortIdPositions, shortIds.length - index.getMatchCount());
+	}
+
+	public boolean isComplete() {
+		return missing == 0;
+	}
+
+	/**
+	 * Gets the number of transactions that must be requested
+	 */
+	public int getMissingCount() {
+		return missing;
+	}
+
+	/**
+	 * Gets the request for the missing transactions
+	 */
+	public BlockTransactionsRequest getRequest() {
+		int[] positions = new int[missing];
+		int next = 0;
+		for (int i = 0; i < transactions.length; i++) {
+			if (transactions[i] == null) {
+				positions[next++] = i;
+			}
+		}
+		return new BlockTransactionsRequest(block.getBlockHash(), positions);
+	}
+
+	/**
+	 * Fills the missing transactions, in the order they were requested
+	 *
+	 * @return false if the transactions do not match the requested short IDs,
+	 * in which case the partial block is unchanged
+	 */
+	public boolean fill(List<Transaction> received) {
+		if (received.size() != missing) {
+			return false;
+		}
+		long[] shortIds = block.getShortIds();
+		int[] positions = new int[missing];
+		int next = 0;
+		for (int i = 0; i < shortIds.length && next < missing; i++) {
+			if (transactions[shortIdPositions[i]] == null) {
+				if (block.getShortId(received.get(next).getTxid()) != shortIds[i]) {
+					return false;
+				}
+				positions[next++] = shortIdPositions[i];
+			}
+		}
+		for (int i = 0; i < positions.length; i++) {
+			transactions[positions[i]] = received.get(i);
+		}
+		missing = 0;
+		return true;
+	}
+
+	/**
+	 * Gets the transactions of the block
+	 *
+	 * @return the transactions, or null if some are missing
+	 */
+	public List<Transaction> getTransactions() {
+		return isComplete() ? Arrays.asList(transactions) : null;
+	}
+
+	/**
+	 * Gets the merkle root of a list of transactions.  Each level hashes pairs
+	 * with double SHA256, and an odd node is paired with itself.
+	 */
+	public static byte[] getMerkleRoot(List<Transaction> transactions) {
+		List<byte[]> txids = new ArrayList<byte[]>(transactions.size());
+		for (Transaction tx : transactions) {
+			txids.add(tx.getTxid());
+		}
+		return getMerkleRootFromTxids(txids);
+	}
+
+	/**
+	 * Gets the merkle root of a list of txids
+	 */
+	static byte[] getMerkleRootFromTxids(List<byte[]> txids) {
+		if (txids.isEmpty()) {
+			return new byte[32];
+		}
+		List<byte[]> level = txids;
+		while (level.size() > 1) {
+			List<byte[]> parents = new ArrayList<byte[]>((level.size() + 1) / 2);
+			for (int i = 0; i < level.size(); i += 2) {
+				byte[] left = level.get(i);
+				byte[] right = i + 1 < level.size() ? level.get(i + 1) : left;
+				byte[] first = SHA256.getDigest(left, right);
+				parents.add(SHA256.getDigest(first, 0, first.length));
+			}
+			level = parents;
+		}
+		return level.get(0);
+	}
+}
@@ -0,0 +1,24 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.block;
+
+import org.twinecoin.api.data.TransactionView;
+import org.twinecoin.api.data.UnspentOutput;
+
+/**
+ * Checks the script and signature of a transaction input
+ */
+public interface ScriptVerifier {
+	/**
+	 * Checks an input against the output it spends
+	 *
+	 * @param tx the spending transaction
+	 * @param input the index of the input
+	 * @param spent the output spent by the input
+	 * @return true if the input is valid
+	 */
+	boolean verify(TransactionView tx, int input, UnspentOutput spent);
+}
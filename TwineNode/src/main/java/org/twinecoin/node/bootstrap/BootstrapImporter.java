@@ -0,0 +1,725 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.bootstrap;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TransactionView;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.node.address.TwineAddressTracker;
+import org.twinecoin.node.block.AssumeValid;
+import org.twinecoin.node.block.BlockView;
+import org.twinecoin.node.block.CompactBlock;
+import org.twinecoin.node.block.ScriptVerifier;
+import org.twinecoin.node.filter.FilterBlock;
+import org.twinecoin.node.filter.TwineFilterTracker;
+import org.twinecoin.node.mempool.TwineMemoryPool;
+import org.twinecoin.node.output.OutputView;
+import org.twinecoin.node.output.TwineOutputTracker;
+
+/**
+ * Imports the blocks in a bootstrap file.<br>
+ * <br>
+ * A bootstrap file holds the blocks of the chain in height order, starting
+ * with the genesis block.  Each block is preceded by<br>
+ * - magic (4 bytes, big endian)<br>
+ * - block length (4 bytes, big endian)<br>
+ * <br>
+ * The import runs as a pipeline of stages connected by bounded queues<br>
+ * - read - reads each block into a buffer, on the calling thread<br>
+ * - hash - wraps the block as a {@link BlockView}, hashes the header and the
+ * transactions and checks the merkle root<br>
+ * - verify - checks each transaction on its own, without the output set<br>
+ * - connect - checks the inputs against the output set, removes the
+ * transactions from the memory pool if one is set and applies the block to
+ * the output tracker and indexes, on a single thread<br>
+ * <br>
+ * The hash and verify stages run on several threads, so blocks can leave them
+ * out of order.  The connect stage holds each block until its parent has been
+ * connected.  The number of blocks in the pipeline is limited, so the reader
+ * waits when the later stages fall behind.<br>
+ * <br>
+ * If a script verifier is set, each input is checked by it in the connect
+ * stage.  With an assumed-valid block, the headers in the file are scanned
+ * first, and script checks are skipped for the assumed-valid block and its
+ * ancestors when the header chain has the minimum work.  Each of those blocks
+ * must match the scanned header at its height before it is connected.<br>
+ * <br>
+ * Blocks up to the best block of the output tracker are skipped, so an
+ * interrupted import can be resumed.  The indexes are written as each block
+ * is connected, but the output tracker only when it flushes, so after a crash
+ * an index can be ahead of it.  Such an index is rolled back first, or if
+ * that fails, it is not updated until the import passes its height.<br>
+ * <br>
+ * The import stops at the first invalid block and the blocks before it
+ * remain connected.  Progress is logged every {@link #REPORT_INTERVAL_MILLIS}ms.
+ */
+public class BootstrapImporter {
+	public static final int MAX_BLOCK_SIZE = 32 << 20;
+	public static final long REPORT_INTERVAL_MILLIS = 10000;
+
+	// Blocks in the pipeline for each hash and verify thread
+	static final int BLOCKS_PER_THREAD = 16;
+
+	static final int MAGIC = 0x54574246;
+	static final int RECORD_HEADER_SIZE = 8;
+
+	private static final ImportBlock END = new ImportBlock(-1, null);
+
+	private final TwineOutputTracker outputTracker;
+	private final TwineAddressTracker addressTracker;
+	private final TwineFilterTracker filterTracker;
+	private final ScriptVerifier scriptVerifier;
+	private final AssumeValid assumeValid;
+	private final Logger logger;
+	private final int hashThreads;
+	private final int verifyThreads;
+
+	private volatile TwineMemoryPool memoryPool;
+	private volatile Pipeline pipeline;
+	private volatile boolean stopRequested;
+
+	/**
+	 * @param outputTracker the output tracker the blocks are connected to
+	 * @param addressTracker the address index, or null
+	 * @param filterTracker the block filter index, or null
+	 * @param logger the logger
+	 * @param threads the number of threads shared by the hash and verify
+	 * stages
+	 */
+	public BootstrapImporter(TwineOutputTracker outputTracker, TwineAddressTracker addressTracker, TwineFilterTracker filterTracker, Logger logger, int threads) {
+		this(outputTracker, addressTracker, filterTracker, null, null, logger, threads);
+	}
+
+	/**
+	 * @param outputTracker the output tracker the blocks are connected to
+	 * @param addressTracker the address index, or null
+	 * @param filterTracker the block filter index, or null
+	 * @param scriptVerifier the script verifier, or null to skip script checks
+	 * @param assumeValid the assumed-valid block, or null to check the
+	 * scripts of every block.  It is used for one import.
+	 * @param logger the logger
+	 * @param threads the number of threads shared by the hash and verify
+	 * stages
+	 */
+	public BootstrapImporter(TwineOutputTracker outputTracker, TwineAddressTracker addressTracker, TwineFilterTracker filterTracker, ScriptVerifier scriptVerifier, AssumeValid assumeValid, Logger logger, int threads) {
+		this.outputTracker = outputTracker;
+		this.addressTracker = addressTracker;
+		this.filterTracker = filterTracker;
+		this.scriptVerifier = scriptVerifier;
+		this.assumeValid = assumeValid;
+		this.logger = logger;
+		this.hashThreads = Math.max(1, threads / 2);
+		this.verifyThreads = Math.max(1, threads - hashThreads);
+	}
+
+	/**
+	 * Imports a bootstrap file.  The output tracker and indexes are flushed
+	 * when the import ends.
+	 *
+	 * @param file the bootstrap file
+	 * @return true if every block in the file was connected
+	 */
+	public boolean importFile(File file) {
+		Pipeline p = new Pipeline();
+		pipeline = p;
+		if (stopRequested) {
+			return false;
+		}
+		try {
+			boolean success;
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					success = p.run(raf.getChannel());
+				} finally {
+					raf.close();
+				}
+			} catch (IOException e) {
+				logger.severe("Unable to read bootstrap file " + file + ", " + e.getMessage());
+				success = false;
+			}
+			if (filterTracker != null && !filterTracker.flush()) {
+				success = false;
+			}
+			return outputTracker.flush() && success;
+		} finally {
+			p.done.countDown();
+		}
+	}
+
+	/**
+	 * Sets the memory pool that the transactions of each connected block are
+	 * removed from
+	 */
+	public void setMemoryPool(TwineMemoryPool memoryPool) {
+		this.memoryPool = memoryPool;
+	}
+
+	/**
+	 * Stops the running import and waits until it has ended and flushed the
+	 * blocks it connected.  Later imports return false at once.
+	 */
+	public void stop() {
+		stopRequested = true;
+		Pipeline p = pipeline;
+		if (p == null) {
+			return;
+		}
+		p.stopped = true;
+		boolean interrupted = false;
+		while (true) {
+			try {
+				p.done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Brings the address index back to the height of the output tracker if
+	 * it is ahead
+	 *
+	 * @return the height up to which the index is not updated, or -2 if the
+	 * index is behind the output tracker
+	 */
+	private int alignAddressIndex(int height) {
+		int indexHeight = addressTracker.getBestHeight();
+		while (indexHeight > height && addressTracker.disconnectBlock(indexHeight)) {
+			indexHeight--;
+		}
+		return checkIndexHeight("Address", indexHeight, height);
+	}
+
+	/**
+	 * Brings the filter index back to the height of the output tracker, as
+	 * {@link #alignAddressIndex(int)}.  Queued blocks are written first.
+	 */
+	private int alignFilterIndex(int height) {
+		if (!filterTracker.flush()) {
+			return -2;
+		}
+		int indexHeight = filterTracker.getBestHeight();
+		while (indexHeight > height && filterTracker.disconnectBlock(indexHeight)) {
+			indexHeight--;
+		}
+		return checkIndexHeight("Filter", indexHeight, height);
+	}
+
+	private int checkIndexHeight(String name, int indexHeight, int height) {
+		if (indexHeight < height) {
+			logger.severe(name + " index at height " + indexHeight + " is behind the output set at height " + height);
+			return -2;
+		}
+		if (indexHeight > height) {
+			logger.warning(name + " index at height " + indexHeight + " could not be rolled back to height " + height + ", not updating it below that height");
+		}
+		return indexHeight;
+	}
+
+	/**
+	 * Wraps the block and checks its hashes
+	 *
+	 * @throws RuntimeException if the block is invalid
+	 */
+	private static void hashBlock(ImportBlock block) {
+		BlockView view = BlockView.wrap(block.buf);
+		if (view.getTransactionCount() == 0) {
+			throw new IllegalArgumentException("Block has no transactions");
+		}
+		if (view.getSize() != block.buf.remaining()) {
+			throw new IllegalArgumentException("Block length " + view.getSize() + " does not match record length " + block.buf.remaining());
+		}
+		if (!Arrays.equals(view.getMerkleRoot(), view.getHeaderMerkleRoot())) {
+			throw new IllegalArgumentException("Merkle root mismatch");
+		}
+		block.view = view;
+		block.blockHash = view.getBlockHash();
+	}
+
+	/**
+	 * Checks the transactions of a block without the output set.  The
+	 * transactions are decoded if an index needs them.
+	 *
+	 * @throws RuntimeException if a transaction is invalid
+	 */
+	private void verifyBlock(ImportBlock block) {
+		List<TransactionView> transactions = block.view.getTransactions();
+		for (int i = 0; i < transactions.size(); i++) {
+			TransactionView tx = transactions.get(i);
+			if (tx.getInputCount() == 0 || tx.getOutputCount() == 0) {
+				throw new IllegalArgumentException("Transaction " + i + " has no inputs or no outputs");
+			}
+			Set<OutPoint> outPoints = new HashSet<OutPoint>();
+			for (int j = 0; j < tx.getInputCount(); j++) {
+				if (!outPoints.add(tx.getOutPoint(j))) {
+					throw new IllegalArgumentException("Transaction " + i + " spends an output twice");
+				}
+			}
+			long total = 0;
+			for (int j = 0; j < tx.getOutputCount(); j++) {
+				long value = tx.getOutputValue(j);
+				total += value;
+				if (value < 0 || total < 0) {
+					throw new IllegalArgumentException("Transaction " + i + " output value out of range");
+				}
+			}
+		}
+		if (addressTracker != null || filterTracker != null) {
+			block.transactions = decode(transactions);
+		}
+	}
+
+	private static List<Transaction> decode(List<TransactionView> transactions) {
+		List<Transaction> decoded = new ArrayList<Transaction>(transactions.size());
+		for (TransactionView tx : transactions) {
+			decoded.add(tx.toTransaction());
+		}
+		return decoded;
+	}
+
+	/**
+	 * Connects a block to the output tracker and indexes.  The inputs are
+	 * checked before the output set is changed.
+	 *
+	 * @return true if the block was connected
+	 */
+	private boolean connectBlock(ImportBlock block, int skipHeight, int addressHeight, int filterHeight) {
+		if (block.error != null) {
+			logger.severe("Bootstrap block at height " + block.height + " is invalid, " + block.error);
+			return false;
+		}
+		byte[] bestBlock = outputTracker.getBestBlock();
+		if (bestBlock != null && !Arrays.equals(bestBlock, block.view.getPreviousBlockHash())) {
+			logger.severe("Bootstrap block at height " + block.height + " does not follow the best block");
+			return false;
+		}
+		// Each skipped block must be the scanned header at its height, before
+		// anything is connected, in case the file changed after the scan
+		boolean skipScripts = block.height <= skipHeight;
+		if (skipScripts && !assumeValid.isCovered(block.height, block.blockHash)) {
+			logger.severe("Bootstrap block at height " + block.height + " is not an ancestor of the assumed-valid block, the file has changed");
+			return false;
+		}
+		boolean checkScripts = scriptVerifier != null && !skipScripts;
+
+		List<TransactionView> transactions = block.view.getTransactions();
+		final Map<OutPoint, UnspentOutput> spent = new HashMap<OutPoint, UnspentOutput>();
+		Map<OutPoint, UnspentOutput> created = new HashMap<OutPoint, UnspentOutput>();
+		Set<OutPoint> createdSpent = new HashSet<OutPoint>();
+		for (int i = 0; i < transactions.size(); i++) {
+			TransactionView tx = transactions.get(i);
+			// The inputs of the coinbase do not spend outputs
+			long inputValue = 0;
+			for (int j = 0; i > 0 && j < tx.getInputCount(); j++) {
+				OutPoint outPoint = tx.getOutPoint(j);
+				UnspentOutput output = created.get(outPoint);
+				if (output != null) {
+					if (!createdSpent.add(outPoint)) {
+						output = null;
+					}
+				} else if (!spent.containsKey(outPoint)) {
+					output = outputTracker.getOutput(outPoint);
+					spent.put(outPoint, output);
+				}
+				if (output == null) {
+					logger.severe("Bootstrap block at height " + block.height + " spends a missing output in transaction " + i);
+					return false;
+				}
+				if (checkScripts && !scriptVerifier.verify(tx, j, output)) {
+					logger.severe("Bootstrap block at height " + block.height + " has an invalid script in transaction " + i + " input " + j);
+					return false;
+				}
+				inputValue += output.getValue();
+			}
+			long outputValue = 0;
+			for (int j = 0; j < tx.getOutputCount(); j++) {
+				TxOutput output = tx.getOutput(j);
+				outputValue += output.getValue();
+				created.put(new OutPoint(tx.getTxid(), j), new UnspentOutput(output.getValue(), output.getScript(), block.height, i == 0));
+			}
+			if (i > 0 && outputValue > inputValue) {
+				logger.severe("Bootstrap block at height " + block.height + " transaction " + i + " spends more than its inputs");
+				return false;
+			}
+		}
+
+		for (int i = 0; i < transactions.size(); i++) {
+			TransactionView tx = transactions.get(i);
+			for (int j = 0; i > 0 && j < tx.getInputCount(); j++) {
+				outputTracker.spendOutput(tx.getOutPoint(j));
+			}
+			for (int j = 0; j < tx.getOutputCount(); j++) {
+				OutPoint outPoint = new OutPoint(tx.getTxid(), j);
+				outputTracker.addOutput(outPoint, created.get(outPoint));
+			}
+		}
+		// The pool is updated before the listeners of the output tracker hear
+		// of the block
+		TwineMemoryPool pool = memoryPool;
+		if (pool != null && pool.size() > 0) {
+			pool.removeForBlock(block.transactions != null ? block.transactions : decode(transactions));
+		}
+		outputTracker.setBestBlock(block.blockHash, block.height);
+
+		OutputView spentView = new OutputView() {
+			@Override
+			public UnspentOutput getOutput(OutPoint outPoint) {
+				return spent.get(outPoint);
+			}
+		};
+		if (addressTracker != null && block.height > addressHeight && !addressTracker.connectBlock(block.height, block.transactions, spentView)) {
+			return false;
+		}
+		if (filterTracker != null && block.height > filterHeight) {
+			try {
+				if (!filterTracker.connectBlock(block.height, FilterBlock.create(block.blockHash, block.transactions, spentView))) {
+					return false;
+				}
+			} catch (IOException e) {
+				logger.severe("Unable to create filter for block at height " + block.height + ", " + e.getMessage());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The queues and progress of a single import
+	 */
+	private class Pipeline {
+		private final Semaphore permits;
+		private final BlockingQueue<ImportBlock> hashQueue;
+		private final BlockingQueue<ImportBlock> verifyQueue;
+		private final BlockingQueue<ImportBlock> connectQueue;
+		private final AtomicInteger hashRunning;
+		private final AtomicInteger verifyRunning;
+
+		// Set when the connect stage stops early
+		private volatile boolean stopped;
+
+		// Script checks are skipped up to this height
+		private volatile int skipHeight;
+
+		// Index updates are skipped up to these heights
+		private int addressHeight;
+		private int filterHeight;
+
+		// Released when the import has ended
+		private final CountDownLatch done;
+
+		// Only accessed by the connect stage
+		private final long startTime;
+		private long blocks;
+		private long bytes;
+		private long reportTime;
+		private long reportBlocks;
+		private long reportBytes;
+
+		Pipeline() {
+			int maxBlocks = (hashThreads + verifyThreads) * BLOCKS_PER_THREAD;
+			this.permits = new Semaphore(maxBlocks);
+			// One extra slot for the end marker
+			this.hashQueue = new ArrayBlockingQueue<ImportBlock>(maxBlocks + 1);
+			this.verifyQueue = new ArrayBlockingQueue<ImportBlock>(maxBlocks + 1);
+			this.connectQueue = new ArrayBlockingQueue<ImportBlock>(maxBlocks + 1);
+			this.hashRunning = new AtomicInteger(hashThreads);
+			this.verifyRunning = new AtomicInteger(verifyThreads);
+			this.stopped = false;
+			this.skipHeight = -1;
+			this.addressHeight = -1;
+			this.filterHeight = -1;
+			this.done = new CountDownLatch(1);
+			this.startTime = System.currentTimeMillis();
+			this.reportTime = startTime;
+		}
+
+		boolean run(FileChannel channel) {
+			final int startHeight = outputTracker.getBestHeight() + 1;
+			if (addressTracker != null && (addressHeight = alignAddressIndex(startHeight - 1)) < -1) {
+				return false;
+			}
+			if (filterTracker != null && (filterHeight = alignFilterIndex(startHeight - 1)) < -1) {
+				return false;
+			}
+			if (scriptVerifier != null && assumeValid != null) {
+				try {
+					skipHeight = scanHeaders(channel);
+				} catch (IOException e) {
+					logger.warning("Unable to scan bootstrap headers, checking every script, " + e.getMessage());
+				}
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(hashThreads + verifyThreads + 1);
+			try {
+				for (int i = 0; i < hashThreads; i++) {
+					executor.execute(new Stage(hashQueue, verifyQueue, hashRunning, true));
+				}
+				for (int i = 0; i < verifyThreads; i++) {
+					executor.execute(new Stage(verifyQueue, connectQueue, verifyRunning, false));
+				}
+				Future<Boolean> connected = executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws InterruptedException {
+						return connect(startHeight);
+					}
+				});
+				boolean read = read(channel, startHeight);
+				return connected.get() && read;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				stopped = true;
+				executor.shutdownNow();
+				logger.severe("Bootstrap import interrupted");
+				return false;
+			} catch (ExecutionException e) {
+				logger.severe("Bootstrap import failed, " + e.getCause().getMessage());
+				return false;
+			} finally {
+				executor.shutdown();
+			}
+		}
+
+		/**
+		 * Adds the block headers in the file to the assumed-valid chain,
+		 * without reading the transactions
+		 *
+		 * @return the height up to which script checks may be skipped
+		 */
+		private int scanHeaders(FileChannel channel) throws IOException {
+			long start = System.currentTimeMillis();
+			long size = channel.size();
+			long position = 0;
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + CompactBlock.HEADER_LENGTH);
+			while (position + header.capacity() <= size) {
+				header.clear();
+				readFully(channel, header, position);
+				header.flip();
+				int length = header.getInt(4);
+				if (header.getInt(0) != MAGIC || length < CompactBlock.HEADER_LENGTH || length > size - position - RECORD_HEADER_SIZE) {
+					break;
+				}
+				header.position(RECORD_HEADER_SIZE);
+				if (!assumeValid.addHeader(header)) {
+					break;
+				}
+				position += RECORD_HEADER_SIZE + length;
+			}
+			int height = assumeValid.getSkipHeight();
+			if (height < 0) {
+				logger.info("Assumed-valid block not found with the minimum work in " + assumeValid.getHeaderCount() + " headers, checking every script");
+			} else {
+				logger.info("Skipping script checks to height " + height + ", headers scanned in " + (System.currentTimeMillis() - start) + "ms");
+			}
+			return height;
+		}
+
+		/**
+		 * Reads the blocks above the start height into the hash queue
+		 *
+		 * @return false if the import stopped early
+		 */
+		private boolean read(FileChannel channel, int startHeight) throws InterruptedException {
+			long position = 0;
+			try {
+				long size = channel.size();
+				int height = 0;
+				ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+				while (position < size && !stopped) {
+					header.clear();
+					readFully(channel, header, position);
+					header.flip();
+					if (header.getInt() != MAGIC) {
+						throw new IOException("Bad magic number at offset " + position);
+					}
+					int length = header.getInt();
+					position += RECORD_HEADER_SIZE;
+					if (length < CompactBlock.HEADER_LENGTH || length > MAX_BLOCK_SIZE || length > size - position) {
+						throw new IOException("Invalid block length " + length + " at offset " + position);
+					}
+					if (height >= startHeight) {
+						ByteBuffer buf = ByteBuffer.allocate(length);
+						readFully(channel, buf, position);
+						buf.flip();
+						while (!permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+							if (stopped) {
+								return false;
+							}
+						}
+						hashQueue.put(new ImportBlock(height, buf));
+					}
+					position += length;
+					height++;
+				}
+				return !stopped;
+			} catch (IOException e) {
+				logger.severe("Unable to read bootstrap file at offset " + position + ", " + e.getMessage());
+				return false;
+			} finally {
+				hashQueue.put(END);
+			}
+		}
+
+		/**
+		 * Connects blocks in height order until the end marker arrives
+		 *
+		 * @return false if a block could not be connected
+		 */
+		private boolean connect(int startHeight) throws InterruptedException {
+			TreeMap<Integer, ImportBlock> waiting = new TreeMap<Integer, ImportBlock>();
+			int next = startHeight;
+			try {
+				while (true) {
+					ImportBlock block = connectQueue.take();
+					if (block == END) {
+						return true;
+					}
+					waiting.put(block.height, block);
+					while ((block = waiting.remove(next)) != null) {
+						if (stopped || !connectBlock(block, skipHeight, addressHeight, filterHeight)) {
+							stopped = true;
+							return false;
+						}
+						permits.release();
+						blocks++;
+						bytes += block.buf.remaining();
+						next++;
+						report(next - 1);
+					}
+				}
+			} finally {
+				long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+				logger.info("Imported " + blocks + " blocks to height " + (next - 1) + " in " + elapsed + "ms, " + getRates(blocks, bytes, elapsed));
+			}
+		}
+
+		private void report(int height) {
+			long now = System.currentTimeMillis();
+			long elapsed = now - reportTime;
+			if (elapsed < REPORT_INTERVAL_MILLIS) {
+				return;
+			}
+			logger.info("Importing at height " + height + ", " + getRates(blocks - reportBlocks, bytes - reportBytes, elapsed));
+			reportTime = now;
+			reportBlocks = blocks;
+			reportBytes = bytes;
+		}
+
+		/**
+		 * A hash or verify stage thread
+		 */
+		private class Stage implements Runnable {
+			private final BlockingQueue<ImportBlock> in;
+			private final BlockingQueue<ImportBlock> out;
+			private final AtomicInteger running;
+			private final boolean hash;
+
+			Stage(BlockingQueue<ImportBlock> in, BlockingQueue<ImportBlock> out, AtomicInteger running, boolean hash) {
+				this.in = in;
+				this.out = out;
+				this.running = running;
+				this.hash = hash;
+			}
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						ImportBlock block = in.take();
+						if (block == END) {
+							// Leave the marker for the other threads of the stage
+							in.put(END);
+							break;
+						}
+						if (block.error == null && !stopped) {
+							try {
+								if (hash) {
+									hashBlock(block);
+								} else {
+									verifyBlock(block);
+								}
+							} catch (RuntimeException e) {
+								block.error = e.getMessage();
+							}
+						}
+						out.put(block);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					// The queues have room for every block in the pipeline
+					// and the marker
+					if (running.decrementAndGet() == 0) {
+						out.offer(END);
+					}
+				}
+			}
+		}
+	}
+
+	private static String getRates(long blocks, long bytes, long elapsedMillis) {
+		return String.format("%.1f blocks/s, %.2f MB/s", blocks * 1000.0 / elapsedMillis, bytes * 1000.0 / 1048576.0 / elapsedMillis);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, position);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of bootstrap file at offset " + position);
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * A block moving through the pipeline
+	 */
+	private static class ImportBlock {
+		private final int height;
+		private final ByteBuffer buf;
+		private volatile BlockView view;
+		private volatile byte[] blockHash;
+		private volatile List<Transaction> transactions;
+		private volatile String error;
+
+		ImportBlock(int height, ByteBuffer buf) {
+			this.height = height;
+			this.buf = buf;
+		}
+	}
+}
@@ -27,17 +27,42 @@ public class TwineConfigurationManager implements ConfigurationManager {
 
 	private final static String[][] integerParamArray = new String[][] {
 		{"logcount", "Target number of log files to be kept", "10"},
-		{"logsize", "Target size of log files", "1048576"}
+		{"logsize", "Target size of log files", "1048576"},
+		{"dbcache", "Target size of the unspent output cache in MB", "300"},
+		{"dbflush", "Maximum seconds between unspent output cache flushes", "3600"},
+		{"dbthreads", "Number of database compaction threads", "2"},
+		{"maxmempool", "Target size of the memory pool in MB", "300"},
+		{"minrelayfee", "Minimum fee per 1000 bytes for relayed transactions", "1000"},
+		{"port", "Port to listen on for peer connections", "9333"},
+		{"netthreads", "Number of peer network threads", "2"},
+		{"rpcport", "Port to listen on for JSON-RPC requests from the local host", "9332"},
+		{"rpcthreads", "Number of JSON-RPC request threads", "4"},
+		{"eventport", "Port to stream node events on to clients on the local host", "9334"},
+		{"prune", "Target size of the block undo files in MB, 0 keeps every file", "0"}
 	};
 
 	private final static String[][] stringParamArray = new String[][] {
 		{"rootdir", "Root directory for node", null},
 		{"consoleloglevel", "Sets level for log messages to the console", "info"},
-		{"fileloglevel", "Sets level for log messages to the log file", "fine"}
+		{"fileloglevel", "Sets level for log messages to the log file", "fine"},
+		{"snapshot", "Unspent output snapshot file, relative to the root directory", "utxo_snapshot"},
+		{"snapshotcommitment", "Trusted output set commitment in hex at the snapshot height, as reported by the output tracker of a synced node, required to load a snapshot", null},
+		{"bootstrap", "Bootstrap block file, relative to the root directory", "bootstrap"},
+		{"assumevalid", "Hash of a block whose ancestors are imported without script checks. Unused until a script verifier is set, no scripts are checked today", null},
+		{"minimumchainwork", "Minimum work in hex of a header chain for the assumed-valid block to be used. Unused until a script verifier is set, no scripts are checked today", "0"}
 	};
 
 	private final static String[][] booleanParamArray = new String[][] {
-		{"help", "Lists command line arguments", "false"}
+		{"help", "Lists command line arguments", "false"},
+		{"loadsnapshot", "Loads the snapshot file on startup if the chain state is empty, requires snapshotcommitment", "false"},
+		{"dumpsnapshot", "Writes the snapshot file on shutdown", "false"},
+		{"addressindex", "Maintains an index of transactions by output script, built from the genesis block, so it must be set before the first import", "false"},
+		{"blockfilterindex", "Maintains compact block filters for light clients", "false"},
+		{"importbootstrap", "Imports the blocks in the bootstrap file on startup", "false"},
+		{"listen", "Accepts connections from peers", "false"},
+		{"virtualthreads", "Runs each peer, RPC request and event client on virtual threads, requires JDK 21", "false"},
+		{"rpc", "Accepts JSON-RPC requests from the local host", "false"},
+		{"events", "Streams chain and memory pool events to clients on the local host", "false"}
 	};
 
 	private final TwineLogger twineLogger;
@@ -0,0 +1,22 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.download;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives downloaded blocks in height order.  Calls are made one at a time.
+ */
+public interface BlockConnector {
+	/**
+	 * Connects a block to the chain
+	 *
+	 * @param height the height of the block
+	 * @param block the serialized block
+	 * @return false if the block is invalid, which stops the download
+	 */
+	boolean connect(int height, ByteBuffer block);
+}
@@ -0,0 +1,21 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.download;
+
+import java.util.List;
+
+/**
+ * A peer that blocks can be downloaded from.  Requested blocks are passed to
+ * {@link DownloadScheduler#blockReceived} as they arrive, in any order.
+ */
+public interface BlockSource {
+	/**
+	 * Requests blocks.  The call must not block.
+	 *
+	 * @param hashes the block hashes
+	 */
+	void requestBlocks(List<byte[]> hashes);
+}
@@ -0,0 +1,430 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.download;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Downloads a chain of blocks from many sources at once.<br>
+ * <br>
+ * Blocks are requested from a window of heights above the next block to
+ * connect.  Each source has a limited number of blocks in flight and is given
+ * more as it delivers, so faster sources download more of the chain.  Blocks
+ * that arrive early are held until the blocks below them arrive, within a
+ * memory budget.  Once the budget is used only the blocks below the held
+ * blocks are requested.<br>
+ * <br>
+ * A source with blocks in flight that delivers nothing for the stall timeout
+ * is stalled.  Its blocks are requested again from the other sources, lowest
+ * first and fastest source first, and it gets no new requests until it
+ * delivers a block.<br>
+ * <br>
+ * Sources deliver blocks from any thread.  Blocks are connected in height
+ * order by the thread that delivers the next block.
+ */
+public class DownloadScheduler {
+	public static final int DEFAULT_WINDOW = 1024;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+	public static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+	public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 5000;
+
+	// Weight of the latest sample in the throughput average
+	private static final double THROUGHPUT_WEIGHT = 0.25;
+
+	// Interval between stall checks while waiting for completion
+	private static final long CHECK_INTERVAL_MILLIS = 100;
+
+	private final List<byte[]> hashes;
+	private final int startHeight;
+	private final int endHeight;
+	private final Map<ByteBuffer, Integer> heights;
+	private final BlockConnector connector;
+	private final Logger logger;
+	private final int window;
+	private final int maxInFlight;
+	private final long memoryBudget;
+	private final long stallTimeoutMillis;
+
+	// Guarded by this
+	private final Map<BlockSource, SourceState> sources;
+	private final Map<Integer, SourceState> requests;
+	private final TreeSet<Integer> retry;
+	private final TreeMap<Integer, ByteBuffer> received;
+	private int nextRequest;
+	private int nextConnect;
+	private long bufferedBytes;
+	private long peakBufferedBytes;
+	private int stallCount;
+	private boolean failed;
+
+	// Held while connecting, so blocks are connected one at a time
+	private final ReentrantLock connectLock;
+
+	public DownloadScheduler(List<byte[]> hashes, int startHeight, BlockConnector connector, Logger logger) {
+		this(hashes, startHeight, connector, logger, DEFAULT_WINDOW, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MEMORY_BUDGET, DEFAULT_STALL_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param hashes the hashes of the blocks to download, in height order
+	 * @param startHeight the height of the first block
+	 * @param connector the connector for downloaded blocks
+	 * @param logger the logger
+	 * @param window the number of heights above the next block to connect
+	 * that may be requested
+	 * @param maxInFlight the maximum number of blocks requested from a source
+	 * at once
+	 * @param memoryBudget the number of bytes of early blocks to hold
+	 * @param stallTimeoutMillis the time a source may deliver nothing while
+	 * it has blocks in flight
+	 */
+	public DownloadScheduler(List<byte[]> hashes, int startHeight, BlockConnector connector, Logger logger, int window, int maxInFlight, long memoryBudget, long stallTimeoutMillis) {
+		this.hashes = hashes;
+		this.startHeight = startHeight;
+		this.endHeight = startHeight + hashes.size();
+		this.heights = new HashMap<ByteBuffer, Integer>();
+		for (int i = 0; i < hashes.size(); i++) {
+			heights.put(ByteBuffer.wrap(hashes.get(i)), startHeight + i);
+		}
+		this.connector = connector;
+		this.logger = logger;
+		this.window = window;
+		this.maxInFlight = maxInFlight;
+		this.memoryBudget = memoryBudget;
+		this.stallTimeoutMillis = stallTimeoutMillis;
+		this.sources = new LinkedHashMap<BlockSource, SourceState>();
+		this.requests = new HashMap<Integer, SourceState>();
+		this.retry = new TreeSet<Integer>();
+		this.received = new TreeMap<Integer, ByteBuffer>();
+		this.nextRequest = startHeight;
+		this.nextConnect = startHeight;
+		this.bufferedBytes = 0;
+		this.peakBufferedBytes = 0;
+		this.stallCount = 0;
+		this.failed = false;
+		this.connectLock = new ReentrantLock();
+	}
+
+	/**
+	 * Adds a source and requests blocks from it
+	 */
+	public void addSource(BlockSource source) {
+		synchronized (this) {
+			if (!sources.containsKey(source)) {
+				sources.put(source, new SourceState(source));
+			}
+		}
+		dispatch(assign());
+	}
+
+	/**
+	 * Removes a source.  Its blocks in flight are requested from the other
+	 * sources.
+	 */
+	public void removeSource(BlockSource source) {
+		synchronized (this) {
+			SourceState state = sources.remove(source);
+			if (state == null) {
+				return;
+			}
+			requeue(state);
+		}
+		dispatch(assign());
+	}
+
+	/**
+	 * Passes a received block to the scheduler.  Blocks that were not
+	 * requested are accepted if they are part of the download, within the
+	 * window and fit in the memory budget, or are the next block to connect.
+	 *
+	 * @param source the source that sent the block
+	 * @param hash the block hash
+	 * @param block the serialized block, which is not copied
+	 */
+	public void blockReceived(BlockSource source, byte[] hash, ByteBuffer block) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Integer height = heights.get(ByteBuffer.wrap(hash));
+			if (height == null) {
+				logger.fine("Received block not part of the download");
+				return;
+			}
+			int size = block.remaining();
+			boolean requested = false;
+			SourceState state = sources.get(source);
+			if (state != null) {
+				if (state.inFlight.remove(height)) {
+					requests.remove(height);
+					requested = true;
+				}
+				state.delivered(size, now);
+			}
+			if (!requested && height != nextConnect && (height >= nextConnect + window || bufferedBytes + size > memoryBudget)) {
+				logger.fine("Dropped unrequested block at height " + height);
+				return;
+			}
+			// Blocks requested again after a stall may arrive twice
+			if (!failed && height >= nextConnect && !received.containsKey(height)) {
+				received.put(height, block);
+				bufferedBytes += size;
+				peakBufferedBytes = Math.max(peakBufferedBytes, bufferedBytes);
+			}
+		}
+		connectReady();
+		dispatch(assign());
+	}
+
+	/**
+	 * Requests the blocks in flight from stalled sources from the other
+	 * sources
+	 */
+	public void checkStalls() {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			for (SourceState state : sources.values()) {
+				if (!state.inFlight.isEmpty() && now - state.lastActivity >= stallTimeoutMillis) {
+					logger.fine("Block source stalled with " + state.inFlight.size() + " blocks in flight");
+					stallCount++;
+					state.stalled = true;
+					requeue(state);
+				}
+			}
+		}
+		dispatch(assign());
+	}
+
+	/**
+	 * Waits until every block is connected, checking for stalls
+	 *
+	 * @return true if every block was connected, false if a block was invalid
+	 * or the timeout expired
+	 */
+	public boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeoutMillis;
+		while (true) {
+			checkStalls();
+			synchronized (this) {
+				if (failed) {
+					return false;
+				}
+				if (nextConnect >= endHeight) {
+					return true;
+				}
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(Math.min(remaining, CHECK_INTERVAL_MILLIS));
+			}
+		}
+	}
+
+	/**
+	 * Gets the height of the next block to connect
+	 */
+	public synchronized int getNextHeight() {
+		return nextConnect;
+	}
+
+	/**
+	 * Gets the number of bytes of received blocks not yet connected
+	 */
+	public synchronized long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	public synchronized long getPeakBufferedBytes() {
+		return peakBufferedBytes;
+	}
+
+	/**
+	 * Gets the number of times a source stalled
+	 */
+	public synchronized int getStallCount() {
+		return stallCount;
+	}
+
+	/**
+	 * Gets the average rate a source delivers at while it has blocks in
+	 * flight
+	 *
+	 * @return the rate in bytes per second, or 0 if the source is unknown or
+	 * has delivered nothing
+	 */
+	public synchronized double getThroughput(BlockSource source) {
+		SourceState state = sources.get(source);
+		return state == null ? 0 : state.throughput;
+	}
+
+	private void requeue(SourceState state) {
+		for (Integer height : state.inFlight) {
+			requests.remove(height);
+			retry.add(height);
+		}
+		state.inFlight.clear();
+	}
+
+	/**
+	 * Connects received blocks until the next block is missing
+	 */
+	private void connectReady() {
+		connectLock.lock();
+		try {
+			while (true) {
+				int height;
+				ByteBuffer block;
+				synchronized (this) {
+					block = failed ? null : received.get(nextConnect);
+					if (block == null) {
+						return;
+					}
+					height = nextConnect;
+				}
+				int size = block.remaining();
+				boolean connected = connector.connect(height, block);
+				synchronized (this) {
+					// The block is kept until connected, so a second copy is
+					// not accepted meanwhile
+					received.remove(height);
+					bufferedBytes -= size;
+					if (connected) {
+						nextConnect++;
+					} else {
+						logger.severe("Invalid block at height " + height + ", download stopped");
+						failed = true;
+					}
+					notifyAll();
+				}
+			}
+		} finally {
+			connectLock.unlock();
+		}
+	}
+
+	/**
+	 * Assigns heights to sources with free capacity
+	 *
+	 * @return the hashes to request from each source
+	 */
+	private synchronized Map<BlockSource, List<byte[]>> assign() {
+		Map<BlockSource, List<byte[]>> assigned = new LinkedHashMap<BlockSource, List<byte[]>>();
+		if (failed) {
+			return assigned;
+		}
+		List<SourceState> ready = new ArrayList<SourceState>();
+		for (SourceState state : sources.values()) {
+			if (!state.stalled) {
+				ready.add(state);
+			}
+		}
+		if (ready.isEmpty()) {
+			// When every source has stalled, they are all used again
+			for (SourceState state : sources.values()) {
+				state.stalled = false;
+				ready.add(state);
+			}
+		}
+		Collections.sort(ready, new Comparator<SourceState>() {
+			@Override
+			public int compare(SourceState a, SourceState b) {
+				return Double.compare(b.throughput, a.throughput);
+			}
+		});
+		long now = System.currentTimeMillis();
+		// One height per source per pass, so neighbouring heights are spread
+		// over the sources
+		boolean progress = true;
+		while (progress) {
+			progress = false;
+			for (SourceState state : ready) {
+				if (state.inFlight.size() >= maxInFlight) {
+					continue;
+				}
+				int height = nextHeight();
+				if (height < 0) {
+					return assigned;
+				}
+				if (state.inFlight.isEmpty()) {
+					state.lastActivity = now;
+				}
+				state.inFlight.add(height);
+				requests.put(height, state);
+				List<byte[]> list = assigned.get(state.source);
+				if (list == null) {
+					list = new ArrayList<byte[]>();
+					assigned.put(state.source, list);
+				}
+				list.add(hashes.get(height - startHeight));
+				progress = true;
+			}
+		}
+		return assigned;
+	}
+
+	/**
+	 * Gets the lowest height to request next
+	 *
+	 * @return the height, or -1 if no height can be requested
+	 */
+	private int nextHeight() {
+		while (!retry.isEmpty()) {
+			int height = retry.pollFirst();
+			if (height >= nextConnect && !received.containsKey(height) && !requests.containsKey(height)) {
+				return height;
+			}
+		}
+		if (nextRequest >= endHeight || nextRequest >= nextConnect + window) {
+			return -1;
+		}
+		// Blocks below the held blocks are always requested, so the budget
+		// cannot stop the download
+		if (bufferedBytes >= memoryBudget && nextRequest > nextConnect) {
+			return -1;
+		}
+		return nextRequest++;
+	}
+
+	private void dispatch(Map<BlockSource, List<byte[]>> assigned) {
+		for (Map.Entry<BlockSource, List<byte[]>> entry : assigned.entrySet()) {
+			entry.getKey().requestBlocks(entry.getValue());
+		}
+	}
+
+	private static class SourceState {
+		private final BlockSource source;
+		private final Set<Integer> inFlight;
+		private long lastActivity;
+		private double throughput;
+		private boolean stalled;
+
+		SourceState(BlockSource source) {
+			this.source = source;
+			this.inFlight = new HashSet<Integer>();
+			this.lastActivity = System.currentTimeMillis();
+			this.throughput = 0;
+			this.stalled = false;
+		}
+
+		void delivered(int bytes, long now) {
+			double sample = bytes * 1000.0 / Math.max(1, now - lastActivity);
+			throughput = throughput == 0 ? sample : throughput + THROUGHPUT_WEIGHT * (sample - throughput);
+			lastActivity = now;
+			stalled = false;
+		}
+	}
+}
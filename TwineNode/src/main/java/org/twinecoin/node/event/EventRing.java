@@ -0,0 +1,189 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.event;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.twinecoin.api.EventSubscription;
+import org.twinecoin.api.data.NodeEvent;
+
+/**
+ * Lock-free ring buffer of node events with any number of publishers and
+ * subscribers.<br>
+ * <br>
+ * A publisher claims the next sequence number and stores the event in the
+ * slot for it.  Every subscriber reads every event through a cursor of its
+ * own, so subscribers never contend with each other.  Publishers do not
+ * wait for subscribers: a subscriber whose cursor falls more than the
+ * capacity behind finds its slot overwritten, skips to the oldest event
+ * still held and counts the skipped events as dropped.<br>
+ * <br>
+ * Subscribers waiting in {@link EventSubscription#take(long)} are parked
+ * and unparked by the publisher.
+ */
+public class EventRing {
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private final AtomicReferenceArray<NodeEvent> slots;
+	private final int capacity;
+	private final int mask;
+	private final AtomicLong next;
+	private final CopyOnWriteArrayList<Subscription> subscriptions;
+
+	public EventRing() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the number of events held, rounded up to a power of 2
+	 */
+	public EventRing(int capacity) {
+		this.capacity = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.slots = new AtomicReferenceArray<NodeEvent>(this.capacity);
+		this.next = new AtomicLong();
+		this.subscriptions = new CopyOnWriteArrayList<Subscription>();
+	}
+
+	/**
+	 * Publishes an event.  May be called from any thread.
+	 *
+	 * @param type the type
+	 * @param hash the block hash or txid, which must not be modified after
+	 * @param height the block height, or -1 for transaction events
+	 * @return the event
+	 */
+	public NodeEvent publish(NodeEvent.Type type, byte[] hash, int height) {
+		long sequence = next.getAndIncrement();
+		NodeEvent event = new NodeEvent(sequence, type, hash, height);
+		int index = (int) (sequence & mask);
+		while (true) {
+			NodeEvent old = slots.get(index);
+			// A publisher that stalled for a whole lap must not overwrite a
+			// newer event
+			if ((old != null && old.getSequence() > sequence) || slots.compareAndSet(index, old, event)) {
+				break;
+			}
+		}
+		for (Subscription subscription : subscriptions) {
+			Thread waiter = subscription.waiter;
+			if (waiter != null) {
+				LockSupport.unpark(waiter);
+			}
+		}
+		return event;
+	}
+
+	/**
+	 * Subscribes to events published after the call
+	 */
+	public EventSubscription subscribe() {
+		Subscription subscription = new Subscription(next.get());
+		subscriptions.add(subscription);
+		return subscription;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the number of events published
+	 */
+	public long getPublishedCount() {
+		return next.get();
+	}
+
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * A subscriber's cursor.  Reads must come from one thread at a time.
+	 */
+	private class Subscription implements EventSubscription {
+		private long cursor;
+		private volatile long dropped;
+		private volatile Thread waiter;
+		private volatile boolean closed;
+
+		Subscription(long cursor) {
+			this.cursor = cursor;
+			this.dropped = 0;
+			this.waiter = null;
+			this.closed = false;
+		}
+
+		@Override
+		public NodeEvent poll() {
+			while (!closed) {
+				NodeEvent event = slots.get((int) (cursor & mask));
+				if (event != null && event.getSequence() == cursor) {
+					cursor++;
+					return event;
+				}
+				long head = next.get();
+				if ((event == null || event.getSequence() < cursor) && head - cursor <= capacity) {
+					// Not published yet
+					return null;
+				}
+				// Overwritten, skip to the oldest event that may still be held
+				long oldest = head - capacity;
+				dropped += oldest - cursor;
+				cursor = oldest;
+			}
+			return null;
+		}
+
+		@Override
+		public NodeEvent take(long timeoutMillis) throws InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			while (true) {
+				NodeEvent event = poll();
+				if (event != null || closed) {
+					return event;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return null;
+				}
+				// Check again after registering, so a publish in between is
+				// not missed
+				waiter = Thread.currentThread();
+				event = poll();
+				if (event == null && !closed) {
+					LockSupport.parkNanos(this, remaining);
+				}
+				waiter = null;
+				if (event != null) {
+					return event;
+				}
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		}
+
+		@Override
+		public long getDroppedCount() {
+			return dropped;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			subscriptions.remove(this);
+			Thread t = waiter;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+	}
+}
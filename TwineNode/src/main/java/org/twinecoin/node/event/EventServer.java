@@ -0,0 +1,253 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.event;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.twinecoin.api.EventSubscription;
+import org.twinecoin.api.data.NodeEvent;
+import org.twinecoin.common.VarInt;
+
+/**
+ * Streams node events to local clients.<br>
+ * <br>
+ * Each connection gets a subscription to the {@link EventRing} and a thread
+ * that writes its events, encoded by {@link #encode}, as fast as the client
+ * reads them.  Events that are ready are packed into one write.  A client
+ * that reads too slowly falls behind in the ring and loses events rather
+ * than holding up the node; the lost events show as gaps in the sequence
+ * numbers and in {@link #getDroppedCount()}.  Clients send nothing.
+ */
+public class EventServer {
+	public static final int BUFFER_SIZE = 16 << 10;
+
+	public static final int HASH_LENGTH = 32;
+
+	// Longest encoded event, type, sequence, height and hash
+	public static final int MAX_EVENT_LENGTH = 1 + VarInt.MAX_LENGTH + 5 + HASH_LENGTH;
+
+	// Wait between checks that the server is still open
+	private static final long POLL_MILLIS = 1000;
+
+	private final EventRing ring;
+	private final Logger logger;
+	private final ThreadFactory threadFactory;
+	private final ConcurrentHashMap<Socket, EventSubscription> clients;
+	private final LongAdder droppedCount;
+	private ServerSocket serverSocket;
+	private volatile boolean closed;
+
+	/**
+	 * @param ring the events to stream
+	 * @param logger the logger
+	 * @param threadFactory the factory for the accept and client threads
+	 */
+	public EventServer(EventRing ring, Logger logger, ThreadFactory threadFactory) {
+		this.ring = ring;
+		this.logger = logger;
+		this.threadFactory = threadFactory;
+		this.clients = new ConcurrentHashMap<Socket, EventSubscription>();
+		this.droppedCount = new LongAdder();
+		this.closed = false;
+	}
+
+	/**
+	 * Starts accepting clients
+	 *
+	 * @param address the address to bind to
+	 * @return the bound address, or null if the server could not be started
+	 */
+	public synchronized InetSocketAddress listen(InetSocketAddress address) {
+		if (serverSocket != null || closed) {
+			logger.severe("Event server already started");
+			return null;
+		}
+		final ServerSocket server;
+		try {
+			server = new ServerSocket();
+			server.bind(address);
+		} catch (IOException e) {
+			logger.severe("Unable to bind event server to " + address + ", " + e.getMessage());
+			return null;
+		}
+		this.serverSocket = server;
+		threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				accept(server);
+			}
+		}).start();
+		logger.info("Event server listening on " + server.getLocalSocketAddress());
+		return (InetSocketAddress) server.getLocalSocketAddress();
+	}
+
+	/**
+	 * Stops the server and disconnects the clients
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				logger.fine("Unable to close event server socket, " + e.getMessage());
+			}
+		}
+		for (Socket client : clients.keySet()) {
+			closeQuietly(client);
+		}
+	}
+
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * Gets the number of events lost by clients that fell behind, over all
+	 * clients since the server started
+	 */
+	public long getDroppedCount() {
+		long dropped = droppedCount.sum();
+		for (EventSubscription subscription : clients.values()) {
+			dropped += subscription.getDroppedCount();
+		}
+		return dropped;
+	}
+
+	/**
+	 * Encodes an event.<br>
+	 * <br>
+	 * The type code is a byte, followed by the sequence number as a VarInt.
+	 * Block events then have the height as a VarInt, and every event ends
+	 * with the 32 byte hash.
+	 *
+	 * @param buf the buffer, which must have {@link #MAX_EVENT_LENGTH} bytes
+	 * remaining
+	 */
+	public static void encode(NodeEvent event, ByteBuffer buf) {
+		buf.put((byte) event.getType().getCode());
+		VarInt.write(buf, event.getSequence());
+		if (isBlockEvent(event.getType())) {
+			VarInt.write(buf, event.getHeight());
+		}
+		buf.put(event.getHash());
+	}
+
+	/**
+	 * Decodes an event written by {@link #encode}
+	 *
+	 * @return the event, or null if the buffer does not hold a whole event,
+	 * in which case the position is not moved
+	 * @throws IllegalArgumentException if the event is invalid
+	 */
+	public static NodeEvent decode(ByteBuffer buf) {
+		ByteBuffer in = buf.duplicate();
+		try {
+			NodeEvent.Type type = NodeEvent.Type.fromCode(in.get() & 0xFF);
+			if (type == null) {
+				throw new IllegalArgumentException("Unknown event type");
+			}
+			long sequence = VarInt.read(in);
+			int height = -1;
+			if (isBlockEvent(type)) {
+				long value = VarInt.read(in);
+				if (value > Integer.MAX_VALUE) {
+					throw new IllegalArgumentException("Invalid height");
+				}
+				height = (int) value;
+			}
+			byte[] hash = new byte[HASH_LENGTH];
+			in.get(hash);
+			buf.position(in.position());
+			return new NodeEvent(sequence, type, hash, height);
+		} catch (BufferUnderflowException e) {
+			return null;
+		}
+	}
+
+	private static boolean isBlockEvent(NodeEvent.Type type) {
+		return type == NodeEvent.Type.TIP_CHANGED || type == NodeEvent.Type.BLOCK_CONNECTED || type == NodeEvent.Type.BLOCK_DISCONNECTED;
+	}
+
+	private void accept(ServerSocket server) {
+		while (!closed) {
+			final Socket client;
+			try {
+				client = server.accept();
+			} catch (IOException e) {
+				if (!closed) {
+					logger.warning("Event server stopped accepting, " + e.getMessage());
+				}
+				return;
+			}
+			final EventSubscription subscription = ring.subscribe();
+			clients.put(client, subscription);
+			if (closed) {
+				subscription.close();
+				closeQuietly(client);
+				return;
+			}
+			threadFactory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					stream(client, subscription);
+				}
+			}).start();
+		}
+	}
+
+	private void stream(Socket client, EventSubscription subscription) {
+		logger.fine("Event client connected, " + client.getRemoteSocketAddress());
+		ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+		try {
+			client.setTcpNoDelay(true);
+			OutputStream out = client.getOutputStream();
+			while (!closed) {
+				NodeEvent event = subscription.take(POLL_MILLIS);
+				if (event == null) {
+					continue;
+				}
+				buf.clear();
+				encode(event, buf);
+				while (buf.remaining() >= MAX_EVENT_LENGTH && (event = subscription.poll()) != null) {
+					encode(event, buf);
+				}
+				out.write(buf.array(), 0, buf.position());
+			}
+		} catch (IOException e) {
+			logger.fine("Event client write failed, " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			subscription.close();
+			long dropped = subscription.getDroppedCount();
+			if (dropped > 0) {
+				logger.fine("Event client dropped " + dropped + " events, " + client.getRemoteSocketAddress());
+			}
+			droppedCount.add(dropped);
+			clients.remove(client);
+			closeQuietly(client);
+		}
+	}
+
+	private void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.fine("Unable to close event client, " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.filter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.SHA256;
+import org.twinecoin.common.SipHash;
+import org.twinecoin.node.output.OutputView;
+
+/**
+ * The filter elements of a block.<br>
+ * <br>
+ * The elements are the output scripts created by the block and the output
+ * scripts of the outputs it spends.  Empty scripts and scripts starting with
+ * OP_RETURN are skipped, since they can not be spent.
+ */
+public class FilterBlock {
+	private static final byte OP_RETURN = 0x6a;
+
+	private final byte[] blockHash;
+	private final List<byte[]> elements;
+
+	public FilterBlock(byte[] blockHash, List<byte[]> elements) {
+		this.blockHash = blockHash;
+		this.elements = elements;
+	}
+
+	/**
+	 * Gets the elements of a block
+	 *
+	 * @param blockHash the block hash
+	 * @param transactions the transactions of the block
+	 * @param spentScripts the scripts of the outputs spent by the block
+	 * @return the block elements
+	 */
+	public static FilterBlock create(byte[] blockHash, List<Transaction> transactions, List<byte[]> spentScripts) {
+		Set<ByteBuffer> elements = new LinkedHashSet<ByteBuffer>();
+		for (Transaction tx : transactions) {
+			for (TxOutput output : tx.getOutputs()) {
+				addElement(elements, output.getScript());
+			}
+		}
+		for (byte[] script : spentScripts) {
+			addElement(elements, script);
+		}
+		List<byte[]> list = new ArrayList<byte[]>(elements.size());
+		for (ByteBuffer element : elements) {
+			list.add(element.array());
+		}
+		return new FilterBlock(blockHash, list);
+	}
+
+	/**
+	 * Gets the elements of a block, looking up spent outputs.  Outputs created
+	 * earlier in the block are found in the block, and other outputs in the
+	 * view, which must not yet have the block applied.
+	 *
+	 * @return the block elements, or null if a spent output was not found
+	 */
+	public static FilterBlock create(byte[] blockHash, List<Transaction> transactions, OutputView spent) throws IOException {
+		Map<ByteBuffer, Transaction> inBlock = new HashMap<ByteBuffer, Transaction>();
+		List<byte[]> spentScripts = new ArrayList<byte[]>();
+		for (int position = 0; position < transactions.size(); position++) {
+			Transaction tx = transactions.get(position);
+			if (position > 0) {
+				for (TxInput input : tx.getInputs()) {
+					OutPoint outPoint = input.getOutPoint();
+					Transaction parent = inBlock.get(ByteBuffer.wrap(outPoint.getTxid()));
+					if (parent != null && outPoint.getIndex() < parent.getOutputs().size()) {
+						spentScripts.add(parent.getOutputs().get(outPoint.getIndex()).getScript());
+					} else {
+						UnspentOutput output = spent.getOutput(outPoint);
+						if (output == null) {
+							return null;
+						}
+						spentScripts.add(output.getScript());
+					}
+				}
+			}
+			inBlock.put(ByteBuffer.wrap(tx.getTxid()), tx);
+		}
+		return create(blockHash, transactions, spentScripts);
+	}
+
+	public byte[] getBlockHash() {
+		return blockHash;
+	}
+
+	public List<byte[]> getElements() {
+		return elements;
+	}
+
+	/**
+	 * Encodes the filter of the block
+	 */
+	public byte[] getFilter() {
+		return GolombCodedSet.encode(getK0(blockHash), getK1(blockHash), elements);
+	}
+
+	/**
+	 * Gets the first SipHash key for the filter of a block
+	 */
+	public static long getK0(byte[] blockHash) {
+		return SipHash.readLong(blockHash, 0);
+	}
+
+	/**
+	 * Gets the second SipHash key for the filter of a block
+	 */
+	public static long getK1(byte[] blockHash) {
+		return SipHash.readLong(blockHash, 8);
+	}
+
+	/**
+	 * Gets the double SHA256 hash of an encoded filter
+	 */
+	public static byte[] getFilterHash(byte[] filter) {
+		byte[] first = SHA256.getDigest(filter, 0, filter.length);
+		return SHA256.getDigest(first, 0, first.length);
+	}
+
+	/**
+	 * Gets the filter header that follows a previous header
+	 */
+	public static byte[] getHeader(byte[] filter, byte[] previousHeader) {
+		return getNextHeader(getFilterHash(filter), previousHeader);
+	}
+
+	/**
+	 * Gets the filter header that follows a previous header, given the hash of
+	 * the filter<br>
+	 * <br>
+	 * The header is the double SHA256 hash of the filter hash followed by the
+	 * previous header, as in BIP158.
+	 */
+	public static byte[] getNextHeader(byte[] filterHash, byte[] previousHeader) {
+		byte[] first = SHA256.getDigest(filterHash, previousHeader);
+		return SHA256.getDigest(first, 0, first.length);
+	}
+
+	private static void addElement(Set<ByteBuffer> elements, byte[] script) {
+		if (script.length > 0 && script[0] != OP_RETURN) {
+			elements.add(ByteBuffer.wrap(script));
+		}
+	}
+}
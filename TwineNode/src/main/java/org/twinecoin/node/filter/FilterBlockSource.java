@@ -0,0 +1,22 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.filter;
+
+import java.io.IOException;
+
+/**
+ * Source of connected blocks for the initial filter index build.  It is
+ * called from several threads at once.
+ */
+public interface FilterBlockSource {
+	/**
+	 * Gets the filter elements of a block on the main chain
+	 *
+	 * @param height the height of the block
+	 * @return the block elements
+	 */
+	public FilterBlock getBlock(int height) throws IOException;
+}
@@ -0,0 +1,196 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.filter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.twinecoin.common.SipHash;
+import org.twinecoin.common.VarInt;
+
+/**
+ * Golomb coded set, as used by BIP158 block filters.<br>
+ * <br>
+ * Each element is hashed with SipHash and mapped to the range [0, N * M).
+ * The sorted values are delta encoded with Golomb-Rice coding, using
+ * {@link #P} low bits per value.  The false positive rate is about 1 / M.
+ * <br>
+ * The encoding is the element count as a varint followed by the bit stream,
+ * most significant bit first.
+ */
+public class GolombCodedSet {
+	public static final int P = 19;
+	public static final long M = 784931;
+
+	/**
+	 * Encodes a set of elements
+	 *
+	 * @param k0 the first SipHash key
+	 * @param k1 the second SipHash key
+	 * @param elements the elements, without repeats
+	 * @return the encoded set
+	 */
+	public static byte[] encode(long k0, long k1, List<byte[]> elements) {
+		int n = elements.size();
+		long range = n * M;
+		long[] values = new long[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = hashToRange(k0, k1, elements.get(i), range);
+		}
+		Arrays.sort(values);
+
+		// Convert to deltas and size the output exactly
+		long bitCount = 0;
+		for (int i = n - 1; i >= 0; i--) {
+			values[i] -= i == 0 ? 0 : values[i - 1];
+			bitCount += (values[i] >>> P) + 1 + P;
+		}
+
+		BitWriter writer = new BitWriter(VarInt.size(n) + (int) ((bitCount + 7) / 8));
+		VarInt.write(writer.buf, n);
+		for (long delta : values) {
+			for (long q = delta >>> P; q > 0; q--) {
+				writer.write(1, 1);
+			}
+			writer.write(0, 1);
+			writer.write(delta, P);
+		}
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Checks if an element may be in a set
+	 *
+	 * @return false if the element is not in the set, true if it probably is
+	 */
+	public static boolean match(byte[] set, long k0, long k1, byte[] element) {
+		ByteBuffer buf = ByteBuffer.wrap(set);
+		long n = VarInt.read(buf);
+		long target = hashToRange(k0, k1, element, n * M);
+		BitReader reader = new BitReader(buf);
+		long value = 0;
+		for (long i = 0; i < n; i++) {
+			value += reader.readDelta();
+			if (value == target) {
+				return true;
+			} else if (value > target) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if any of a list of elements may be in a set.  The set is only
+	 * decoded once.
+	 *
+	 * @return false if none of the elements are in the set, true if one
+	 * probably is
+	 */
+	public static boolean matchAny(byte[] set, long k0, long k1, List<byte[]> elements) {
+		ByteBuffer buf = ByteBuffer.wrap(set);
+		long n = VarInt.read(buf);
+		long range = n * M;
+		long[] targets = new long[elements.size()];
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = hashToRange(k0, k1, elements.get(i), range);
+		}
+		Arrays.sort(targets);
+
+		BitReader reader = new BitReader(buf);
+		long value = 0;
+		int t = 0;
+		for (long i = 0; i < n && t < targets.length; i++) {
+			value += reader.readDelta();
+			while (t < targets.length && targets[t] < value) {
+				t++;
+			}
+			if (t < targets.length && targets[t] == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Maps the hash of an element to [0, range) by taking the high 64 bits of
+	 * the 128 bit product
+	 */
+	static long hashToRange(long k0, long k1, byte[] element, long range) {
+		return multiplyHigh(SipHash.hash(k0, k1, element), range);
+	}
+
+	/**
+	 * Gets the high 64 bits of the unsigned 128 bit product of two values
+	 */
+	static long multiplyHigh(long a, long b) {
+		long aLow = a & 0xFFFFFFFFL;
+		long aHigh = a >>> 32;
+		long bLow = b & 0xFFFFFFFFL;
+		long bHigh = b >>> 32;
+		long t = aHigh * bLow + ((aLow * bLow) >>> 32);
+		long w = (t & 0xFFFFFFFFL) + aLow * bHigh;
+		return aHigh * bHigh + (t >>> 32) + (w >>> 32);
+	}
+
+	private static class BitWriter {
+		private final ByteBuffer buf;
+		private long bits;
+		private int count;
+
+		BitWriter(int capacity) {
+			this.buf = ByteBuffer.allocate(capacity);
+		}
+
+		/**
+		 * Writes the low bits of a value, up to 32 bits at a time
+		 */
+		void write(long value, int length) {
+			bits = (bits << length) | (value & ((1L << length) - 1));
+			count += length;
+			while (count >= 8) {
+				count -= 8;
+				buf.put((byte) (bits >>> count));
+			}
+		}
+
+		byte[] toByteArray() {
+			if (count > 0) {
+				buf.put((byte) (bits << (8 - count)));
+				count = 0;
+			}
+			return Arrays.copyOf(buf.array(), buf.position());
+		}
+	}
+
+	private static class BitReader {
+		private final ByteBuffer buf;
+		private long bits;
+		private int count;
+
+		BitReader(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		long readDelta() {
+			long q = 0;
+			while (read(1) == 1) {
+				q++;
+			}
+			return (q << P) | read(P);
+		}
+
+		private long read(int length) {
+			while (count < length) {
+				bits = (bits << 8) | (buf.get() & 0xFF);
+				count += 8;
+			}
+			count -= length;
+			return (bits >>> count) & ((1L << length) - 1);
+		}
+	}
+}
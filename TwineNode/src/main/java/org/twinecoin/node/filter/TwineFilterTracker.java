@@ -0,0 +1,364 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.filter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.twinecoin.api.chain.FilterTracker;
+import org.twinecoin.common.Pair;
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.store.KeyValueIterator;
+import org.twinecoin.node.store.KeyValueStore;
+import org.twinecoin.node.store.WriteBatch;
+
+/**
+ * Block filter index backed by a key-value store.<br>
+ * <br>
+ * Connected blocks are queued in height order and their filters are encoded
+ * on the executor.  As the oldest queued filters complete, their headers are
+ * chained and they are written to the store, so the index can lag the chain
+ * by a few blocks.  {@link #flush()} waits for the queue to drain.<br>
+ * <br>
+ * The initial build encodes ranges of {@link #BUILD_RANGE} blocks in parallel
+ * and then chains the headers in order.<br>
+ * <br>
+ * Keys<br>
+ * - 'f' + height (4 bytes, big endian) - filter<br>
+ * - 'h' + height (4 bytes, big endian) - filter header<br>
+ * - 'B' - best height (varint)
+ */
+public class TwineFilterTracker implements FilterTracker {
+	public static final int MAX_QUERY_RANGE = 1000;
+	public static final int BUILD_RANGE = 1000;
+
+	static final byte FILTER_PREFIX = 'f';
+	static final byte HEADER_PREFIX = 'h';
+	static final byte[] BEST_HEIGHT_KEY = new byte[] {'B'};
+
+	private static final byte[] ZERO_HEADER = new byte[32];
+
+	private final KeyValueStore store;
+	private final Logger logger;
+	private final ExecutorService executor;
+
+	// Blocks waiting to be written, in height order
+	private final LinkedList<PendingFilter> pending = new LinkedList<PendingFilter>();
+
+	private volatile int bestHeight;
+	private byte[] bestHeader;
+	private int queuedHeight;
+	private boolean failed;
+
+	/**
+	 * @param store the store for the index
+	 * @param logger the logger
+	 * @param executor the executor used to encode filters
+	 */
+	public TwineFilterTracker(KeyValueStore store, Logger logger, ExecutorService executor) throws IOException {
+		this.store = store;
+		this.logger = logger;
+		this.executor = executor;
+		byte[] best = store.get(BEST_HEIGHT_KEY);
+		this.bestHeight = best == null ? -1 : (int) VarInt.read(best, 0, new int[1]);
+		this.bestHeader = readHeader(bestHeight);
+		this.queuedHeight = bestHeight;
+		this.failed = false;
+	}
+
+	@Override
+	public List<byte[]> getFilters(int startHeight, int stopHeight) {
+		return readRange(FILTER_PREFIX, startHeight, stopHeight);
+	}
+
+	@Override
+	public List<byte[]> getFilterHeaders(int startHeight, int stopHeight) {
+		return readRange(HEADER_PREFIX, startHeight, stopHeight);
+	}
+
+	@Override
+	public int getBestHeight() {
+		return bestHeight;
+	}
+
+	/**
+	 * Queues a block to be added to the index
+	 *
+	 * @param height the height of the block, which must follow the last
+	 * queued block
+	 * @param block the filter elements of the block
+	 * @return true if the block was queued
+	 */
+	public synchronized boolean connectBlock(int height, FilterBlock block) {
+		if (failed) {
+			logger.severe("Filter index is not being updated after a failure");
+			return false;
+		}
+		if (block == null) {
+			logger.severe("Filter index block at height " + height + " has no filter elements");
+			return false;
+		}
+		if (height != queuedHeight + 1) {
+			logger.severe("Filter index block at height " + height + " does not follow " + queuedHeight);
+			return false;
+		}
+		final PendingFilter p = new PendingFilter(height, block);
+		pending.addLast(p);
+		queuedHeight = height;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				byte[] filter;
+				try {
+					filter = p.block.getFilter();
+				} catch (RuntimeException e) {
+					fail("Unable to encode filter at height " + p.height + ", " + e);
+					return;
+				}
+				complete(p, filter);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Removes the best block from the index.  Queued blocks are written first.
+	 *
+	 * @return true on success
+	 */
+	public synchronized boolean disconnectBlock(int height) {
+		if (!flush()) {
+			return false;
+		}
+		if (height != bestHeight) {
+			logger.severe("Filter index can only disconnect the best block " + bestHeight + ", not " + height);
+			return false;
+		}
+		try {
+			byte[] previousHeader = readHeader(height - 1);
+			WriteBatch batch = new WriteBatch();
+			batch.delete(encodeKey(FILTER_PREFIX, height));
+			batch.delete(encodeKey(HEADER_PREFIX, height));
+			batch.put(BEST_HEIGHT_KEY, encodeHeight(height - 1));
+			store.write(batch);
+			bestHeight = height - 1;
+			bestHeader = previousHeader;
+			queuedHeight = bestHeight;
+			return true;
+		} catch (IOException e) {
+			logger.severe("Unable to disconnect filter index block at height " + height + ", " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Waits until all queued blocks are written
+	 *
+	 * @return true if all blocks were written
+	 */
+	public synchronized boolean flush() {
+		try {
+			while (!pending.isEmpty() && !failed) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !failed;
+	}
+
+	/**
+	 * Builds the index up to a height from blocks already on the chain
+	 *
+	 * @param source the source of the blocks
+	 * @param stopHeight the height of the last block to add
+	 * @return true on success
+	 */
+	public synchronized boolean build(final FilterBlockSource source, int stopHeight) {
+		if (!flush()) {
+			return false;
+		}
+		List<Future<byte[][]>> ranges = new ArrayList<Future<byte[][]>>();
+		for (int start = bestHeight + 1; start <= stopHeight; start += BUILD_RANGE) {
+			final int rangeStart = start;
+			final int rangeStop = Math.min(stopHeight, start + BUILD_RANGE - 1);
+			ranges.add(executor.submit(new Callable<byte[][]>() {
+				@Override
+				public byte[][] call() throws IOException {
+					return buildRange(source, rangeStart, rangeStop);
+				}
+			}));
+		}
+		try {
+			for (Future<byte[][]> range : ranges) {
+				byte[][] filterHashes = range.get();
+				WriteBatch batch = new WriteBatch();
+				int height = bestHeight;
+				byte[] header = bestHeader;
+				for (byte[] filterHash : filterHashes) {
+					height++;
+					header = FilterBlock.getNextHeader(filterHash, header);
+					batch.put(encodeKey(HEADER_PREFIX, height), header);
+				}
+				batch.put(BEST_HEIGHT_KEY, encodeHeight(height));
+				store.write(batch);
+				bestHeight = height;
+				bestHeader = header;
+				queuedHeight = height;
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.severe("Filter index build interrupted at height " + bestHeight);
+		} catch (ExecutionException e) {
+			logger.severe("Unable to build filter index at height " + (bestHeight + 1) + ", " + e.getCause().getMessage());
+		} catch (IOException e) {
+			logger.severe("Unable to write filter index at height " + (bestHeight + 1) + ", " + e.getMessage());
+		}
+		for (Future<byte[][]> range : ranges) {
+			range.cancel(true);
+		}
+		return false;
+	}
+
+	/**
+	 * Encodes and writes the filters for a range of blocks
+	 *
+	 * @return the filter hashes
+	 */
+	private byte[][] buildRange(FilterBlockSource source, int startHeight, int stopHeight) throws IOException {
+		byte[][] filterHashes = new byte[stopHeight - startHeight + 1][];
+		WriteBatch batch = new WriteBatch();
+		for (int height = startHeight; height <= stopHeight; height++) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new IOException("Interrupted");
+			}
+			byte[] filter = source.getBlock(height).getFilter();
+			filterHashes[height - startHeight] = FilterBlock.getFilterHash(filter);
+			batch.put(encodeKey(FILTER_PREFIX, height), filter);
+		}
+		store.write(batch);
+		return filterHashes;
+	}
+
+	/**
+	 * Records an encoded filter and writes the completed filters at the head
+	 * of the queue
+	 */
+	private synchronized void complete(PendingFilter p, byte[] filter) {
+		p.filter = filter;
+		if (failed) {
+			return;
+		}
+		WriteBatch batch = new WriteBatch();
+		int height = bestHeight;
+		byte[] header = bestHeader;
+		int written = 0;
+		for (PendingFilter head : pending) {
+			if (head.filter == null) {
+				break;
+			}
+			height = head.height;
+			header = FilterBlock.getHeader(head.filter, header);
+			batch.put(encodeKey(FILTER_PREFIX, height), head.filter);
+			batch.put(encodeKey(HEADER_PREFIX, height), header);
+			written++;
+		}
+		if (written == 0) {
+			return;
+		}
+		batch.put(BEST_HEIGHT_KEY, encodeHeight(height));
+		try {
+			store.write(batch);
+			for (int i = 0; i < written; i++) {
+				pending.removeFirst();
+			}
+			bestHeight = height;
+			bestHeader = header;
+		} catch (IOException e) {
+			logger.severe("Unable to write filter index at height " + height + ", " + e.getMessage());
+			failed = true;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Stops updates to the index and wakes threads waiting for the queue
+	 */
+	private synchronized void fail(String message) {
+		logger.severe(message);
+		failed = true;
+		notifyAll();
+	}
+
+	private List<byte[]> readRange(byte prefix, int startHeight, int stopHeight) {
+		if (startHeight < 0 || stopHeight < startHeight || stopHeight > bestHeight || stopHeight - startHeight >= MAX_QUERY_RANGE) {
+			return null;
+		}
+		List<byte[]> values = new ArrayList<byte[]>(stopHeight - startHeight + 1);
+		try {
+			KeyValueIterator iterator = store.iterator(encodeKey(prefix, startHeight), encodeKey(prefix, stopHeight + 1));
+			try {
+				while (iterator.hasNext()) {
+					Pair<byte[], byte[]> entry = iterator.next();
+					values.add(entry.getB());
+				}
+			} finally {
+				iterator.close();
+			}
+		} catch (IOException e) {
+			logger.severe("Unable to read filter index, " + e.getMessage());
+			return null;
+		}
+		if (values.size() != stopHeight - startHeight + 1) {
+			logger.severe("Filter index is missing entries between " + startHeight + " and " + stopHeight);
+			return null;
+		}
+		return values;
+	}
+
+	private byte[] readHeader(int height) throws IOException {
+		if (height < 0) {
+			return ZERO_HEADER;
+		}
+		byte[] header = store.get(encodeKey(HEADER_PREFIX, height));
+		if (header == null) {
+			throw new IOException("Filter header missing at height " + height);
+		}
+		return header;
+	}
+
+	static byte[] encodeKey(byte prefix, int height) {
+		return new byte[] {prefix, (byte) (height >>> 24), (byte) (height >>> 16), (byte) (height >>> 8), (byte) height};
+	}
+
+	private static byte[] encodeHeight(int height) {
+		byte[] buf = new byte[VarInt.MAX_LENGTH];
+		int length = VarInt.write(buf, 0, height);
+		byte[] value = new byte[length];
+		System.arraycopy(buf, 0, value, 0, length);
+		return value;
+	}
+
+	private static class PendingFilter {
+		private final int height;
+		private final FilterBlock block;
+		private byte[] filter;
+
+		PendingFilter(int height, FilterBlock block) {
+			this.height = height;
+			this.block = block;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.twinecoin.api.data.Transaction;
+
+/**
+ * The transactions selected for a block, in an order where parents come
+ * before their children.  The coinbase is not included.
+ */
+public class BlockTemplate {
+	private final List<Transaction> transactions;
+	private final long size;
+	private final long fee;
+	private final long time;
+
+	BlockTemplate(List<Transaction> transactions, long size, long fee, long time) {
+		this.transactions = Collections.unmodifiableList(transactions);
+		this.size = size;
+		this.fee = fee;
+		this.time = time;
+	}
+
+	public List<Transaction> getTransactions() {
+		return transactions;
+	}
+
+	/**
+	 * Gets the total size of the transactions in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the total fee of the transactions
+	 */
+	public long getFee() {
+		return fee;
+	}
+
+	/**
+	 * Gets the time the template was last changed in milliseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+}
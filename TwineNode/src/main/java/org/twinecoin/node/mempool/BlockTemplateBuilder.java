@@ -0,0 +1,275 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.twinecoin.api.data.Transaction;
+
+/**
+ * Selects memory pool transactions for a block template by ancestor fee
+ * rate.<br>
+ * <br>
+ * A build walks the pool's ancestor score index from the best package down
+ * and stops once the block is full, so it does not visit the whole pool.
+ * When a package is selected, its in-pool descendants lose those ancestors
+ * and their package fee rate changes.  They are pushed onto a heap with the
+ * updated totals and compete with the next entry from the index.<br>
+ * <br>
+ * The builder listens to the pool and keeps the last template up to date.
+ * A new transaction whose parents are all in the template is appended if it
+ * fits.  A new transaction that could displace a selected package, or the
+ * removal of a selected transaction, marks the template for a rebuild on the
+ * next call to {@link #getTemplate}.
+ */
+public class BlockTemplateBuilder implements MemoryPoolListener {
+	// Stop after this many packages in a row do not fit in a nearly full block
+	private static final int MAX_CONSECUTIVE_FAILURES = 1000;
+	private static final int FULL_BLOCK_MARGIN = 4000;
+
+	private static final Comparator<ModifiedEntry> MODIFIED_SCORE = new Comparator<ModifiedEntry>() {
+		@Override
+		public int compare(ModifiedEntry a, ModifiedEntry b) {
+			return compareScore(a.fee, a.size, a.entry, b.fee, b.size, b.entry);
+		}
+	};
+
+	private static final Comparator<MemoryPoolEntry> ANCESTOR_COUNT = new Comparator<MemoryPoolEntry>() {
+		@Override
+		public int compare(MemoryPoolEntry a, MemoryPoolEntry b) {
+			return Integer.compare(a.getAncestorCount(), b.getAncestorCount());
+		}
+	};
+
+	private final TwineMemoryPool pool;
+	private final long maxBlockSize;
+
+	// Guarded by the pool lock
+	private final List<Transaction> selected = new ArrayList<Transaction>();
+	private final Set<MemoryPoolEntry> included = new HashSet<MemoryPoolEntry>();
+	private long selectedSize;
+	private long selectedFee;
+	private long lowestFee;
+	private long lowestSize;
+	private boolean dirty;
+	private BlockTemplate template;
+	private long rebuildCount;
+
+	/**
+	 * Creates a builder and registers it with the pool
+	 *
+	 * @param pool the memory pool
+	 * @param maxBlockSize the maximum size of the selected transactions
+	 */
+	public BlockTemplateBuilder(TwineMemoryPool pool, long maxBlockSize) {
+		this.pool = pool;
+		this.maxBlockSize = maxBlockSize;
+		this.dirty = true;
+		this.rebuildCount = 0;
+		pool.addListener(this);
+	}
+
+	/**
+	 * Gets the current template, rebuilding it if the pool has changed in a
+	 * way that can not be applied incrementally
+	 */
+	public BlockTemplate getTemplate() {
+		pool.lock.lock();
+		try {
+			if (dirty) {
+				rebuild();
+			}
+			if (template == null) {
+				template = new BlockTemplate(new ArrayList<Transaction>(selected), selectedSize, selectedFee, System.currentTimeMillis());
+			}
+			return template;
+		} finally {
+			pool.lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of full rebuilds
+	 */
+	public long getRebuildCount() {
+		pool.lock.lock();
+		try {
+			return rebuildCount;
+		} finally {
+			pool.lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops listening to the pool
+	 */
+	public void close() {
+		pool.removeListener(this);
+	}
+
+	@Override
+	public void transactionAdded(MemoryPoolEntry entry) {
+		if (dirty) {
+			return;
+		}
+		if (included.containsAll(entry.parents) && selectedSize + entry.getSize() <= maxBlockSize) {
+			// With all parents selected, the transaction is its own package
+			select(entry);
+			updateLowest(entry.getFee(), entry.getSize());
+			template = null;
+			return;
+		}
+		// A package that beats the weakest selected package may change the selection
+		if (lowestSize == 0 || MemoryPoolEntry.compareFeeRate(entry.getAncestorFee(), entry.getAncestorSize(), lowestFee, lowestSize) > 0) {
+			dirty = true;
+		}
+	}
+
+	@Override
+	public void transactionRemoved(MemoryPoolEntry entry, RemovalReason reason) {
+		if (included.contains(entry)) {
+			dirty = true;
+		}
+	}
+
+	private void select(MemoryPoolEntry entry) {
+		included.add(entry);
+		selected.add(entry.getTransaction());
+		selectedSize += entry.getSize();
+		selectedFee += entry.getFee();
+	}
+
+	/**
+	 * Records a selected package if it has the lowest fee rate so far
+	 */
+	private void updateLowest(long packageFee, long packageSize) {
+		if (lowestSize == 0 || MemoryPoolEntry.compareFeeRate(packageFee, packageSize, lowestFee, lowestSize) < 0) {
+			lowestFee = packageFee;
+			lowestSize = packageSize;
+		}
+	}
+
+	private void rebuild() {
+		selected.clear();
+		included.clear();
+		selectedSize = 0;
+		selectedFee = 0;
+		lowestFee = 0;
+		lowestSize = 0;
+
+		Map<MemoryPoolEntry, ModifiedEntry> modified = new HashMap<MemoryPoolEntry, ModifiedEntry>();
+		PriorityQueue<ModifiedEntry> heap = new PriorityQueue<ModifiedEntry>(64, MODIFIED_SCORE);
+		Iterator<MemoryPoolEntry> iterator = pool.byAncestorScore.iterator();
+		MemoryPoolEntry next = null;
+		int failures = 0;
+
+		while (true) {
+			while (next == null && iterator.hasNext()) {
+				MemoryPoolEntry candidate = iterator.next();
+				// Entries with selected ancestors are scored through the heap
+				if (!included.contains(candidate) && !modified.containsKey(candidate)) {
+					next = candidate;
+				}
+			}
+			while (!heap.isEmpty() && (included.contains(heap.peek().entry) || modified.get(heap.peek().entry) != heap.peek())) {
+				heap.poll();
+			}
+			if (next == null && heap.isEmpty()) {
+				break;
+			}
+
+			MemoryPoolEntry entry;
+			long packageSize;
+			long packageFee;
+			ModifiedEntry top = heap.peek();
+			if (top != null && (next == null || compareScore(top.fee, top.size, top.entry, next.getAncestorFee(), next.getAncestorSize(), next) < 0)) {
+				heap.poll();
+				entry = top.entry;
+				packageSize = top.size;
+				packageFee = top.fee;
+			} else {
+				entry = next;
+				next = null;
+				packageSize = entry.getAncestorSize();
+				packageFee = entry.getAncestorFee();
+			}
+
+			if (selectedSize + packageSize > maxBlockSize) {
+				failures++;
+				if (failures > MAX_CONSECUTIVE_FAILURES && selectedSize > maxBlockSize - FULL_BLOCK_MARGIN) {
+					break;
+				}
+				continue;
+			}
+			failures = 0;
+
+			List<MemoryPoolEntry> packageEntries = new ArrayList<MemoryPoolEntry>();
+			for (MemoryPoolEntry ancestor : pool.getAncestors(entry.parents)) {
+				if (!included.contains(ancestor)) {
+					packageEntries.add(ancestor);
+				}
+			}
+			packageEntries.add(entry);
+			Collections.sort(packageEntries, ANCESTOR_COUNT);
+
+			for (MemoryPoolEntry packageEntry : packageEntries) {
+				select(packageEntry);
+				modified.remove(packageEntry);
+			}
+			updateLowest(packageFee, packageSize);
+
+			for (MemoryPoolEntry packageEntry : packageEntries) {
+				for (MemoryPoolEntry descendant : pool.getDescendants(packageEntry)) {
+					if (included.contains(descendant)) {
+						continue;
+					}
+					ModifiedEntry previous = modified.get(descendant);
+					long size = previous == null ? descendant.getAncestorSize() : previous.size;
+					long fee = previous == null ? descendant.getAncestorFee() : previous.fee;
+					ModifiedEntry updated = new ModifiedEntry(descendant, size - packageEntry.getSize(), fee - packageEntry.getFee());
+					modified.put(descendant, updated);
+					heap.add(updated);
+				}
+			}
+		}
+
+		dirty = false;
+		template = null;
+		rebuildCount++;
+	}
+
+	/**
+	 * Orders by fee rate, highest first, then by pool order
+	 */
+	private static int compareScore(long fee1, long size1, MemoryPoolEntry entry1, long fee2, long size2, MemoryPoolEntry entry2) {
+		int c = MemoryPoolEntry.compareFeeRate(fee2, size2, fee1, size1);
+		return c != 0 ? c : Long.compare(entry1.getSequence(), entry2.getSequence());
+	}
+
+	/**
+	 * Package totals of an entry after some of its ancestors were selected
+	 */
+	private static class ModifiedEntry {
+		private final MemoryPoolEntry entry;
+		private final long size;
+		private final long fee;
+
+		ModifiedEntry(MemoryPoolEntry entry, long size, long fee) {
+			this.entry = entry;
+			this.size = size;
+			this.fee = fee;
+		}
+	}
+}
@@ -0,0 +1,348 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Estimates the fee rate needed for a transaction to confirm within a number
+ * of blocks.<br>
+ * <br>
+ * Fee rates are grouped into buckets spaced by {@link #BUCKET_SPACING}.  For
+ * each bucket the estimator keeps the number of transactions that confirmed
+ * after each delay from 1 to {@link #MAX_TARGET} blocks, the number that left
+ * the pool for any reason, and the number and fee rate sum of all confirmed
+ * transactions.  These counts decay by {@link #DECAY} per block.<br>
+ * <br>
+ * Decay is applied by increasing the weight of new observations rather than
+ * scaling every count, so each pool entry and each block is O(1).  Counts
+ * are rescaled only when the weight gets large.<br>
+ * <br>
+ * Transactions still in the pool are counted per entry height, and count as
+ * failures for targets they have already missed.<br>
+ * <br>
+ * The estimator must be added as a listener to the memory pool.
+ * {@link #processBlock(int)} must be called after the transactions of a block
+ * have been removed from the pool.
+ */
+public class FeeEstimator implements MemoryPoolListener {
+	public static final int MAX_TARGET = 48;
+	public static final double DECAY = 0.998;
+	public static final double BUCKET_SPACING = 1.05;
+	public static final double MIN_BUCKET_FEE_RATE = 1000;
+	public static final double MAX_BUCKET_FEE_RATE = 1e7;
+	public static final double SUCCESS_THRESHOLD = 0.85;
+
+	// Decayed transaction count needed before a bucket range is used
+	public static final double MIN_TRANSACTIONS = 2;
+
+	static final int MAGIC = 0x46454553;
+	static final int FORMAT_VERSION = 1;
+
+	private static final int BUCKETS = (int) Math.ceil(Math.log(MAX_BUCKET_FEE_RATE / MIN_BUCKET_FEE_RATE) / Math.log(BUCKET_SPACING)) + 1;
+	private static final double LOG_SPACING = Math.log(BUCKET_SPACING);
+	private static final double MAX_WEIGHT = 1e100;
+
+	private final Logger logger;
+
+	// Scaled by weight, the true decayed value is the stored value / weight
+	private final double[][] confirmed = new double[MAX_TARGET][BUCKETS];
+	private final double[] resolved = new double[BUCKETS];
+	private final double[] confirmedAll = new double[BUCKETS];
+	private final double[] feeRateSum = new double[BUCKETS];
+	private double weight;
+
+	// Transactions in the pool, by entry height modulo MAX_TARGET
+	private final int[][] pending = new int[MAX_TARGET][BUCKETS];
+	private final int[] pendingOld = new int[BUCKETS];
+	private final Map<TxidKey, Tracked> tracked = new HashMap<TxidKey, Tracked>();
+
+	private int bestHeight;
+
+	/**
+	 * @param logger the logger
+	 * @param height the height of the current best block
+	 */
+	public FeeEstimator(Logger logger, int height) {
+		this.logger = logger;
+		this.weight = 1;
+		this.bestHeight = height;
+	}
+
+	@Override
+	public synchronized void transactionAdded(MemoryPoolEntry entry) {
+		int bucket = getBucket(entry.getFee() * 1000.0 / entry.getSize());
+		tracked.put(entry.getKey(), new Tracked(bestHeight, bucket));
+		pending[slot(bestHeight)][bucket]++;
+	}
+
+	@Override
+	public synchronized void transactionRemoved(MemoryPoolEntry entry, RemovalReason reason) {
+		Tracked t = tracked.remove(entry.getKey());
+		if (t == null) {
+			return;
+		}
+		if (bestHeight - t.height < MAX_TARGET) {
+			pending[slot(t.height)][t.bucket]--;
+		} else {
+			pendingOld[t.bucket]--;
+		}
+		resolved[t.bucket] += weight;
+		if (reason == RemovalReason.BLOCK) {
+			// Removals for a block happen before it is processed
+			int delay = bestHeight + 1 - t.height;
+			if (delay >= 1 && delay <= MAX_TARGET) {
+				confirmed[delay - 1][t.bucket] += weight;
+			}
+			confirmedAll[t.bucket] += weight;
+			feeRateSum[t.bucket] += weight * (entry.getFee() * 1000.0 / entry.getSize());
+		}
+	}
+
+	/**
+	 * Advances the estimator to a new block
+	 *
+	 * @param height the height of the block
+	 */
+	public synchronized void processBlock(int height) {
+		if (height <= bestHeight) {
+			return;
+		}
+		while (bestHeight < height) {
+			bestHeight++;
+			// Entries that have now waited MAX_TARGET blocks move to the old counts
+			int[] expiring = pending[slot(bestHeight)];
+			for (int b = 0; b < BUCKETS; b++) {
+				pendingOld[b] += expiring[b];
+				expiring[b] = 0;
+			}
+			weight /= DECAY;
+		}
+		if (weight > MAX_WEIGHT) {
+			rescale();
+		}
+	}
+
+	/**
+	 * Estimates the fee rate needed to confirm within a number of blocks.<br>
+	 * <br>
+	 * Buckets are scanned from the highest fee rate down, grouping buckets
+	 * until there is enough data.  The estimate is the average fee rate of the
+	 * lowest group where at least {@link #SUCCESS_THRESHOLD} of transactions
+	 * confirmed within the target.  No objects are allocated.
+	 *
+	 * @param target the number of blocks, from 1 to {@link #MAX_TARGET}
+	 * @return the fee per 1000 bytes, or -1 if there is not enough data
+	 */
+	public synchronized double estimateFeeRate(int target) {
+		if (target < 1 || target > MAX_TARGET) {
+			return -1;
+		}
+		double minTotal = MIN_TRANSACTIONS * weight;
+		double best = -1;
+		double groupConfirmed = 0;
+		double groupTotal = 0;
+		double groupFeeRate = 0;
+		double groupFeeCount = 0;
+		for (int b = BUCKETS - 1; b >= 0; b--) {
+			for (int d = 0; d < target; d++) {
+				groupConfirmed += confirmed[d][b];
+			}
+			groupTotal += resolved[b] + getPendingOlderThan(target, b) * weight;
+			groupFeeRate += feeRateSum[b];
+			groupFeeCount += confirmedAll[b];
+			if (groupTotal < minTotal) {
+				continue;
+			}
+			if (groupConfirmed / groupTotal < SUCCESS_THRESHOLD) {
+				break;
+			}
+			if (groupFeeCount > 0) {
+				best = groupFeeRate / groupFeeCount;
+			}
+			groupConfirmed = 0;
+			groupTotal = 0;
+			groupFeeRate = 0;
+			groupFeeCount = 0;
+		}
+		return best;
+	}
+
+	/**
+	 * Gets the height of the last processed block
+	 */
+	public synchronized int getBestHeight() {
+		return bestHeight;
+	}
+
+	/**
+	 * Gets the number of pool transactions being tracked
+	 */
+	public synchronized int getTrackedCount() {
+		return tracked.size();
+	}
+
+	/**
+	 * Writes the decayed statistics to a file.  Pool transactions are not
+	 * saved, since the pool is not saved.
+	 *
+	 * @return true on success
+	 */
+	public synchronized boolean save(File file) {
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(bestHeight);
+				out.writeInt(MAX_TARGET);
+				out.writeInt(BUCKETS);
+				for (int d = 0; d < MAX_TARGET; d++) {
+					for (int b = 0; b < BUCKETS; b++) {
+						out.writeDouble(confirmed[d][b] / weight);
+					}
+				}
+				for (int b = 0; b < BUCKETS; b++) {
+					out.writeDouble(resolved[b] / weight);
+					out.writeDouble(confirmedAll[b] / weight);
+					out.writeDouble(feeRateSum[b] / weight);
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (IOException e) {
+			logger.severe("Unable to save fee estimates, " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Reads statistics written by {@link #save(File)}.  Blocks between the
+	 * saved height and the current height are treated as blocks without any
+	 * tracked transactions.
+	 *
+	 * @return true if the statistics were loaded
+	 */
+	public synchronized boolean load(File file) {
+		if (!file.isFile()) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+					logger.warning("Fee estimate file has an unknown format, " + file);
+					return false;
+				}
+				int savedHeight = in.readInt();
+				if (in.readInt() != MAX_TARGET || in.readInt() != BUCKETS) {
+					logger.warning("Fee estimate file has different buckets, " + file);
+					return false;
+				}
+				double[][] loadedConfirmed = new double[MAX_TARGET][BUCKETS];
+				double[] loadedResolved = new double[BUCKETS];
+				double[] loadedConfirmedAll = new double[BUCKETS];
+				double[] loadedFeeRateSum = new double[BUCKETS];
+				for (int d = 0; d < MAX_TARGET; d++) {
+					for (int b = 0; b < BUCKETS; b++) {
+						loadedConfirmed[d][b] = in.readDouble();
+					}
+				}
+				for (int b = 0; b < BUCKETS; b++) {
+					loadedResolved[b] = in.readDouble();
+					loadedConfirmedAll[b] = in.readDouble();
+					loadedFeeRateSum[b] = in.readDouble();
+				}
+				double decay = savedHeight < bestHeight ? Math.pow(DECAY, bestHeight - savedHeight) : 1;
+				for (int d = 0; d < MAX_TARGET; d++) {
+					for (int b = 0; b < BUCKETS; b++) {
+						confirmed[d][b] = loadedConfirmed[d][b] * decay * weight;
+					}
+				}
+				for (int b = 0; b < BUCKETS; b++) {
+					resolved[b] = loadedResolved[b] * decay * weight;
+					confirmedAll[b] = loadedConfirmedAll[b] * decay * weight;
+					feeRateSum[b] = loadedFeeRateSum[b] * decay * weight;
+				}
+				if (savedHeight > bestHeight) {
+					bestHeight = savedHeight;
+				}
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.warning("Unable to load fee estimates, " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the bucket for a fee rate
+	 */
+	static int getBucket(double feeRate) {
+		if (feeRate <= MIN_BUCKET_FEE_RATE) {
+			return 0;
+		}
+		int bucket = (int) (Math.log(feeRate / MIN_BUCKET_FEE_RATE) / LOG_SPACING);
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	/**
+	 * Gets the number of pool transactions in a bucket that have waited at
+	 * least the target number of blocks
+	 */
+	private int getPendingOlderThan(int target, int bucket) {
+		int count = pendingOld[bucket];
+		for (int age = target; age < MAX_TARGET; age++) {
+			count += pending[slot(bestHeight - age)][bucket];
+		}
+		return count;
+	}
+
+	private void rescale() {
+		for (int d = 0; d < MAX_TARGET; d++) {
+			for (int b = 0; b < BUCKETS; b++) {
+				confirmed[d][b] /= weight;
+			}
+		}
+		for (int b = 0; b < BUCKETS; b++) {
+			resolved[b] /= weight;
+			confirmedAll[b] /= weight;
+			feeRateSum[b] /= weight;
+		}
+		weight = 1;
+	}
+
+	private static int slot(int height) {
+		return ((height % MAX_TARGET) + MAX_TARGET) % MAX_TARGET;
+	}
+
+	private static class Tracked {
+		private final int height;
+		private final int bucket;
+
+		Tracked(int height, int bucket) {
+			this.height = height;
+			this.bucket = bucket;
+		}
+	}
+}
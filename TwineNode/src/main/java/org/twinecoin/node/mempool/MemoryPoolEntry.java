@@ -0,0 +1,167 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.twinecoin.api.data.Transaction;
+
+/**
+ * A transaction in the memory pool, with its links to in-pool parents and
+ * children.<br>
+ * <br>
+ * The ancestor totals include the transaction and all its in-pool ancestors.
+ * The descendant totals include the transaction and all its in-pool
+ * descendants.  Links and totals are only changed while holding the pool
+ * lock, and an entry is removed from the score indexes before its totals
+ * change.
+ */
+public class MemoryPoolEntry {
+	/**
+	 * Orders entries by descendant fee rate, lowest first
+	 */
+	static final Comparator<MemoryPoolEntry> DESCENDANT_SCORE = new Comparator<MemoryPoolEntry>() {
+		@Override
+		public int compare(MemoryPoolEntry a, MemoryPoolEntry b) {
+			int c = compareFeeRate(a.descendantFee, a.descendantSize, b.descendantFee, b.descendantSize);
+			return c != 0 ? c : Long.compare(b.sequence, a.sequence);
+		}
+	};
+
+	/**
+	 * Orders entries by ancestor fee rate, highest first
+	 */
+	static final Comparator<MemoryPoolEntry> ANCESTOR_SCORE = new Comparator<MemoryPoolEntry>() {
+		@Override
+		public int compare(MemoryPoolEntry a, MemoryPoolEntry b) {
+			int c = compareFeeRate(b.ancestorFee, b.ancestorSize, a.ancestorFee, a.ancestorSize);
+			return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+		}
+	};
+
+	// Approximate size of the entry, its index nodes and the transaction objects
+	private static final int ENTRY_OVERHEAD = 480;
+	private static final int INPUT_OVERHEAD = 176;
+	private static final int OUTPUT_OVERHEAD = 48;
+
+	private final Transaction tx;
+	private final TxidKey key;
+	private final long fee;
+	private final int size;
+	private final long memoryUsage;
+	private final long time;
+	private final long sequence;
+
+	final Set<MemoryPoolEntry> parents = new HashSet<MemoryPoolEntry>();
+	final Set<MemoryPoolEntry> children = new HashSet<MemoryPoolEntry>();
+
+	int ancestorCount;
+	long ancestorSize;
+	long ancestorFee;
+
+	int descendantCount;
+	long descendantSize;
+	long descendantFee;
+
+	// Position in the pool's txid array, see TwineMemoryPool#findShortIds
+	int txidSlot;
+
+	MemoryPoolEntry(Transaction tx, long fee, long time, long sequence) {
+		this.tx = tx;
+		this.key = new TxidKey(tx.getTxid());
+		this.fee = fee;
+		this.size = tx.getSize();
+		this.memoryUsage = estimateMemoryUsage(tx);
+		this.time = time;
+		this.sequence = sequence;
+
+		this.ancestorCount = 1;
+		this.ancestorSize = size;
+		this.ancestorFee = fee;
+		this.descendantCount = 1;
+		this.descendantSize = size;
+		this.descendantFee = fee;
+		this.txidSlot = -1;
+	}
+
+	public Transaction getTransaction() {
+		return tx;
+	}
+
+	public TxidKey getKey() {
+		return key;
+	}
+
+	public long getFee() {
+		return fee;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the approximate memory used by the entry and its index nodes
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	/**
+	 * Gets the time the transaction entered the pool in milliseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Gets the order that the entry was added to the pool
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public int getAncestorCount() {
+		return ancestorCount;
+	}
+
+	public long getAncestorSize() {
+		return ancestorSize;
+	}
+
+	public long getAncestorFee() {
+		return ancestorFee;
+	}
+
+	public int getDescendantCount() {
+		return descendantCount;
+	}
+
+	public long getDescendantSize() {
+		return descendantSize;
+	}
+
+	public long getDescendantFee() {
+		return descendantFee;
+	}
+
+	/**
+	 * Compares the fee rates fee1 / size1 and fee2 / size2 without dividing
+	 */
+	static int compareFeeRate(long fee1, long size1, long fee2, long size2) {
+		return Double.compare((double) fee1 * size2, (double) fee2 * size1);
+	}
+
+	static long estimateMemoryUsage(Transaction tx) {
+		// The serialized form and the parsed scripts are both held
+		long usage = ENTRY_OVERHEAD + 2L * tx.getSize();
+		usage += INPUT_OVERHEAD * (long) tx.getInputs().size();
+		usage += OUTPUT_OVERHEAD * (long) tx.getOutputs().size();
+		return usage;
+	}
+}
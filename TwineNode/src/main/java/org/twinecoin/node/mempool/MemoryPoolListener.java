@@ -0,0 +1,33 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+/**
+ * Receives memory pool changes.<br>
+ * <br>
+ * Listeners are called while the pool lock is held, so they must be fast and
+ * must not call back into methods that change the pool.
+ */
+public interface MemoryPoolListener {
+	/**
+	 * Reason a transaction left the pool
+	 */
+	public enum RemovalReason {
+		BLOCK,
+		CONFLICT,
+		EVICTED
+	}
+
+	/**
+	 * Called after a transaction is added
+	 */
+	public void transactionAdded(MemoryPoolEntry entry);
+
+	/**
+	 * Called after a transaction is removed
+	 */
+	public void transactionRemoved(MemoryPoolEntry entry, RemovalReason reason);
+}
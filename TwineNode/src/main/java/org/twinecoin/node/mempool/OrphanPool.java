@@ -0,0 +1,312 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.twinecoin.api.MemoryPool.Result;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+
+/**
+ * Holds transactions whose parents have not been seen yet.<br>
+ * <br>
+ * Orphans are indexed by the outpoints they are missing.  When a transaction
+ * is accepted to the memory pool, only the orphans waiting on its outputs are
+ * checked, and an orphan is resubmitted once it is missing nothing.<br>
+ * <br>
+ * The pool is bounded by count and by bytes.  When either limit is exceeded,
+ * orphans are evicted at random, so a peer can not choose which orphans are
+ * dropped.  Orphans also expire after a fixed time.
+ */
+public class OrphanPool {
+	public static final int DEFAULT_MAX_COUNT = 100;
+	public static final long DEFAULT_MAX_BYTES = 5L << 20;
+	public static final long DEFAULT_EXPIRY_MILLIS = 20 * 60 * 1000L;
+
+	// Larger transactions are not held, so the byte limit can hold many orphans
+	public static final int MAX_ORPHAN_SIZE = 100000;
+
+	// Approximate size of a missing outpoint index entry
+	private static final int INDEX_OVERHEAD = 96;
+
+	private final TwineMemoryPool pool;
+	private final Logger logger;
+	private final int maxCount;
+	private final long maxBytes;
+	private final long expiryMillis;
+	private final Random random;
+
+	private final Map<TxidKey, OrphanEntry> orphans = new HashMap<TxidKey, OrphanEntry>();
+	private final Map<OutPoint, List<OrphanEntry>> byMissing = new HashMap<OutPoint, List<OrphanEntry>>();
+	// Allows a random orphan to be picked in constant time
+	private final List<OrphanEntry> entries = new ArrayList<OrphanEntry>();
+
+	private long memoryUsage;
+	private long evictedCount;
+	private long expiredCount;
+	private long promotedCount;
+	private long nextExpiryCheck;
+
+	public OrphanPool(TwineMemoryPool pool, Logger logger) {
+		this(pool, logger, DEFAULT_MAX_COUNT, DEFAULT_MAX_BYTES, DEFAULT_EXPIRY_MILLIS);
+	}
+
+	/**
+	 * @param pool the memory pool that orphans are promoted to
+	 * @param logger the logger
+	 * @param maxCount the maximum number of orphans
+	 * @param maxBytes the maximum memory used by orphans
+	 * @param expiryMillis the time an orphan is held
+	 */
+	public OrphanPool(TwineMemoryPool pool, Logger logger, int maxCount, long maxBytes, long expiryMillis) {
+		this.pool = pool;
+		this.logger = logger;
+		this.maxCount = maxCount;
+		this.maxBytes = maxBytes;
+		this.expiryMillis = expiryMillis;
+		this.random = new Random();
+		this.memoryUsage = 0;
+		this.evictedCount = 0;
+		this.expiredCount = 0;
+		this.promotedCount = 0;
+		this.nextExpiryCheck = 0;
+	}
+
+	/**
+	 * Adds a transaction to the memory pool.  If its parents are missing it is
+	 * held as an orphan.  If it is accepted, any orphans that were only
+	 * waiting for it, or for their own promoted parents, are added as well.
+	 *
+	 * @param tx the transaction
+	 * @param peerId the peer that sent the transaction
+	 * @return the result for the transaction
+	 */
+	public Result submit(Transaction tx, long peerId) {
+		Result result = pool.addTransaction(tx);
+		if (result == Result.MISSING_INPUTS) {
+			List<OutPoint> missing = pool.getMissingInputs(tx);
+			if (missing.isEmpty()) {
+				// The parents arrived since the first attempt
+				result = pool.addTransaction(tx);
+			} else {
+				add(tx, missing, peerId);
+				return result;
+			}
+		}
+		if (result == Result.ACCEPTED) {
+			promoteChildren(tx);
+		}
+		return result;
+	}
+
+	/**
+	 * Holds a transaction as an orphan
+	 *
+	 * @param tx the transaction
+	 * @param missing the outpoints that the transaction spends and that are
+	 * not known
+	 * @param peerId the peer that sent the transaction
+	 * @return true if the orphan was added
+	 */
+	public synchronized boolean add(Transaction tx, List<OutPoint> missing, long peerId) {
+		if (tx.getSize() > MAX_ORPHAN_SIZE || missing.isEmpty()) {
+			return false;
+		}
+		TxidKey key = new TxidKey(tx.getTxid());
+		if (orphans.containsKey(key)) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		expire(now);
+
+		OrphanEntry entry = new OrphanEntry(tx, key, new HashSet<OutPoint>(missing), peerId, now + expiryMillis);
+		entry.position = entries.size();
+		entries.add(entry);
+		orphans.put(key, entry);
+		for (OutPoint outPoint : entry.missing) {
+			List<OrphanEntry> waiting = byMissing.get(outPoint);
+			if (waiting == null) {
+				waiting = new ArrayList<OrphanEntry>(1);
+				byMissing.put(outPoint, waiting);
+			}
+			waiting.add(entry);
+		}
+		memoryUsage += entry.memoryUsage;
+
+		while (orphans.size() > maxCount || memoryUsage > maxBytes) {
+			remove(entries.get(random.nextInt(entries.size())));
+			evictedCount++;
+		}
+		return orphans.containsKey(key);
+	}
+
+	/**
+	 * Removes and returns the orphans that were waiting only for outputs of a
+	 * new transaction
+	 */
+	public synchronized List<Transaction> resolve(Transaction parent) {
+		List<Transaction> ready = new ArrayList<Transaction>();
+		byte[] txid = parent.getTxid();
+		int outputCount = parent.getOutputs().size();
+		for (int i = 0; i < outputCount; i++) {
+			List<OrphanEntry> waiting = byMissing.remove(new OutPoint(txid, i));
+			if (waiting == null) {
+				continue;
+			}
+			for (OrphanEntry entry : waiting) {
+				entry.missing.remove(new OutPoint(txid, i));
+				if (entry.missing.isEmpty()) {
+					remove(entry);
+					ready.add(entry.tx);
+				}
+			}
+		}
+		return ready;
+	}
+
+	/**
+	 * Removes orphans that were included in a block
+	 */
+	public synchronized void removeForBlock(List<Transaction> transactions) {
+		for (Transaction tx : transactions) {
+			OrphanEntry entry = orphans.get(new TxidKey(tx.getTxid()));
+			if (entry != null) {
+				remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Removes all orphans sent by a peer
+	 *
+	 * @return the number of orphans removed
+	 */
+	public synchronized int removeForPeer(long peerId) {
+		int removed = 0;
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			if (i < entries.size() && entries.get(i).peerId == peerId) {
+				remove(entries.get(i));
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	public synchronized boolean contains(byte[] txid) {
+		return orphans.containsKey(new TxidKey(txid));
+	}
+
+	public synchronized int size() {
+		return orphans.size();
+	}
+
+	/**
+	 * Gets the approximate memory used by the orphans and their indexes
+	 */
+	public synchronized long getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	/**
+	 * Gets the number of orphans evicted because the pool was full
+	 */
+	public synchronized long getEvictedCount() {
+		return evictedCount;
+	}
+
+	/**
+	 * Gets the number of orphans removed because they expired
+	 */
+	public synchronized long getExpiredCount() {
+		return expiredCount;
+	}
+
+	/**
+	 * Gets the number of orphans accepted to the memory pool after their
+	 * parents arrived
+	 */
+	public synchronized long getPromotedCount() {
+		return promotedCount;
+	}
+
+	private void promoteChildren(Transaction parent) {
+		ArrayDeque<Transaction> queue = new ArrayDeque<Transaction>();
+		queue.add(parent);
+		while (!queue.isEmpty()) {
+			for (Transaction child : resolve(queue.poll())) {
+				Result result = pool.addTransaction(child);
+				if (result == Result.ACCEPTED) {
+					synchronized (this) {
+						promotedCount++;
+					}
+					queue.add(child);
+				} else {
+					logger.finer("Orphan not accepted after parents arrived, " + result);
+				}
+			}
+		}
+	}
+
+	private void expire(long now) {
+		if (now < nextExpiryCheck) {
+			return;
+		}
+		nextExpiryCheck = now + expiryMillis / 4;
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			if (i < entries.size() && entries.get(i).expiry <= now) {
+				remove(entries.get(i));
+				expiredCount++;
+			}
+		}
+	}
+
+	private void remove(OrphanEntry entry) {
+		orphans.remove(entry.key);
+		for (OutPoint outPoint : entry.missing) {
+			List<OrphanEntry> waiting = byMissing.get(outPoint);
+			if (waiting != null) {
+				waiting.remove(entry);
+				if (waiting.isEmpty()) {
+					byMissing.remove(outPoint);
+				}
+			}
+		}
+		OrphanEntry last = entries.remove(entries.size() - 1);
+		if (last != entry) {
+			entries.set(entry.position, last);
+			last.position = entry.position;
+		}
+		memoryUsage -= entry.memoryUsage;
+	}
+
+	private static class OrphanEntry {
+		private final Transaction tx;
+		private final TxidKey key;
+		private final Set<OutPoint> missing;
+		private final long peerId;
+		private final long expiry;
+		private final long memoryUsage;
+		private int position;
+
+		OrphanEntry(Transaction tx, TxidKey key, Set<OutPoint> missing, long peerId, long expiry) {
+			this.tx = tx;
+			this.key = key;
+			this.missing = missing;
+			this.peerId = peerId;
+			this.expiry = expiry;
+			this.memoryUsage = MemoryPoolEntry.estimateMemoryUsage(tx) + INDEX_OVERHEAD * (long) missing.size();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import java.util.Arrays;
+
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.common.SipHash;
+
+/**
+ * Index from the short transaction IDs of a compact block to block
+ * positions.<br>
+ * <br>
+ * Short IDs are keyed per block, so the memory pool can not index them in
+ * advance.  Instead the block's short IDs are put in an open addressing table
+ * and each pool txid is hashed once and looked up, see
+ * {@link TwineMemoryPool#findShortIds(ShortIdIndex)}.  If two pool
+ * transactions match the same short ID, neither is used and the transaction
+ * is requested from the peer.
+ */
+public class ShortIdIndex {
+	public static final long SHORT_ID_MASK = 0xFFFFFFFFFFFFL;
+
+	// Marks an occupied slot, since short IDs are 48 bits
+	private static final long OCCUPIED = 1L << 48;
+
+	private final long k0;
+	private final long k1;
+	private final long[] table;
+	private final int[] positions;
+	private final Transaction[] matches;
+	private final boolean[] collided;
+	private final int mask;
+	private final boolean duplicates;
+	private int matchCount;
+
+	/**
+	 * @param k0 the first SipHash key
+	 * @param k1 the second SipHash key
+	 * @param shortIds the short IDs, indexed by position
+	 */
+	public ShortIdIndex(long k0, long k1, long[] shortIds) {
+		this.k0 = k0;
+		this.k1 = k1;
+		int capacity = Integer.highestOneBit(Math.max(shortIds.length, 1) * 2 - 1) << 1;
+		this.table = new long[capacity];
+		this.positions = new int[capacity];
+		this.mask = capacity - 1;
+		this.matches = new Transaction[shortIds.length];
+		this.collided = new boolean[shortIds.length];
+		this.matchCount = 0;
+
+		boolean duplicates = false;
+		for (int i = 0; i < shortIds.length; i++) {
+			long key = (shortIds[i] & SHORT_ID_MASK) | OCCUPIED;
+			int slot = slot(key);
+			while (table[slot] != 0 && table[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			if (table[slot] == key) {
+				duplicates = true;
+			}
+			table[slot] = key;
+			positions[slot] = i;
+		}
+		this.duplicates = duplicates;
+	}
+
+	/**
+	 * Gets the short ID of a transaction
+	 */
+	public static long getShortId(long k0, long k1, byte[] txid) {
+		return SipHash.hash(k0, k1, txid) & SHORT_ID_MASK;
+	}
+
+	public long getK0() {
+		return k0;
+	}
+
+	public long getK1() {
+		return k1;
+	}
+
+	/**
+	 * Checks a transaction against the index
+	 *
+	 * @return true if the transaction matched a short ID
+	 */
+	public boolean match(Transaction tx) {
+		int position = lookup(getShortId(k0, k1, tx.getTxid()));
+		return position >= 0 && match(position, tx);
+	}
+
+	/**
+	 * Gets the position of a short ID
+	 *
+	 * @return the position, or -1 if the short ID is not in the block
+	 */
+	int lookup(long shortId) {
+		long key = shortId | OCCUPIED;
+		int slot = slot(key);
+		while (table[slot] != 0) {
+			if (table[slot] == key) {
+				return positions[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Records a transaction whose short ID matches a position
+	 */
+	boolean match(int position, Transaction tx) {
+		if (collided[position]) {
+			return false;
+		}
+		Transaction existing = matches[position];
+		if (existing == null) {
+			matches[position] = tx;
+			matchCount++;
+			return true;
+		}
+		if (!Arrays.equals(existing.getTxid(), tx.getTxid())) {
+			matches[position] = null;
+			collided[position] = true;
+			matchCount--;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the transaction matched at a position
+	 *
+	 * @return the transaction, or null if no unique match was found
+	 */
+	public Transaction get(int position) {
+		return matches[position];
+	}
+
+	/**
+	 * Gets the number of short IDs with a unique match
+	 */
+	public int getMatchCount() {
+		return matchCount;
+	}
+
+	public int size() {
+		return matches.length;
+	}
+
+	/**
+	 * Checks if the block had the same short ID at two positions.  Such a
+	 * block can not be reconstructed from short IDs.
+	 */
+	public boolean hasDuplicates() {
+		return duplicates;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & mask;
+	}
+}
@@ -0,0 +1,517 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import org.twinecoin.api.MemoryPool;
+import org.twinecoin.api.OutputTracker;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.SipHash;
+import org.twinecoin.node.mempool.MemoryPoolListener.RemovalReason;
+
+/**
+ * Concurrent memory pool indexed by fee rate.<br>
+ * <br>
+ * The txid index and the spent outpoint index are concurrent maps, so lookups
+ * never block.  Input values are looked up and the fee is checked before the
+ * pool lock is taken, so most of the work of accepting a transaction runs in
+ * parallel.  The pool lock is only held to check for conflicts, link the
+ * transaction to its in-pool parents and update the indexes.<br>
+ * <br>
+ * Entries are kept in two score indexes.  The descendant score index orders
+ * packages of a transaction and its descendants by fee rate and is used for
+ * eviction.  The ancestor score index orders transactions by the fee rate of
+ * the transaction and its ancestors and is used for mining.<br>
+ * <br>
+ * Memory use is accounted in bytes for every entry.  When the pool exceeds
+ * its limit, the package with the lowest descendant fee rate is evicted until
+ * the pool fits.  The minimum fee rate is then raised above the evicted
+ * package, and decays with a half life of {@link #ROLLING_FEE_HALF_LIFE}.<br>
+ * <br>
+ * Scripts are not checked here.
+ */
+public class TwineMemoryPool implements MemoryPool {
+	public static final int MAX_ANCESTORS = 25;
+	public static final int MAX_DESCENDANTS = 25;
+	public static final long ROLLING_FEE_HALF_LIFE = 12 * 60 * 60 * 1000L;
+
+	private static final int TXID_WORDS = OutPoint.TXID_LENGTH / 8;
+
+	private final OutputTracker outputs;
+	private final Logger logger;
+	private final long maxMemoryUsage;
+	private final long minRelayFeeRate;
+
+	private final ConcurrentHashMap<TxidKey, MemoryPoolEntry> txIndex = new ConcurrentHashMap<TxidKey, MemoryPoolEntry>();
+	private final ConcurrentHashMap<OutPoint, MemoryPoolEntry> spentIndex = new ConcurrentHashMap<OutPoint, MemoryPoolEntry>();
+	private final ConcurrentSkipListSet<MemoryPoolEntry> byDescendantScore = new ConcurrentSkipListSet<MemoryPoolEntry>(MemoryPoolEntry.DESCENDANT_SCORE);
+	final ConcurrentSkipListSet<MemoryPoolEntry> byAncestorScore = new ConcurrentSkipListSet<MemoryPoolEntry>(MemoryPoolEntry.ANCESTOR_SCORE);
+	private final CopyOnWriteArrayList<MemoryPoolListener> listeners = new CopyOnWriteArrayList<MemoryPoolListener>();
+
+	final ReentrantLock lock = new ReentrantLock();
+	private final AtomicLong sequence = new AtomicLong();
+
+	// Txids as little endian words, packed so short ID scans run sequentially
+	private long[] txidWords = new long[TXID_WORDS * 1024];
+	private MemoryPoolEntry[] txidEntries = new MemoryPoolEntry[1024];
+	private int txidCount = 0;
+
+	private volatile long memoryUsage;
+	private volatile double rollingMinFeeRate;
+	private long rollingFeeUpdateTime;
+	private long evictedCount;
+
+	/**
+	 * @param outputs the unspent output set for inputs that are not in the pool
+	 * @param logger the logger
+	 * @param maxMemoryUsage the memory limit in bytes
+	 * @param minRelayFeeRate the minimum fee per 1000 bytes
+	 */
+	public TwineMemoryPool(OutputTracker outputs, Logger logger, long maxMemoryUsage, long minRelayFeeRate) {
+		this.outputs = outputs;
+		this.logger = logger;
+		this.maxMemoryUsage = maxMemoryUsage;
+		this.minRelayFeeRate = minRelayFeeRate;
+		this.memoryUsage = 0;
+		this.rollingMinFeeRate = 0;
+		this.rollingFeeUpdateTime = System.currentTimeMillis();
+		this.evictedCount = 0;
+	}
+
+	@Override
+	public Result addTransaction(Transaction tx) {
+		TxidKey key = new TxidKey(tx.getTxid());
+		if (txIndex.containsKey(key)) {
+			return Result.ALREADY_KNOWN;
+		}
+		List<TxInput> inputs = tx.getInputs();
+		if (inputs.isEmpty() || tx.getOutputs().isEmpty()) {
+			return Result.INVALID;
+		}
+		long outputValue = 0;
+		for (TxOutput output : tx.getOutputs()) {
+			if (output.getValue() < 0) {
+				return Result.INVALID;
+			}
+			outputValue += output.getValue();
+		}
+
+		// Input lookups run without the pool lock
+		Set<OutPoint> spends = new HashSet<OutPoint>();
+		long inputValue = 0;
+		for (TxInput input : inputs) {
+			OutPoint outPoint = input.getOutPoint();
+			if (!spends.add(outPoint)) {
+				return Result.INVALID;
+			}
+			MemoryPoolEntry parent = txIndex.get(new TxidKey(outPoint.getTxid()));
+			if (parent != null) {
+				List<TxOutput> parentOutputs = parent.getTransaction().getOutputs();
+				if (outPoint.getIndex() >= parentOutputs.size()) {
+					return Result.INVALID;
+				}
+				inputValue += parentOutputs.get(outPoint.getIndex()).getValue();
+			} else {
+				UnspentOutput output = outputs.getOutput(outPoint);
+				if (output == null) {
+					return Result.MISSING_INPUTS;
+				}
+				inputValue += output.getValue();
+			}
+		}
+		long fee = inputValue - outputValue;
+		if (fee < 0) {
+			return Result.INVALID;
+		}
+		if (fee * 1000.0 < getMinFeeRate() * tx.getSize()) {
+			return Result.FEE_TOO_LOW;
+		}
+
+		MemoryPoolEntry entry = new MemoryPoolEntry(tx, fee, System.currentTimeMillis(), sequence.getAndIncrement());
+
+		lock.lock();
+		try {
+			if (txIndex.containsKey(key)) {
+				return Result.ALREADY_KNOWN;
+			}
+			Set<MemoryPoolEntry> parents = new HashSet<MemoryPoolEntry>();
+			for (TxInput input : inputs) {
+				OutPoint outPoint = input.getOutPoint();
+				if (spentIndex.containsKey(outPoint)) {
+					return Result.CONFLICT;
+				}
+				MemoryPoolEntry parent = txIndex.get(new TxidKey(outPoint.getTxid()));
+				if (parent != null) {
+					parents.add(parent);
+				} else if (outputs.getOutput(outPoint) == null) {
+					// The parent was removed while the inputs were checked
+					return Result.MISSING_INPUTS;
+				}
+			}
+
+			Set<MemoryPoolEntry> ancestors = getAncestors(parents);
+			if (ancestors.size() + 1 > MAX_ANCESTORS) {
+				return Result.TOO_LONG_CHAIN;
+			}
+			for (MemoryPoolEntry ancestor : ancestors) {
+				if (ancestor.descendantCount + 1 > MAX_DESCENDANTS) {
+					return Result.TOO_LONG_CHAIN;
+				}
+			}
+
+			addEntry(entry, parents, ancestors);
+			trim();
+			return txIndex.containsKey(key) ? Result.ACCEPTED : Result.POOL_FULL;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Transaction getTransaction(byte[] txid) {
+		MemoryPoolEntry entry = txIndex.get(new TxidKey(txid));
+		return entry == null ? null : entry.getTransaction();
+	}
+
+	@Override
+	public boolean contains(byte[] txid) {
+		return txIndex.containsKey(new TxidKey(txid));
+	}
+
+	@Override
+	public Transaction getSpender(OutPoint outPoint) {
+		MemoryPoolEntry entry = spentIndex.get(outPoint);
+		return entry == null ? null : entry.getTransaction();
+	}
+
+	@Override
+	public void removeForBlock(List<Transaction> transactions) {
+		lock.lock();
+		try {
+			int removed = 0;
+			int conflicts = 0;
+			for (Transaction tx : transactions) {
+				MemoryPoolEntry entry = txIndex.get(new TxidKey(tx.getTxid()));
+				if (entry != null) {
+					removeConfirmed(entry);
+					removed++;
+				}
+				for (TxInput input : tx.getInputs()) {
+					MemoryPoolEntry conflict = spentIndex.get(input.getOutPoint());
+					if (conflict != null) {
+						conflicts += removeWithDescendants(conflict, RemovalReason.CONFLICT);
+					}
+				}
+			}
+			logger.fine("Removed " + removed + " confirmed and " + conflicts + " conflicting transactions from memory pool");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		return txIndex.size();
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	/**
+	 * Gets the entry for a transaction
+	 *
+	 * @return the entry, or null if the transaction is not in the pool
+	 */
+	public MemoryPoolEntry getEntry(byte[] txid) {
+		return txIndex.get(new TxidKey(txid));
+	}
+
+	/**
+	 * Gets the outpoints spent by a transaction that are neither unspent
+	 * outputs nor outputs of transactions in the pool
+	 */
+	public List<OutPoint> getMissingInputs(Transaction tx) {
+		List<OutPoint> missing = new ArrayList<OutPoint>();
+		for (TxInput input : tx.getInputs()) {
+			OutPoint outPoint = input.getOutPoint();
+			if (!txIndex.containsKey(new TxidKey(outPoint.getTxid())) && outputs.getOutput(outPoint) == null) {
+				missing.add(outPoint);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Looks up the transactions in the pool in a short ID index.  The txids
+	 * are kept in a packed array of words, so the scan reads memory in order
+	 * and only touches an entry when its short ID is in the block.  The scan
+	 * holds the pool lock and stops once every short ID has a match.
+	 *
+	 * @return the number of short IDs with a unique match
+	 */
+	public int findShortIds(ShortIdIndex index) {
+		long k0 = index.getK0();
+		long k1 = index.getK1();
+		lock.lock();
+		try {
+			for (int i = 0; i < txidCount && index.getMatchCount() < index.size(); i++) {
+				long shortId = SipHash.hash(k0, k1, txidWords, i * TXID_WORDS, TXID_WORDS) & ShortIdIndex.SHORT_ID_MASK;
+				int position = index.lookup(shortId);
+				if (position >= 0) {
+					index.match(position, txidEntries[i].getTransaction());
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return index.getMatchCount();
+	}
+
+	public void addListener(MemoryPoolListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(MemoryPoolListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Gets the minimum fee per 1000 bytes for new transactions
+	 */
+	public double getMinFeeRate() {
+		return Math.max(minRelayFeeRate, rollingMinFeeRate);
+	}
+
+	/**
+	 * Gets the number of transactions evicted since the pool was created
+	 */
+	public long getEvictedCount() {
+		lock.lock();
+		try {
+			return evictedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets all in-pool ancestors reachable from a set of parents.  The pool
+	 * lock must be held.
+	 */
+	Set<MemoryPoolEntry> getAncestors(Set<MemoryPoolEntry> parents) {
+		Set<MemoryPoolEntry> ancestors = new HashSet<MemoryPoolEntry>();
+		ArrayDeque<MemoryPoolEntry> queue = new ArrayDeque<MemoryPoolEntry>(parents);
+		while (!queue.isEmpty()) {
+			MemoryPoolEntry next = queue.poll();
+			if (ancestors.add(next)) {
+				queue.addAll(next.parents);
+			}
+		}
+		return ancestors;
+	}
+
+	/**
+	 * Gets all in-pool descendants of an entry.  The pool lock must be held.
+	 */
+	Set<MemoryPoolEntry> getDescendants(MemoryPoolEntry entry) {
+		Set<MemoryPoolEntry> descendants = new HashSet<MemoryPoolEntry>();
+		ArrayDeque<MemoryPoolEntry> queue = new ArrayDeque<MemoryPoolEntry>(entry.children);
+		while (!queue.isEmpty()) {
+			MemoryPoolEntry next = queue.poll();
+			if (descendants.add(next)) {
+				queue.addAll(next.children);
+			}
+		}
+		return descendants;
+	}
+
+	private void addEntry(MemoryPoolEntry entry, Set<MemoryPoolEntry> parents, Set<MemoryPoolEntry> ancestors) {
+		for (MemoryPoolEntry ancestor : ancestors) {
+			entry.ancestorCount++;
+			entry.ancestorSize += ancestor.getSize();
+			entry.ancestorFee += ancestor.getFee();
+
+			byDescendantScore.remove(ancestor);
+			ancestor.descendantCount++;
+			ancestor.descendantSize += entry.getSize();
+			ancestor.descendantFee += entry.getFee();
+			byDescendantScore.add(ancestor);
+		}
+		for (MemoryPoolEntry parent : parents) {
+			entry.parents.add(parent);
+			parent.children.add(entry);
+		}
+		for (TxInput input : entry.getTransaction().getInputs()) {
+			spentIndex.put(input.getOutPoint(), entry);
+		}
+		byDescendantScore.add(entry);
+		byAncestorScore.add(entry);
+		txIndex.put(entry.getKey(), entry);
+		addTxid(entry);
+		memoryUsage += entry.getMemoryUsage();
+		for (MemoryPoolListener listener : listeners) {
+			listener.transactionAdded(entry);
+		}
+	}
+
+	/**
+	 * Removes a transaction that was included in a block, keeping its
+	 * descendants.  Any in-pool parents must also be confirmed, so they are
+	 * removed first.
+	 */
+	private void removeConfirmed(MemoryPoolEntry entry) {
+		while (!entry.parents.isEmpty()) {
+			removeConfirmed(entry.parents.iterator().next());
+		}
+		for (MemoryPoolEntry descendant : getDescendants(entry)) {
+			byAncestorScore.remove(descendant);
+			descendant.ancestorCount--;
+			descendant.ancestorSize -= entry.getSize();
+			descendant.ancestorFee -= entry.getFee();
+			byAncestorScore.add(descendant);
+		}
+		for (MemoryPoolEntry child : entry.children) {
+			child.parents.remove(entry);
+		}
+		unindex(entry, RemovalReason.BLOCK);
+	}
+
+	/**
+	 * Removes a transaction and all its descendants
+	 *
+	 * @return the number of transactions removed
+	 */
+	private int removeWithDescendants(MemoryPoolEntry entry, RemovalReason reason) {
+		Set<MemoryPoolEntry> removed = getDescendants(entry);
+		removed.add(entry);
+
+		long removedSize = entry.descendantSize;
+		long removedFee = entry.descendantFee;
+		int removedCount = entry.descendantCount;
+		Set<MemoryPoolEntry> entryAncestors = getAncestors(entry.parents);
+		for (MemoryPoolEntry ancestor : entryAncestors) {
+			byDescendantScore.remove(ancestor);
+			ancestor.descendantCount -= removedCount;
+			ancestor.descendantSize -= removedSize;
+			ancestor.descendantFee -= removedFee;
+			byDescendantScore.add(ancestor);
+		}
+
+		// Descendants may also have ancestors outside the removed set
+		for (MemoryPoolEntry descendant : removed) {
+			if (descendant == entry) {
+				continue;
+			}
+			Set<MemoryPoolEntry> outside = getAncestors(descendant.parents);
+			outside.removeAll(removed);
+			outside.removeAll(entryAncestors);
+			for (MemoryPoolEntry ancestor : outside) {
+				byDescendantScore.remove(ancestor);
+				ancestor.descendantCount--;
+				ancestor.descendantSize -= descendant.getSize();
+				ancestor.descendantFee -= descendant.getFee();
+				byDescendantScore.add(ancestor);
+			}
+		}
+
+		for (MemoryPoolEntry next : removed) {
+			for (MemoryPoolEntry parent : next.parents) {
+				if (!removed.contains(parent)) {
+					parent.children.remove(next);
+				}
+			}
+			unindex(next, reason);
+		}
+		return removed.size();
+	}
+
+	private void unindex(MemoryPoolEntry entry, RemovalReason reason) {
+		byDescendantScore.remove(entry);
+		byAncestorScore.remove(entry);
+		txIndex.remove(entry.getKey());
+		removeTxid(entry);
+		for (TxInput input : entry.getTransaction().getInputs()) {
+			spentIndex.remove(input.getOutPoint(), entry);
+		}
+		memoryUsage -= entry.getMemoryUsage();
+		for (MemoryPoolListener listener : listeners) {
+			listener.transactionRemoved(entry, reason);
+		}
+	}
+
+	private void addTxid(MemoryPoolEntry entry) {
+		if (txidCount == txidEntries.length) {
+			txidEntries = Arrays.copyOf(txidEntries, txidCount * 2);
+			txidWords = Arrays.copyOf(txidWords, txidCount * 2 * TXID_WORDS);
+		}
+		byte[] txid = entry.getTransaction().getTxid();
+		for (int i = 0; i < TXID_WORDS; i++) {
+			txidWords[txidCount * TXID_WORDS + i] = SipHash.readLong(txid, i * 8);
+		}
+		txidEntries[txidCount] = entry;
+		entry.txidSlot = txidCount++;
+	}
+
+	private void removeTxid(MemoryPoolEntry entry) {
+		int slot = entry.txidSlot;
+		int last = --txidCount;
+		if (slot != last) {
+			System.arraycopy(txidWords, last * TXID_WORDS, txidWords, slot * TXID_WORDS, TXID_WORDS);
+			txidEntries[slot] = txidEntries[last];
+			txidEntries[slot].txidSlot = slot;
+		}
+		txidEntries[last] = null;
+		entry.txidSlot = -1;
+	}
+
+	/**
+	 * Evicts the lowest fee rate packages until the pool fits its limit
+	 */
+	private void trim() {
+		long now = System.currentTimeMillis();
+		decayRollingFee(now);
+		while (memoryUsage > maxMemoryUsage && !byDescendantScore.isEmpty()) {
+			MemoryPoolEntry lowest = byDescendantScore.first();
+			double packageFeeRate = lowest.descendantFee * 1000.0 / lowest.descendantSize;
+			rollingMinFeeRate = Math.max(rollingMinFeeRate, packageFeeRate + minRelayFeeRate);
+			rollingFeeUpdateTime = now;
+			evictedCount += removeWithDescendants(lowest, RemovalReason.EVICTED);
+		}
+	}
+
+	private void decayRollingFee(long now) {
+		if (rollingMinFeeRate == 0) {
+			return;
+		}
+		double halvings = (now - rollingFeeUpdateTime) / (double) ROLLING_FEE_HALF_LIFE;
+		if (halvings <= 0) {
+			return;
+		}
+		rollingMinFeeRate = rollingMinFeeRate / Math.pow(2, halvings);
+		rollingFeeUpdateTime = now;
+		if (rollingMinFeeRate < minRelayFeeRate / 2.0) {
+			rollingMinFeeRate = 0;
+		}
+	}
+}
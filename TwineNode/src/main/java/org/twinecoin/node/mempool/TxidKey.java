@@ -0,0 +1,44 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import java.util.Arrays;
+
+/**
+ * Hash map key for a txid.  The array is not copied and must not be
+ * modified.
+ */
+public final class TxidKey {
+	private final byte[] txid;
+	private final int hash;
+
+	public TxidKey(byte[] txid) {
+		this.txid = txid;
+		// The txid is a hash, so the first 4 bytes are already well mixed
+		this.hash = ((txid[0] & 0xFF) << 24) | ((txid[1] & 0xFF) << 16) | ((txid[2] & 0xFF) << 8) | (txid[3] & 0xFF);
+	}
+
+	public byte[] getTxid() {
+		return txid;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (!(o instanceof TxidKey)) {
+			return false;
+		}
+		TxidKey other = (TxidKey) o;
+		return hash == other.hash && Arrays.equals(txid, other.txid);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+}
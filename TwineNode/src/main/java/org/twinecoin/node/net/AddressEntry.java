@@ -0,0 +1,169 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * An address known to the {@link AddressManager}.  Entries are immutable and
+ * are replaced when they change.<br>
+ * <br>
+ * IP addresses are held as 16 bytes, with IPv4 addresses mapped into IPv6.
+ * Times are in seconds since the epoch, and 0 means never.
+ */
+public final class AddressEntry {
+	// Address, port, last seen, last try, last success, attempts
+	static final int RECORD_LENGTH = 16 + 2 + 4 + 4 + 4 + 2;
+
+	private static final int RECENT_TRY_SECONDS = 60;
+	private static final int FUTURE_SECONDS = 10 * 60;
+	private static final int HORIZON_SECONDS = 30 * 24 * 60 * 60;
+	private static final int RETRIES = 3;
+	private static final int MAX_FAILURES = 10;
+	private static final int MIN_FAIL_SECONDS = 7 * 24 * 60 * 60;
+
+	private final long ipHigh;
+	private final long ipLow;
+	private final int port;
+	private final int lastSeen;
+	private final int lastTry;
+	private final int lastSuccess;
+	private final int attempts;
+
+	AddressEntry(long ipHigh, long ipLow, int port, int lastSeen, int lastTry, int lastSuccess, int attempts) {
+		this.ipHigh = ipHigh;
+		this.ipLow = ipLow;
+		this.port = port;
+		this.lastSeen = lastSeen;
+		this.lastTry = lastTry;
+		this.lastSuccess = lastSuccess;
+		this.attempts = attempts;
+	}
+
+	public InetSocketAddress getAddress() {
+		byte[] ip = new byte[16];
+		ByteBuffer.wrap(ip).putLong(ipHigh).putLong(ipLow);
+		try {
+			// IPv4 mapped addresses are returned as Inet4Address
+			return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException("Invalid address length");
+		}
+	}
+
+	public int getLastSeen() {
+		return lastSeen;
+	}
+
+	public int getLastTry() {
+		return lastTry;
+	}
+
+	public int getLastSuccess() {
+		return lastSuccess;
+	}
+
+	/**
+	 * Gets the number of failed connection attempts since the last success
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	long getIpHigh() {
+		return ipHigh;
+	}
+
+	long getIpLow() {
+		return ipLow;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	boolean isAddress(long ipHigh, long ipLow, int port) {
+		return this.ipLow == ipLow && this.ipHigh == ipHigh && this.port == port;
+	}
+
+	AddressEntry seen(int time) {
+		return time <= lastSeen ? this : new AddressEntry(ipHigh, ipLow, port, time, lastTry, lastSuccess, attempts);
+	}
+
+	AddressEntry attempted(int time) {
+		return new AddressEntry(ipHigh, ipLow, port, lastSeen, time, lastSuccess, Math.min(attempts + 1, 0xFFFF));
+	}
+
+	AddressEntry succeeded(int time) {
+		return new AddressEntry(ipHigh, ipLow, port, Math.max(lastSeen, time), time, time, 0);
+	}
+
+	/**
+	 * Checks whether the entry is not worth keeping, because it is too old,
+	 * claims to be from the future, or keeps failing
+	 */
+	boolean isTerrible(int now) {
+		if (lastTry != 0 && now - lastTry < RECENT_TRY_SECONDS) {
+			return false;
+		}
+		if (lastSeen > now + FUTURE_SECONDS || lastSeen == 0 || now - lastSeen > HORIZON_SECONDS) {
+			return true;
+		}
+		if (lastSuccess == 0 && attempts >= RETRIES) {
+			return true;
+		}
+		return now - lastSuccess > MIN_FAIL_SECONDS && attempts >= MAX_FAILURES;
+	}
+
+	/**
+	 * Gets the relative chance of selecting the entry, lower for entries
+	 * tried recently and entries that keep failing
+	 */
+	double getChance(int now) {
+		double chance = 1.0;
+		if (now - lastTry < RECENT_TRY_SECONDS * 10) {
+			chance *= 0.01;
+		}
+		return chance * Math.pow(0.66, Math.min(attempts, 8));
+	}
+
+	void write(ByteBuffer buf, int offset) {
+		buf.putLong(offset, ipHigh);
+		buf.putLong(offset + 8, ipLow);
+		buf.putShort(offset + 16, (short) port);
+		buf.putInt(offset + 18, lastSeen);
+		buf.putInt(offset + 22, lastTry);
+		buf.putInt(offset + 26, lastSuccess);
+		buf.putShort(offset + 30, (short) attempts);
+	}
+
+	/**
+	 * Reads a record written by {@link #write}
+	 *
+	 * @return the entry, or null for an empty record
+	 */
+	static AddressEntry read(ByteBuffer buf, int offset) {
+		int port = buf.getShort(offset + 16) & 0xFFFF;
+		if (port == 0) {
+			return null;
+		}
+		return new AddressEntry(buf.getLong(offset), buf.getLong(offset + 8), port, buf.getInt(offset + 18), buf.getInt(offset + 22), buf.getInt(offset + 26), buf.getShort(offset + 30) & 0xFFFF);
+	}
+
+	static void writeEmpty(ByteBuffer buf, int offset) {
+		for (int i = 0; i < RECORD_LENGTH; i += 2) {
+			buf.putShort(offset + i, (short) 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getAddress().toString();
+	}
+}
@@ -0,0 +1,430 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+import org.twinecoin.common.SipHash;
+
+/**
+ * Table of known peer addresses.<br>
+ * <br>
+ * Addresses that have not been connected to are kept in the new table and
+ * addresses with a successful connection in the tried table.  Each table is a
+ * fixed array of buckets of {@link #BUCKET_SIZE} slots.  An address has one
+ * slot in each table, chosen by a hash salted with a random key, so it can be
+ * found, added, promoted or replaced without searching.  The addresses of a
+ * network group, a /16 for IPv4 or a /32 for IPv6, share a small number of
+ * buckets, so one group cannot fill a table.<br>
+ * <br>
+ * Slots are updated with compare-and-set and entries are immutable, so no
+ * operation takes a lock.  An address that collides with a good entry is
+ * dropped, and a promotion that collides with a tried entry moves that entry
+ * back to the new table.<br>
+ * <br>
+ * The tables can be kept in a memory-mapped file, see {@link #load(File)}.
+ * The file holds the key and a fixed size record for each slot, so the
+ * tables are restored slot for slot on startup.
+ */
+public class AddressManager {
+	public static final int NEW_BUCKET_COUNT = 1024;
+	public static final int TRIED_BUCKET_COUNT = 256;
+	public static final int BUCKET_SIZE = 64;
+
+	// Buckets available to each network group
+	static final int NEW_BUCKETS_PER_GROUP = 32;
+	static final int TRIED_BUCKETS_PER_GROUP = 8;
+
+	// Random slots probed by select before scanning
+	private static final int MAX_PROBES = 256;
+
+	private static final int MAGIC = 0x54574144;
+	private static final int FORMAT_VERSION = 1;
+
+	// Magic, version and key
+	private static final int HEADER_LENGTH = 4 + 4 + 8 + 8;
+
+	private static final long NEW_TABLE = 1;
+	private static final long TRIED_TABLE = 2;
+
+	private final Logger logger;
+	private final AtomicReferenceArray<AddressEntry> newTable;
+	private final AtomicReferenceArray<AddressEntry> triedTable;
+	private final AtomicInteger newCount;
+	private final AtomicInteger triedCount;
+	private volatile long k0;
+	private volatile long k1;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+
+	public AddressManager(Logger logger) {
+		this.logger = logger;
+		this.newTable = new AtomicReferenceArray<AddressEntry>(NEW_BUCKET_COUNT * BUCKET_SIZE);
+		this.triedTable = new AtomicReferenceArray<AddressEntry>(TRIED_BUCKET_COUNT * BUCKET_SIZE);
+		this.newCount = new AtomicInteger();
+		this.triedCount = new AtomicInteger();
+		this.k0 = ThreadLocalRandom.current().nextLong();
+		this.k1 = ThreadLocalRandom.current().nextLong();
+	}
+
+	/**
+	 * Adds an address to the new table.  An address that is already known has
+	 * its last seen time updated.
+	 *
+	 * @param address the address
+	 * @param seenMillis the time the address was last seen active
+	 * @return true if the address was added
+	 */
+	public boolean add(InetSocketAddress address, long seenMillis) {
+		if (address.isUnresolved() || address.getPort() == 0) {
+			return false;
+		}
+		long ipHigh = getIpHigh(address);
+		long ipLow = getIpLow(address);
+		int port = address.getPort();
+		int seen = (int) (seenMillis / 1000);
+		int now = now();
+
+		if (update(triedTable, triedSlot(ipHigh, ipLow, port), ipHigh, ipLow, port, seen)) {
+			return false;
+		}
+		int slot = newSlot(ipHigh, ipLow, port);
+		AddressEntry added = new AddressEntry(ipHigh, ipLow, port, seen, 0, 0, 0);
+		while (true) {
+			AddressEntry existing = newTable.get(slot);
+			if (existing != null && existing.isAddress(ipHigh, ipLow, port)) {
+				update(newTable, slot, ipHigh, ipLow, port, seen);
+				return false;
+			}
+			if (existing != null && !existing.isTerrible(now)) {
+				return false;
+			}
+			if (newTable.compareAndSet(slot, existing, added)) {
+				if (existing == null) {
+					newCount.incrementAndGet();
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Records a connection attempt to an address
+	 */
+	public void attempt(InetSocketAddress address) {
+		long ipHigh = getIpHigh(address);
+		long ipLow = getIpLow(address);
+		int port = address.getPort();
+		int now = now();
+		if (!attempt(triedTable, triedSlot(ipHigh, ipLow, port), ipHigh, ipLow, port, now)) {
+			attempt(newTable, newSlot(ipHigh, ipLow, port), ipHigh, ipLow, port, now);
+		}
+	}
+
+	/**
+	 * Records a successful connection to an address and moves it to the
+	 * tried table
+	 */
+	public void good(InetSocketAddress address) {
+		long ipHigh = getIpHigh(address);
+		long ipLow = getIpLow(address);
+		int port = address.getPort();
+		int now = now();
+
+		int triedSlot = triedSlot(ipHigh, ipLow, port);
+		while (true) {
+			AddressEntry tried = triedTable.get(triedSlot);
+			if (tried == null || !tried.isAddress(ipHigh, ipLow, port)) {
+				break;
+			}
+			if (triedTable.compareAndSet(triedSlot, tried, tried.succeeded(now))) {
+				return;
+			}
+		}
+
+		int newSlot = newSlot(ipHigh, ipLow, port);
+		AddressEntry entry = newTable.get(newSlot);
+		if (entry != null && entry.isAddress(ipHigh, ipLow, port)) {
+			if (!newTable.compareAndSet(newSlot, entry, null)) {
+				// Changed by another thread, which takes precedence
+				return;
+			}
+			newCount.decrementAndGet();
+		} else {
+			// Connected without being learned first, such as a seed node
+			entry = new AddressEntry(ipHigh, ipLow, port, now, 0, 0, 0);
+		}
+
+		AddressEntry evicted = triedTable.getAndSet(triedSlot, entry.succeeded(now));
+		if (evicted == null) {
+			triedCount.incrementAndGet();
+			return;
+		}
+		int evictedSlot = newSlot(evicted.getIpHigh(), evicted.getIpLow(), evicted.getPort());
+		AddressEntry existing = newTable.get(evictedSlot);
+		if ((existing == null || existing.isTerrible(now)) && newTable.compareAndSet(evictedSlot, existing, evicted)) {
+			if (existing == null) {
+				newCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Selects an address to connect to.  Tried and new addresses are equally
+	 * likely, and entries that failed or were tried recently are less likely.
+	 *
+	 * @return the address, or null if no addresses are known
+	 */
+	public InetSocketAddress select() {
+		int tried = triedCount.get();
+		int fresh = newCount.get();
+		if (tried + fresh == 0) {
+			return null;
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		AtomicReferenceArray<AddressEntry> table = fresh == 0 || (tried > 0 && random.nextBoolean()) ? triedTable : newTable;
+		int length = table.length();
+		int now = now();
+		double factor = 1.0;
+		for (int i = 0; i < MAX_PROBES; i++) {
+			AddressEntry entry = table.get(random.nextInt(length));
+			if (entry != null) {
+				if (random.nextDouble() < factor * entry.getChance(now)) {
+					return entry.getAddress();
+				}
+				factor *= 1.2;
+			}
+		}
+		// A sparse table is scanned from a random slot
+		int start = random.nextInt(length);
+		for (int i = 0; i < length; i++) {
+			AddressEntry entry = table.get((start + i) % length);
+			if (entry != null) {
+				return entry.getAddress();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the entry for an address
+	 *
+	 * @return the entry, or null if the address is not known
+	 */
+	public AddressEntry getEntry(InetSocketAddress address) {
+		long ipHigh = getIpHigh(address);
+		long ipLow = getIpLow(address);
+		int port = address.getPort();
+		AddressEntry entry = triedTable.get(triedSlot(ipHigh, ipLow, port));
+		if (entry != null && entry.isAddress(ipHigh, ipLow, port)) {
+			return entry;
+		}
+		entry = newTable.get(newSlot(ipHigh, ipLow, port));
+		return entry != null && entry.isAddress(ipHigh, ipLow, port) ? entry : null;
+	}
+
+	/**
+	 * Checks whether an address is in the tried table
+	 */
+	public boolean isTried(InetSocketAddress address) {
+		long ipHigh = getIpHigh(address);
+		long ipLow = getIpLow(address);
+		int port = address.getPort();
+		AddressEntry entry = triedTable.get(triedSlot(ipHigh, ipLow, port));
+		return entry != null && entry.isAddress(ipHigh, ipLow, port);
+	}
+
+	public int getNewCount() {
+		return newCount.get();
+	}
+
+	public int getTriedCount() {
+		return triedCount.get();
+	}
+
+	/**
+	 * Maps the table file, creating it if needed, and restores the tables
+	 * from it.  Must be called before the other methods.  An unreadable file
+	 * is replaced with empty tables.
+	 *
+	 * @return true if the file is mapped
+	 */
+	public synchronized boolean load(File file) {
+		long length = HEADER_LENGTH + (long) (newTable.length() + triedTable.length()) * AddressEntry.RECORD_LENGTH;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			boolean valid = channel.size() == length;
+			if (!valid && channel.size() != 0) {
+				logger.warning("Peer address file has an unknown format, " + file);
+				channel.truncate(0);
+			}
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			if (valid && map.getInt(0) == MAGIC && map.getInt(4) == FORMAT_VERSION) {
+				k0 = map.getLong(8);
+				k1 = map.getLong(16);
+				int offset = HEADER_LENGTH;
+				offset = readTable(newTable, newCount, offset);
+				readTable(triedTable, triedCount, offset);
+				logger.info("Loaded " + triedCount.get() + " tried and " + newCount.get() + " new peer addresses");
+			} else {
+				save();
+			}
+			return true;
+		} catch (IOException e) {
+			logger.severe("Unable to map peer address file, " + e.getMessage());
+			map = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the tables to the mapped file and forces them to disk
+	 *
+	 * @return true on success
+	 */
+	public synchronized boolean save() {
+		if (map == null) {
+			return false;
+		}
+		map.putInt(0, MAGIC);
+		map.putInt(4, FORMAT_VERSION);
+		map.putLong(8, k0);
+		map.putLong(16, k1);
+		int offset = writeTable(newTable, HEADER_LENGTH);
+		writeTable(triedTable, offset);
+		map.force();
+		return true;
+	}
+
+	/**
+	 * Saves the tables and closes the file
+	 */
+	public synchronized void close() {
+		if (map == null) {
+			return;
+		}
+		save();
+		map = null;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.severe("Unable to close peer address file, " + e.getMessage());
+		}
+	}
+
+	private int readTable(AtomicReferenceArray<AddressEntry> table, AtomicInteger count, int offset) {
+		for (int i = 0; i < table.length(); i++) {
+			AddressEntry entry = AddressEntry.read(map, offset);
+			table.set(i, entry);
+			if (entry != null) {
+				count.incrementAndGet();
+			}
+			offset += AddressEntry.RECORD_LENGTH;
+		}
+		return offset;
+	}
+
+	private int writeTable(AtomicReferenceArray<AddressEntry> table, int offset) {
+		for (int i = 0; i < table.length(); i++) {
+			AddressEntry entry = table.get(i);
+			if (entry == null) {
+				AddressEntry.writeEmpty(map, offset);
+			} else {
+				entry.write(map, offset);
+			}
+			offset += AddressEntry.RECORD_LENGTH;
+		}
+		return offset;
+	}
+
+	/**
+	 * Updates the last seen time of an entry if it holds the address
+	 *
+	 * @return true if the slot holds the address
+	 */
+	private static boolean update(AtomicReferenceArray<AddressEntry> table, int slot, long ipHigh, long ipLow, int port, int seen) {
+		while (true) {
+			AddressEntry entry = table.get(slot);
+			if (entry == null || !entry.isAddress(ipHigh, ipLow, port)) {
+				return false;
+			}
+			if (table.compareAndSet(slot, entry, entry.seen(seen))) {
+				return true;
+			}
+		}
+	}
+
+	private static boolean attempt(AtomicReferenceArray<AddressEntry> table, int slot, long ipHigh, long ipLow, int port, int now) {
+		while (true) {
+			AddressEntry entry = table.get(slot);
+			if (entry == null || !entry.isAddress(ipHigh, ipLow, port)) {
+				return false;
+			}
+			if (table.compareAndSet(slot, entry, entry.attempted(now))) {
+				return true;
+			}
+		}
+	}
+
+	private int newSlot(long ipHigh, long ipLow, int port) {
+		long group = getGroup(ipHigh, ipLow);
+		long bucketInGroup = Long.remainderUnsigned(SipHash.hash(k0, k1, new long[] {NEW_TABLE, ipHigh, ipLow, port}, 0, 4), NEW_BUCKETS_PER_GROUP);
+		long bucket = Long.remainderUnsigned(SipHash.hash(k0, k1, new long[] {NEW_TABLE, group, bucketInGroup}, 0, 3), NEW_BUCKET_COUNT);
+		long position = Long.remainderUnsigned(SipHash.hash(k0, k1, new long[] {NEW_TABLE, bucket, ipHigh, ipLow, port}, 0, 5), BUCKET_SIZE);
+		return (int) (bucket * BUCKET_SIZE + position);
+	}
+
+	private int triedSlot(long ipHigh, long ipLow, int port) {
+		long group = getGroup(ipHigh, ipLow);
+		long bucketInGroup = Long.remainderUnsigned(SipHash.hash(k0, k1, new long[] {TRIED_TABLE, ipHigh, ipLow, port}, 0, 4), TRIED_BUCKETS_PER_GROUP);
+		long bucket = Long.remainderUnsigned(SipHash.hash(k0, k1, new long[] {TRIED_TABLE, group, bucketInGroup}, 0, 3), TRIED_BUCKET_COUNT);
+		long position = Long.remainderUnsigned(SipHash.hash(k0, k1, new long[] {TRIED_TABLE, bucket, ipHigh, ipLow, port}, 0, 5), BUCKET_SIZE);
+		return (int) (bucket * BUCKET_SIZE + position);
+	}
+
+	/**
+	 * Gets the network group of an address, the /16 of an IPv4 address or the
+	 * /32 of an IPv6 address
+	 */
+	private static long getGroup(long ipHigh, long ipLow) {
+		if (ipHigh == 0 && (ipLow >>> 32) == 0xFFFFL) {
+			return (4L << 32) | ((ipLow >>> 16) & 0xFFFFL);
+		}
+		return (6L << 32) | (ipHigh >>> 32);
+	}
+
+	private static long getIpHigh(InetSocketAddress address) {
+		return toIpv6(address.getAddress().getAddress()).getLong(0);
+	}
+
+	private static long getIpLow(InetSocketAddress address) {
+		return toIpv6(address.getAddress().getAddress()).getLong(8);
+	}
+
+	private static ByteBuffer toIpv6(byte[] ip) {
+		ByteBuffer buf = ByteBuffer.allocate(16);
+		if (ip.length == 4) {
+			buf.putShort(10, (short) 0xFFFF);
+			buf.position(12);
+		}
+		buf.put(ip);
+		return buf;
+	}
+
+	private static int now() {
+		return (int) (System.currentTimeMillis() / 1000);
+	}
+}
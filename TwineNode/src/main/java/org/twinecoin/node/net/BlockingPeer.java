@@ -0,0 +1,174 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.twinecoin.common.ByteBufferPool;
+
+/**
+ * A peer served by a reader thread and a writer thread, see
+ * {@link BlockingPeerNetwork}
+ */
+class BlockingPeer extends Peer {
+	// Queued by close to stop the writer
+	private static final ByteBuffer[] CLOSE = new ByteBuffer[0];
+
+	private final BlockingPeerNetwork network;
+	private final SocketChannel channel;
+
+	// Messages as header and payload pairs
+	private final LinkedBlockingQueue<ByteBuffer[]> sendQueue;
+
+	BlockingPeer(BlockingPeerNetwork network, SocketChannel channel, InetSocketAddress address, boolean inbound) {
+		super(address, inbound);
+		this.network = network;
+		this.channel = channel;
+		this.sendQueue = new LinkedBlockingQueue<ByteBuffer[]>();
+	}
+
+	@Override
+	public boolean send(String command, ByteBuffer payload) {
+		ByteBuffer[] message = frame(command, payload, network.getLogger());
+		if (message == null) {
+			return false;
+		}
+		sendQueue.offer(message);
+		return true;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		sendQueue.offer(CLOSE);
+		try {
+			// Wakes threads blocked on the channel
+			channel.close();
+		} catch (IOException e) {
+			network.getLogger().fine("Unable to close connection to peer " + this + ", " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Connects an outbound peer, starts the writer thread and delivers
+	 * messages until the connection closes.  Run on the reader thread.
+	 *
+	 * @param connectAddress the address to connect to, or null for an
+	 * inbound peer
+	 */
+	void read(InetSocketAddress connectAddress) {
+		ByteBufferPool pool = network.getBufferPool();
+		PeerListener listener = network.getListener();
+		ByteBuffer buf = null;
+		String reason = "closed locally";
+		try {
+			if (connectAddress != null) {
+				channel.connect(connectAddress);
+			}
+			network.startThread(new Runnable() {
+				@Override
+				public void run() {
+					write();
+				}
+			});
+			network.getLogger().fine("Connected to peer " + this);
+			listener.connected(this);
+
+			buf = pool.acquire(BlockingPeerNetwork.BUFFER_SIZE, true);
+			while (!closed) {
+				if (channel.read(buf) < 0) {
+					reason = "connection closed by peer";
+					break;
+				}
+				buf.flip();
+				int needed = deliver(buf, listener, network.getLogger());
+				if (needed < 0) {
+					reason = "invalid message";
+					break;
+				}
+				int size = getReceiveSize(needed, buf.remaining(), BlockingPeerNetwork.BUFFER_SIZE);
+				if (size > buf.capacity()) {
+					// Messages larger than the receive buffer are assembled
+					// in a buffer of their own, doubled as it fills
+					ByteBuffer larger = pool.acquire(size, false);
+					larger.put(buf);
+					pool.release(buf);
+					buf = larger;
+				} else if (buf.capacity() > BlockingPeerNetwork.BUFFER_SIZE && needed <= BlockingPeerNetwork.BUFFER_SIZE) {
+					ByteBuffer pooled = pool.acquire(BlockingPeerNetwork.BUFFER_SIZE, true);
+					pooled.put(buf);
+					pool.release(buf);
+					buf = pooled;
+				} else {
+					buf.compact();
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				reason = e.getMessage();
+			}
+		} finally {
+			close();
+			if (buf != null) {
+				pool.release(buf);
+			}
+			network.getLogger().fine("Disconnected peer " + this + ", " + reason);
+			network.removePeer(this);
+			listener.disconnected(this);
+		}
+	}
+
+	/**
+	 * Writes queued messages until the peer is closed.  Run on the writer
+	 * thread.
+	 */
+	private void write() {
+		ByteBuffer[] writing = new ByteBuffer[WRITE_BATCH];
+		List<ByteBuffer[]> batch = new ArrayList<ByteBuffer[]>(WRITE_BATCH / 2);
+		try {
+			while (true) {
+				batch.add(sendQueue.take());
+				sendQueue.drainTo(batch, WRITE_BATCH / 2 - 1);
+				int count = 0;
+				for (ByteBuffer[] message : batch) {
+					if (message == CLOSE) {
+						return;
+					}
+					writing[count++] = message[0];
+					writing[count++] = message[1];
+				}
+				batch.clear();
+				// A blocking write can return before every buffer is written
+				int first = 0;
+				while (first < count) {
+					written(channel.write(writing, first, count - first));
+					while (first < count && !writing[first].hasRemaining()) {
+						first++;
+					}
+				}
+				Arrays.fill(writing, 0, count, null);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			if (!closed) {
+				network.getLogger().fine("Unable to write to peer " + this + ", " + e.getMessage());
+			}
+		} finally {
+			close();
+		}
+	}
+}
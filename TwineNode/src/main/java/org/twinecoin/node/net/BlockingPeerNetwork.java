@@ -0,0 +1,177 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import org.twinecoin.common.ByteBufferPool;
+
+/**
+ * Peer network with threads per connection and blocking sockets.<br>
+ * <br>
+ * Each peer has a reader thread, which also connects outbound peers, and a
+ * writer thread that drains the send queue with gathering writes.  The
+ * threads come from a {@link ThreadFactory}.  With virtual threads from
+ * {@link VirtualThreads} a blocked peer only holds its stack and buffers, so
+ * many thousands of peers can be served by plain blocking code.  With
+ * platform threads each peer holds two operating system threads.<br>
+ * <br>
+ * Each peer reads into a direct buffer of {@link #BUFFER_SIZE} bytes and
+ * messages are delivered from it in place, on the reader thread.  A listener
+ * that blocks only delays its own peer.  The buffers come from a
+ * {@link ByteBufferPool} of the network's own without thread magazines, since
+ * each peer's threads end with the connection.
+ */
+public class BlockingPeerNetwork implements PeerNetwork {
+	public static final int BUFFER_SIZE = 16 << 10;
+
+	// Bytes of released buffers kept for reuse
+	static final long MAX_POOLED_BYTES = 16L << 20;
+
+	private static final int BACKLOG = 1024;
+
+	private final PeerListener listener;
+	private final Logger logger;
+	private final ThreadFactory threadFactory;
+	private final ByteBufferPool pool;
+	private final Set<BlockingPeer> peers;
+	private final List<ServerSocketChannel> servers;
+	private volatile boolean closed;
+
+	/**
+	 * @param listener the listener for all peers
+	 * @param logger the logger
+	 * @param threadFactory the factory for the peer threads
+	 */
+	public BlockingPeerNetwork(PeerListener listener, Logger logger, ThreadFactory threadFactory) {
+		this.listener = listener;
+		this.logger = logger;
+		this.threadFactory = threadFactory;
+		this.pool = new ByteBufferPool(MAX_POOLED_BYTES, 0, ByteBufferPool.getShared().isDebug());
+		this.peers = Collections.newSetFromMap(new ConcurrentHashMap<BlockingPeer, Boolean>());
+		this.servers = new CopyOnWriteArrayList<ServerSocketChannel>();
+		this.closed = false;
+	}
+
+	@Override
+	public InetSocketAddress listen(InetSocketAddress address) throws IOException {
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			server.bind(address, BACKLOG);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		servers.add(server);
+		startThread(new Runnable() {
+			@Override
+			public void run() {
+				accept(server);
+			}
+		});
+		InetSocketAddress bound = (InetSocketAddress) server.getLocalAddress();
+		logger.info("Listening for peers on " + bound);
+		return bound;
+	}
+
+	@Override
+	public Peer connect(InetSocketAddress address) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			BlockingPeer peer = new BlockingPeer(this, channel, address, false);
+			start(peer, address);
+			return peer;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int getPeerCount() {
+		return peers.size();
+	}
+
+	public ByteBufferPool getBufferPool() {
+		return pool;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		for (ServerSocketChannel server : servers) {
+			try {
+				server.close();
+			} catch (IOException e) {
+				logger.fine("Unable to close listening socket, " + e.getMessage());
+			}
+		}
+		for (BlockingPeer peer : peers) {
+			peer.close();
+		}
+	}
+
+	Logger getLogger() {
+		return logger;
+	}
+
+	PeerListener getListener() {
+		return listener;
+	}
+
+	void startThread(Runnable task) {
+		threadFactory.newThread(task).start();
+	}
+
+	void removePeer(BlockingPeer peer) {
+		peers.remove(peer);
+	}
+
+	private void start(final BlockingPeer peer, final InetSocketAddress connectAddress) {
+		peers.add(peer);
+		if (closed) {
+			peer.close();
+		}
+		startThread(new Runnable() {
+			@Override
+			public void run() {
+				peer.read(connectAddress);
+			}
+		});
+	}
+
+	private void accept(ServerSocketChannel server) {
+		try {
+			while (!closed) {
+				SocketChannel channel = server.accept();
+				try {
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					start(new BlockingPeer(this, channel, (InetSocketAddress) channel.getRemoteAddress(), true), null);
+				} catch (IOException e) {
+					logger.fine("Unable to accept connection, " + e.getMessage());
+					channel.close();
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				logger.severe("Unable to accept connections, " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * A network thread that serves the peers registered with its selector.<br>
+ * <br>
+ * Other threads pass work to the loop as tasks, which are run between
+ * selects.  Tasks queued from the loop thread itself are run on the next
+ * pass, so a listener never sees a peer closed under it.
+ */
+class EventLoop implements Runnable {
+	private final SelectorPeerNetwork network;
+	private final Selector selector;
+	private final ByteBuffer readBuffer;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	private final Thread thread;
+	private volatile boolean running;
+
+	EventLoop(SelectorPeerNetwork network, int id) throws IOException {
+		this.network = network;
+		this.selector = Selector.open();
+		this.readBuffer = network.getBufferPool().acquire(SelectorPeerNetwork.BUFFER_SIZE, true);
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.running = true;
+		this.thread = new Thread(this, "network-" + id);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	Logger getLogger() {
+		return network.getLogger();
+	}
+
+	/**
+	 * Runs a task on the loop thread
+	 */
+	void execute(Runnable task) {
+		tasks.offer(task);
+		if (Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Registers a connected or connecting peer with the loop
+	 *
+	 * @param connected true if the connection is already established
+	 */
+	void register(final SelectorPeer peer, final boolean connected) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					peer.setKey(peer.getChannel().register(selector, connected ? 0 : SelectionKey.OP_CONNECT, peer));
+					network.peerOpened();
+					if (connected) {
+						established(peer);
+					}
+				} catch (IOException e) {
+					peer.closeChannel(network.getBufferPool());
+					network.getLogger().fine("Unable to register peer " + peer + ", " + e.getMessage());
+					network.getListener().disconnected(peer);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Accepts inbound connections on a listening socket
+	 */
+	void registerServer(final ServerSocketChannel server) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					server.register(selector, SelectionKey.OP_ACCEPT);
+				} catch (IOException e) {
+					network.getLogger().severe("Unable to accept connections, " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes a peer and notifies the listener.  Must be called on the loop
+	 * thread.
+	 */
+	void close(SelectorPeer peer, String reason) {
+		if (peer.closeChannel(network.getBufferPool())) {
+			network.getLogger().fine("Disconnected peer " + peer + ", " + reason);
+			network.peerClosed();
+			network.getListener().disconnected(peer);
+		}
+	}
+
+	/**
+	 * Stops the loop and closes its peers
+	 */
+	void shutdown() throws InterruptedException {
+		running = false;
+		selector.wakeup();
+		thread.join();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				runTasks();
+				if (tasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) {
+						if (key.channel() instanceof ServerSocketChannel) {
+							accept((ServerSocketChannel) key.channel());
+						} else {
+							handle((SelectorPeer) key.attachment(), key);
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			network.getLogger().severe("Network thread failed, " + e.getMessage());
+		} finally {
+			// Peers still being registered are registered and then closed
+			runTasks();
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof SelectorPeer) {
+					close((SelectorPeer) key.attachment(), "shutting down");
+				} else {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+						network.getLogger().fine("Unable to close listening socket, " + e.getMessage());
+					}
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				network.getLogger().fine("Unable to close selector, " + e.getMessage());
+			}
+			network.getBufferPool().release(readBuffer);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void accept(ServerSocketChannel server) {
+		try {
+			network.accept(server);
+		} catch (IOException e) {
+			network.getLogger().warning("Unable to accept connection, " + e.getMessage());
+		}
+	}
+
+	private void handle(SelectorPeer peer, SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				peer.getChannel().finishConnect();
+				established(peer);
+			}
+			if (key.isValid() && key.isReadable() && !peer.read(readBuffer, network.getBufferPool(), network.getListener(), network.getLogger())) {
+				close(peer, "connection closed or invalid message");
+				return;
+			}
+			if (key.isValid() && key.isWritable()) {
+				peer.write();
+			}
+		} catch (IOException e) {
+			close(peer, e.getMessage());
+		}
+	}
+
+	private void established(SelectorPeer peer) throws IOException {
+		network.getLogger().fine("Connected to peer " + peer);
+		peer.setConnected();
+		network.getListener().connected(peer);
+	}
+}
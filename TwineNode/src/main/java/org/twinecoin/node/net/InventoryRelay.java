@@ -0,0 +1,305 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.mempool.MemoryPoolEntry;
+import org.twinecoin.node.mempool.MemoryPoolListener;
+
+/**
+ * Announces new transactions to peers in batches.<br>
+ * <br>
+ * Txids are queued for each peer and sent at random times, as a single
+ * {@link #INV_COMMAND} message per batch, so a busy node makes one write per
+ * peer and interval instead of one per transaction.  The delay between
+ * batches is exponentially distributed, making the sends a Poisson process.
+ * Inbound peers share one timer, so they all learn a transaction at the same
+ * moment and cannot tell where it came from by timing it.  Outbound peers
+ * have timers of their own with a shorter mean.<br>
+ * <br>
+ * Each peer has a rolling bloom filter of inventory it is known to have,
+ * because it was announced to it or by it.  Known txids are not queued
+ * again.
+ */
+public class InventoryRelay implements MemoryPoolListener {
+	public static final String INV_COMMAND = "inv";
+
+	public static final long DEFAULT_INBOUND_INTERVAL_MILLIS = 5000;
+	public static final long DEFAULT_OUTBOUND_INTERVAL_MILLIS = 2000;
+
+	// Txids per message, the rest wait for the next batch
+	public static final int MAX_BATCH = 5000;
+
+	// Txids queued for a peer before the oldest are dropped
+	static final int MAX_QUEUED = 50000;
+
+	// Recent inventory remembered for each peer
+	static final int KNOWN_INVENTORY = 50000;
+	static final double KNOWN_FALSE_POSITIVE_RATE = 0.000001;
+
+	private static final int TXID_LENGTH = 32;
+
+	private final ScheduledExecutorService executor;
+	private final Logger logger;
+	private final long inboundIntervalMillis;
+	private final long outboundIntervalMillis;
+	private final ConcurrentHashMap<Peer, PeerQueue> queues;
+	private final AtomicLong batchCount;
+	private final AtomicLong announcedCount;
+	private volatile boolean closed;
+
+	public InventoryRelay(ScheduledExecutorService executor, Logger logger) {
+		this(executor, logger, DEFAULT_INBOUND_INTERVAL_MILLIS, DEFAULT_OUTBOUND_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @param executor the executor for the batch timers
+	 * @param logger the logger
+	 * @param inboundIntervalMillis the mean time between batches for inbound
+	 * peers
+	 * @param outboundIntervalMillis the mean time between batches for each
+	 * outbound peer
+	 */
+	public InventoryRelay(ScheduledExecutorService executor, Logger logger, long inboundIntervalMillis, long outboundIntervalMillis) {
+		this.executor = executor;
+		this.logger = logger;
+		this.inboundIntervalMillis = inboundIntervalMillis;
+		this.outboundIntervalMillis = outboundIntervalMillis;
+		this.queues = new ConcurrentHashMap<Peer, PeerQueue>();
+		this.batchCount = new AtomicLong();
+		this.announcedCount = new AtomicLong();
+		this.closed = false;
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				for (PeerQueue queue : queues.values()) {
+					if (queue.peer.isInbound()) {
+						flush(queue);
+					}
+				}
+				schedule(this, InventoryRelay.this.inboundIntervalMillis);
+			}
+		}, inboundIntervalMillis);
+	}
+
+	/**
+	 * Starts relaying to a peer
+	 */
+	public void addPeer(Peer peer) {
+		final PeerQueue queue = new PeerQueue(peer);
+		if (queues.putIfAbsent(peer, queue) != null || peer.isInbound()) {
+			return;
+		}
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (queues.get(queue.peer) == queue) {
+					flush(queue);
+					schedule(this, outboundIntervalMillis);
+				}
+			}
+		}, outboundIntervalMillis);
+	}
+
+	public void removePeer(Peer peer) {
+		queues.remove(peer);
+	}
+
+	/**
+	 * Queues a txid for every peer that does not know it
+	 */
+	public void relay(byte[] txid) {
+		for (PeerQueue queue : queues.values()) {
+			queue.add(txid);
+		}
+	}
+
+	/**
+	 * Records that a peer has a txid, so it is not announced to it
+	 */
+	public void markKnown(Peer peer, byte[] txid) {
+		PeerQueue queue = queues.get(peer);
+		if (queue != null) {
+			queue.markKnown(txid);
+		}
+	}
+
+	/**
+	 * Records the txids in an inventory message from a peer as known to it
+	 *
+	 * @return false if the message is invalid
+	 */
+	public boolean inventoryReceived(Peer peer, ByteBuffer payload) {
+		List<byte[]> txids = decode(payload);
+		if (txids == null) {
+			logger.fine("Invalid inventory from peer " + peer);
+			return false;
+		}
+		for (byte[] txid : txids) {
+			markKnown(peer, txid);
+		}
+		return true;
+	}
+
+	@Override
+	public void transactionAdded(MemoryPoolEntry entry) {
+		relay(entry.getTransaction().getTxid());
+	}
+
+	@Override
+	public void transactionRemoved(MemoryPoolEntry entry, RemovalReason reason) {
+	}
+
+	/**
+	 * Gets the number of inventory messages sent
+	 */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/**
+	 * Gets the number of txids announced, over all peers
+	 */
+	public long getAnnouncedCount() {
+		return announcedCount.get();
+	}
+
+	/**
+	 * Gets the number of txids waiting to be announced to a peer
+	 */
+	public int getQueuedCount(Peer peer) {
+		PeerQueue queue = queues.get(peer);
+		return queue == null ? 0 : queue.size();
+	}
+
+	/**
+	 * Stops the timers.  Queued txids are not sent.
+	 */
+	public void close() {
+		closed = true;
+		queues.clear();
+	}
+
+	/**
+	 * Encodes txids as a count followed by the txids
+	 */
+	public static ByteBuffer encode(List<byte[]> txids) {
+		ByteBuffer buf = ByteBuffer.allocate(VarInt.size(txids.size()) + txids.size() * TXID_LENGTH);
+		VarInt.write(buf, txids.size());
+		for (byte[] txid : txids) {
+			buf.put(txid);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Decodes txids written by {@link #encode(List)}.  The buffer position is
+	 * not moved.
+	 *
+	 * @return the txids, or null if the payload is invalid
+	 */
+	public static List<byte[]> decode(ByteBuffer payload) {
+		ByteBuffer buf = payload.duplicate();
+		long count;
+		try {
+			count = VarInt.read(buf);
+		} catch (RuntimeException e) {
+			return null;
+		}
+		if (count < 0 || count > buf.remaining() / TXID_LENGTH || count * TXID_LENGTH != buf.remaining()) {
+			return null;
+		}
+		List<byte[]> txids = new ArrayList<byte[]>((int) count);
+		for (long i = 0; i < count; i++) {
+			byte[] txid = new byte[TXID_LENGTH];
+			buf.get(txid);
+			txids.add(txid);
+		}
+		return txids;
+	}
+
+	/**
+	 * Sends the queued txids of a peer, up to {@link #MAX_BATCH}
+	 */
+	private void flush(PeerQueue queue) {
+		List<byte[]> batch = queue.take(MAX_BATCH);
+		if (batch.isEmpty()) {
+			return;
+		}
+		if (queue.peer.send(INV_COMMAND, encode(batch))) {
+			batchCount.incrementAndGet();
+			announcedCount.addAndGet(batch.size());
+		}
+	}
+
+	private void schedule(Runnable task, long meanMillis) {
+		if (closed) {
+			return;
+		}
+		// Exponential delay, so batches form a Poisson process
+		double delay = -Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * meanMillis;
+		try {
+			executor.schedule(task, Math.max(1, (long) delay), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Executor shut down
+		}
+	}
+
+	private static class PeerQueue {
+		private final Peer peer;
+		private final RollingBloomFilter known;
+		private final ArrayDeque<byte[]> pending;
+
+		PeerQueue(Peer peer) {
+			this.peer = peer;
+			this.known = new RollingBloomFilter(KNOWN_INVENTORY, KNOWN_FALSE_POSITIVE_RATE);
+			this.pending = new ArrayDeque<byte[]>();
+		}
+
+		synchronized void add(byte[] txid) {
+			if (known.contains(txid)) {
+				return;
+			}
+			// Added when queued, so a queued txid is not queued twice
+			known.insert(txid);
+			if (pending.size() == MAX_QUEUED) {
+				pending.pollFirst();
+			}
+			pending.addLast(txid);
+		}
+
+		synchronized void markKnown(byte[] txid) {
+			if (!known.contains(txid)) {
+				known.insert(txid);
+			}
+		}
+
+		synchronized List<byte[]> take(int max) {
+			List<byte[]> batch = new ArrayList<byte[]>(Math.min(max, pending.size()));
+			while (batch.size() < max && !pending.isEmpty()) {
+				batch.add(pending.pollFirst());
+			}
+			return batch;
+		}
+
+		synchronized int size() {
+			return pending.size();
+		}
+	}
+}
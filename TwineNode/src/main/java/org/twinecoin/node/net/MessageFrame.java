@@ -0,0 +1,100 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.nio.ByteBuffer;
+
+import org.twinecoin.common.SHA256;
+
+/**
+ * Framing of peer to peer messages.<br>
+ * <br>
+ * Header<br>
+ * - magic (4 bytes, big endian)<br>
+ * - command (12 bytes, ASCII, padded with zeros)<br>
+ * - payload length (4 bytes, big endian)<br>
+ * - checksum, the first 4 bytes of the double SHA256 of the payload<br>
+ * <br>
+ * The payload follows the header.
+ */
+public final class MessageFrame {
+	public static final int MAGIC = 0x54574e45;
+	public static final int HEADER_LENGTH = 24;
+	public static final int COMMAND_LENGTH = 12;
+	public static final int MAX_PAYLOAD_LENGTH = 32 << 20;
+
+	static final int COMMAND_OFFSET = 4;
+	static final int LENGTH_OFFSET = 16;
+	static final int CHECKSUM_OFFSET = 20;
+
+	private MessageFrame() {
+	}
+
+	/**
+	 * Encodes the header for a payload.  The payload position is not moved.
+	 *
+	 * @param command the command, at most {@link #COMMAND_LENGTH} printable
+	 * ASCII characters
+	 * @param payload the payload, from its position to its limit
+	 * @return the header, ready to be written
+	 */
+	public static ByteBuffer encodeHeader(String command, ByteBuffer payload) {
+		if (command.length() > COMMAND_LENGTH) {
+			throw new IllegalArgumentException("Command longer than " + COMMAND_LENGTH + " characters, " + command);
+		}
+		if (payload.remaining() > MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException("Payload longer than " + MAX_PAYLOAD_LENGTH + " bytes");
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC);
+		for (int i = 0; i < COMMAND_LENGTH; i++) {
+			header.put(i < command.length() ? (byte) command.charAt(i) : 0);
+		}
+		header.putInt(payload.remaining());
+		header.putInt(getChecksum(payload));
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * Gets the checksum of the remaining bytes of a payload.  The payload
+	 * position is not moved.
+	 */
+	public static int getChecksum(ByteBuffer payload) {
+		byte[] first = SHA256.getDigest(payload.duplicate());
+		byte[] second = SHA256.getDigest(first, 0, first.length);
+		return ((second[0] & 0xFF) << 24) | ((second[1] & 0xFF) << 16) | ((second[2] & 0xFF) << 8) | (second[3] & 0xFF);
+	}
+
+	/**
+	 * Reads the command from a header
+	 *
+	 * @param buf the buffer holding the header
+	 * @param start the offset of the header
+	 * @return the command, or null if it is not printable ASCII followed by
+	 * zeros
+	 */
+	static String readCommand(ByteBuffer buf, int start) {
+		char[] chars = new char[COMMAND_LENGTH];
+		int length = 0;
+		for (int i = 0; i < COMMAND_LENGTH; i++) {
+			byte b = buf.get(start + COMMAND_OFFSET + i);
+			if (b == 0) {
+				break;
+			}
+			if (b < 0x20 || b > 0x7e) {
+				return null;
+			}
+			chars[length++] = (char) b;
+		}
+		for (int i = length; i < COMMAND_LENGTH; i++) {
+			if (buf.get(start + COMMAND_OFFSET + i) != 0) {
+				return null;
+			}
+		}
+		return new String(chars, 0, length);
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A connection to a peer.<br>
+ * <br>
+ * Messages can be sent from any thread.  They are queued and written in
+ * order.  A peer whose send queue grows past {@link #MAX_SEND_QUEUE} bytes is
+ * disconnected.
+ */
+public abstract class Peer {
+	public static final long MAX_SEND_QUEUE = 64L << 20;
+
+	// Buffers per gathering write
+	static final int WRITE_BATCH = 64;
+
+	private final InetSocketAddress address;
+	private final boolean inbound;
+	private final AtomicLong queuedBytes;
+
+	volatile boolean closed;
+
+	Peer(InetSocketAddress address, boolean inbound) {
+		this.address = address;
+		this.inbound = inbound;
+		this.queuedBytes = new AtomicLong();
+		this.closed = false;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public boolean isInbound() {
+		return inbound;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Gets the number of queued bytes not yet written to the socket
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * Queues a message.  The payload is not copied and must not be modified
+	 * after the call.
+	 *
+	 * @param command the command
+	 * @param payload the payload, from its position to its limit
+	 * @return false if the peer is closed or was disconnected because its
+	 * send queue is full
+	 */
+	public abstract boolean send(String command, ByteBuffer payload);
+
+	/**
+	 * Closes the connection.  The listener is notified once, from the thread
+	 * that serves the peer.
+	 */
+	public abstract void close();
+
+	/**
+	 * Frames a message and adds it to the queued byte count.  The peer is
+	 * closed if its send queue is full.
+	 *
+	 * @return the header and payload, or null if the message must not be
+	 * queued
+	 */
+	ByteBuffer[] frame(String command, ByteBuffer payload, Logger logger) {
+		if (closed) {
+			return null;
+		}
+		ByteBuffer body = payload.duplicate();
+		ByteBuffer header = MessageFrame.encodeHeader(command, body);
+		if (queuedBytes.addAndGet(header.remaining() + body.remaining()) > MAX_SEND_QUEUE) {
+			logger.warning("Disconnecting peer " + address + ", send queue full");
+			close();
+			return null;
+		}
+		return new ByteBuffer[] {header, body};
+	}
+
+	/**
+	 * Removes written bytes from the queued byte count
+	 */
+	void written(long bytes) {
+		queuedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * Gets the size of the buffer to assemble an incomplete message in.  The
+	 * buffer grows as the bytes of the message arrive, rather than to the
+	 * length claimed by the header, so a peer cannot make the node allocate
+	 * memory it has not sent.
+	 *
+	 * @param needed the length of the incomplete message
+	 * @param buffered the number of bytes of it received
+	 * @param minimum the size of the network thread's receive buffer
+	 */
+	static int getReceiveSize(int needed, int buffered, int minimum) {
+		return Math.min(needed, Math.max(minimum, buffered * 2));
+	}
+
+	/**
+	 * Delivers the complete messages at the position of a buffer and moves
+	 * the position past them
+	 *
+	 * @return the length of the incomplete message that follows, or -1 if a
+	 * message is invalid
+	 */
+	int deliver(ByteBuffer buf, PeerListener listener, Logger logger) {
+		while (buf.remaining() >= MessageFrame.HEADER_LENGTH) {
+			int start = buf.position();
+			String command = MessageFrame.readCommand(buf, start);
+			int length = buf.getInt(start + MessageFrame.LENGTH_OFFSET);
+			if (buf.getInt(start) != MessageFrame.MAGIC || command == null || length < 0 || length > MessageFrame.MAX_PAYLOAD_LENGTH) {
+				logger.warning("Invalid message header from peer " + address);
+				return -1;
+			}
+			int frameLength = MessageFrame.HEADER_LENGTH + length;
+			if (buf.remaining() < frameLength) {
+				return frameLength;
+			}
+			ByteBuffer payload = buf.asReadOnlyBuffer();
+			payload.limit(start + frameLength);
+			payload.position(start + MessageFrame.HEADER_LENGTH);
+			payload = payload.slice();
+			if (MessageFrame.getChecksum(payload) != buf.getInt(start + MessageFrame.CHECKSUM_OFFSET)) {
+				logger.warning("Checksum mismatch for " + command + " message from peer " + address);
+				return -1;
+			}
+			buf.position(start + frameLength);
+			listener.messageReceived(this, command, payload);
+		}
+		return MessageFrame.HEADER_LENGTH;
+	}
+
+	@Override
+	public String toString() {
+		return (inbound ? "inbound " : "outbound ") + address;
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives peer connection events.<br>
+ * <br>
+ * The events for a peer are delivered in order on the network thread that
+ * owns the peer.  That thread serves many peers, so listeners must not
+ * block.
+ */
+public interface PeerListener {
+	/**
+	 * Called when a connection is established
+	 */
+	public void connected(Peer peer);
+
+	/**
+	 * Called for each message received.  The payload is a read-only view of
+	 * the receive buffer and is only valid until the method returns.
+	 *
+	 * @param peer the sending peer
+	 * @param command the message command
+	 * @param payload the payload, from its position to its limit
+	 */
+	public void messageReceived(Peer peer, String command, ByteBuffer payload);
+
+	/**
+	 * Called when a connection is closed, including outbound connections
+	 * that failed to connect
+	 */
+	public void disconnected(Peer peer);
+}
@@ -0,0 +1,43 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Peer to peer transport.  Messages are framed as described in
+ * {@link MessageFrame} and all peer events go to a single
+ * {@link PeerListener}.
+ */
+public interface PeerNetwork {
+	/**
+	 * Accepts inbound connections on an address
+	 *
+	 * @param address the local address, port 0 picks a free port
+	 * @return the bound address
+	 */
+	public InetSocketAddress listen(InetSocketAddress address) throws IOException;
+
+	/**
+	 * Opens an outbound connection.  The listener is notified when the
+	 * connection is established or fails.
+	 *
+	 * @param address the peer address
+	 * @return the peer, which queues messages until it is connected
+	 */
+	public Peer connect(InetSocketAddress address) throws IOException;
+
+	/**
+	 * Gets the number of open connections
+	 */
+	public int getPeerCount();
+
+	/**
+	 * Stops accepting connections and closes all peers
+	 */
+	public void close();
+}
@@ -0,0 +1,104 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.twinecoin.common.SipHash;
+
+/**
+ * Bloom filter over the most recently inserted hashes.<br>
+ * <br>
+ * The filter has two generations, each a bloom filter sized for half the
+ * capacity.  Inserts go to the current generation and once it is full the
+ * older generation is cleared and becomes the current one.  At least the last
+ * half capacity inserts, and at most the last capacity inserts, are
+ * remembered.<br>
+ * <br>
+ * The bit positions come from SipHash with a random key, so peers cannot
+ * choose entries that collide.  The filter is not thread safe.
+ */
+public class RollingBloomFilter {
+	private final int generationSize;
+	private final int hashCount;
+	private final int bitCount;
+	private final long k0;
+	private final long k1;
+	private long[] current;
+	private long[] previous;
+	private int currentCount;
+
+	/**
+	 * @param capacity the number of recent entries to remember
+	 * @param falsePositiveRate the false positive rate when full
+	 */
+	public RollingBloomFilter(int capacity, double falsePositiveRate) {
+		this.generationSize = Math.max(1, capacity / 2);
+		// Two generations are checked, so each gets half the rate
+		double rate = falsePositiveRate / 2;
+		this.hashCount = Math.max(1, (int) Math.round(-Math.log(rate) / Math.log(2)));
+		int bits = (int) Math.ceil(-generationSize * Math.log(rate) / (Math.log(2) * Math.log(2)));
+		this.bitCount = Math.max(64, (bits + 63) & ~63);
+		this.k0 = ThreadLocalRandom.current().nextLong();
+		this.k1 = ThreadLocalRandom.current().nextLong();
+		this.current = new long[bitCount / 64];
+		this.previous = new long[bitCount / 64];
+		this.currentCount = 0;
+	}
+
+	public void insert(byte[] hash) {
+		if (currentCount == generationSize) {
+			long[] cleared = previous;
+			Arrays.fill(cleared, 0);
+			previous = current;
+			current = cleared;
+			currentCount = 0;
+		}
+		long h = SipHash.hash(k0, k1, hash);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		for (int i = 0; i < hashCount; i++) {
+			int bit = getBit(h1, h2, i);
+			current[bit >>> 6] |= 1L << bit;
+		}
+		currentCount++;
+	}
+
+	/**
+	 * Checks whether a hash may have been inserted recently
+	 */
+	public boolean contains(byte[] hash) {
+		long h = SipHash.hash(k0, k1, hash);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		return contains(current, h1, h2) || contains(previous, h1, h2);
+	}
+
+	/**
+	 * Gets the number of bits in each generation
+	 */
+	public int getBitCount() {
+		return bitCount;
+	}
+
+	private boolean contains(long[] bits, int h1, int h2) {
+		for (int i = 0; i < hashCount; i++) {
+			int bit = getBit(h1, h2, i);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets a bit position by double hashing
+	 */
+	private int getBit(int h1, int h2, int i) {
+		return (int) (((h1 + i * h2) & 0xFFFFFFFFL) % bitCount);
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.twinecoin.common.ByteBufferPool;
+
+/**
+ * A peer served by an {@link EventLoop}.<br>
+ * <br>
+ * Messages are written by the network thread that owns the peer, several
+ * messages per gathering write.<br>
+ * <br>
+ * Received bytes are read into the network thread's buffer and complete
+ * messages are delivered from it in place.  Only the bytes of an incomplete
+ * message are copied, into a pooled buffer held by the peer, so idle peers
+ * hold no receive buffer.  The buffer of a large message grows as its bytes
+ * arrive.
+ */
+class SelectorPeer extends Peer {
+	private final EventLoop loop;
+	private final SocketChannel channel;
+
+	// Messages as header and payload pairs
+	private final ConcurrentLinkedQueue<ByteBuffer[]> sendQueue;
+	private final AtomicBoolean writeScheduled;
+
+	// Only accessed by the network thread
+	private SelectionKey key;
+	private boolean connected;
+	private ByteBuffer partial;
+	private final ByteBuffer[] writing;
+	private int writingCount;
+
+	SelectorPeer(EventLoop loop, SocketChannel channel, InetSocketAddress address, boolean inbound) {
+		super(address, inbound);
+		this.loop = loop;
+		this.channel = channel;
+		this.sendQueue = new ConcurrentLinkedQueue<ByteBuffer[]>();
+		this.writeScheduled = new AtomicBoolean();
+		this.writing = new ByteBuffer[WRITE_BATCH];
+		this.writingCount = 0;
+	}
+
+	@Override
+	public boolean send(String command, ByteBuffer payload) {
+		ByteBuffer[] message = frame(command, payload, loop.getLogger());
+		if (message == null) {
+			return false;
+		}
+		sendQueue.offer(message);
+		if (writeScheduled.compareAndSet(false, true)) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						write();
+					} catch (IOException e) {
+						loop.close(SelectorPeer.this, e.getMessage());
+					}
+				}
+			});
+		}
+		return true;
+	}
+
+	@Override
+	public void close() {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				loop.close(SelectorPeer.this, "closed locally");
+			}
+		});
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Marks the connection as established and starts reading and any
+	 * queued writes
+	 */
+	void setConnected() throws IOException {
+		connected = true;
+		key.interestOps(SelectionKey.OP_READ);
+		if (writeScheduled.get()) {
+			write();
+		}
+	}
+
+	/**
+	 * Reads from the socket and delivers the complete messages
+	 *
+	 * @param loopBuffer the network thread's receive buffer, cleared
+	 * @return false if the peer closed the connection or sent an invalid
+	 * message
+	 */
+	boolean read(ByteBuffer loopBuffer, ByteBufferPool pool, PeerListener listener, Logger logger) throws IOException {
+		ByteBuffer buf = partial != null ? partial : loopBuffer;
+		if (channel.read(buf) < 0) {
+			return false;
+		}
+		buf.flip();
+		int needed = deliver(buf, listener, logger);
+		if (needed < 0) {
+			return false;
+		}
+		if (!buf.hasRemaining()) {
+			if (buf == partial) {
+				pool.release(partial);
+				partial = null;
+			} else {
+				loopBuffer.clear();
+			}
+			return true;
+		}
+		int size = getReceiveSize(needed, buf.remaining(), loopBuffer.capacity());
+		if (buf == partial && size <= partial.capacity()) {
+			partial.compact();
+			return true;
+		}
+		// Messages larger than the receive buffer are assembled in a buffer
+		// of their own, doubled as it fills
+		ByteBuffer next = size <= loopBuffer.capacity() ? pool.acquire(loopBuffer.capacity(), true) : pool.acquire(size, false);
+		next.put(buf);
+		if (buf == partial) {
+			pool.release(partial);
+		} else {
+			loopBuffer.clear();
+		}
+		partial = next;
+		return true;
+	}
+
+	/**
+	 * Writes queued messages until the queue is empty or the socket is full.
+	 * Write interest is kept while messages remain.
+	 */
+	void write() throws IOException {
+		if (closed || !connected) {
+			return;
+		}
+		while (true) {
+			if (writeBatches()) {
+				key.interestOps(SelectionKey.OP_READ);
+				writeScheduled.set(false);
+				// A message queued before the flag was cleared has not
+				// scheduled a write
+				if (sendQueue.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+					return;
+				}
+			} else {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the send queue was emptied
+	 */
+	private boolean writeBatches() throws IOException {
+		while (true) {
+			while (writingCount <= WRITE_BATCH - 2) {
+				ByteBuffer[] message = sendQueue.poll();
+				if (message == null) {
+					break;
+				}
+				writing[writingCount++] = message[0];
+				writing[writingCount++] = message[1];
+			}
+			if (writingCount == 0) {
+				return true;
+			}
+			long written = channel.write(writing, 0, writingCount);
+			written(written);
+			int done = 0;
+			while (done < writingCount && !writing[done].hasRemaining()) {
+				done++;
+			}
+			System.arraycopy(writing, done, writing, 0, writingCount - done);
+			for (int i = writingCount - done; i < writingCount; i++) {
+				writing[i] = null;
+			}
+			writingCount -= done;
+			if (writingCount > 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Closes the channel and releases the receive buffer
+	 *
+	 * @return false if the peer was already closed
+	 */
+	boolean closeChannel(ByteBufferPool pool) {
+		if (closed) {
+			return false;
+		}
+		closed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			loop.getLogger().fine("Unable to close connection to peer " + this + ", " + e.getMessage());
+		}
+		if (partial != null) {
+			pool.release(partial);
+			partial = null;
+		}
+		sendQueue.clear();
+		return true;
+	}
+}
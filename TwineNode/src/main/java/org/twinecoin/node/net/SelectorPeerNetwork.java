@@ -0,0 +1,154 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.twinecoin.common.ByteBufferPool;
+
+/**
+ * Peer network over non-blocking sockets.<br>
+ * <br>
+ * Peers are spread over a small number of network threads, each running a
+ * {@link java.nio.channels.Selector} over its peers, so a few threads can
+ * serve thousands of connections.  Messages are framed as described in
+ * {@link MessageFrame}.<br>
+ * <br>
+ * Receive buffers are direct buffers of {@link #BUFFER_SIZE} bytes from the
+ * shared {@link ByteBufferPool}.  Each thread reads into a buffer of its own and
+ * messages are delivered from it without copying, see {@link SelectorPeer}.
+ */
+public class SelectorPeerNetwork implements PeerNetwork {
+	public static final int BUFFER_SIZE = 64 << 10;
+
+	private static final int BACKLOG = 1024;
+
+	private final PeerListener listener;
+	private final Logger logger;
+	private final ByteBufferPool pool;
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop;
+	private final AtomicInteger peerCount;
+
+	/**
+	 * @param listener the listener for all peers
+	 * @param logger the logger
+	 * @param threads the number of network threads
+	 */
+	public SelectorPeerNetwork(PeerListener listener, Logger logger, int threads) throws IOException {
+		this.listener = listener;
+		this.logger = logger;
+		this.pool = ByteBufferPool.getShared();
+		this.nextLoop = new AtomicInteger();
+		this.peerCount = new AtomicInteger();
+		this.loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new EventLoop(this, i);
+		}
+	}
+
+	@Override
+	public InetSocketAddress listen(InetSocketAddress address) throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.configureBlocking(false);
+			server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			server.bind(address, BACKLOG);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		loops[0].registerServer(server);
+		InetSocketAddress bound = (InetSocketAddress) server.getLocalAddress();
+		logger.info("Listening for peers on " + bound);
+		return bound;
+	}
+
+	@Override
+	public Peer connect(InetSocketAddress address) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			configure(channel);
+			EventLoop loop = nextLoop();
+			SelectorPeer peer = new SelectorPeer(loop, channel, address, false);
+			loop.register(peer, channel.connect(address));
+			return peer;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int getPeerCount() {
+		return peerCount.get();
+	}
+
+	public ByteBufferPool getBufferPool() {
+		return pool;
+	}
+
+	@Override
+	public void close() {
+		try {
+			for (EventLoop loop : loops) {
+				loop.shutdown();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.severe("Interrupted while stopping network threads");
+		}
+	}
+
+	Logger getLogger() {
+		return logger;
+	}
+
+	PeerListener getListener() {
+		return listener;
+	}
+
+	void peerOpened() {
+		peerCount.incrementAndGet();
+	}
+
+	void peerClosed() {
+		peerCount.decrementAndGet();
+	}
+
+	/**
+	 * Accepts the pending connections on a listening socket and spreads them
+	 * over the network threads
+	 */
+	void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			try {
+				configure(channel);
+				EventLoop loop = nextLoop();
+				loop.register(new SelectorPeer(loop, channel, (InetSocketAddress) channel.getRemoteAddress(), true), true);
+			} catch (IOException e) {
+				logger.fine("Unable to accept connection, " + e.getMessage());
+				channel.close();
+			}
+		}
+	}
+
+	private EventLoop nextLoop() {
+		return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	private static void configure(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	}
+}
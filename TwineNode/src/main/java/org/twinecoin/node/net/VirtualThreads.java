@@ -0,0 +1,45 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to JDK 21 virtual threads from code compiled for earlier releases.
+ * The builder is found by reflection, so the default build does not need
+ * JDK 21.  The jdk21 build profile targets JDK 21, where virtual threads are
+ * always available.
+ */
+public final class VirtualThreads {
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Gets a factory for virtual threads
+	 *
+	 * @param prefix the thread name prefix, threads are numbered from 0
+	 * @return the factory, or null if the runtime does not support virtual
+	 * threads
+	 */
+	public static ThreadFactory getFactory(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			// Missing before JDK 21, or a preview feature that is not enabled
+			return null;
+		}
+	}
+
+	/**
+	 * Checks whether the runtime supports virtual threads
+	 */
+	public static boolean isSupported() {
+		return getFactory("check") != null;
+	}
+}
@@ -0,0 +1,25 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+/**
+ * Receives changes to the best block of an output tracker.<br>
+ * <br>
+ * Listeners are called while the tracker lock is held, so they must be fast
+ * and must not call back into methods that change the tracker.
+ */
+public interface ChainListener {
+	/**
+	 * Called after a block becomes the best block
+	 */
+	public void blockConnected(byte[] blockHash, int height);
+
+	/**
+	 * Called after the best block is rolled back.  The previous block is
+	 * then the best block.
+	 */
+	public void blockDisconnected(byte[] blockHash, int height);
+}
@@ -0,0 +1,198 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.store.KeyValueIterator;
+import org.twinecoin.node.store.KeyValueStore;
+import org.twinecoin.node.store.WriteBatch;
+
+/**
+ * Output store backed by a key-value store.<br>
+ * <br>
+ * Outputs are stored under 'o' + txid + index (4 bytes, big endian), so key
+ * order matches outpoint order.  Values use the {@link OutputSerializer}
+ * encoding.<br>
+ * <br>
+ * The best block is stored under 'B' as the block hash, the height and the
+ * serialized output set hash.  The set hash digest for each height is stored
+ * under 'c' + height (4 bytes, big endian).
+ */
+public class KeyValueOutputStore implements OutputStore {
+	static final byte OUTPUT_PREFIX = 'o';
+	static final byte COMMITMENT_PREFIX = 'c';
+	static final byte[] BEST_BLOCK_KEY = new byte[] {'B'};
+
+	private final KeyValueStore store;
+
+	private volatile byte[] bestBlock;
+	private volatile int bestHeight;
+	private volatile byte[] setHash;
+
+	public KeyValueOutputStore(KeyValueStore store) throws IOException {
+		this.store = store;
+		byte[] best = store.get(BEST_BLOCK_KEY);
+		if (best == null) {
+			this.bestBlock = null;
+			this.bestHeight = -1;
+			this.setHash = null;
+		} else {
+			int[] end = new int[1];
+			this.bestBlock = Arrays.copyOf(best, OutPoint.TXID_LENGTH);
+			this.bestHeight = (int) VarInt.read(best, OutPoint.TXID_LENGTH, end);
+			this.setHash = end[0] == best.length ? null : Arrays.copyOfRange(best, end[0], best.length);
+		}
+	}
+
+	@Override
+	public UnspentOutput getOutput(OutPoint outPoint) throws IOException {
+		byte[] value = store.get(encodeKey(outPoint));
+		return value == null ? null : OutputSerializer.decode(value);
+	}
+
+	@Override
+	public void writeBatch(List<Pair<OutPoint, UnspentOutput>> batch) throws IOException {
+		WriteBatch writeBatch = new WriteBatch();
+		addOutputs(writeBatch, batch);
+		store.write(writeBatch);
+	}
+
+	@Override
+	public OutputIterator iterator() throws IOException {
+		final KeyValueIterator iterator = store.iterator(new byte[] {OUTPUT_PREFIX}, new byte[] {OUTPUT_PREFIX + 1});
+		return new OutputIterator() {
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public Pair<OutPoint, UnspentOutput> next() {
+				Pair<byte[], byte[]> entry = iterator.next();
+				return new Pair<OutPoint, UnspentOutput>(decodeKey(entry.getA()), OutputSerializer.decode(entry.getB()));
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() throws IOException {
+				iterator.close();
+			}
+		};
+	}
+
+	@Override
+	public void writeCommitments(List<Pair<Integer, byte[]>> commitments) throws IOException {
+		WriteBatch writeBatch = new WriteBatch();
+		addCommitments(writeBatch, commitments);
+		store.write(writeBatch);
+	}
+
+	@Override
+	public byte[] getCommitment(int height) throws IOException {
+		return store.get(encodeCommitmentKey(height));
+	}
+
+	@Override
+	public void setBestBlock(byte[] blockHash, int height, byte[] setHash) throws IOException {
+		store.put(BEST_BLOCK_KEY, encodeBestBlock(blockHash, height, setHash));
+		this.bestHeight = height;
+		this.setHash = setHash;
+		this.bestBlock = blockHash;
+	}
+
+	@Override
+	public void writeLayer(List<Pair<OutPoint, UnspentOutput>> batch, List<Pair<Integer, byte[]>> commitments, byte[] blockHash, int height, byte[] setHash) throws IOException {
+		WriteBatch writeBatch = new WriteBatch();
+		addOutputs(writeBatch, batch);
+		addCommitments(writeBatch, commitments);
+		if (blockHash != null) {
+			writeBatch.put(BEST_BLOCK_KEY, encodeBestBlock(blockHash, height, setHash));
+		}
+		store.write(writeBatch);
+		if (blockHash != null) {
+			this.bestHeight = height;
+			this.setHash = setHash;
+			this.bestBlock = blockHash;
+		}
+	}
+
+	private static void addOutputs(WriteBatch writeBatch, List<Pair<OutPoint, UnspentOutput>> batch) {
+		for (Pair<OutPoint, UnspentOutput> entry : batch) {
+			byte[] key = encodeKey(entry.getA());
+			if (entry.getB() == null) {
+				writeBatch.delete(key);
+			} else {
+				writeBatch.put(key, OutputSerializer.encode(entry.getB()));
+			}
+		}
+	}
+
+	private static void addCommitments(WriteBatch writeBatch, List<Pair<Integer, byte[]>> commitments) {
+		for (Pair<Integer, byte[]> commitment : commitments) {
+			writeBatch.put(encodeCommitmentKey(commitment.getA()), commitment.getB());
+		}
+	}
+
+	private static byte[] encodeBestBlock(byte[] blockHash, int height, byte[] setHash) {
+		int setHashLength = setHash == null ? 0 : setHash.length;
+		byte[] value = new byte[OutPoint.TXID_LENGTH + VarInt.MAX_LENGTH + setHashLength];
+		System.arraycopy(blockHash, 0, value, 0, OutPoint.TXID_LENGTH);
+		int length = VarInt.write(value, OutPoint.TXID_LENGTH, height);
+		if (setHash != null) {
+			System.arraycopy(setHash, 0, value, length, setHashLength);
+			length += setHashLength;
+		}
+		return Arrays.copyOf(value, length);
+	}
+
+	@Override
+	public byte[] getBestBlock() {
+		return bestBlock;
+	}
+
+	@Override
+	public int getBestHeight() {
+		return bestHeight;
+	}
+
+	@Override
+	public byte[] getSetHash() {
+		return setHash;
+	}
+
+	static byte[] encodeCommitmentKey(int height) {
+		return new byte[] {COMMITMENT_PREFIX, (byte) (height >>> 24), (byte) (height >>> 16), (byte) (height >>> 8), (byte) height};
+	}
+
+	static byte[] encodeKey(OutPoint outPoint) {
+		byte[] key = new byte[1 + OutPoint.TXID_LENGTH + 4];
+		key[0] = OUTPUT_PREFIX;
+		System.arraycopy(outPoint.getTxid(), 0, key, 1, OutPoint.TXID_LENGTH);
+		int index = outPoint.getIndex();
+		key[33] = (byte) (index >>> 24);
+		key[34] = (byte) (index >>> 16);
+		key[35] = (byte) (index >>> 8);
+		key[36] = (byte) index;
+		return key;
+	}
+
+	static OutPoint decodeKey(byte[] key) {
+		byte[] txid = Arrays.copyOfRange(key, 1, 1 + OutPoint.TXID_LENGTH);
+		int index = ((key[33] & 0xFF) << 24) | ((key[34] & 0xFF) << 16) | ((key[35] & 0xFF) << 8) | (key[36] & 0xFF);
+		return new OutPoint(txid, index);
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+
+/**
+ * Output store that keeps all entries in memory
+ */
+public class MemoryOutputStore implements OutputStore {
+	private final ConcurrentSkipListMap<OutPoint, UnspentOutput> map = new ConcurrentSkipListMap<OutPoint, UnspentOutput>();
+
+	private final ConcurrentHashMap<Integer, byte[]> commitments = new ConcurrentHashMap<Integer, byte[]>();
+
+	private volatile byte[] bestBlock = null;
+	private volatile int bestHeight = -1;
+	private volatile byte[] setHash = null;
+
+	@Override
+	public UnspentOutput getOutput(OutPoint outPoint) {
+		return map.get(outPoint);
+	}
+
+	@Override
+	public void writeBatch(List<Pair<OutPoint, UnspentOutput>> batch) {
+		for (Pair<OutPoint, UnspentOutput> entry : batch) {
+			if (entry.getB() == null) {
+				map.remove(entry.getA());
+			} else {
+				map.put(entry.getA(), entry.getB());
+			}
+		}
+	}
+
+	@Override
+	public OutputIterator iterator() {
+		final Iterator<Entry<OutPoint, UnspentOutput>> iterator = map.entrySet().iterator();
+		return new OutputIterator() {
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public Pair<OutPoint, UnspentOutput> next() {
+				Entry<OutPoint, UnspentOutput> entry = iterator.next();
+				return new Pair<OutPoint, UnspentOutput>(entry.getKey(), entry.getValue());
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public void writeCommitments(List<Pair<Integer, byte[]>> commitments) {
+		for (Pair<Integer, byte[]> commitment : commitments) {
+			this.commitments.put(commitment.getA(), commitment.getB());
+		}
+	}
+
+	@Override
+	public byte[] getCommitment(int height) {
+		return commitments.get(height);
+	}
+
+	@Override
+	public void setBestBlock(byte[] blockHash, int height, byte[] setHash) {
+		this.bestHeight = height;
+		this.setHash = setHash;
+		this.bestBlock = blockHash;
+	}
+
+	@Override
+	public synchronized void writeLayer(List<Pair<OutPoint, UnspentOutput>> batch, List<Pair<Integer, byte[]>> commitments, byte[] blockHash, int height, byte[] setHash) {
+		writeBatch(batch);
+		writeCommitments(commitments);
+		if (blockHash != null) {
+			setBestBlock(blockHash, height, setHash);
+		}
+	}
+
+	@Override
+	public byte[] getBestBlock() {
+		return bestBlock;
+	}
+
+	@Override
+	public int getBestHeight() {
+		return bestHeight;
+	}
+
+	@Override
+	public byte[] getSetHash() {
+		return setHash;
+	}
+
+	public int size() {
+		return map.size();
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import org.twinecoin.api.data.UnspentOutput;
+
+/**
+ * Cache entry for an output.<br>
+ * <br>
+ * DIRTY - the entry differs from the layer below and must be flushed<br>
+ * FRESH - the layer below does not contain the output, so if it is spent
+ * before the next flush the entry can be dropped instead of written<br>
+ * <br>
+ * A null output is a spent entry.
+ */
+class OutputCacheEntry {
+	static final int DIRTY = 1;
+	static final int FRESH = 2;
+
+	// Approximate heap use of an entry, outpoint and map node, excluding the script
+	static final int ENTRY_OVERHEAD = 176;
+
+	private UnspentOutput output;
+	private int flags;
+
+	OutputCacheEntry(UnspentOutput output, int flags) {
+		this.output = output;
+		this.flags = flags;
+	}
+
+	UnspentOutput getOutput() {
+		return output;
+	}
+
+	boolean isSpent() {
+		return output == null;
+	}
+
+	boolean isDirty() {
+		return (flags & DIRTY) != 0;
+	}
+
+	boolean isFresh() {
+		return (flags & FRESH) != 0;
+	}
+
+	void spend() {
+		this.output = null;
+		this.flags |= DIRTY;
+	}
+
+	void set(UnspentOutput output, int flags) {
+		this.output = output;
+		this.flags = flags;
+	}
+
+	long getMemoryUsage() {
+		return ENTRY_OVERHEAD + (output == null ? 0 : output.getScript().length);
+	}
+}
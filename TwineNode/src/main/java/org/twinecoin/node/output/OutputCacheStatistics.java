@@ -0,0 +1,87 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the output cache.  Values are cumulative since startup.
+ */
+public class OutputCacheStatistics {
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong flushedEntries = new AtomicLong();
+	private final AtomicLong skippedEntries = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+
+	void hit() {
+		hits.incrementAndGet();
+	}
+
+	void miss() {
+		misses.incrementAndGet();
+	}
+
+	void skipped() {
+		skippedEntries.incrementAndGet();
+	}
+
+	void flushed(long entries) {
+		flushedEntries.addAndGet(entries);
+		flushes.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of lookups answered by the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of lookups that went to the store
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the fraction of lookups answered by the cache
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0.0 : ((double) h) / total;
+	}
+
+	/**
+	 * Gets the number of entries written to the store
+	 */
+	public long getFlushedEntries() {
+		return flushedEntries.get();
+	}
+
+	/**
+	 * Gets the number of outputs created and spent between flushes, which
+	 * were never written to the store
+	 */
+	public long getSkippedEntries() {
+		return skippedEntries.get();
+	}
+
+	/**
+	 * Gets the number of completed flushes
+	 */
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("hits %d, misses %d, hit rate %.3f, flushed %d, skipped %d, flushes %d",
+				getHits(), getMisses(), getHitRate(), getFlushedEntries(), getSkippedEntries(), getFlushCount());
+	}
+}
@@ -0,0 +1,20 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+
+/**
+ * Iterator over stored outputs in outpoint order.  Resources are held until
+ * the iterator is closed.
+ */
+public interface OutputIterator extends Iterator<Pair<OutPoint, UnspentOutput>>, Closeable {
+}
@@ -0,0 +1,115 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+
+/**
+ * Read-only view of the unspent output set at a block.<br>
+ * <br>
+ * Reads do not lock the tracker, so they are not delayed by block
+ * processing or flushes.  An output is found by checking the blocks
+ * connected after the view's block for the earliest change, then that
+ * block and the unflushed blocks before it for the latest change, and then
+ * the store.  The store is read last, so a flush that completes during the
+ * read is covered by the versions that were checked first.<br>
+ * <br>
+ * Each handle holds a reference to its version and must be closed.
+ * Versions newer than an open view stay in memory until it is closed.
+ */
+public class OutputReadView implements OutputView, Closeable {
+	private final OutputView store;
+	private final OutputVersion version;
+	private final AtomicInteger openViews;
+	private final AtomicBoolean closed;
+
+	OutputReadView(OutputView store, OutputVersion version, AtomicInteger openViews) {
+		this.store = store;
+		this.version = version;
+		this.openViews = openViews;
+		this.closed = new AtomicBoolean();
+		version.getReferences().incrementAndGet();
+		openViews.incrementAndGet();
+	}
+
+	@Override
+	public UnspentOutput getOutput(OutPoint outPoint) throws IOException {
+		checkOpen();
+		OutputVersion last = version;
+		for (OutputVersion v = version.getNext(); v != null; v = v.getNext()) {
+			OutputVersion.Change change = v.getChange(outPoint);
+			if (change != null) {
+				return change.getBefore();
+			}
+			last = v;
+		}
+		for (OutputVersion v = version; v != null; v = v.getPrevious()) {
+			OutputVersion.Change change = v.getChange(outPoint);
+			if (change != null) {
+				return change.getAfter();
+			}
+		}
+		UnspentOutput stored = store.getOutput(outPoint);
+		// Blocks published during the store read may already be in the store
+		for (OutputVersion v = last.getNext(); v != null; v = v.getNext()) {
+			OutputVersion.Change change = v.getChange(outPoint);
+			if (change != null) {
+				return change.getBefore();
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * Gets another handle to the same version, which must also be closed
+	 */
+	public OutputReadView retain() {
+		checkOpen();
+		return new OutputReadView(store, version, openViews);
+	}
+
+	public byte[] getBlockHash() {
+		return version.getBlockHash();
+	}
+
+	public int getHeight() {
+		return version.getHeight();
+	}
+
+	/**
+	 * Gets the output set commitment at the block of the view
+	 */
+	public byte[] getCommitment() {
+		return version.getCommitment();
+	}
+
+	/**
+	 * Gets the number of open handles to this view's version
+	 */
+	public int getReferenceCount() {
+		return version.getReferences().get();
+	}
+
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			version.getReferences().decrementAndGet();
+			openViews.decrementAndGet();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed.get()) {
+			throw new IllegalStateException("Read view is closed");
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.VarInt;
+
+/**
+ * Storage encoding for unspent outputs.<br>
+ * <br>
+ * - height * 2 + coinbase (varint)<br>
+ * - value (varint)<br>
+ * - script length (varint)<br>
+ * - script
+ */
+public class OutputSerializer {
+
+	public static int getMaxSize(UnspentOutput output) {
+		return 3 * VarInt.MAX_LENGTH + output.getScript().length;
+	}
+
+	public static int write(byte[] buf, int offset, UnspentOutput output) {
+		byte[] script = output.getScript();
+		offset = VarInt.write(buf, offset, (((long) output.getHeight()) << 1) | (output.isCoinbase() ? 1 : 0));
+		offset = VarInt.write(buf, offset, output.getValue());
+		offset = VarInt.write(buf, offset, script.length);
+		System.arraycopy(script, 0, buf, offset, script.length);
+		return offset + script.length;
+	}
+
+	public static byte[] encode(UnspentOutput output) {
+		byte[] buf = new byte[getMaxSize(output)];
+		int length = write(buf, 0, output);
+		return Arrays.copyOf(buf, length);
+	}
+
+	/**
+	 * Encodes an outpoint and output as an element of the output set hash.
+	 * The outpoint is the txid followed by the index (4 bytes, big endian).
+	 */
+	public static byte[] encodeElement(OutPoint outPoint, UnspentOutput output) {
+		byte[] buf = new byte[OutPoint.TXID_LENGTH + 4 + getMaxSize(output)];
+		System.arraycopy(outPoint.getTxid(), 0, buf, 0, OutPoint.TXID_LENGTH);
+		int index = outPoint.getIndex();
+		buf[32] = (byte) (index >>> 24);
+		buf[33] = (byte) (index >>> 16);
+		buf[34] = (byte) (index >>> 8);
+		buf[35] = (byte) index;
+		int length = write(buf, OutPoint.TXID_LENGTH + 4, output);
+		return Arrays.copyOf(buf, length);
+	}
+
+	public static UnspentOutput decode(byte[] value) {
+		return read(ByteBuffer.wrap(value));
+	}
+
+	public static UnspentOutput read(ByteBuffer buf) {
+		long code = VarInt.read(buf);
+		long amount = VarInt.read(buf);
+		byte[] script = new byte[VarInt.readInt(buf)];
+		buf.get(script);
+		return new UnspentOutput(amount, script, (int) (code >>> 1), (code & 1) != 0);
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+
+/**
+ * Persistent storage for the unspent output set.<br>
+ * <br>
+ * Reads may happen concurrently with a write.
+ */
+public interface OutputStore extends OutputView {
+	/**
+	 * Writes a batch of changes.  A null output deletes the entry.  Batches
+	 * are sorted by outpoint.
+	 *
+	 * @param batch the changes to write
+	 */
+	public void writeBatch(List<Pair<OutPoint, UnspentOutput>> batch) throws IOException;
+
+	/**
+	 * Writes the output set commitments for a range of blocks
+	 *
+	 * @param commitments pairs of block height and set hash digest
+	 */
+	public void writeCommitments(List<Pair<Integer, byte[]>> commitments) throws IOException;
+
+	/**
+	 * Gets the output set commitment stored for a height, or null if none has
+	 * been stored.  Heights above the best block may hold stale values.
+	 */
+	public byte[] getCommitment(int height) throws IOException;
+
+	/**
+	 * Records the block that the stored set corresponds to
+	 *
+	 * @param blockHash the block hash
+	 * @param height the block height
+	 * @param setHash the serialized {@link org.twinecoin.common.MuHash} of
+	 * the stored set
+	 */
+	public void setBestBlock(byte[] blockHash, int height, byte[] setHash) throws IOException;
+
+	/**
+	 * Writes the changes of a flush in a single atomic write, so after a crash
+	 * the store holds either all of them or none of them
+	 *
+	 * @param batch the output changes, sorted by outpoint
+	 * @param commitments pairs of block height and set hash digest
+	 * @param blockHash the block the changes lead to, or null to leave the
+	 * best block unchanged
+	 * @param height the block height
+	 * @param setHash the serialized set hash after the changes
+	 */
+	public void writeLayer(List<Pair<OutPoint, UnspentOutput>> batch, List<Pair<Integer, byte[]>> commitments, byte[] blockHash, int height, byte[] setHash) throws IOException;
+
+	/**
+	 * Gets an iterator over all stored outputs in outpoint order
+	 */
+	public OutputIterator iterator() throws IOException;
+
+	/**
+	 * Gets the stored best block hash, or null if no block has been recorded
+	 */
+	public byte[] getBestBlock() throws IOException;
+
+	/**
+	 * Gets the stored best block height, or -1 if no block has been recorded
+	 */
+	public int getBestHeight() throws IOException;
+
+	/**
+	 * Gets the serialized set hash stored with the best block, or null if no
+	 * block has been recorded
+	 */
+	public byte[] getSetHash() throws IOException;
+}
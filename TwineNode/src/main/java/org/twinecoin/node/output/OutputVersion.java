@@ -0,0 +1,106 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+
+/**
+ * A published state of the unspent output set.<br>
+ * <br>
+ * Each version holds the outputs changed by one block, with their values
+ * before and after the block.  Versions are linked to the next version and,
+ * until the version before them has been flushed, to the previous version.
+ * The changes are not modified after the version is published.
+ */
+final class OutputVersion {
+	private final byte[] blockHash;
+	private final int height;
+	private final byte[] commitment;
+	private final Map<OutPoint, Change> changes;
+	private final AtomicInteger references;
+
+	private volatile OutputVersion previous;
+	private volatile OutputVersion next;
+
+	OutputVersion(byte[] blockHash, int height, byte[] commitment, Map<OutPoint, Change> changes, OutputVersion previous) {
+		this.blockHash = blockHash;
+		this.height = height;
+		this.commitment = commitment;
+		this.changes = changes;
+		this.references = new AtomicInteger();
+		this.previous = previous;
+		this.next = null;
+	}
+
+	byte[] getBlockHash() {
+		return blockHash;
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	byte[] getCommitment() {
+		return commitment;
+	}
+
+	Change getChange(OutPoint outPoint) {
+		return changes.get(outPoint);
+	}
+
+	AtomicInteger getReferences() {
+		return references;
+	}
+
+	OutputVersion getPrevious() {
+		return previous;
+	}
+
+	/**
+	 * Unlinks the older versions once they are in the store
+	 */
+	void clearPrevious() {
+		this.previous = null;
+	}
+
+	OutputVersion getNext() {
+		return next;
+	}
+
+	void setNext(OutputVersion next) {
+		this.next = next;
+	}
+
+	/**
+	 * The value of an output before and after a block.  A null value is a
+	 * spent or unknown output.
+	 */
+	static final class Change {
+		private final UnspentOutput before;
+		private UnspentOutput after;
+
+		Change(UnspentOutput before, UnspentOutput after) {
+			this.before = before;
+			this.after = after;
+		}
+
+		UnspentOutput getBefore() {
+			return before;
+		}
+
+		UnspentOutput getAfter() {
+			return after;
+		}
+
+		void setAfter(UnspentOutput after) {
+			this.after = after;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import java.io.IOException;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+
+/**
+ * Read access to a set of unspent outputs
+ */
+public interface OutputView {
+	/**
+	 * Gets an unspent output
+	 *
+	 * @param outPoint the output reference
+	 * @return the output, or null if not present
+	 */
+	public UnspentOutput getOutput(OutPoint outPoint) throws IOException;
+}
@@ -0,0 +1,670 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.twinecoin.api.OutputTracker;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.MuHash;
+import org.twinecoin.common.Pair;
+import org.twinecoin.node.output.undo.BlockUndo;
+import org.twinecoin.node.output.undo.UndoStore;
+
+/**
+ * Write-back cache for the unspent output set.<br>
+ * <br>
+ * Changes are held in the active layer.  A flush freezes the active layer and
+ * writes its dirty entries to the store from a background thread, sorted by
+ * outpoint, in one atomic write with the commitments and the best block.  A
+ * new active layer is started, so validation continues while the frozen
+ * layer is written.  Lookups check the active layer, then the frozen layer
+ * and then the store.<br>
+ * <br>
+ * Outputs that are created and spent between flushes are dropped from the
+ * cache and never reach the store.<br>
+ * <br>
+ * A flush starts at a block boundary when the cache exceeds its memory target
+ * or the flush interval has elapsed.  If the previous flush is still running,
+ * the new flush waits for it to complete.<br>
+ * <br>
+ * A {@link MuHash} of the set is updated as outputs are added and spent.  Its
+ * digest is recorded as the commitment for each block and the commitments are
+ * written with the next flush, together with the serialized set hash.<br>
+ * <br>
+ * If an undo store is provided, the outputs created and spent by each block
+ * are written to it at the end of the block.  The undo records are synced
+ * before each flush, so any block in the store can be rolled back.<br>
+ * <br>
+ * The outputs changed by each block are published as a new version at the
+ * end of the block.  {@link #getReadView()} returns a view of the latest
+ * version that can be read from other threads without locking the tracker,
+ * see {@link OutputReadView}.  Versions are kept until the flush that
+ * contains them completes, so {@link #flush()} should be called at a block
+ * boundary while read views are open.
+ */
+public class TwineOutputTracker implements OutputTracker {
+	private static final Comparator<Pair<OutPoint, UnspentOutput>> OUTPOINT_ORDER = new Comparator<Pair<OutPoint, UnspentOutput>>() {
+		@Override
+		public int compare(Pair<OutPoint, UnspentOutput> a, Pair<OutPoint, UnspentOutput> b) {
+			return a.getA().compareTo(b.getA());
+		}
+	};
+
+	private final OutputStore store;
+	private final Logger logger;
+	private final long maxCacheBytes;
+	private final long flushIntervalMillis;
+	private final OutputCacheStatistics statistics;
+	private final ExecutorService flushExecutor;
+	private final UndoStore undoStore;
+
+	private Map<OutPoint, OutputCacheEntry> active;
+	private long activeMemoryUsage;
+
+	// Written by the flush thread when the frozen layer is safely in the store
+	private volatile Map<OutPoint, OutputCacheEntry> frozen;
+	private volatile long frozenMemoryUsage;
+	private volatile boolean flushFailed;
+
+	// Set when a rollback does not reproduce the recorded commitment
+	private boolean corrupt;
+	private Future<?> pendingFlush;
+
+	private final MuHash setHash;
+	private Map<Integer, byte[]> commitments;
+	private volatile Map<Integer, byte[]> frozenCommitments;
+
+	private byte[] bestBlock;
+	private int bestHeight;
+	private byte[] bestCommitment;
+	private long lastFlushTime;
+
+	// Changes made by the current block, only tracked when there is an undo store
+	private Set<OutPoint> blockCreated;
+	private List<Pair<OutPoint, UnspentOutput>> blockSpent;
+
+	// Changes in the current block and the latest published version
+	private Map<OutPoint, OutputVersion.Change> blockChanges;
+	private volatile OutputVersion latestVersion;
+	private final AtomicInteger openViews;
+
+	private final CopyOnWriteArrayList<ChainListener> listeners = new CopyOnWriteArrayList<ChainListener>();
+
+	public TwineOutputTracker(OutputStore store, Logger logger, long maxCacheBytes, long flushIntervalMillis) throws IOException {
+		this(store, null, logger, maxCacheBytes, flushIntervalMillis);
+	}
+
+	/**
+	 * @param store the output store
+	 * @param undoStore the store for block undo records, or null to disable
+	 * rollback
+	 * @param logger the logger
+	 * @param maxCacheBytes the memory target for the cache
+	 * @param flushIntervalMillis the maximum time between flushes
+	 */
+	public TwineOutputTracker(OutputStore store, UndoStore undoStore, Logger logger, long maxCacheBytes, long flushIntervalMillis) throws IOException {
+		this.store = store;
+		this.undoStore = undoStore;
+		this.logger = logger;
+		this.maxCacheBytes = maxCacheBytes;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.statistics = new OutputCacheStatistics();
+		this.flushExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "output-flush");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		this.active = new HashMap<OutPoint, OutputCacheEntry>();
+		this.activeMemoryUsage = 0;
+		this.frozen = null;
+		this.frozenMemoryUsage = 0;
+		this.flushFailed = false;
+		this.corrupt = false;
+		this.pendingFlush = null;
+
+		this.bestBlock = store.getBestBlock();
+		this.bestHeight = store.getBestHeight();
+		this.lastFlushTime = System.currentTimeMillis();
+
+		byte[] storedSetHash = store.getSetHash();
+		if (storedSetHash != null) {
+			this.setHash = new MuHash(storedSetHash);
+		} else if (bestBlock == null) {
+			this.setHash = new MuHash();
+		} else {
+			this.setHash = computeSetHash(store, logger);
+		}
+		this.commitments = new HashMap<Integer, byte[]>();
+		this.frozenCommitments = null;
+		this.bestCommitment = setHash.getDigest();
+
+		this.blockCreated = new HashSet<OutPoint>();
+		this.blockSpent = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+
+		this.latestVersion = new OutputVersion(bestBlock, bestHeight, bestCommitment, new HashMap<OutPoint, OutputVersion.Change>(), null);
+		this.blockChanges = new HashMap<OutPoint, OutputVersion.Change>();
+		this.openViews = new AtomicInteger();
+	}
+
+	@Override
+	public synchronized UnspentOutput getOutput(OutPoint outPoint) {
+		OutputCacheEntry entry = active.get(outPoint);
+		if (entry != null) {
+			statistics.hit();
+			return entry.getOutput();
+		}
+		Map<OutPoint, OutputCacheEntry> frozenLayer = frozen;
+		if (frozenLayer != null) {
+			entry = frozenLayer.get(outPoint);
+			if (entry != null) {
+				statistics.hit();
+				return entry.getOutput();
+			}
+		}
+		statistics.miss();
+		UnspentOutput output = readStore(outPoint);
+		if (output != null) {
+			entry = new OutputCacheEntry(output, 0);
+			active.put(outPoint, entry);
+			activeMemoryUsage += entry.getMemoryUsage();
+		}
+		return output;
+	}
+
+	@Override
+	public synchronized void addOutput(OutPoint outPoint, UnspentOutput output) {
+		if (undoStore != null) {
+			blockCreated.add(outPoint);
+		}
+		add(outPoint, output);
+	}
+
+	@Override
+	public synchronized UnspentOutput spendOutput(OutPoint outPoint) {
+		UnspentOutput output = spend(outPoint);
+		if (output != null && undoStore != null && !blockCreated.remove(outPoint)) {
+			blockSpent.add(new Pair<OutPoint, UnspentOutput>(outPoint, output));
+		}
+		return output;
+	}
+
+	private void add(OutPoint outPoint, UnspentOutput output) {
+		setHash.insert(OutputSerializer.encodeElement(outPoint, output));
+		recordChange(outPoint, null, output);
+		OutputCacheEntry entry = active.get(outPoint);
+		if (entry == null) {
+			entry = new OutputCacheEntry(output, OutputCacheEntry.DIRTY | OutputCacheEntry.FRESH);
+			active.put(outPoint, entry);
+			activeMemoryUsage += entry.getMemoryUsage();
+			return;
+		}
+		activeMemoryUsage -= entry.getMemoryUsage();
+		// A spent entry that is still dirty must overwrite the layer below
+		int flags = entry.isSpent() && entry.isDirty() ? OutputCacheEntry.DIRTY : (OutputCacheEntry.DIRTY | (entry.isFresh() ? OutputCacheEntry.FRESH : 0));
+		entry.set(output, flags);
+		activeMemoryUsage += entry.getMemoryUsage();
+	}
+
+	private UnspentOutput spend(OutPoint outPoint) {
+		OutputCacheEntry entry = active.get(outPoint);
+		if (entry != null) {
+			statistics.hit();
+			if (entry.isSpent()) {
+				return null;
+			}
+			UnspentOutput output = entry.getOutput();
+			setHash.remove(OutputSerializer.encodeElement(outPoint, output));
+			recordChange(outPoint, output, null);
+			activeMemoryUsage -= entry.getMemoryUsage();
+			if (entry.isFresh()) {
+				active.remove(outPoint);
+				statistics.skipped();
+			} else {
+				entry.spend();
+				activeMemoryUsage += entry.getMemoryUsage();
+			}
+			return output;
+		}
+		UnspentOutput output = null;
+		Map<OutPoint, OutputCacheEntry> frozenLayer = frozen;
+		OutputCacheEntry frozenEntry = frozenLayer == null ? null : frozenLayer.get(outPoint);
+		if (frozenEntry != null) {
+			statistics.hit();
+			output = frozenEntry.getOutput();
+		} else {
+			statistics.miss();
+			output = readStore(outPoint);
+		}
+		if (output == null) {
+			return null;
+		}
+		setHash.remove(OutputSerializer.encodeElement(outPoint, output));
+		recordChange(outPoint, output, null);
+		entry = new OutputCacheEntry(null, OutputCacheEntry.DIRTY);
+		active.put(outPoint, entry);
+		activeMemoryUsage += entry.getMemoryUsage();
+		return output;
+	}
+
+	@Override
+	public synchronized void setBestBlock(byte[] blockHash, int height) {
+		if (corrupt) {
+			logger.severe("Unable to connect block at height " + height + ", output set is corrupt");
+			throw new IllegalStateException("Output set is corrupt");
+		}
+		if (undoStore != null) {
+			List<OutPoint> created = new ArrayList<OutPoint>(blockCreated);
+			Collections.sort(created);
+			try {
+				undoStore.write(new BlockUndo(blockHash, bestBlock, height, created, blockSpent));
+			} catch (IOException e) {
+				logger.severe("Unable to write undo record, " + e.getMessage());
+				throw new IllegalStateException("Unable to write undo record", e);
+			}
+			blockCreated = new HashSet<OutPoint>();
+			blockSpent = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		}
+		endBlock(blockHash, height);
+		for (ChainListener listener : listeners) {
+			listener.blockConnected(blockHash, height);
+		}
+	}
+
+	/**
+	 * Rolls back blocks from the tip using their undo records.<br>
+	 * <br>
+	 * The output tracker's best block is the chain tip, so this rewinds the
+	 * tip by the given number of blocks.  It must be called at a block
+	 * boundary.
+	 *
+	 * @param blocks the number of blocks to roll back
+	 * @return true if all the blocks were rolled back
+	 */
+	public synchronized boolean rollback(int blocks) {
+		if (corrupt) {
+			logger.severe("Unable to roll back, output set is corrupt");
+			return false;
+		}
+		if (undoStore == null) {
+			logger.severe("Unable to roll back, no undo store");
+			return false;
+		}
+		if (!blockCreated.isEmpty() || !blockSpent.isEmpty()) {
+			logger.severe("Unable to roll back, block in progress");
+			return false;
+		}
+		long start = System.currentTimeMillis();
+		int startHeight = bestHeight;
+		for (int i = 0; i < blocks; i++) {
+			if (bestBlock == null || bestHeight <= 0) {
+				logger.severe("Unable to roll back the first block");
+				return false;
+			}
+			BlockUndo undo;
+			try {
+				undo = undoStore.read(bestBlock);
+			} catch (IOException e) {
+				logger.severe("Unable to read undo record, " + e.getMessage());
+				return false;
+			}
+			if (undo == null) {
+				logger.severe("No undo record for block at height " + bestHeight);
+				return false;
+			}
+			if (!rollbackBlock(undo)) {
+				return false;
+			}
+		}
+		logger.info("Rolled back " + blocks + " blocks from height " + startHeight + " in " + (System.currentTimeMillis() - start) + "ms");
+		return true;
+	}
+
+	/**
+	 * Undoes the best block.<br>
+	 * <br>
+	 * If the output set does not match the commitment recorded for the
+	 * parent block, the undo record or the output set is corrupt.  The
+	 * tracker then refuses further blocks, rollbacks and flushes, so the
+	 * corrupt set never reaches the store.
+	 *
+	 * @return true if the undo record matched the best block and the
+	 * commitment of its parent
+	 */
+	synchronized boolean rollbackBlock(BlockUndo undo) {
+		if (!Arrays.equals(undo.getBlockHash(), bestBlock) || undo.getHeight() != bestHeight) {
+			logger.severe("Undo record does not match best block at height " + bestHeight);
+			return false;
+		}
+		for (OutPoint outPoint : undo.getCreated()) {
+			spend(outPoint);
+		}
+		for (Pair<OutPoint, UnspentOutput> entry : undo.getSpent()) {
+			add(entry.getA(), entry.getB());
+		}
+		byte[] expected = getCommitment(undo.getHeight() - 1);
+		if (expected != null && !Arrays.equals(expected, setHash.getDigest())) {
+			logger.severe("Output set commitment mismatch after rolling back to height " + (undo.getHeight() - 1) + ", output set is corrupt");
+			corrupt = true;
+			return false;
+		}
+		commitments.remove(undo.getHeight());
+		endBlock(undo.getPreviousBlockHash(), undo.getHeight() - 1);
+		for (ChainListener listener : listeners) {
+			listener.blockDisconnected(undo.getBlockHash(), undo.getHeight());
+		}
+		return true;
+	}
+
+	/**
+	 * Records the value of an output before and after the current block
+	 */
+	private void recordChange(OutPoint outPoint, UnspentOutput before, UnspentOutput after) {
+		OutputVersion.Change change = blockChanges.get(outPoint);
+		if (change == null) {
+			blockChanges.put(outPoint, new OutputVersion.Change(before, after));
+		} else {
+			change.setAfter(after);
+		}
+	}
+
+	private void endBlock(byte[] blockHash, int height) {
+		this.bestBlock = blockHash;
+		this.bestHeight = height;
+		this.bestCommitment = setHash.getDigest();
+		if (blockHash != null) {
+			commitments.put(height, bestCommitment);
+		}
+
+		// Publish before any flush, so a version is never behind the store
+		OutputVersion version = new OutputVersion(blockHash, height, bestCommitment, blockChanges, latestVersion);
+		latestVersion.setNext(version);
+		latestVersion = version;
+		blockChanges = new HashMap<OutPoint, OutputVersion.Change>();
+
+		boolean memoryFull = activeMemoryUsage + frozenMemoryUsage >= maxCacheBytes;
+		boolean intervalElapsed = System.currentTimeMillis() - lastFlushTime >= flushIntervalMillis;
+
+		if (memoryFull || intervalElapsed) {
+			startFlush();
+		}
+	}
+
+	public void addListener(ChainListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ChainListener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public synchronized byte[] getBestBlock() {
+		return bestBlock;
+	}
+
+	@Override
+	public synchronized int getBestHeight() {
+		return bestHeight;
+	}
+
+	@Override
+	public synchronized byte[] getCommitment() {
+		return bestCommitment;
+	}
+
+	@Override
+	public synchronized byte[] getCommitment(int height) {
+		if (height > bestHeight || height < 0) {
+			return null;
+		}
+		byte[] commitment = commitments.get(height);
+		if (commitment != null) {
+			return commitment;
+		}
+		Map<Integer, byte[]> frozenLayer = frozenCommitments;
+		if (frozenLayer != null) {
+			commitment = frozenLayer.get(height);
+			if (commitment != null) {
+				return commitment;
+			}
+		}
+		try {
+			return store.getCommitment(height);
+		} catch (IOException e) {
+			logger.severe("Unable to read output store, " + e.getMessage());
+			throw new IllegalStateException("Unable to read output store", e);
+		}
+	}
+
+	@Override
+	public synchronized boolean flush() {
+		if (corrupt) {
+			logger.severe("Unable to flush, output set is corrupt");
+			return false;
+		}
+		startFlush();
+		return waitForFlush();
+	}
+
+	/**
+	 * Flushes the cache and stops the background flush thread
+	 *
+	 * @return true if the final flush succeeded
+	 */
+	public synchronized boolean close() {
+		boolean success = flush();
+		flushExecutor.shutdown();
+		return success;
+	}
+
+	/**
+	 * Gets a read-only view of the output set at the best block.  The
+	 * view must be closed.
+	 */
+	public OutputReadView getReadView() {
+		return new OutputReadView(store, latestVersion, openViews);
+	}
+
+	/**
+	 * Gets the number of read views that have not been closed
+	 */
+	public int getOpenReadViewCount() {
+		return openViews.get();
+	}
+
+	public OutputCacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Gets the approximate memory used by the active and frozen layers
+	 */
+	public synchronized long getMemoryUsage() {
+		return activeMemoryUsage + frozenMemoryUsage;
+	}
+
+	/**
+	 * Gets the number of entries in the active layer
+	 */
+	synchronized int getActiveSize() {
+		return active.size();
+	}
+
+	private void startFlush() {
+		waitForFlush();
+
+		Map<OutPoint, OutputCacheEntry> toFlush = active;
+		long toFlushMemoryUsage = activeMemoryUsage;
+		Map<Integer, byte[]> toFlushCommitments = commitments;
+
+		if (flushFailed) {
+			// The previous frozen layer is still not in the store
+			toFlush = mergeLayers(frozen, active);
+			toFlushMemoryUsage += frozenMemoryUsage;
+			toFlushCommitments = new HashMap<Integer, byte[]>(frozenCommitments);
+			toFlushCommitments.putAll(commitments);
+			flushFailed = false;
+		}
+
+		active = new HashMap<OutPoint, OutputCacheEntry>();
+		activeMemoryUsage = 0;
+		commitments = new HashMap<Integer, byte[]>();
+		frozenMemoryUsage = toFlushMemoryUsage;
+		frozenCommitments = toFlushCommitments;
+		frozen = toFlush;
+		lastFlushTime = System.currentTimeMillis();
+
+		final Map<OutPoint, OutputCacheEntry> flushLayer = toFlush;
+		final Map<Integer, byte[]> flushCommitments = toFlushCommitments;
+		final byte[] flushBlock = bestBlock;
+		final int flushHeight = bestHeight;
+		final byte[] flushSetHash = setHash.serialize();
+		final OutputVersion flushVersion = latestVersion;
+
+		pendingFlush = flushExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				if (writeLayer(flushLayer, flushCommitments, flushBlock, flushHeight, flushSetHash)) {
+					// Read views find the older changes in the store
+					flushVersion.clearPrevious();
+				}
+			}
+		});
+	}
+
+	private boolean waitForFlush() {
+		if (pendingFlush != null) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					pendingFlush.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					logger.severe("Unexpected error during output cache flush, " + e.getCause());
+					flushFailed = true;
+					break;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			pendingFlush = null;
+		}
+		return !flushFailed;
+	}
+
+	private boolean writeLayer(Map<OutPoint, OutputCacheEntry> layer, Map<Integer, byte[]> layerCommitments, byte[] blockHash, int height, byte[] layerSetHash) {
+		long start = System.currentTimeMillis();
+
+		if (undoStore != null) {
+			try {
+				undoStore.sync();
+			} catch (IOException e) {
+				logger.severe("Unable to sync undo records, " + e.getMessage());
+				flushFailed = true;
+				return false;
+			}
+		}
+
+		List<Pair<OutPoint, UnspentOutput>> dirty = new ArrayList<Pair<OutPoint, UnspentOutput>>(layer.size());
+		for (Entry<OutPoint, OutputCacheEntry> entry : layer.entrySet()) {
+			if (entry.getValue().isDirty()) {
+				dirty.add(new Pair<OutPoint, UnspentOutput>(entry.getKey(), entry.getValue().getOutput()));
+			}
+		}
+		Collections.sort(dirty, OUTPOINT_ORDER);
+
+		List<Pair<Integer, byte[]>> commitmentList = new ArrayList<Pair<Integer, byte[]>>(layerCommitments.size());
+		for (Entry<Integer, byte[]> entry : layerCommitments.entrySet()) {
+			commitmentList.add(new Pair<Integer, byte[]>(entry.getKey(), entry.getValue()));
+		}
+
+		try {
+			// The outputs, commitments and best block are written together,
+			// so the store never holds outputs ahead of its best block
+			store.writeLayer(dirty, commitmentList, blockHash, height, layerSetHash);
+		} catch (IOException e) {
+			logger.severe("Unable to write output cache to store, " + e.getMessage());
+			flushFailed = true;
+			return false;
+		}
+
+		statistics.flushed(dirty.size());
+		frozenMemoryUsage = 0;
+		frozenCommitments = null;
+		frozen = null;
+
+		logger.fine("Flushed " + dirty.size() + " outputs at height " + height + " in " + (System.currentTimeMillis() - start) + "ms, " + statistics);
+		return true;
+	}
+
+	/**
+	 * Computes the set hash of a store that was written without one
+	 */
+	private static MuHash computeSetHash(OutputStore store, Logger logger) throws IOException {
+		long start = System.currentTimeMillis();
+		long count = 0;
+		MuHash hash = new MuHash();
+		OutputIterator iterator = store.iterator();
+		try {
+			while (iterator.hasNext()) {
+				Pair<OutPoint, UnspentOutput> entry = iterator.next();
+				hash.insert(OutputSerializer.encodeElement(entry.getA(), entry.getB()));
+				count++;
+			}
+		} finally {
+			iterator.close();
+		}
+		logger.info("Computed output set hash over " + count + " outputs in " + (System.currentTimeMillis() - start) + "ms");
+		return hash;
+	}
+
+	private UnspentOutput readStore(OutPoint outPoint) {
+		try {
+			return store.getOutput(outPoint);
+		} catch (IOException e) {
+			logger.severe("Unable to read output store, " + e.getMessage());
+			throw new IllegalStateException("Unable to read output store", e);
+		}
+	}
+
+	private static Map<OutPoint, OutputCacheEntry> mergeLayers(Map<OutPoint, OutputCacheEntry> lower, Map<OutPoint, OutputCacheEntry> upper) {
+		Map<OutPoint, OutputCacheEntry> merged = new HashMap<OutPoint, OutputCacheEntry>(lower);
+		for (Entry<OutPoint, OutputCacheEntry> entry : upper.entrySet()) {
+			OutputCacheEntry upperEntry = entry.getValue();
+			if (upperEntry.isDirty() || !merged.containsKey(entry.getKey())) {
+				merged.put(entry.getKey(), upperEntry);
+			}
+		}
+		return merged;
+	}
+}
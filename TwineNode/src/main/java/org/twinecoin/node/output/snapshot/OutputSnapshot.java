@@ -0,0 +1,91 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output.snapshot;
+
+import org.twinecoin.common.MuHash;
+import org.twinecoin.common.SHA256;
+
+/**
+ * Summary of an unspent output snapshot.<br>
+ * <br>
+ * File format<br>
+ * - header: magic, format version, block hash, block height and the number of
+ * outputs per chunk<br>
+ * - chunks of outputs, sorted by outpoint<br>
+ * - chunk table: for each chunk its offset, length, output count and SHA256<br>
+ * - output count, commitment and set hash<br>
+ * - footer: offset of the chunk table and magic<br>
+ * <br>
+ * Each output is the txid, the index (varint) and the
+ * {@link org.twinecoin.node.output.OutputSerializer} encoding of the output.<br>
+ * <br>
+ * The commitment is a rolling hash over the chunk hashes, c = SHA256(c ||
+ * chunk hash), starting from 32 zero bytes.  Chunks always hold the same
+ * number of outputs, so the commitment depends only on the output set and
+ * the chunk size.<br>
+ * <br>
+ * The set hash is the digest of the {@link MuHash} of the outputs, which
+ * matches the output tracker's commitment at the snapshot height.
+ */
+public class OutputSnapshot {
+	static final int MAGIC = 0x54575553;
+	static final int FORMAT_VERSION = 2;
+	static final int HEADER_SIZE = 4 + 4 + 32 + 4 + 4;
+	static final int FOOTER_SIZE = 8 + 4;
+	static final int CHUNK_ENTRY_SIZE = 8 + 4 + 4 + 32;
+
+	public static final int DEFAULT_CHUNK_OUTPUTS = 65536;
+
+	private final byte[] blockHash;
+	private final int height;
+	private final long outputCount;
+	private final int chunkCount;
+	private final byte[] commitment;
+	private final byte[] setHash;
+
+	OutputSnapshot(byte[] blockHash, int height, long outputCount, int chunkCount, byte[] commitment, byte[] setHash) {
+		this.blockHash = blockHash;
+		this.height = height;
+		this.outputCount = outputCount;
+		this.chunkCount = chunkCount;
+		this.commitment = commitment;
+		this.setHash = setHash;
+	}
+
+	public byte[] getBlockHash() {
+		return blockHash;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public long getOutputCount() {
+		return outputCount;
+	}
+
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	/**
+	 * Gets the rolling commitment over the chunk hashes
+	 */
+	public byte[] getCommitment() {
+		return commitment;
+	}
+
+	/**
+	 * Gets the digest of the output set hash
+	 */
+	public byte[] getSetHash() {
+		return setHash;
+	}
+
+	static byte[] roll(byte[] commitment, byte[] chunkHash) {
+		return SHA256.getDigest(commitment, chunkHash);
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.MuHash;
+import org.twinecoin.common.Pair;
+import org.twinecoin.common.SHA256;
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.output.OutputSerializer;
+import org.twinecoin.node.output.OutputStore;
+
+/**
+ * Loads a snapshot into an output store.<br>
+ * <br>
+ * The chunk table is read first and the rolling commitment is checked against
+ * the chunk hashes.  Chunks are then memory mapped and decoded in parallel on
+ * the executor.  Each chunk is checked against its hash before it is written
+ * to the store.  The set hash is computed from the decoded outputs and must
+ * match the set hash in the file.  The best block is only recorded once every
+ * chunk has been loaded.<br>
+ * <br>
+ * A trusted set hash can be given, which is the output set commitment that
+ * any node holding the chain returns from
+ * {@link org.twinecoin.api.OutputTracker#getCommitment(int)}.  The rolling
+ * commitment depends on the chunk size, so it only protects the file.
+ */
+public class OutputSnapshotReader {
+	private final Logger logger;
+	private final ExecutorService executor;
+
+	public OutputSnapshotReader(Logger logger, ExecutorService executor) {
+		this.logger = logger;
+		this.executor = executor;
+	}
+
+	/**
+	 * Reads the summary of a snapshot and checks the chunk table against the
+	 * commitment, without loading any outputs
+	 */
+	public OutputSnapshot readSummary(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return readChunkTable(raf.getChannel(), file, null);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Loads a snapshot into an empty store.  If loading fails, the store may
+	 * hold some of the outputs and should be discarded.
+	 *
+	 * @param file the snapshot file
+	 * @param store the target store
+	 * @param expectedSetHash the set hash digest the snapshot must match, or
+	 * null to accept the set hash in the file
+	 * @return the snapshot summary
+	 */
+	public OutputSnapshot load(File file, final OutputStore store, byte[] expectedSetHash) throws IOException {
+		long start = System.currentTimeMillis();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			List<long[]> chunks = new ArrayList<long[]>();
+			List<byte[]> hashes = new ArrayList<byte[]>();
+			OutputSnapshot snapshot = readChunkTable(channel, file, new Pair<List<long[]>, List<byte[]>>(chunks, hashes));
+
+			if (expectedSetHash != null && !Arrays.equals(expectedSetHash, snapshot.getSetHash())) {
+				throw new IOException("Snapshot set hash does not match expected set hash, " + file);
+			}
+
+			List<Future<MuHash>> results = new ArrayList<Future<MuHash>>(chunks.size());
+			for (int i = 0; i < chunks.size(); i++) {
+				final long[] chunk = chunks.get(i);
+				final byte[] hash = hashes.get(i);
+				results.add(executor.submit(new Callable<MuHash>() {
+					@Override
+					public MuHash call() throws IOException {
+						return loadChunk(channel, chunk[0], (int) chunk[1], (int) chunk[2], hash, store);
+					}
+				}));
+			}
+
+			long loaded = 0;
+			MuHash setHash = new MuHash();
+			IOException failure = null;
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					setHash.combine(results.get(i).get());
+					loaded += chunks.get(i)[2];
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					failure = new IOException("Interrupted while loading snapshot");
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Unable to decode snapshot chunk, " + e.getCause(), e.getCause());
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			if (loaded != snapshot.getOutputCount()) {
+				throw new IOException("Snapshot output count mismatch, expected " + snapshot.getOutputCount() + ", loaded " + loaded);
+			}
+			byte[] setHashState = setHash.serialize();
+			if (!Arrays.equals(setHash.getDigest(), snapshot.getSetHash())) {
+				throw new IOException("Snapshot outputs do not match the set hash, " + file);
+			}
+
+			store.setBestBlock(snapshot.getBlockHash(), snapshot.getHeight(), setHashState);
+
+			logger.info("Loaded snapshot of " + loaded + " outputs at height " + snapshot.getHeight() + " in " + (System.currentTimeMillis() - start) + "ms");
+			return snapshot;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static OutputSnapshot readChunkTable(FileChannel channel, File file, Pair<List<long[]>, List<byte[]>> chunkTable) throws IOException {
+		long size = channel.size();
+		if (size < OutputSnapshot.HEADER_SIZE + OutputSnapshot.FOOTER_SIZE) {
+			throw new IOException("Snapshot file too short, " + file);
+		}
+
+		ByteBuffer header = read(channel, 0, OutputSnapshot.HEADER_SIZE);
+		if (header.getInt() != OutputSnapshot.MAGIC) {
+			throw new IOException("Snapshot file has bad magic number, " + file);
+		}
+		int version = header.getInt();
+		if (version != OutputSnapshot.FORMAT_VERSION) {
+			throw new IOException("Unsupported snapshot version " + version + ", " + file);
+		}
+		byte[] blockHash = new byte[32];
+		header.get(blockHash);
+		int height = header.getInt();
+
+		ByteBuffer footer = read(channel, size - OutputSnapshot.FOOTER_SIZE, OutputSnapshot.FOOTER_SIZE);
+		long tableOffset = footer.getLong();
+		if (footer.getInt() != OutputSnapshot.MAGIC || tableOffset < OutputSnapshot.HEADER_SIZE || tableOffset > size - OutputSnapshot.FOOTER_SIZE) {
+			throw new IOException("Snapshot file has a bad footer, " + file);
+		}
+
+		ByteBuffer table = read(channel, tableOffset, (int) (size - OutputSnapshot.FOOTER_SIZE - tableOffset));
+		int chunkCount = table.getInt();
+		if (chunkCount < 0 || table.remaining() != chunkCount * (long) OutputSnapshot.CHUNK_ENTRY_SIZE + 8 + 32 + 32) {
+			throw new IOException("Snapshot chunk table is corrupt, " + file);
+		}
+		byte[] commitment = new byte[32];
+		long expectedOffset = OutputSnapshot.HEADER_SIZE;
+		for (int i = 0; i < chunkCount; i++) {
+			long offset = table.getLong();
+			int length = table.getInt();
+			int count = table.getInt();
+			byte[] hash = new byte[32];
+			table.get(hash);
+			if (offset != expectedOffset || length < 0 || count < 0) {
+				throw new IOException("Snapshot chunk table is corrupt at chunk " + i + ", " + file);
+			}
+			expectedOffset += length;
+			commitment = OutputSnapshot.roll(commitment, hash);
+			if (chunkTable != null) {
+				chunkTable.getA().add(new long[] {offset, length, count});
+				chunkTable.getB().add(hash);
+			}
+		}
+		if (expectedOffset != tableOffset) {
+			throw new IOException("Snapshot chunks do not end at the chunk table, " + file);
+		}
+		long outputCount = table.getLong();
+		byte[] storedCommitment = new byte[32];
+		table.get(storedCommitment);
+		if (!Arrays.equals(commitment, storedCommitment)) {
+			throw new IOException("Snapshot commitment does not match chunk hashes, " + file);
+		}
+		byte[] setHash = new byte[32];
+		table.get(setHash);
+		return new OutputSnapshot(blockHash, height, outputCount, chunkCount, commitment, setHash);
+	}
+
+	private static MuHash loadChunk(FileChannel channel, long offset, int length, int count, byte[] hash, OutputStore store) throws IOException {
+		MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, offset, length);
+		ByteBuffer chunk = mapped.duplicate();
+		if (!Arrays.equals(hash, SHA256.getDigest(chunk))) {
+			throw new IOException("Snapshot chunk at offset " + offset + " fails checksum");
+		}
+		chunk = mapped.duplicate();
+		List<Pair<OutPoint, UnspentOutput>> batch = new ArrayList<Pair<OutPoint, UnspentOutput>>(count);
+		MuHash setHash = new MuHash();
+		try {
+			for (int i = 0; i < count; i++) {
+				byte[] txid = new byte[OutPoint.TXID_LENGTH];
+				chunk.get(txid);
+				OutPoint outPoint = new OutPoint(txid, VarInt.readInt(chunk));
+				UnspentOutput output = OutputSerializer.read(chunk);
+				setHash.insert(OutputSerializer.encodeElement(outPoint, output));
+				batch.add(new Pair<OutPoint, UnspentOutput>(outPoint, output));
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Snapshot chunk at offset " + offset + " is corrupt, " + e.getMessage());
+		}
+		if (chunk.hasRemaining()) {
+			throw new IOException("Snapshot chunk at offset " + offset + " has trailing data");
+		}
+		store.writeBatch(batch);
+		return setHash;
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) {
+				throw new IOException("Unexpected end of snapshot file");
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output.snapshot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.MuHash;
+import org.twinecoin.common.Pair;
+import org.twinecoin.common.SHA256;
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.output.OutputIterator;
+import org.twinecoin.node.output.OutputSerializer;
+import org.twinecoin.node.output.OutputStore;
+
+/**
+ * Writes a snapshot of an output store.<br>
+ * <br>
+ * The store is read in outpoint order on the calling thread.  Chunks are
+ * encoded and hashed on the executor and written in order as they complete,
+ * with a bounded number of chunks in flight.  The set hash is computed from
+ * the chunks and checked against the set hash held by the store.
+ */
+public class OutputSnapshotWriter {
+	private final Logger logger;
+	private final ExecutorService executor;
+	private final int threads;
+	private final int chunkOutputs;
+
+	public OutputSnapshotWriter(Logger logger, ExecutorService executor, int threads) {
+		this(logger, executor, threads, OutputSnapshot.DEFAULT_CHUNK_OUTPUTS);
+	}
+
+	public OutputSnapshotWriter(Logger logger, ExecutorService executor, int threads, int chunkOutputs) {
+		this.logger = logger;
+		this.executor = executor;
+		this.threads = Math.max(1, threads);
+		this.chunkOutputs = chunkOutputs;
+	}
+
+	/**
+	 * Writes a snapshot.  The store must not change while the snapshot is
+	 * written, so the output cache should be flushed first.
+	 *
+	 * @param store the store to write
+	 * @param file the snapshot file
+	 * @return the snapshot summary
+	 */
+	public OutputSnapshot write(OutputStore store, File file) throws IOException {
+		long start = System.currentTimeMillis();
+
+		byte[] blockHash = store.getBestBlock();
+		int height = store.getBestHeight();
+		if (blockHash == null) {
+			throw new IOException("Output store has no best block");
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		boolean success = false;
+		try {
+			FileChannel channel = out.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate(OutputSnapshot.HEADER_SIZE);
+			header.putInt(OutputSnapshot.MAGIC);
+			header.putInt(OutputSnapshot.FORMAT_VERSION);
+			header.put(blockHash);
+			header.putInt(height);
+			header.putInt(chunkOutputs);
+			header.flip();
+			writeFully(channel, header);
+
+			ChunkOutput chunks = new ChunkOutput(channel);
+			ArrayDeque<Future<EncodedChunk>> inFlight = new ArrayDeque<Future<EncodedChunk>>();
+
+			OutputIterator iterator = store.iterator();
+			try {
+				List<Pair<OutPoint, UnspentOutput>> chunk = new ArrayList<Pair<OutPoint, UnspentOutput>>(chunkOutputs);
+				while (iterator.hasNext()) {
+					chunk.add(iterator.next());
+					if (chunk.size() == chunkOutputs) {
+						inFlight.add(executor.submit(new EncodeTask(chunk)));
+						chunk = new ArrayList<Pair<OutPoint, UnspentOutput>>(chunkOutputs);
+					}
+					while (inFlight.size() > 2 * threads) {
+						chunks.append(getResult(inFlight.poll()));
+					}
+				}
+				if (!chunk.isEmpty()) {
+					inFlight.add(executor.submit(new EncodeTask(chunk)));
+				}
+			} finally {
+				iterator.close();
+			}
+
+			while (!inFlight.isEmpty()) {
+				chunks.append(getResult(inFlight.poll()));
+			}
+
+			long tableOffset = chunks.offset;
+			long outputCount = chunks.outputCount;
+			byte[] commitment = chunks.commitment;
+			byte[] setHash = chunks.setHash.getDigest();
+			byte[] storedSetHash = store.getSetHash();
+			if (storedSetHash != null && !Arrays.equals(new MuHash(storedSetHash).getDigest(), setHash)) {
+				throw new IOException("Output store does not match its set hash");
+			}
+			ByteBuffer table = ByteBuffer.allocate(4 + chunks.written.size() * OutputSnapshot.CHUNK_ENTRY_SIZE + 8 + 32 + 32 + OutputSnapshot.FOOTER_SIZE);
+			table.putInt(chunks.written.size());
+			for (EncodedChunk encoded : chunks.written) {
+				table.putLong(encoded.offset);
+				table.putInt(encoded.length);
+				table.putInt(encoded.outputCount);
+				table.put(encoded.hash);
+			}
+			table.putLong(outputCount);
+			table.put(commitment);
+			table.put(setHash);
+			table.putLong(tableOffset);
+			table.putInt(OutputSnapshot.MAGIC);
+			table.flip();
+			writeFully(channel, table);
+			channel.force(true);
+
+			out.close();
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			success = true;
+
+			logger.info("Wrote snapshot of " + outputCount + " outputs at height " + height + " in " + chunks.written.size() + " chunks, " + (System.currentTimeMillis() - start) + "ms");
+			return new OutputSnapshot(blockHash, height, outputCount, chunks.written.size(), commitment, setHash);
+		} finally {
+			if (!success) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+				tmp.delete();
+			}
+		}
+	}
+
+	private static EncodedChunk getResult(Future<EncodedChunk> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing snapshot");
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to encode snapshot chunk, " + e.getCause(), e.getCause());
+		}
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		int length = buf.remaining();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		return length;
+	}
+
+	/**
+	 * Appends encoded chunks to the file in order, rolls the commitment and
+	 * combines the set hash
+	 */
+	private static class ChunkOutput {
+		private final FileChannel channel;
+		private final List<EncodedChunk> written = new ArrayList<EncodedChunk>();
+		private long offset = OutputSnapshot.HEADER_SIZE;
+		private long outputCount = 0;
+		private byte[] commitment = new byte[32];
+		private MuHash setHash = new MuHash();
+
+		ChunkOutput(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void append(EncodedChunk encoded) throws IOException {
+			encoded.offset = offset;
+			offset += writeFully(channel, ByteBuffer.wrap(encoded.data));
+			outputCount += encoded.outputCount;
+			commitment = OutputSnapshot.roll(commitment, encoded.hash);
+			setHash.combine(encoded.setHash);
+			encoded.data = null;
+			encoded.setHash = null;
+			written.add(encoded);
+		}
+	}
+
+	private static class EncodedChunk {
+		private byte[] data;
+		private final int length;
+		private final int outputCount;
+		private final byte[] hash;
+		private MuHash setHash;
+		private long offset;
+
+		EncodedChunk(byte[] data, int outputCount, MuHash setHash) {
+			this.data = data;
+			this.setHash = setHash;
+			this.length = data.length;
+			this.outputCount = outputCount;
+			this.hash = SHA256.getDigest(data, 0, data.length);
+		}
+	}
+
+	private static class EncodeTask implements Callable<EncodedChunk> {
+		private final List<Pair<OutPoint, UnspentOutput>> outputs;
+
+		EncodeTask(List<Pair<OutPoint, UnspentOutput>> outputs) {
+			this.outputs = outputs;
+		}
+
+		@Override
+		public EncodedChunk call() {
+			int maxSize = 0;
+			for (Pair<OutPoint, UnspentOutput> entry : outputs) {
+				maxSize += OutPoint.TXID_LENGTH + VarInt.MAX_LENGTH + OutputSerializer.getMaxSize(entry.getB());
+			}
+			byte[] buf = new byte[maxSize];
+			int offset = 0;
+			MuHash setHash = new MuHash();
+			for (Pair<OutPoint, UnspentOutput> entry : outputs) {
+				OutPoint outPoint = entry.getA();
+				setHash.insert(OutputSerializer.encodeElement(outPoint, entry.getB()));
+				System.arraycopy(outPoint.getTxid(), 0, buf, offset, OutPoint.TXID_LENGTH);
+				offset = VarInt.write(buf, offset + OutPoint.TXID_LENGTH, outPoint.getIndex());
+				offset = OutputSerializer.write(buf, offset, entry.getB());
+			}
+			return new EncodedChunk(Arrays.copyOf(buf, offset), outputs.size(), setHash);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output.undo;
+
+import java.util.List;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+
+/**
+ * The changes a block made to the unspent output set.<br>
+ * <br>
+ * Outputs that were created and spent within the block are not included, so
+ * a block is undone by spending every created output and adding back every
+ * spent output, in any order.
+ */
+public class BlockUndo {
+	private final byte[] blockHash;
+	private final byte[] previousBlockHash;
+	private final int height;
+	private final List<OutPoint> created;
+	private final List<Pair<OutPoint, UnspentOutput>> spent;
+
+	/**
+	 * @param blockHash the hash of the block
+	 * @param previousBlockHash the hash of the previous block, or null for the
+	 * first block
+	 * @param height the height of the block
+	 * @param created the outputs created by the block, sorted by outpoint
+	 * @param spent the outputs spent by the block
+	 */
+	public BlockUndo(byte[] blockHash, byte[] previousBlockHash, int height, List<OutPoint> created, List<Pair<OutPoint, UnspentOutput>> spent) {
+		this.blockHash = blockHash;
+		this.previousBlockHash = previousBlockHash;
+		this.height = height;
+		this.created = created;
+		this.spent = spent;
+	}
+
+	public byte[] getBlockHash() {
+		return blockHash;
+	}
+
+	public byte[] getPreviousBlockHash() {
+		return previousBlockHash;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public List<OutPoint> getCreated() {
+		return created;
+	}
+
+	public List<Pair<OutPoint, UnspentOutput>> getSpent() {
+		return spent;
+	}
+}
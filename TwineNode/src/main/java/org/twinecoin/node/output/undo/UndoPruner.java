@@ -0,0 +1,91 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output.undo;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.twinecoin.node.output.ChainListener;
+
+/**
+ * Keeps the undo files within a disk budget.<br>
+ * <br>
+ * After each connected block, a prune of the {@link UndoStore} is queued on
+ * the executor, so block connection never waits for file deletion.  Only
+ * one prune is queued at a time.  Blocks within {@link #SAFETY_DEPTH} of the
+ * tip are never pruned, so that short reorgs can still be rolled back.
+ */
+public class UndoPruner implements ChainListener {
+	public static final int SAFETY_DEPTH = 288;
+
+	private final UndoStore undoStore;
+	private final Executor executor;
+	private final Logger logger;
+	private final long targetSize;
+	private final AtomicBoolean pending;
+	private volatile int tipHeight;
+
+	/**
+	 * @param undoStore the undo store to prune
+	 * @param executor the executor to run the prunes on
+	 * @param logger the logger
+	 * @param targetSize the target size of the undo files in bytes
+	 */
+	public UndoPruner(UndoStore undoStore, Executor executor, Logger logger, long targetSize) {
+		this.undoStore = undoStore;
+		this.executor = executor;
+		this.logger = logger;
+		this.targetSize = targetSize;
+		this.pending = new AtomicBoolean(false);
+		this.tipHeight = -1;
+	}
+
+	@Override
+	public void blockConnected(byte[] blockHash, int height) {
+		tipHeight = height;
+		if (height - SAFETY_DEPTH <= undoStore.getPrunedHeight() || !pending.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					pending.set(false);
+					prune();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.set(false);
+			logger.fine("Prune not queued, executor shut down");
+		}
+	}
+
+	@Override
+	public void blockDisconnected(byte[] blockHash, int height) {
+		tipHeight = height - 1;
+	}
+
+	/**
+	 * Prunes the undo files to the target size
+	 *
+	 * @return the number of bytes deleted
+	 */
+	public long prune() {
+		try {
+			long deleted = undoStore.prune(targetSize, tipHeight - SAFETY_DEPTH);
+			if (deleted > 0) {
+				logger.info("Pruned " + (deleted >> 20) + " MB of undo files to height " + undoStore.getPrunedHeight());
+			}
+			return deleted;
+		} catch (IOException e) {
+			logger.severe("Unable to prune undo files, " + e.getMessage());
+			return 0;
+		}
+	}
+}
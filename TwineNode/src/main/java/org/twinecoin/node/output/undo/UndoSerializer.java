@@ -0,0 +1,220 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output.undo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+import org.twinecoin.common.VarInt;
+
+/**
+ * Compact encoding of block undo records.<br>
+ * <br>
+ * - block hash and previous block hash (zero for the first block)<br>
+ * - height (varint)<br>
+ * - created outputs, grouped by txid: group count (varint), then for each
+ * group the txid, the output count (varint), the first index (varint) and
+ * the gaps between the remaining indexes minus one (varint)<br>
+ * - spent outputs: count (varint), then for each output the txid, the index
+ * (varint), height * 2 + coinbase (varint), the compressed amount (varint)
+ * and the compressed script<br>
+ * <br>
+ * Amounts drop trailing decimal zeros.  Pay to public key hash and pay to
+ * script hash scripts are stored as a type byte and the 20 byte hash.  Other
+ * scripts are stored as the script length plus 6 (varint) and the script.
+ */
+public class UndoSerializer {
+	private static final int SCRIPT_P2PKH = 0;
+	private static final int SCRIPT_P2SH = 1;
+	private static final int SPECIAL_SCRIPTS = 6;
+
+	public static byte[] encode(BlockUndo undo) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128 + 64 * undo.getSpent().size() + 8 * undo.getCreated().size());
+		try {
+			out.write(undo.getBlockHash());
+			out.write(undo.getPreviousBlockHash() == null ? new byte[OutPoint.TXID_LENGTH] : undo.getPreviousBlockHash());
+			VarInt.write(out, undo.getHeight());
+
+			List<OutPoint> created = undo.getCreated();
+			VarInt.write(out, countGroups(created));
+			int i = 0;
+			while (i < created.size()) {
+				byte[] txid = created.get(i).getTxid();
+				int end = i + 1;
+				while (end < created.size() && Arrays.equals(txid, created.get(end).getTxid())) {
+					end++;
+				}
+				out.write(txid);
+				VarInt.write(out, end - i);
+				VarInt.write(out, created.get(i).getIndex() & 0xFFFFFFFFL);
+				for (int j = i + 1; j < end; j++) {
+					VarInt.write(out, (created.get(j).getIndex() & 0xFFFFFFFFL) - (created.get(j - 1).getIndex() & 0xFFFFFFFFL) - 1);
+				}
+				i = end;
+			}
+
+			List<Pair<OutPoint, UnspentOutput>> spent = undo.getSpent();
+			VarInt.write(out, spent.size());
+			for (Pair<OutPoint, UnspentOutput> entry : spent) {
+				UnspentOutput output = entry.getB();
+				out.write(entry.getA().getTxid());
+				VarInt.write(out, entry.getA().getIndex() & 0xFFFFFFFFL);
+				VarInt.write(out, (((long) output.getHeight()) << 1) | (output.isCoinbase() ? 1 : 0));
+				VarInt.write(out, compressAmount(output.getValue()));
+				writeScript(out, output.getScript());
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to write to byte array", e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes an undo record
+	 *
+	 * @throws RuntimeException if the record is malformed
+	 */
+	public static BlockUndo decode(ByteBuffer buf) {
+		byte[] blockHash = new byte[OutPoint.TXID_LENGTH];
+		buf.get(blockHash);
+		byte[] previousBlockHash = new byte[OutPoint.TXID_LENGTH];
+		buf.get(previousBlockHash);
+		int height = VarInt.readInt(buf);
+		if (height == 0) {
+			previousBlockHash = null;
+		}
+
+		int groups = VarInt.readInt(buf);
+		List<OutPoint> created = new ArrayList<OutPoint>();
+		for (int i = 0; i < groups; i++) {
+			byte[] txid = new byte[OutPoint.TXID_LENGTH];
+			buf.get(txid);
+			int count = VarInt.readInt(buf);
+			long index = VarInt.read(buf);
+			created.add(new OutPoint(txid, (int) index));
+			for (int j = 1; j < count; j++) {
+				index += VarInt.read(buf) + 1;
+				created.add(new OutPoint(txid, (int) index));
+			}
+		}
+
+		int spentCount = VarInt.readInt(buf);
+		List<Pair<OutPoint, UnspentOutput>> spent = new ArrayList<Pair<OutPoint, UnspentOutput>>(spentCount);
+		for (int i = 0; i < spentCount; i++) {
+			byte[] txid = new byte[OutPoint.TXID_LENGTH];
+			buf.get(txid);
+			OutPoint outPoint = new OutPoint(txid, (int) VarInt.read(buf));
+			long code = VarInt.read(buf);
+			long value = decompressAmount(VarInt.read(buf));
+			byte[] script = readScript(buf);
+			spent.add(new Pair<OutPoint, UnspentOutput>(outPoint, new UnspentOutput(value, script, (int) (code >>> 1), (code & 1) != 0)));
+		}
+		if (buf.hasRemaining()) {
+			throw new IllegalArgumentException("Trailing data in undo record");
+		}
+		return new BlockUndo(blockHash, previousBlockHash, height, created, spent);
+	}
+
+	static long compressAmount(long n) {
+		if (n == 0) {
+			return 0;
+		}
+		int e = 0;
+		while (n % 10 == 0 && e < 9) {
+			n /= 10;
+			e++;
+		}
+		if (e < 9) {
+			int d = (int) (n % 10);
+			n /= 10;
+			return 1 + (n * 9 + d - 1) * 10 + e;
+		} else {
+			return 1 + (n - 1) * 10 + 9;
+		}
+	}
+
+	static long decompressAmount(long x) {
+		if (x == 0) {
+			return 0;
+		}
+		x--;
+		int e = (int) (x % 10);
+		x /= 10;
+		long n;
+		if (e < 9) {
+			int d = (int) (x % 9) + 1;
+			x /= 9;
+			n = x * 10 + d;
+		} else {
+			n = x + 1;
+		}
+		while (e > 0) {
+			n *= 10;
+			e--;
+		}
+		return n;
+	}
+
+	private static void writeScript(ByteArrayOutputStream out, byte[] script) throws IOException {
+		if (script.length == 25 && script[0] == (byte) 0x76 && script[1] == (byte) 0xA9 && script[2] == 20 && script[23] == (byte) 0x88 && script[24] == (byte) 0xAC) {
+			out.write(SCRIPT_P2PKH);
+			out.write(script, 3, 20);
+		} else if (script.length == 23 && script[0] == (byte) 0xA9 && script[1] == 20 && script[22] == (byte) 0x87) {
+			out.write(SCRIPT_P2SH);
+			out.write(script, 2, 20);
+		} else {
+			VarInt.write(out, script.length + SPECIAL_SCRIPTS);
+			out.write(script);
+		}
+	}
+
+	private static byte[] readScript(ByteBuffer buf) {
+		int type = VarInt.readInt(buf);
+		byte[] script;
+		switch (type) {
+		case SCRIPT_P2PKH:
+			script = new byte[25];
+			script[0] = (byte) 0x76;
+			script[1] = (byte) 0xA9;
+			script[2] = 20;
+			buf.get(script, 3, 20);
+			script[23] = (byte) 0x88;
+			script[24] = (byte) 0xAC;
+			return script;
+		case SCRIPT_P2SH:
+			script = new byte[23];
+			script[0] = (byte) 0xA9;
+			script[1] = 20;
+			buf.get(script, 2, 20);
+			script[22] = (byte) 0x87;
+			return script;
+		default:
+			if (type < SPECIAL_SCRIPTS) {
+				throw new IllegalArgumentException("Unsupported script type " + type);
+			}
+			script = new byte[type - SPECIAL_SCRIPTS];
+			buf.get(script);
+			return script;
+		}
+	}
+
+	private static int countGroups(List<OutPoint> created) {
+		int groups = 0;
+		for (int i = 0; i < created.size(); i++) {
+			if (i == 0 || !Arrays.equals(created.get(i - 1).getTxid(), created.get(i).getTxid())) {
+				groups++;
+			}
+		}
+		return groups;
+	}
+}
@@ -0,0 +1,311 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output.undo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.store.KeyValueStore;
+
+/**
+ * Stores block undo records in append-only files in the blocks directory.<br>
+ * <br>
+ * Files are named rev00000.dat, rev00001.dat, ... and a new file is started
+ * once the current file exceeds {@link #MAX_FILE_SIZE}.  Each record is the
+ * payload length (4 bytes), the CRC32 of the payload (4 bytes) and the
+ * {@link UndoSerializer} encoding.<br>
+ * <br>
+ * The location of each record is indexed in the key-value store under 'u' +
+ * block hash as the file number and offset (varints).  The highest block in
+ * each file is indexed under 'f' + file number, so that whole files can be
+ * pruned once every block in them is buried.  Records in pruned files read
+ * as missing.
+ */
+public class UndoStore implements Closeable {
+	public static final long MAX_FILE_SIZE = 128L << 20;
+
+	static final byte INDEX_PREFIX = 'u';
+
+	static final byte FILE_PREFIX = 'f';
+
+	private static final byte[] PRUNED_HEIGHT_KEY = new byte[] {'p'};
+
+	private static final Pattern FILE_NAME = Pattern.compile("rev(\\d{5,})\\.dat");
+
+	private static final int HEADER_SIZE = 8;
+
+	private final File dir;
+	private final KeyValueStore index;
+	private final Logger logger;
+	private final long maxFileSize;
+
+	// Highest block height in each file, except those pruned
+	private final TreeMap<Integer, Integer> fileHeights;
+	private volatile int prunedHeight;
+
+	private int fileNumber;
+	private FileOutputStream out;
+	private FileChannel channel;
+
+	public UndoStore(File dir, KeyValueStore index, Logger logger) throws IOException {
+		this(dir, index, logger, MAX_FILE_SIZE);
+	}
+
+	UndoStore(File dir, KeyValueStore index, Logger logger, long maxFileSize) throws IOException {
+		this.dir = dir;
+		this.index = index;
+		this.logger = logger;
+		this.maxFileSize = maxFileSize;
+		this.fileHeights = new TreeMap<Integer, Integer>();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create undo directory, " + dir);
+		}
+		// Pruning removes files from the start, so the newest file is found
+		// by listing rather than counting up from zero
+		int last = 0;
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				Matcher m = FILE_NAME.matcher(name);
+				if (m.matches()) {
+					int number = Integer.parseInt(m.group(1));
+					last = Math.max(last, number);
+					byte[] height = index.get(getFileKey(number));
+					fileHeights.put(number, height == null ? -1 : (int) VarInt.read(height, 0, null));
+				}
+			}
+		}
+		byte[] pruned = index.get(PRUNED_HEIGHT_KEY);
+		this.prunedHeight = pruned == null ? -1 : (int) VarInt.read(pruned, 0, null);
+		openFile(last);
+	}
+
+	/**
+	 * Appends an undo record and indexes it by block hash
+	 */
+	public synchronized void write(BlockUndo undo) throws IOException {
+		byte[] payload = UndoSerializer.encode(undo);
+		if (channel.position() > 0 && channel.position() + HEADER_SIZE + payload.length > maxFileSize) {
+			channel.force(false);
+			out.close();
+			openFile(fileNumber + 1);
+		}
+		long offset = channel.position();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		buf.putInt(payload.length);
+		buf.putInt((int) crc.getValue());
+		buf.put(payload);
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+
+		byte[] location = new byte[2 * VarInt.MAX_LENGTH];
+		int length = VarInt.write(location, 0, fileNumber);
+		length = VarInt.write(location, length, offset);
+		index.put(getIndexKey(undo.getBlockHash()), Arrays.copyOf(location, length));
+
+		Integer fileHeight = fileHeights.get(fileNumber);
+		if (fileHeight == null || undo.getHeight() > fileHeight) {
+			fileHeights.put(fileNumber, undo.getHeight());
+			index.put(getFileKey(fileNumber), encodeHeight(undo.getHeight()));
+		}
+	}
+
+	/**
+	 * Reads the undo record for a block
+	 *
+	 * @return the record, or null if there is no record for the block or its
+	 * file has been pruned
+	 */
+	public BlockUndo read(byte[] blockHash) throws IOException {
+		byte[] location = index.get(getIndexKey(blockHash));
+		if (location == null) {
+			return null;
+		}
+		int[] end = new int[1];
+		int number = (int) VarInt.read(location, 0, end);
+		long offset = VarInt.read(location, end[0], null);
+
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(getFile(number), "r");
+		} catch (FileNotFoundException e) {
+			logger.fine("Undo record pruned with " + getFile(number).getName());
+			return null;
+		}
+		try {
+			FileChannel in = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(in, header, offset);
+			int payloadSize = header.getInt(0);
+			if (payloadSize < 0 || offset + HEADER_SIZE + payloadSize > in.size()) {
+				throw new IOException("Undo record out of range in " + getFile(number).getName() + " at " + offset);
+			}
+			ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+			readFully(in, payload, offset + HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(payload.array(), 0, payloadSize);
+			if ((int) crc.getValue() != header.getInt(4)) {
+				throw new IOException("Undo record fails checksum in " + getFile(number).getName() + " at " + offset);
+			}
+			payload.flip();
+			BlockUndo undo;
+			try {
+				undo = UndoSerializer.decode(payload);
+			} catch (RuntimeException e) {
+				throw new IOException("Undo record is corrupt in " + getFile(number).getName() + " at " + offset + ", " + e.getMessage());
+			}
+			if (!Arrays.equals(blockHash, undo.getBlockHash())) {
+				throw new IOException("Undo record for wrong block in " + getFile(number).getName() + " at " + offset);
+			}
+			return undo;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Deletes the oldest undo files until the files fit the target size.<br>
+	 * <br>
+	 * Only whole files where every block is at or below the given height are
+	 * deleted, and the file being written is always kept, so the files may
+	 * stay above the target.  The index entries of pruned records are kept.
+	 * Writes are only held up while the files to delete are chosen.
+	 *
+	 * @param targetSize the target total size of the files in bytes
+	 * @param maxHeight the highest block height that may be pruned
+	 * @return the number of bytes deleted
+	 */
+	public long prune(long targetSize, int maxHeight) throws IOException {
+		TreeMap<Integer, Integer> candidates;
+		long size = 0;
+		synchronized (this) {
+			candidates = new TreeMap<Integer, Integer>(fileHeights.headMap(fileNumber));
+			for (Integer number : fileHeights.keySet()) {
+				size += getFile(number).length();
+			}
+		}
+		long deleted = 0;
+		int pruned = prunedHeight;
+		for (Entry<Integer, Integer> entry : candidates.entrySet()) {
+			int height = entry.getValue();
+			if (size - deleted <= targetSize || height > maxHeight) {
+				break;
+			}
+			if (height < 0) {
+				// No record of the file's height, so it is kept
+				continue;
+			}
+			File file = getFile(entry.getKey());
+			long length = file.length();
+			if (!file.delete()) {
+				logger.warning("Unable to delete undo file " + file.getName());
+				break;
+			}
+			deleted += length;
+			pruned = Math.max(pruned, height);
+			synchronized (this) {
+				fileHeights.remove(entry.getKey());
+				index.delete(getFileKey(entry.getKey()));
+				index.put(PRUNED_HEIGHT_KEY, encodeHeight(pruned));
+			}
+			prunedHeight = pruned;
+			logger.fine("Pruned undo file " + file.getName() + " to height " + height);
+		}
+		return deleted;
+	}
+
+	/**
+	 * Gets the highest block height whose undo record has been pruned, or -1
+	 * if nothing has been pruned
+	 */
+	public int getPrunedHeight() {
+		return prunedHeight;
+	}
+
+	/**
+	 * Gets the total size of the undo files in bytes
+	 */
+	public synchronized long getDiskUsage() {
+		long size = 0;
+		for (Integer number : fileHeights.keySet()) {
+			size += getFile(number).length();
+		}
+		return size;
+	}
+
+	/**
+	 * Forces written records to disk.  This must complete before the output
+	 * set that the records undo is written.
+	 */
+	public synchronized void sync() throws IOException {
+		channel.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.force(false);
+		out.close();
+	}
+
+	private void openFile(int number) throws IOException {
+		this.fileNumber = number;
+		if (!fileHeights.containsKey(number)) {
+			fileHeights.put(number, -1);
+		}
+		this.out = new FileOutputStream(getFile(number), true);
+		this.channel = out.getChannel();
+		channel.position(channel.size());
+		logger.fine("Opened undo file " + getFile(number).getName() + " at " + channel.size());
+	}
+
+	private File getFile(int number) {
+		return new File(dir, String.format("rev%05d.dat", number));
+	}
+
+	private static byte[] getFileKey(int number) {
+		return ByteBuffer.allocate(5).put(FILE_PREFIX).putInt(number).array();
+	}
+
+	private static byte[] encodeHeight(int height) {
+		byte[] buf = new byte[VarInt.MAX_LENGTH];
+		return Arrays.copyOf(buf, VarInt.write(buf, 0, height));
+	}
+
+	private static byte[] getIndexKey(byte[] blockHash) {
+		byte[] key = new byte[1 + OutPoint.TXID_LENGTH];
+		key[0] = INDEX_PREFIX;
+		System.arraycopy(blockHash, 0, key, 1, OutPoint.TXID_LENGTH);
+		return key;
+	}
+
+	private static void readFully(FileChannel in, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			if (in.read(buf, position + buf.position()) < 0) {
+				throw new IOException("Unexpected end of undo file");
+			}
+		}
+	}
+}
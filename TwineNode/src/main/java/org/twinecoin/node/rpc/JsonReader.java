@@ -0,0 +1,280 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.rpc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses a JSON document.<br>
+ * <br>
+ * Objects are decoded as a Map, arrays as a List, integers that fit in 64
+ * bits as Long, other numbers as Double, and null as null.  Requests are
+ * small, so the whole document is decoded at once.
+ */
+public class JsonReader {
+	// Nesting limit, so a hostile document cannot overflow the stack
+	public static final int MAX_DEPTH = 64;
+
+	private final byte[] data;
+	private final int end;
+	private int pos;
+
+	private JsonReader(byte[] data, int offset, int length) {
+		this.data = data;
+		this.pos = offset;
+		this.end = offset + length;
+	}
+
+	/**
+	 * Parses a UTF-8 document
+	 *
+	 * @return the value, which may be null
+	 * @throws IllegalArgumentException if the document is not valid JSON
+	 */
+	public static Object parse(byte[] data, int offset, int length) {
+		JsonReader reader = new JsonReader(data, offset, length);
+		reader.skipWhitespace();
+		Object value = reader.readValue(0);
+		reader.skipWhitespace();
+		if (reader.pos != reader.end) {
+			throw reader.error("Unexpected data after value");
+		}
+		return value;
+	}
+
+	public static Object parse(String json) {
+		byte[] data = json.getBytes(StandardCharsets.UTF_8);
+		return parse(data, 0, data.length);
+	}
+
+	private Object readValue(int depth) {
+		if (depth > MAX_DEPTH) {
+			throw error("Nesting too deep");
+		}
+		if (pos == end) {
+			throw error("Unexpected end of document");
+		}
+		switch (data[pos]) {
+			case '{':
+				return readObject(depth);
+			case '[':
+				return readArray(depth);
+			case '"':
+				return readString();
+			case 't':
+				expect("true");
+				return Boolean.TRUE;
+			case 'f':
+				expect("false");
+				return Boolean.FALSE;
+			case 'n':
+				expect("null");
+				return null;
+			default:
+				return readNumber();
+		}
+	}
+
+	private Map<String, Object> readObject(int depth) {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		pos++;
+		skipWhitespace();
+		if (pos < end && data[pos] == '}') {
+			pos++;
+			return map;
+		}
+		while (true) {
+			skipWhitespace();
+			if (pos == end || data[pos] != '"') {
+				throw error("Expected member name");
+			}
+			String name = readString();
+			skipWhitespace();
+			if (pos == end || data[pos] != ':') {
+				throw error("Expected ':'");
+			}
+			pos++;
+			skipWhitespace();
+			map.put(name, readValue(depth + 1));
+			skipWhitespace();
+			if (pos == end) {
+				throw error("Unterminated object");
+			}
+			byte b = data[pos++];
+			if (b == '}') {
+				return map;
+			} else if (b != ',') {
+				throw error("Expected ',' or '}'");
+			}
+		}
+	}
+
+	private List<Object> readArray(int depth) {
+		List<Object> list = new ArrayList<Object>();
+		pos++;
+		skipWhitespace();
+		if (pos < end && data[pos] == ']') {
+			pos++;
+			return list;
+		}
+		while (true) {
+			skipWhitespace();
+			list.add(readValue(depth + 1));
+			skipWhitespace();
+			if (pos == end) {
+				throw error("Unterminated array");
+			}
+			byte b = data[pos++];
+			if (b == ']') {
+				return list;
+			} else if (b != ',') {
+				throw error("Expected ',' or ']'");
+			}
+		}
+	}
+
+	private String readString() {
+		pos++;
+		int start = pos;
+		// Fast path for strings without escapes
+		while (pos < end && data[pos] != '"' && data[pos] != '\\') {
+			if ((data[pos] & 0xFF) < 0x20) {
+				throw error("Control character in string");
+			}
+			pos++;
+		}
+		if (pos == end) {
+			throw error("Unterminated string");
+		}
+		if (data[pos] == '"') {
+			return new String(data, start, pos++ - start, StandardCharsets.UTF_8);
+		}
+		StringBuilder sb = new StringBuilder(new String(data, start, pos - start, StandardCharsets.UTF_8));
+		while (true) {
+			if (pos == end) {
+				throw error("Unterminated string");
+			}
+			byte b = data[pos];
+			if (b == '"') {
+				pos++;
+				return sb.toString();
+			} else if (b == '\\') {
+				if (pos + 1 >= end) {
+					throw error("Unterminated string");
+				}
+				byte e = data[pos + 1];
+				pos += 2;
+				switch (e) {
+					case '"': sb.append('"'); break;
+					case '\\': sb.append('\\'); break;
+					case '/': sb.append('/'); break;
+					case 'b': sb.append('\b'); break;
+					case 'f': sb.append('\f'); break;
+					case 'n': sb.append('\n'); break;
+					case 'r': sb.append('\r'); break;
+					case 't': sb.append('\t'); break;
+					case 'u':
+						if (pos + 4 > end) {
+							throw error("Truncated escape");
+						}
+						int c = 0;
+						for (int i = 0; i < 4; i++) {
+							int digit = Character.digit(data[pos++], 16);
+							if (digit < 0) {
+								throw error("Invalid escape");
+							}
+							c = (c << 4) | digit;
+						}
+						sb.append((char) c);
+						break;
+					default:
+						throw error("Invalid escape");
+				}
+			} else {
+				int start2 = pos;
+				while (pos < end && data[pos] != '"' && data[pos] != '\\') {
+					if ((data[pos] & 0xFF) < 0x20) {
+						throw error("Control character in string");
+					}
+					pos++;
+				}
+				sb.append(new String(data, start2, pos - start2, StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	private Object readNumber() {
+		int start = pos;
+		boolean integer = true;
+		if (pos < end && data[pos] == '-') {
+			pos++;
+		}
+		int digits = pos;
+		while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+			pos++;
+		}
+		if (pos == digits || (data[digits] == '0' && pos - digits > 1)) {
+			throw error("Invalid number");
+		}
+		if (pos < end && data[pos] == '.') {
+			integer = false;
+			pos++;
+			int fraction = pos;
+			while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+				pos++;
+			}
+			if (pos == fraction) {
+				throw error("Invalid number");
+			}
+		}
+		if (pos < end && (data[pos] == 'e' || data[pos] == 'E')) {
+			integer = false;
+			pos++;
+			if (pos < end && (data[pos] == '+' || data[pos] == '-')) {
+				pos++;
+			}
+			int exponent = pos;
+			while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+				pos++;
+			}
+			if (pos == exponent) {
+				throw error("Invalid number");
+			}
+		}
+		String s = new String(data, start, pos - start, StandardCharsets.US_ASCII);
+		if (integer && pos - digits <= 19) {
+			try {
+				return Long.parseLong(s);
+			} catch (NumberFormatException e) {
+				// Out of range
+			}
+		}
+		return Double.parseDouble(s);
+	}
+
+	private void expect(String literal) {
+		for (int i = 0; i < literal.length(); i++) {
+			if (pos == end || data[pos] != literal.charAt(i)) {
+				throw error("Invalid literal");
+			}
+			pos++;
+		}
+	}
+
+	private void skipWhitespace() {
+		while (pos < end && (data[pos] == ' ' || data[pos] == '\t' || data[pos] == '\n' || data[pos] == '\r')) {
+			pos++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at offset " + pos);
+	}
+}
@@ -0,0 +1,290 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.rpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Writes JSON to a stream.<br>
+ * <br>
+ * Values are encoded straight into a fixed buffer, which is written to the
+ * stream when full, so a large response is never held in memory.  Commas
+ * are inserted automatically.  The writer does not check that objects and
+ * arrays are balanced or that names are only used inside objects.
+ */
+public class JsonWriter {
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final byte[] NULL = "null".getBytes();
+	private static final byte[] TRUE = "true".getBytes();
+	private static final byte[] FALSE = "false".getBytes();
+
+	private final OutputStream out;
+	private final byte[] buf;
+	private int pos;
+	// True when the next value in the current object or array needs a comma
+	private boolean comma;
+
+	public JsonWriter(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	public JsonWriter(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buf = new byte[bufferSize];
+		this.pos = 0;
+		this.comma = false;
+	}
+
+	public JsonWriter beginObject() throws IOException {
+		separate();
+		put((byte) '{');
+		comma = false;
+		return this;
+	}
+
+	public JsonWriter endObject() throws IOException {
+		put((byte) '}');
+		comma = true;
+		return this;
+	}
+
+	public JsonWriter beginArray() throws IOException {
+		separate();
+		put((byte) '[');
+		comma = false;
+		return this;
+	}
+
+	public JsonWriter endArray() throws IOException {
+		put((byte) ']');
+		comma = true;
+		return this;
+	}
+
+	/**
+	 * Writes the name of the next object member
+	 */
+	public JsonWriter name(String name) throws IOException {
+		separate();
+		string(name);
+		put((byte) ':');
+		comma = false;
+		return this;
+	}
+
+	public JsonWriter value(String value) throws IOException {
+		separate();
+		if (value == null) {
+			put(NULL);
+		} else {
+			string(value);
+		}
+		comma = true;
+		return this;
+	}
+
+	public JsonWriter value(long value) throws IOException {
+		separate();
+		if (value == Long.MIN_VALUE) {
+			put(Long.toString(value));
+		} else {
+			if (value < 0) {
+				put((byte) '-');
+				value = -value;
+			}
+			ensure(20);
+			int end = pos + digits(value);
+			for (int i = end - 1; i >= pos; i--) {
+				buf[i] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			pos = end;
+		}
+		comma = true;
+		return this;
+	}
+
+	/**
+	 * Writes a number.  NaN and infinite values are written as null.
+	 */
+	public JsonWriter value(double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return nullValue();
+		}
+		if (value == (long) value) {
+			return value((long) value);
+		}
+		separate();
+		put(Double.toString(value));
+		comma = true;
+		return this;
+	}
+
+	public JsonWriter value(boolean value) throws IOException {
+		separate();
+		put(value ? TRUE : FALSE);
+		comma = true;
+		return this;
+	}
+
+	public JsonWriter nullValue() throws IOException {
+		separate();
+		put(NULL);
+		comma = true;
+		return this;
+	}
+
+	/**
+	 * Writes bytes as a hex string, or null if the bytes are null
+	 */
+	public JsonWriter hexValue(byte[] value) throws IOException {
+		if (value == null) {
+			return nullValue();
+		}
+		separate();
+		put((byte) '"');
+		for (byte b : value) {
+			ensure(2);
+			buf[pos++] = HEX[(b >> 4) & 0xF];
+			buf[pos++] = HEX[b & 0xF];
+		}
+		put((byte) '"');
+		comma = true;
+		return this;
+	}
+
+	/**
+	 * Writes a value decoded by {@link JsonReader}
+	 */
+	@SuppressWarnings("unchecked")
+	public JsonWriter jsonValue(Object value) throws IOException {
+		if (value == null) {
+			nullValue();
+		} else if (value instanceof String) {
+			value((String) value);
+		} else if (value instanceof Long) {
+			value(((Long) value).longValue());
+		} else if (value instanceof Number) {
+			value(((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			value(((Boolean) value).booleanValue());
+		} else if (value instanceof List) {
+			beginArray();
+			for (Object element : (List<Object>) value) {
+				jsonValue(element);
+			}
+			endArray();
+		} else if (value instanceof Map) {
+			beginObject();
+			for (Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+				name(entry.getKey());
+				jsonValue(entry.getValue());
+			}
+			endObject();
+		} else {
+			throw new IllegalArgumentException("Not a JSON value, " + value.getClass().getName());
+		}
+		return this;
+	}
+
+	/**
+	 * Writes the buffered bytes to the stream
+	 */
+	public void flush() throws IOException {
+		if (pos > 0) {
+			out.write(buf, 0, pos);
+			pos = 0;
+		}
+		out.flush();
+	}
+
+	private void separate() throws IOException {
+		if (comma) {
+			put((byte) ',');
+		}
+	}
+
+	private void string(String s) throws IOException {
+		put((byte) '"');
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			ensure(6);
+			if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+				buf[pos++] = (byte) c;
+			} else if (c == '"' || c == '\\') {
+				buf[pos++] = '\\';
+				buf[pos++] = (byte) c;
+			} else if (c == '\n') {
+				buf[pos++] = '\\';
+				buf[pos++] = 'n';
+			} else if (c < 0x20) {
+				buf[pos++] = '\\';
+				buf[pos++] = 'u';
+				buf[pos++] = '0';
+				buf[pos++] = '0';
+				buf[pos++] = HEX[c >> 4];
+				buf[pos++] = HEX[c & 0xF];
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xC0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf[pos++] = (byte) (0xF0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogate
+				buf[pos++] = '?';
+			} else {
+				buf[pos++] = (byte) (0xE0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		put((byte) '"');
+	}
+
+	private void put(String ascii) throws IOException {
+		for (int i = 0; i < ascii.length(); i++) {
+			put((byte) ascii.charAt(i));
+		}
+	}
+
+	private void put(byte[] bytes) throws IOException {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buf, pos, bytes.length);
+		pos += bytes.length;
+	}
+
+	private void put(byte b) throws IOException {
+		ensure(1);
+		buf[pos++] = b;
+	}
+
+	private void ensure(int length) throws IOException {
+		if (pos + length > buf.length) {
+			out.write(buf, 0, pos);
+			pos = 0;
+		}
+	}
+
+	private static int digits(long value) {
+		int digits = 1;
+		while (value >= 10) {
+			value /= 10;
+			digits++;
+		}
+		return digits;
+	}
+}
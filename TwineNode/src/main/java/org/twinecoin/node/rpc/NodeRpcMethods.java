@@ -0,0 +1,229 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.rpc;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.twinecoin.api.data.AddressHistoryEntry;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.node.address.TwineAddressTracker;
+import org.twinecoin.node.filter.TwineFilterTracker;
+import org.twinecoin.node.mempool.FeeEstimator;
+import org.twinecoin.node.mempool.MemoryPoolEntry;
+import org.twinecoin.node.mempool.TwineMemoryPool;
+import org.twinecoin.node.output.TwineOutputTracker;
+
+/**
+ * The RPC methods for querying the node.<br>
+ * <br>
+ * Hashes and scripts are hex strings, in the byte order they are stored.
+ * Address history is read and written a page at a time, so any size of
+ * history can be returned without holding it in memory.
+ */
+public class NodeRpcMethods {
+	// Address history entries read from the index at a time
+	static final int HISTORY_PAGE = 1000;
+
+	private static final int HASH_LENGTH = 32;
+
+	private final TwineOutputTracker outputTracker;
+	private final TwineMemoryPool memoryPool;
+	private final FeeEstimator feeEstimator;
+	private final TwineAddressTracker addressTracker;
+	private final TwineFilterTracker filterTracker;
+
+	/**
+	 * @param addressTracker the address index, or null if there is none
+	 * @param filterTracker the block filter index, or null if there is none
+	 */
+	public NodeRpcMethods(TwineOutputTracker outputTracker, TwineMemoryPool memoryPool, FeeEstimator feeEstimator,
+			TwineAddressTracker addressTracker, TwineFilterTracker filterTracker) {
+		this.outputTracker = outputTracker;
+		this.memoryPool = memoryPool;
+		this.feeEstimator = feeEstimator;
+		this.addressTracker = addressTracker;
+		this.filterTracker = filterTracker;
+	}
+
+	/**
+	 * Adds the methods to a server
+	 */
+	public void register(RpcServer server) {
+		server.register("getblockcount", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) {
+				return longResult(outputTracker.getBestHeight());
+			}
+		});
+		server.register("getbestblockhash", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) {
+				final byte[] hash = outputTracker.getBestBlock();
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.hexValue(hash);
+					}
+				};
+			}
+		});
+		server.register("getmempoolinfo", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) {
+				final int size = memoryPool.size();
+				final long usage = memoryPool.getMemoryUsage();
+				final double minFeeRate = memoryPool.getMinFeeRate();
+				final long evicted = memoryPool.getEvictedCount();
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.beginObject();
+						out.name("size").value(size);
+						out.name("usage").value(usage);
+						out.name("minfeerate").value(minFeeRate);
+						out.name("evicted").value(evicted);
+						out.endObject();
+					}
+				};
+			}
+		});
+		server.register("getmempoolentry", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) throws RpcException {
+				final MemoryPoolEntry entry = memoryPool.getEntry(params.getHex(0, HASH_LENGTH));
+				if (entry == null) {
+					throw new RpcException(RpcException.NOT_AVAILABLE, "Transaction not in memory pool");
+				}
+				final long fee = entry.getFee();
+				final int size = entry.getSize();
+				final long time = entry.getTime();
+				final int ancestorCount = entry.getAncestorCount();
+				final long ancestorSize = entry.getAncestorSize();
+				final long ancestorFee = entry.getAncestorFee();
+				final int descendantCount = entry.getDescendantCount();
+				final long descendantSize = entry.getDescendantSize();
+				final long descendantFee = entry.getDescendantFee();
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.beginObject();
+						out.name("fee").value(fee);
+						out.name("size").value(size);
+						out.name("time").value(time);
+						out.name("ancestorcount").value(ancestorCount);
+						out.name("ancestorsize").value(ancestorSize);
+						out.name("ancestorfee").value(ancestorFee);
+						out.name("descendantcount").value(descendantCount);
+						out.name("descendantsize").value(descendantSize);
+						out.name("descendantfee").value(descendantFee);
+						out.endObject();
+					}
+				};
+			}
+		});
+		server.register("getrawtransaction", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) throws RpcException {
+				Transaction tx = memoryPool.getTransaction(params.getHex(0, HASH_LENGTH));
+				if (tx == null) {
+					throw new RpcException(RpcException.NOT_AVAILABLE, "Transaction not in memory pool");
+				}
+				final byte[] serialized = tx.getSerialized();
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.hexValue(serialized);
+					}
+				};
+			}
+		});
+		server.register("estimatefee", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) throws RpcException {
+				final double feeRate = feeEstimator.estimateFeeRate(params.getInt(0, 1, FeeEstimator.MAX_TARGET));
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.value(feeRate);
+					}
+				};
+			}
+		});
+		server.register("getaddresshistory", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) throws RpcException {
+				if (addressTracker == null) {
+					throw new RpcException(RpcException.NOT_AVAILABLE, "Address index is not enabled");
+				}
+				final byte[] scriptHash = params.getHex(0, HASH_LENGTH);
+				long size = addressTracker.getHistorySize(scriptHash);
+				if (size < 0) {
+					throw new RpcException(RpcException.READ_ERROR, "Unable to read address index");
+				}
+				final long offset = params.getLong(1, 0);
+				long count = params.getLong(2, size);
+				if (offset < 0 || count < 0) {
+					throw new RpcException(RpcException.INVALID_PARAMS, "Offset and count must not be negative");
+				}
+				final long end = count > size - offset ? size : offset + count;
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.beginArray();
+						for (long next = offset; next < end; next += HISTORY_PAGE) {
+							int page = (int) Math.min(HISTORY_PAGE, end - next);
+							List<AddressHistoryEntry> entries = addressTracker.getHistory(scriptHash, next, page);
+							if (entries == null) {
+								throw new IOException("Unable to read address index");
+							}
+							for (AddressHistoryEntry entry : entries) {
+								out.beginObject();
+								out.name("height").value(entry.getHeight());
+								out.name("position").value(entry.getPosition());
+								out.endObject();
+							}
+						}
+						out.endArray();
+					}
+				};
+			}
+		});
+		server.register("getblockfilters", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) throws RpcException {
+				if (filterTracker == null) {
+					throw new RpcException(RpcException.NOT_AVAILABLE, "Block filter index is not enabled");
+				}
+				int start = params.getInt(0, 0, Integer.MAX_VALUE - TwineFilterTracker.MAX_QUERY_RANGE);
+				int stop = params.getInt(1, start, start + TwineFilterTracker.MAX_QUERY_RANGE - 1);
+				final List<byte[]> filters = filterTracker.getFilters(start, stop);
+				if (filters == null) {
+					throw new RpcException(RpcException.NOT_AVAILABLE, "Filters not available for heights " + start + " to " + stop);
+				}
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.beginArray();
+						for (byte[] filter : filters) {
+							out.hexValue(filter);
+						}
+						out.endArray();
+					}
+				};
+			}
+		});
+	}
+
+	private static RpcResult longResult(final long value) {
+		return new RpcResult() {
+			@Override
+			public void write(JsonWriter out) throws IOException {
+				out.value(value);
+			}
+		};
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.rpc;
+
+/**
+ * A JSON-RPC error, returned to the client as the error object of the
+ * response
+ */
+public class RpcException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public static final int PARSE_ERROR = -32700;
+	public static final int INVALID_REQUEST = -32600;
+	public static final int METHOD_NOT_FOUND = -32601;
+	public static final int INVALID_PARAMS = -32602;
+	public static final int INTERNAL_ERROR = -32603;
+
+	// Node errors, from the range reserved for servers
+	public static final int NOT_AVAILABLE = -32001;
+	public static final int READ_ERROR = -32002;
+
+	private final int code;
+
+	public RpcException(int code, String message) {
+		super(message);
+		this.code = code;
+	}
+
+	public int getCode() {
+		return code;
+	}
+}
@@ -0,0 +1,24 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.rpc;
+
+/**
+ * A JSON-RPC method.<br>
+ * <br>
+ * Calls are split in two.  The call checks the parameters and reads
+ * whatever can fail, and the returned result is then streamed to the client.
+ * Errors can only be reported before streaming starts.
+ */
+public interface RpcMethod {
+	/**
+	 * Handles a call.  Calls may be made from many threads at once.
+	 *
+	 * @param params the parameters
+	 * @return the result to write
+	 * @throws RpcException if the call fails
+	 */
+	RpcResult call(RpcParams params) throws RpcException;
+}
@@ -0,0 +1,88 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.rpc;
+
+import java.util.List;
+
+/**
+ * The positional parameters of a JSON-RPC call
+ */
+public class RpcParams {
+	private final List<Object> values;
+
+	public RpcParams(List<Object> values) {
+		this.values = values;
+	}
+
+	public int size() {
+		return values.size();
+	}
+
+	/**
+	 * Gets a parameter as it was decoded by {@link JsonReader}
+	 *
+	 * @return the value, or null if it is null or missing
+	 */
+	public Object get(int index) {
+		return index < values.size() ? values.get(index) : null;
+	}
+
+	public long getLong(int index) throws RpcException {
+		Object value = get(index);
+		if (!(value instanceof Long)) {
+			throw new RpcException(RpcException.INVALID_PARAMS, "Parameter " + index + " must be an integer");
+		}
+		return (Long) value;
+	}
+
+	/**
+	 * Gets an integer parameter, or a default if it is null or missing
+	 */
+	public long getLong(int index, long defaultValue) throws RpcException {
+		return get(index) == null ? defaultValue : getLong(index);
+	}
+
+	/**
+	 * Gets an integer parameter and checks its range
+	 */
+	public int getInt(int index, int min, int max) throws RpcException {
+		long value = getLong(index);
+		if (value < min || value > max) {
+			throw new RpcException(RpcException.INVALID_PARAMS, "Parameter " + index + " must be from " + min + " to " + max);
+		}
+		return (int) value;
+	}
+
+	public String getString(int index) throws RpcException {
+		Object value = get(index);
+		if (!(value instanceof String)) {
+			throw new RpcException(RpcException.INVALID_PARAMS, "Parameter " + index + " must be a string");
+		}
+		return (String) value;
+	}
+
+	/**
+	 * Gets a hex string parameter as bytes
+	 *
+	 * @param length the required number of bytes
+	 */
+	public byte[] getHex(int index, int length) throws RpcException {
+		String hex = getString(index);
+		if (hex.length() != length * 2) {
+			throw new RpcException(RpcException.INVALID_PARAMS, "Parameter " + index + " must be " + length + " bytes of hex");
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			int high = Character.digit(hex.charAt(i * 2), 16);
+			int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new RpcException(RpcException.INVALID_PARAMS, "Parameter " + index + " must be hex");
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,20 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.rpc;
+
+import java.io.IOException;
+
+/**
+ * The result of a JSON-RPC call, written as the response is streamed
+ */
+public interface RpcResult {
+	/**
+	 * Writes a single JSON value
+	 *
+	 * @throws IOException if the client cannot be written to
+	 */
+	void write(JsonWriter out) throws IOException;
+}
@@ -0,0 +1,342 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.rpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves JSON-RPC 2.0 requests over HTTP.<br>
+ * <br>
+ * Requests are POSTed to any path.  A request may be a single call or a
+ * batch, an array of calls, which is answered with an array of responses in
+ * the same order.  Calls without an id are notifications and get no
+ * response.  Only positional parameters are supported.<br>
+ * <br>
+ * Responses are streamed with chunked encoding through a {@link JsonWriter},
+ * so large results are written as they are read rather than built in
+ * memory first.  Requests are handled on the executor passed to the
+ * constructor, which bounds the number served at once.
+ */
+public class RpcServer {
+	public static final int MAX_REQUEST_SIZE = 1 << 20;
+	public static final int MAX_BATCH = 1000;
+
+	private static final String JSON_TYPE = "application/json";
+
+	static {
+		// The JDK server leaves Nagle's algorithm on, so the end of each
+		// response waits for a delayed acknowledgement of up to 40ms.  The
+		// setting is read when the first server is created.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final Logger logger;
+	private final Executor executor;
+	private final ConcurrentHashMap<String, RpcMethod> methods;
+	private final LongAdder callCount;
+	private HttpServer server;
+
+	/**
+	 * @param logger the logger
+	 * @param executor the executor requests are handled on
+	 */
+	public RpcServer(Logger logger, Executor executor) {
+		this.logger = logger;
+		this.executor = executor;
+		this.methods = new ConcurrentHashMap<String, RpcMethod>();
+		this.callCount = new LongAdder();
+	}
+
+	/**
+	 * Adds a method, replacing any method with the same name
+	 */
+	public void register(String name, RpcMethod method) {
+		methods.put(name, method);
+	}
+
+	/**
+	 * Starts accepting requests
+	 *
+	 * @param address the address to bind to
+	 * @return the bound address, or null if the server could not be started
+	 */
+	public synchronized InetSocketAddress start(InetSocketAddress address) {
+		if (server != null) {
+			logger.severe("RPC server already started");
+			return null;
+		}
+		try {
+			server = HttpServer.create(address, 0);
+		} catch (IOException e) {
+			logger.severe("Unable to bind RPC server to " + address + ", " + e.getMessage());
+			return null;
+		}
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				RpcServer.this.handle(exchange);
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+		logger.info("RPC server listening on " + server.getAddress());
+		return server.getAddress();
+	}
+
+	/**
+	 * Stops accepting requests.  The executor is not shut down.
+	 */
+	public synchronized void close() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	/**
+	 * Gets the number of calls made, including notifications and calls in
+	 * batches
+	 */
+	public long getCallCount() {
+		return callCount.sum();
+	}
+
+	private void handle(HttpExchange exchange) {
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = readBody(exchange.getRequestBody());
+			if (body == null) {
+				exchange.sendResponseHeaders(413, -1);
+				return;
+			}
+			Object request;
+			try {
+				request = JsonReader.parse(body, 0, body.length);
+			} catch (IllegalArgumentException e) {
+				ResponseStream stream = new ResponseStream(exchange);
+				writeError(stream.writer, null, RpcException.PARSE_ERROR, e.getMessage());
+				stream.finish();
+				return;
+			}
+			if (request instanceof List) {
+				handleBatch(exchange, (List<?>) request);
+			} else if (isNotification(request)) {
+				execute(request, null);
+				exchange.sendResponseHeaders(204, -1);
+			} else {
+				ResponseStream stream = new ResponseStream(exchange);
+				execute(request, stream.writer);
+				stream.finish();
+			}
+		} catch (IOException e) {
+			logger.fine("Unable to write RPC response, " + e.getMessage());
+		} catch (RuntimeException e) {
+			// The response may be partly written, so the client gets a
+			// truncated stream
+			logger.severe("Unable to write RPC response, " + e);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleBatch(HttpExchange exchange, List<?> batch) throws IOException {
+		if (batch.isEmpty() || batch.size() > MAX_BATCH) {
+			ResponseStream stream = new ResponseStream(exchange);
+			writeError(stream.writer, null, RpcException.INVALID_REQUEST, batch.isEmpty() ? "Empty batch" : "Batch exceeds " + MAX_BATCH + " calls");
+			stream.finish();
+			return;
+		}
+		boolean respond = false;
+		for (Object request : batch) {
+			if (!isNotification(request)) {
+				respond = true;
+				break;
+			}
+		}
+		if (!respond) {
+			for (Object request : batch) {
+				execute(request, null);
+			}
+			exchange.sendResponseHeaders(204, -1);
+			return;
+		}
+		ResponseStream stream = new ResponseStream(exchange);
+		stream.writer.beginArray();
+		for (Object request : batch) {
+			execute(request, stream.writer);
+		}
+		stream.writer.endArray();
+		stream.finish();
+	}
+
+	/**
+	 * Makes a call and writes its response
+	 *
+	 * @param out the writer, or null if no response is wanted
+	 */
+	private void execute(Object request, JsonWriter out) throws IOException {
+		if (!(request instanceof Map)) {
+			writeError(out, null, RpcException.INVALID_REQUEST, "Call must be an object");
+			return;
+		}
+		Map<?, ?> call = (Map<?, ?>) request;
+		Object id = call.get("id");
+		if (id != null && !(id instanceof String) && !(id instanceof Number)) {
+			writeError(out, null, RpcException.INVALID_REQUEST, "Id must be a string, number or null");
+			return;
+		}
+		if (!call.containsKey("id")) {
+			// Notification
+			out = null;
+		}
+		Object name = call.get("method");
+		if (!(name instanceof String)) {
+			writeError(out, id, RpcException.INVALID_REQUEST, "Method must be a string");
+			return;
+		}
+		Object params = call.get("params");
+		if (params != null && !(params instanceof List)) {
+			writeError(out, id, RpcException.INVALID_PARAMS, "Params must be an array");
+			return;
+		}
+		RpcMethod method = methods.get(name);
+		if (method == null) {
+			writeError(out, id, RpcException.METHOD_NOT_FOUND, "Method not found, " + name);
+			return;
+		}
+		callCount.increment();
+		RpcResult result;
+		try {
+			@SuppressWarnings("unchecked")
+			List<Object> values = params == null ? Collections.<Object>emptyList() : (List<Object>) params;
+			result = method.call(new RpcParams(values));
+		} catch (RpcException e) {
+			writeError(out, id, e.getCode(), e.getMessage());
+			return;
+		} catch (RuntimeException e) {
+			logger.severe("RPC method " + name + " failed, " + e);
+			writeError(out, id, RpcException.INTERNAL_ERROR, "Internal error");
+			return;
+		}
+		if (out != null) {
+			out.beginObject().name("jsonrpc").value("2.0").name("result");
+			result.write(out);
+			out.name("id").jsonValue(id).endObject();
+		}
+	}
+
+	private static void writeError(JsonWriter out, Object id, int code, String message) throws IOException {
+		if (out == null) {
+			return;
+		}
+		out.beginObject().name("jsonrpc").value("2.0");
+		out.name("error").beginObject().name("code").value(code).name("message").value(message).endObject();
+		out.name("id").jsonValue(id).endObject();
+	}
+
+	private static boolean isNotification(Object request) {
+		return request instanceof Map && !((Map<?, ?>) request).containsKey("id");
+	}
+
+	/**
+	 * Reads the request body
+	 *
+	 * @return the body, or null if it exceeds {@link #MAX_REQUEST_SIZE}
+	 */
+	private static byte[] readBody(InputStream in) throws IOException {
+		byte[] buf = new byte[4096];
+		int length = 0;
+		while (true) {
+			if (length == buf.length) {
+				if (buf.length > MAX_REQUEST_SIZE) {
+					return null;
+				}
+				byte[] larger = new byte[Math.min(buf.length * 2, MAX_REQUEST_SIZE + 1)];
+				System.arraycopy(buf, 0, larger, 0, length);
+				buf = larger;
+			}
+			int read = in.read(buf, length, buf.length - length);
+			if (read < 0) {
+				return length > MAX_REQUEST_SIZE ? null : Arrays.copyOf(buf, length);
+			}
+			length += read;
+		}
+	}
+
+	/**
+	 * The body of a 200 response.  The headers are sent with the first
+	 * write.  A response that fits in the writer's buffer is sent with its
+	 * length in one write, larger responses are sent in chunks as the buffer
+	 * fills.
+	 */
+	private static class ResponseStream extends OutputStream {
+		private final HttpExchange exchange;
+		private final JsonWriter writer;
+		private OutputStream body;
+		private boolean finished;
+
+		ResponseStream(HttpExchange exchange) {
+			this.exchange = exchange;
+			this.writer = new JsonWriter(this);
+			this.body = null;
+			this.finished = false;
+		}
+
+		/**
+		 * Writes the rest of the response
+		 */
+		void finish() throws IOException {
+			finished = true;
+			writer.flush();
+			if (body == null) {
+				write(new byte[0], 0, 0);
+			}
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			if (body == null) {
+				exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+				exchange.sendResponseHeaders(200, finished ? (length == 0 ? -1 : length) : 0);
+				body = exchange.getResponseBody();
+			}
+			body.write(buf, offset, length);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (body != null) {
+				body.flush();
+			}
+		}
+	}
+}
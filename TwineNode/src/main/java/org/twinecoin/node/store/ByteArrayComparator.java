@@ -0,0 +1,35 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store;
+
+import java.util.Comparator;
+
+/**
+ * Orders byte arrays as unsigned bytes, with shorter arrays first when one
+ * array is a prefix of the other.
+ */
+public class ByteArrayComparator implements Comparator<byte[]> {
+	public static final ByteArrayComparator INSTANCE = new ByteArrayComparator();
+
+	private ByteArrayComparator() {
+	}
+
+	@Override
+	public int compare(byte[] a, byte[] b) {
+		return compare(a, 0, a.length, b, 0, b.length);
+	}
+
+	public static int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+		int length = Math.min(aLength, bLength);
+		for (int i = 0; i < length; i++) {
+			int diff = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return aLength - bLength;
+	}
+}
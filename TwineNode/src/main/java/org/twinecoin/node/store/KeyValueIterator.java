@@ -0,0 +1,18 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import org.twinecoin.common.Pair;
+
+/**
+ * Iterator over key/value pairs in key order.  Resources are held until the
+ * iterator is closed.
+ */
+public interface KeyValueIterator extends Iterator<Pair<byte[], byte[]>>, Closeable {
+}
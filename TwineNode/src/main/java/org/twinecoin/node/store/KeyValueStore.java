@@ -0,0 +1,57 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Persistent ordered key-value store used by the chain components.<br>
+ * <br>
+ * Keys are ordered as unsigned bytes.  All methods may be called from
+ * multiple threads.
+ */
+public interface KeyValueStore extends Closeable {
+	/**
+	 * Gets a value
+	 *
+	 * @param key the key
+	 * @return the value, or null if the key is not present
+	 */
+	public byte[] get(byte[] key) throws IOException;
+
+	/**
+	 * Stores a value
+	 *
+	 * @param key the key
+	 * @param value the value
+	 */
+	public void put(byte[] key, byte[] value) throws IOException;
+
+	/**
+	 * Removes a key
+	 *
+	 * @param key the key
+	 */
+	public void delete(byte[] key) throws IOException;
+
+	/**
+	 * Applies a batch of changes atomically
+	 *
+	 * @param batch the changes
+	 */
+	public void write(WriteBatch batch) throws IOException;
+
+	/**
+	 * Gets an iterator over a key range.  The iterator must be closed.  Writes
+	 * made while iterating may or may not be seen.
+	 *
+	 * @param from the first key (inclusive), or null to start at the first key
+	 * @param to the last key (exclusive), or null to end at the last key
+	 * @return the iterator
+	 */
+	public KeyValueIterator iterator(byte[] from, byte[] to) throws IOException;
+}
@@ -0,0 +1,63 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of changes to be applied atomically.  A null value is a delete.
+ */
+public class WriteBatch {
+	private final List<byte[]> keys = new ArrayList<byte[]>();
+	private final List<byte[]> values = new ArrayList<byte[]>();
+	private long approximateSize = 0;
+
+	public WriteBatch put(byte[] key, byte[] value) {
+		if (key == null || value == null) {
+			throw new NullPointerException("Keys and values may not be null");
+		}
+		keys.add(key);
+		values.add(value);
+		approximateSize += key.length + value.length + 8;
+		return this;
+	}
+
+	public WriteBatch delete(byte[] key) {
+		if (key == null) {
+			throw new NullPointerException("Keys may not be null");
+		}
+		keys.add(key);
+		values.add(null);
+		approximateSize += key.length + 8;
+		return this;
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	public byte[] getKey(int i) {
+		return keys.get(i);
+	}
+
+	/**
+	 * Gets the value of an entry, or null if the entry is a delete
+	 */
+	public byte[] getValue(int i) {
+		return values.get(i);
+	}
+
+	public long getApproximateSize() {
+		return approximateSize;
+	}
+
+	public void clear() {
+		keys.clear();
+		values.clear();
+		approximateSize = 0;
+	}
+}
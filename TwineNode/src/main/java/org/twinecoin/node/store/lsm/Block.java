@@ -0,0 +1,128 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.store.ByteArrayComparator;
+
+/**
+ * Read only view of a block written by {@link BlockBuilder}
+ */
+class Block {
+	private final byte[] data;
+	private final int restartsOffset;
+	private final int restartCount;
+
+	Block(byte[] data) throws IOException {
+		if (data.length < 4) {
+			throw new IOException("Block too short, " + data.length);
+		}
+		this.data = data;
+		this.restartCount = BlockBuilder.getInt(data, data.length - 4);
+		this.restartsOffset = data.length - 4 - 4 * restartCount;
+		if (restartCount < 1 || restartsOffset < 0) {
+			throw new IOException("Block restart count out of range, " + restartCount);
+		}
+	}
+
+	InternalIterator iterator() {
+		return new BlockIterator();
+	}
+
+	private class BlockIterator implements InternalIterator {
+		private final int[] end = new int[1];
+
+		private int nextOffset = restartsOffset;
+		private byte[] keyBuf = new byte[64];
+		private int keyLength = 0;
+		private int valueOffset = -1;
+		private int valueLength = 0;
+		private byte[] key = null;
+
+		@Override
+		public boolean isValid() {
+			return valueOffset >= 0;
+		}
+
+		@Override
+		public byte[] getKey() {
+			if (key == null) {
+				key = Arrays.copyOf(keyBuf, keyLength);
+			}
+			return key;
+		}
+
+		@Override
+		public byte[] getValue() {
+			if (valueLength < 0) {
+				return LsmStore.DELETED;
+			}
+			return Arrays.copyOfRange(data, valueOffset, valueOffset + valueLength);
+		}
+
+		@Override
+		public void next() {
+			if (nextOffset >= restartsOffset) {
+				valueOffset = -1;
+				return;
+			}
+			int offset = nextOffset;
+			int shared = (int) VarInt.read(data, offset, end);
+			int unshared = (int) VarInt.read(data, end[0], end);
+			int encodedValueLength = (int) VarInt.read(data, end[0], end);
+			offset = end[0];
+
+			if (shared + unshared > keyBuf.length) {
+				keyBuf = Arrays.copyOf(keyBuf, Math.max(keyBuf.length * 2, shared + unshared));
+			}
+			System.arraycopy(data, offset, keyBuf, shared, unshared);
+			keyLength = shared + unshared;
+			key = null;
+			offset += unshared;
+
+			valueOffset = offset;
+			valueLength = encodedValueLength - 1;
+			nextOffset = offset + Math.max(0, valueLength);
+		}
+
+		@Override
+		public void seek(byte[] target) {
+			// Find the last restart point with a key before the target
+			int left = 0;
+			int right = restartCount - 1;
+			while (left < right) {
+				int mid = (left + right + 1) >>> 1;
+				int offset = getRestart(mid);
+				VarInt.read(data, offset, end);
+				int unshared = (int) VarInt.read(data, end[0], end);
+				VarInt.read(data, end[0], end);
+				if (ByteArrayComparator.compare(data, end[0], unshared, target, 0, target.length) < 0) {
+					left = mid;
+				} else {
+					right = mid - 1;
+				}
+			}
+			nextOffset = getRestart(left);
+			next();
+			while (isValid() && ByteArrayComparator.compare(keyBuf, 0, keyLength, target, 0, target.length) < 0) {
+				next();
+			}
+		}
+
+		@Override
+		public void seekToFirst() {
+			nextOffset = getRestart(0);
+			next();
+		}
+
+		private int getRestart(int index) {
+			return BlockBuilder.getInt(data, restartsOffset + 4 * index);
+		}
+	}
+}
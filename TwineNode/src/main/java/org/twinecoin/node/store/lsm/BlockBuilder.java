@@ -0,0 +1,127 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.util.Arrays;
+
+import org.twinecoin.common.VarInt;
+
+/**
+ * Builds a block of sorted entries with prefix compressed keys.<br>
+ * <br>
+ * Entry format<br>
+ * - shared key prefix length (varint)<br>
+ * - unshared key length (varint)<br>
+ * - value length plus one, zero for deleted entries (varint)<br>
+ * - unshared key bytes<br>
+ * - value bytes<br>
+ * <br>
+ * Every RESTART_INTERVAL entries the full key is stored, so that the block can
+ * be binary searched.  The block ends with the restart offsets (4 bytes each)
+ * and the restart count (4 bytes).
+ */
+class BlockBuilder {
+	static final int RESTART_INTERVAL = 16;
+
+	private byte[] buf;
+	private int size;
+	private int[] restarts;
+	private int restartCount;
+	private int counter;
+	private byte[] lastKey;
+	private int entries;
+
+	BlockBuilder(int initialCapacity) {
+		this.buf = new byte[initialCapacity];
+		this.restarts = new int[16];
+		reset();
+	}
+
+	void reset() {
+		size = 0;
+		restartCount = 0;
+		counter = 0;
+		lastKey = null;
+		entries = 0;
+		addRestart();
+	}
+
+	void add(byte[] key, byte[] value) {
+		int shared = 0;
+		if (counter < RESTART_INTERVAL) {
+			if (lastKey != null) {
+				int max = Math.min(lastKey.length, key.length);
+				while (shared < max && lastKey[shared] == key[shared]) {
+					shared++;
+				}
+			}
+		} else {
+			addRestart();
+			counter = 0;
+		}
+		int unshared = key.length - shared;
+		boolean deleted = value == LsmStore.DELETED;
+		int valueLength = deleted ? 0 : value.length;
+
+		ensureCapacity(3 * VarInt.MAX_LENGTH + unshared + valueLength);
+		size = VarInt.write(buf, size, shared);
+		size = VarInt.write(buf, size, unshared);
+		size = VarInt.write(buf, size, deleted ? 0 : valueLength + 1);
+		System.arraycopy(key, shared, buf, size, unshared);
+		size += unshared;
+		if (!deleted) {
+			System.arraycopy(value, 0, buf, size, valueLength);
+			size += valueLength;
+		}
+
+		lastKey = key;
+		counter++;
+		entries++;
+	}
+
+	boolean isEmpty() {
+		return entries == 0;
+	}
+
+	int getEstimatedSize() {
+		return size + 4 * restartCount + 4;
+	}
+
+	byte[] finish() {
+		byte[] block = Arrays.copyOf(buf, getEstimatedSize());
+		int offset = size;
+		for (int i = 0; i < restartCount; i++) {
+			offset = putInt(block, offset, restarts[i]);
+		}
+		putInt(block, offset, restartCount);
+		return block;
+	}
+
+	private void addRestart() {
+		if (restartCount == restarts.length) {
+			restarts = Arrays.copyOf(restarts, restarts.length * 2);
+		}
+		restarts[restartCount++] = size;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (size + extra > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+		}
+	}
+
+	static int putInt(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) (value >>> 24);
+		buf[offset + 1] = (byte) (value >>> 16);
+		buf[offset + 2] = (byte) (value >>> 8);
+		buf[offset + 3] = (byte) value;
+		return offset + 4;
+	}
+
+	static int getInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16) | ((buf[offset + 2] & 0xFF) << 8) | (buf[offset + 3] & 0xFF);
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+/**
+ * Bloom filter over the keys of a table.  Probes are generated by double
+ * hashing a single 32-bit hash of the key.  The last byte of the filter
+ * holds the number of probes.
+ */
+class BloomFilter {
+	static final int BITS_PER_KEY = 10;
+
+	static byte[] build(int[] hashes, int count, int bitsPerKey) {
+		// k = ln(2) * bits per key minimises the false positive rate
+		int k = Math.max(1, Math.min(30, (int) (bitsPerKey * 0.69)));
+		int bits = Math.max(64, count * bitsPerKey);
+		int bytes = (bits + 7) >>> 3;
+		bits = bytes << 3;
+
+		byte[] filter = new byte[bytes + 1];
+		filter[bytes] = (byte) k;
+		for (int i = 0; i < count; i++) {
+			int h = hashes[i];
+			int delta = (h >>> 17) | (h << 15);
+			for (int j = 0; j < k; j++) {
+				int bit = (int) ((h & 0xFFFFFFFFL) % bits);
+				filter[bit >>> 3] |= (1 << (bit & 7));
+				h += delta;
+			}
+		}
+		return filter;
+	}
+
+	static boolean mayContain(byte[] filter, byte[] key) {
+		if (filter.length < 2) {
+			return true;
+		}
+		int bytes = filter.length - 1;
+		int bits = bytes << 3;
+		int k = filter[bytes];
+		if (k > 30) {
+			// Reserved for other encodings
+			return true;
+		}
+		int h = hash(key);
+		int delta = (h >>> 17) | (h << 15);
+		for (int j = 0; j < k; j++) {
+			int bit = (int) ((h & 0xFFFFFFFFL) % bits);
+			if ((filter[bit >>> 3] & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+			h += delta;
+		}
+		return true;
+	}
+
+	static int hash(byte[] key) {
+		// FNV-1a followed by the murmur3 finaliser
+		int h = 0x811C9DC5;
+		for (byte b : key) {
+			h ^= b & 0xFF;
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.io.IOException;
+
+/**
+ * Iterator over the entries of a memtable, table or level.  Deleted entries
+ * are returned with {@link LsmStore#DELETED} as their value.
+ */
+interface InternalIterator {
+	/**
+	 * Checks if the iterator is positioned at an entry
+	 */
+	public boolean isValid();
+
+	public byte[] getKey();
+
+	public byte[] getValue();
+
+	public void next() throws IOException;
+
+	/**
+	 * Positions the iterator at the first entry with a key greater than or
+	 * equal to the target.
+	 */
+	public void seek(byte[] target) throws IOException;
+
+	public void seekToFirst() throws IOException;
+}
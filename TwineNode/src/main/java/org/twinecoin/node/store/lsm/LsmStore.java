@@ -0,0 +1,721 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.twinecoin.common.Pair;
+import org.twinecoin.node.store.ByteArrayComparator;
+import org.twinecoin.node.store.KeyValueIterator;
+import org.twinecoin.node.store.KeyValueStore;
+import org.twinecoin.node.store.WriteBatch;
+
+/**
+ * Log-structured merge tree key-value store.<br>
+ * <br>
+ * Writes are appended to a write-ahead log and applied to a skip list
+ * memtable.  When the memtable is full it is frozen and written to a level 0
+ * table in the background, after which its log is deleted.  Flushes have a
+ * thread of their own, so they never wait behind a compaction.  Tables are
+ * merged into higher levels by leveled compaction on a bounded thread pool.
+ * Each level is allowed ten times the size of the level above it.<br>
+ * <br>
+ * Writes are serialized.  Reads and iterators work against a reference
+ * counted version, so they never block on background work.  Writes stall
+ * if the memtable fills while the previous one is still being written, or
+ * if level 0 has too many tables.
+ */
+public class LsmStore implements KeyValueStore {
+	public static final long DEFAULT_MEMTABLE_SIZE = 4L << 20;
+
+	// Value marker for deleted entries, compared by identity
+	static final byte[] DELETED = new byte[0];
+
+	static final int L0_COMPACTION_TRIGGER = 4;
+	static final int L0_STOP_WRITES = 12;
+	static final int LEVEL_SIZE_MULTIPLIER = 10;
+
+	private final File dir;
+	private final Logger logger;
+	private final boolean sync;
+	private final long memTableSize;
+	private final long targetFileSize;
+	private final long level1MaxBytes;
+	private final int maxCompactions;
+	private final ExecutorService executor;
+	private final ExecutorService flushExecutor;
+	private final Object writeLock = new Object();
+
+	// Guarded by this
+	private MemTable mem;
+	private MemTable imm;
+	private WriteAheadLog log;
+	private Version current;
+	private long nextFileNumber;
+	private int runningCompactions;
+	private final boolean[] busy = new boolean[Version.LEVELS];
+	private final byte[][] compactPointer = new byte[Version.LEVELS][];
+	private IOException backgroundError;
+	private boolean closed;
+
+	public LsmStore(File dir, Logger logger, int compactionThreads) throws IOException {
+		this(dir, logger, compactionThreads, DEFAULT_MEMTABLE_SIZE, false);
+	}
+
+	/**
+	 * Opens or creates a store
+	 *
+	 * @param dir the directory for the store files
+	 * @param logger the logger
+	 * @param compactionThreads the number of compaction threads, in addition
+	 * to the memtable flush thread
+	 * @param memTableSize the memtable size that triggers a flush to level 0
+	 * @param sync true to sync the log to disk after every write
+	 */
+	public LsmStore(File dir, Logger logger, int compactionThreads, long memTableSize, boolean sync) throws IOException {
+		this(dir, logger, Math.max(1, compactionThreads), memTableSize, sync, newExecutor("lsm-compaction-", Math.max(1, compactionThreads)), newExecutor("lsm-flush-", 1));
+	}
+
+	LsmStore(File dir, Logger logger, int compactionThreads, long memTableSize, boolean sync, ExecutorService executor, ExecutorService flushExecutor) throws IOException {
+		this.dir = dir;
+		this.logger = logger;
+		this.sync = sync;
+		this.memTableSize = memTableSize;
+		this.targetFileSize = Math.max(memTableSize / 2, 4 * TableBuilder.BLOCK_SIZE);
+		this.level1MaxBytes = memTableSize * 4;
+
+		this.maxCompactions = compactionThreads;
+		this.executor = executor;
+		this.flushExecutor = flushExecutor;
+
+		dir.mkdirs();
+		if (!dir.isDirectory()) {
+			throw new IOException("Unable to create store directory, " + dir);
+		}
+
+		synchronized (this) {
+			recover();
+		}
+	}
+
+	@Override
+	public byte[] get(byte[] key) throws IOException {
+		MemTable m;
+		MemTable i;
+		Version v;
+		synchronized (this) {
+			checkOpen();
+			m = mem;
+			i = imm;
+			v = current;
+			v.ref();
+		}
+		try {
+			byte[] value = m.get(key);
+			if (value == null && i != null) {
+				value = i.get(key);
+			}
+			if (value == null) {
+				value = v.get(key);
+			}
+			return value == DELETED ? null : value;
+		} finally {
+			v.unref();
+		}
+	}
+
+	@Override
+	public void put(byte[] key, byte[] value) throws IOException {
+		write(new WriteBatch().put(key, value));
+	}
+
+	@Override
+	public void delete(byte[] key) throws IOException {
+		write(new WriteBatch().delete(key));
+	}
+
+	@Override
+	public void write(WriteBatch batch) throws IOException {
+		if (batch.size() == 0) {
+			return;
+		}
+		synchronized (writeLock) {
+			WriteAheadLog l;
+			MemTable m;
+			synchronized (this) {
+				makeRoomForWrite();
+				l = log;
+				m = mem;
+			}
+			l.append(batch);
+			m.apply(batch);
+		}
+	}
+
+	@Override
+	public KeyValueIterator iterator(byte[] from, byte[] to) throws IOException {
+		List<InternalIterator> sources = new ArrayList<InternalIterator>();
+		Version v;
+		synchronized (this) {
+			checkOpen();
+			sources.add(mem.iterator());
+			if (imm != null) {
+				sources.add(imm.iterator());
+			}
+			v = current;
+			v.ref();
+		}
+		try {
+			v.addIterators(sources);
+			MergingIterator merged = new MergingIterator(sources);
+			if (from == null) {
+				merged.seekToFirst();
+			} else {
+				merged.seek(from);
+			}
+			return new LsmIterator(merged, to, v);
+		} catch (IOException e) {
+			v.unref();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (writeLock) {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				notifyAll();
+			}
+		}
+		executor.shutdown();
+		flushExecutor.shutdown();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (executor.awaitTermination(1, TimeUnit.SECONDS) && flushExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			log.close();
+			current.unref();
+		}
+	}
+
+	/**
+	 * Waits until the memtable flush and compactions that are currently
+	 * required have completed
+	 */
+	public synchronized void waitForBackgroundWork() throws IOException {
+		boolean interrupted = false;
+		while ((imm != null || runningCompactions > 0) && backgroundError == null && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		checkOpen();
+	}
+
+	/**
+	 * Gets a one line summary of the table count and size of each level
+	 */
+	public synchronized String getLevelSummary() {
+		StringBuilder sb = new StringBuilder();
+		for (int level = 0; level < Version.LEVELS; level++) {
+			int count = current.getTableCount(level);
+			if (count > 0) {
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(String.format("L%d %d tables %.1fMB", level, count, current.getLevelSize(level) / 1048576.0));
+			}
+		}
+		return sb.length() == 0 ? "empty" : sb.toString();
+	}
+
+	/**
+	 * Gets the number of tables in a level
+	 */
+	synchronized int getTableCount(int level) {
+		return current.getTableCount(level);
+	}
+
+	private void recover() throws IOException {
+		Manifest manifest = Manifest.read(dir);
+		long logNumber = 0;
+		nextFileNumber = 1;
+
+		List<List<Table>> levels = new ArrayList<List<Table>>();
+		for (int i = 0; i < Version.LEVELS; i++) {
+			levels.add(new ArrayList<Table>());
+		}
+		List<Long> liveTables = new ArrayList<Long>();
+		if (manifest != null) {
+			nextFileNumber = manifest.getNextFileNumber();
+			logNumber = manifest.getLogNumber();
+			for (long[] entry : manifest.getTables()) {
+				levels.get((int) entry[0]).add(Table.open(entry[1], getTableFile(entry[1])));
+				liveTables.add(entry[1]);
+			}
+			Collections.sort(levels.get(0), Version.NEWEST_FIRST);
+			for (int i = 1; i < Version.LEVELS; i++) {
+				Collections.sort(levels.get(i), Version.SMALLEST_FIRST);
+			}
+		}
+		current = new Version(levels);
+
+		TreeMap<Long, File> logs = new TreeMap<Long, File>();
+		String[] filenames = dir.list();
+		for (String filename : filenames == null ? new String[0] : filenames) {
+			long number = getFileNumber(filename);
+			if (number < 0) {
+				continue;
+			}
+			nextFileNumber = Math.max(nextFileNumber, number + 1);
+			if (filename.endsWith(".log")) {
+				logs.put(number, new File(dir, filename));
+			} else if (filename.endsWith(".sst") && !liveTables.contains(number)) {
+				// Output of an interrupted flush or compaction
+				new File(dir, filename).delete();
+			}
+		}
+
+		MemTable recovered = new MemTable(0);
+		for (File logFile : logs.tailMap(logNumber, true).values()) {
+			int batches = WriteAheadLog.replay(logFile, recovered, logger);
+			logger.fine("Replayed " + batches + " batches from " + logFile);
+		}
+		if (!recovered.isEmpty()) {
+			Table table = writeLevel0(recovered);
+			installVersion(current.apply(Collections.<Table>emptyList(), 0, Collections.singletonList(table)));
+		}
+
+		long newLogNumber = nextFileNumber++;
+		log = new WriteAheadLog(getLogFile(newLogNumber), sync);
+		mem = new MemTable(newLogNumber);
+		imm = null;
+
+		Manifest.write(dir, nextFileNumber, newLogNumber, current);
+
+		for (File logFile : logs.values()) {
+			logFile.delete();
+		}
+
+		logger.fine("Opened store " + dir + ", " + getLevelSummary());
+		maybeScheduleCompaction();
+	}
+
+	private void makeRoomForWrite() throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				checkOpen();
+				boolean memFull = mem.getApproximateSize() >= memTableSize;
+				boolean level0Full = current.getTableCount(0) >= L0_STOP_WRITES;
+				if (!memFull && !level0Full) {
+					return;
+				}
+				if (level0Full || imm != null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+					continue;
+				}
+				long newLogNumber = nextFileNumber++;
+				WriteAheadLog newLog = new WriteAheadLog(getLogFile(newLogNumber), sync);
+				log.close();
+				log = newLog;
+				imm = mem;
+				mem = new MemTable(newLogNumber);
+				scheduleFlush();
+				return;
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void scheduleFlush() {
+		final MemTable toFlush = imm;
+		flushExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				flushMemTable(toFlush);
+			}
+		});
+	}
+
+	private void flushMemTable(MemTable toFlush) {
+		Table table = null;
+		try {
+			if (!toFlush.isEmpty()) {
+				table = writeLevel0(toFlush);
+			}
+			synchronized (this) {
+				Version newVersion = table == null ? current : current.apply(Collections.<Table>emptyList(), 0, Collections.singletonList(table));
+				Manifest.write(dir, nextFileNumber, mem.getLogNumber(), newVersion);
+				if (newVersion != current) {
+					installVersion(newVersion);
+				}
+				imm = null;
+				getLogFile(toFlush.getLogNumber()).delete();
+				notifyAll();
+				maybeScheduleCompaction();
+			}
+		} catch (IOException e) {
+			logger.severe("Unable to flush memtable to " + dir + ", " + e.getMessage());
+			synchronized (this) {
+				backgroundError = e;
+				notifyAll();
+			}
+		}
+	}
+
+	private Table writeLevel0(MemTable memTable) throws IOException {
+		long fileNumber = allocateFileNumber();
+		TableBuilder builder = new TableBuilder(getTableFile(fileNumber));
+		try {
+			InternalIterator iterator = memTable.iterator();
+			iterator.seekToFirst();
+			while (iterator.isValid()) {
+				builder.add(iterator.getKey(), iterator.getValue());
+				iterator.next();
+			}
+			builder.finish();
+		} catch (IOException e) {
+			builder.abandon();
+			throw e;
+		}
+		return Table.open(fileNumber, builder.getFile());
+	}
+
+	private void maybeScheduleCompaction() {
+		while (!closed && backgroundError == null && runningCompactions < maxCompactions) {
+			final Compaction compaction = pickCompaction();
+			if (compaction == null) {
+				return;
+			}
+			runningCompactions++;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					runCompaction(compaction);
+				}
+			});
+		}
+	}
+
+	private Compaction pickCompaction() {
+		int bestLevel = -1;
+		double bestScore = 1.0;
+		for (int level = 0; level < Version.LEVELS - 1; level++) {
+			if (busy[level] || busy[level + 1]) {
+				continue;
+			}
+			double score;
+			if (level == 0) {
+				score = current.getTableCount(0) / (double) L0_COMPACTION_TRIGGER;
+			} else {
+				score = current.getLevelSize(level) / (double) getMaxBytes(level);
+			}
+			if (score >= bestScore) {
+				bestScore = score;
+				bestLevel = level;
+			}
+		}
+		if (bestLevel < 0) {
+			return null;
+		}
+
+		List<Table> inputs;
+		if (bestLevel == 0) {
+			inputs = new ArrayList<Table>(current.getTables(0));
+		} else {
+			// Rotate through the key space so every table is eventually compacted
+			List<Table> tables = current.getTables(bestLevel);
+			Table next = tables.get(0);
+			if (compactPointer[bestLevel] != null) {
+				for (Table table : tables) {
+					if (ByteArrayComparator.INSTANCE.compare(table.getSmallest(), compactPointer[bestLevel]) > 0) {
+						next = table;
+						break;
+					}
+				}
+			}
+			inputs = Collections.singletonList(next);
+		}
+
+		byte[] smallest = null;
+		byte[] largest = null;
+		for (Table table : inputs) {
+			if (smallest == null || ByteArrayComparator.INSTANCE.compare(table.getSmallest(), smallest) < 0) {
+				smallest = table.getSmallest();
+			}
+			if (largest == null || ByteArrayComparator.INSTANCE.compare(table.getLargest(), largest) > 0) {
+				largest = table.getLargest();
+			}
+		}
+		List<Table> outputLevelInputs = current.getOverlapping(bestLevel + 1, smallest, largest);
+
+		busy[bestLevel] = true;
+		busy[bestLevel + 1] = true;
+		compactPointer[bestLevel] = largest;
+
+		boolean dropDeletes = !current.hasOverlapBelow(bestLevel + 1, smallest, largest);
+		return new Compaction(bestLevel, inputs, outputLevelInputs, dropDeletes);
+	}
+
+	private void runCompaction(Compaction compaction) {
+		int level = compaction.level;
+		List<Table> allInputs = new ArrayList<Table>(compaction.inputs);
+		allInputs.addAll(compaction.outputLevelInputs);
+		for (Table table : allInputs) {
+			table.ref();
+		}
+
+		List<Table> outputs = new ArrayList<Table>();
+		TableBuilder builder = null;
+		try {
+			if (level > 0 && compaction.inputs.size() == 1 && compaction.outputLevelInputs.isEmpty()) {
+				// Nothing to merge with, so the table can move down without a rewrite
+				outputs.addAll(compaction.inputs);
+			} else {
+				List<InternalIterator> sources = new ArrayList<InternalIterator>();
+				if (level == 0) {
+					for (Table table : compaction.inputs) {
+						sources.add(table.iterator());
+					}
+				} else {
+					sources.add(new Version.LevelIterator(compaction.inputs));
+				}
+				sources.add(new Version.LevelIterator(compaction.outputLevelInputs));
+
+				MergingIterator merged = new MergingIterator(sources);
+				merged.seekToFirst();
+				while (merged.isValid()) {
+					byte[] value = merged.getValue();
+					if (value != DELETED || !compaction.dropDeletes) {
+						if (builder == null) {
+							builder = new TableBuilder(getTableFile(allocateFileNumber()));
+						}
+						builder.add(merged.getKey(), value);
+						if (builder.getFileSize() >= targetFileSize) {
+							outputs.add(finishTable(builder));
+							builder = null;
+						}
+					}
+					merged.next();
+				}
+				if (builder != null) {
+					outputs.add(finishTable(builder));
+					builder = null;
+				}
+			}
+
+			synchronized (this) {
+				Version newVersion = current.apply(allInputs, level + 1, outputs);
+				// The log of an unflushed immutable memtable must still be
+				// replayed on recovery
+				long logNumber = imm != null ? imm.getLogNumber() : mem.getLogNumber();
+				Manifest.write(dir, nextFileNumber, logNumber, newVersion);
+				installVersion(newVersion);
+				for (Table table : allInputs) {
+					if (!outputs.contains(table)) {
+						table.markObsolete();
+					}
+				}
+			}
+			logger.finer("Compacted " + allInputs.size() + " tables from level " + level + " into " + outputs.size() + " tables");
+		} catch (IOException e) {
+			logger.severe("Compaction of level " + level + " failed in " + dir + ", " + e.getMessage());
+			if (builder != null) {
+				builder.abandon();
+			}
+			for (Table table : outputs) {
+				if (!allInputs.contains(table)) {
+					table.discard();
+				}
+			}
+			synchronized (this) {
+				backgroundError = e;
+			}
+		} finally {
+			for (Table table : allInputs) {
+				table.unref();
+			}
+			synchronized (this) {
+				busy[level] = false;
+				busy[level + 1] = false;
+				runningCompactions--;
+				notifyAll();
+				maybeScheduleCompaction();
+			}
+		}
+	}
+
+	private Table finishTable(TableBuilder builder) throws IOException {
+		builder.finish();
+		return Table.open(getFileNumber(builder.getFile().getName()), builder.getFile());
+	}
+
+	private void installVersion(Version version) {
+		Version old = current;
+		current = version;
+		old.unref();
+	}
+
+	private long getMaxBytes(int level) {
+		long max = level1MaxBytes;
+		for (int i = 1; i < level; i++) {
+			max *= LEVEL_SIZE_MULTIPLIER;
+		}
+		return max;
+	}
+
+	private synchronized long allocateFileNumber() {
+		return nextFileNumber++;
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Store is closed, " + dir);
+		}
+		if (backgroundError != null) {
+			throw new IOException("Store disabled after background error, " + backgroundError.getMessage(), backgroundError);
+		}
+	}
+
+	private File getTableFile(long number) {
+		return new File(dir, String.format("%06d.sst", number));
+	}
+
+	private File getLogFile(long number) {
+		return new File(dir, String.format("%06d.log", number));
+	}
+
+	private static ExecutorService newExecutor(final String name, int threads) {
+		final AtomicInteger threadId = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + threadId.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private static long getFileNumber(String filename) {
+		int dot = filename.indexOf('.');
+		if (dot <= 0) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(filename.substring(0, dot));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static class Compaction {
+		private final int level;
+		private final List<Table> inputs;
+		private final List<Table> outputLevelInputs;
+		private final boolean dropDeletes;
+
+		Compaction(int level, List<Table> inputs, List<Table> outputLevelInputs, boolean dropDeletes) {
+			this.level = level;
+			this.inputs = inputs;
+			this.outputLevelInputs = outputLevelInputs;
+			this.dropDeletes = dropDeletes;
+		}
+	}
+
+	private static class LsmIterator implements KeyValueIterator {
+		private final InternalIterator iterator;
+		private final byte[] to;
+		private Version version;
+
+		LsmIterator(InternalIterator iterator, byte[] to, Version version) throws IOException {
+			this.iterator = iterator;
+			this.to = to;
+			this.version = version;
+			skipDeleted();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return version != null && iterator.isValid() && (to == null || ByteArrayComparator.INSTANCE.compare(iterator.getKey(), to) < 0);
+		}
+
+		@Override
+		public Pair<byte[], byte[]> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Pair<byte[], byte[]> entry = new Pair<byte[], byte[]>(iterator.getKey(), iterator.getValue());
+			try {
+				iterator.next();
+				skipDeleted();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			if (version != null) {
+				version.unref();
+				version = null;
+			}
+		}
+
+		private void skipDeleted() throws IOException {
+			while (iterator.isValid() && iterator.getValue() == DELETED) {
+				iterator.next();
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Records the tables in each level, the oldest log still needed and the next
+ * file number.  The manifest is replaced atomically on every change.
+ */
+class Manifest {
+	static final String FILENAME = "MANIFEST";
+	private static final int MAGIC = 0x54574D46;
+
+	private final long nextFileNumber;
+	private final long logNumber;
+	private final List<long[]> tables;
+
+	Manifest(long nextFileNumber, long logNumber, List<long[]> tables) {
+		this.nextFileNumber = nextFileNumber;
+		this.logNumber = logNumber;
+		this.tables = tables;
+	}
+
+	long getNextFileNumber() {
+		return nextFileNumber;
+	}
+
+	long getLogNumber() {
+		return logNumber;
+	}
+
+	/**
+	 * Gets the tables as {level, file number} pairs
+	 */
+	List<long[]> getTables() {
+		return tables;
+	}
+
+	static void write(File dir, long nextFileNumber, long logNumber, Version version) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(MAGIC);
+		data.writeLong(nextFileNumber);
+		data.writeLong(logNumber);
+		int count = 0;
+		for (int level = 0; level < Version.LEVELS; level++) {
+			count += version.getTableCount(level);
+		}
+		data.writeInt(count);
+		for (int level = 0; level < Version.LEVELS; level++) {
+			for (Table table : version.getTables(level)) {
+				data.writeInt(level);
+				data.writeLong(table.getFileNumber());
+			}
+		}
+		data.flush();
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		data.writeLong(crc.getValue());
+		data.flush();
+
+		File tmp = new File(dir, FILENAME + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(bytes.toByteArray());
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(dir, FILENAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads the manifest
+	 *
+	 * @return the manifest, or null if there is no manifest
+	 */
+	static Manifest read(File dir) throws IOException {
+		File file = new File(dir, FILENAME);
+		if (!file.exists()) {
+			return null;
+		}
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		if (bytes.length < 8) {
+			throw new IOException("Manifest file too short");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 8);
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Manifest file has bad magic number");
+		}
+		long nextFileNumber = data.readLong();
+		long logNumber = data.readLong();
+		int count = data.readInt();
+		List<long[]> tables = new ArrayList<long[]>(count);
+		for (int i = 0; i < count; i++) {
+			int level = data.readInt();
+			long fileNumber = data.readLong();
+			tables.add(new long[] {level, fileNumber});
+		}
+		if (data.readLong() != crc.getValue()) {
+			throw new IOException("Manifest checksum mismatch");
+		}
+		return new Manifest(nextFileNumber, logNumber, tables);
+	}
+}
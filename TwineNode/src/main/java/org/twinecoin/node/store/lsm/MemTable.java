@@ -0,0 +1,114 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.twinecoin.node.store.ByteArrayComparator;
+import org.twinecoin.node.store.WriteBatch;
+
+/**
+ * In memory table of recent writes, backed by a concurrent skip list.  There
+ * is a single writer, but reads and iteration may happen concurrently.
+ */
+class MemTable {
+	// Approximate skip list node overhead per entry
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private final ConcurrentSkipListMap<byte[], byte[]> map = new ConcurrentSkipListMap<byte[], byte[]>(ByteArrayComparator.INSTANCE);
+	private final AtomicLong approximateSize = new AtomicLong();
+	private final long logNumber;
+
+	MemTable(long logNumber) {
+		this.logNumber = logNumber;
+	}
+
+	/**
+	 * Gets the number of the log file holding this table's writes
+	 */
+	long getLogNumber() {
+		return logNumber;
+	}
+
+	void apply(WriteBatch batch) {
+		long added = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			byte[] key = batch.getKey(i);
+			byte[] value = batch.getValue(i);
+			if (value == null) {
+				value = LsmStore.DELETED;
+			}
+			byte[] old = map.put(key, value);
+			if (old == null) {
+				added += ENTRY_OVERHEAD + key.length + value.length;
+			} else {
+				added += value.length - old.length;
+			}
+		}
+		approximateSize.addAndGet(added);
+	}
+
+	/**
+	 * Gets a value
+	 *
+	 * @return the value, {@link LsmStore#DELETED} or null if not present
+	 */
+	byte[] get(byte[] key) {
+		return map.get(key);
+	}
+
+	long getApproximateSize() {
+		return approximateSize.get();
+	}
+
+	boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	InternalIterator iterator() {
+		return new MemTableIterator();
+	}
+
+	private class MemTableIterator implements InternalIterator {
+		private Iterator<Entry<byte[], byte[]>> iterator = null;
+		private Entry<byte[], byte[]> current = null;
+
+		@Override
+		public boolean isValid() {
+			return current != null;
+		}
+
+		@Override
+		public byte[] getKey() {
+			return current.getKey();
+		}
+
+		@Override
+		public byte[] getValue() {
+			return current.getValue();
+		}
+
+		@Override
+		public void next() {
+			current = iterator.hasNext() ? iterator.next() : null;
+		}
+
+		@Override
+		public void seek(byte[] target) {
+			iterator = map.tailMap(target, true).entrySet().iterator();
+			next();
+		}
+
+		@Override
+		public void seekToFirst() {
+			iterator = map.entrySet().iterator();
+			next();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.twinecoin.node.store.ByteArrayComparator;
+
+/**
+ * Merges sorted iterators.  Sources are given newest first and when several
+ * sources hold the same key, only the newest entry is returned.
+ */
+class MergingIterator implements InternalIterator {
+	private final InternalIterator[] sources;
+	private final PriorityQueue<Integer> heap;
+
+	MergingIterator(List<InternalIterator> sources) {
+		this.sources = sources.toArray(new InternalIterator[sources.size()]);
+		this.heap = new PriorityQueue<Integer>(Math.max(1, sources.size()), new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int diff = ByteArrayComparator.INSTANCE.compare(MergingIterator.this.sources[a].getKey(), MergingIterator.this.sources[b].getKey());
+				return diff != 0 ? diff : a.compareTo(b);
+			}
+		});
+	}
+
+	@Override
+	public boolean isValid() {
+		return !heap.isEmpty();
+	}
+
+	@Override
+	public byte[] getKey() {
+		return sources[heap.peek()].getKey();
+	}
+
+	@Override
+	public byte[] getValue() {
+		return sources[heap.peek()].getValue();
+	}
+
+	@Override
+	public void next() throws IOException {
+		byte[] key = getKey();
+		// Skip older entries for the same key
+		while (!heap.isEmpty() && ByteArrayComparator.INSTANCE.compare(sources[heap.peek()].getKey(), key) == 0) {
+			Integer source = heap.poll();
+			sources[source].next();
+			if (sources[source].isValid()) {
+				heap.add(source);
+			}
+		}
+	}
+
+	@Override
+	public void seek(byte[] target) throws IOException {
+		heap.clear();
+		for (int i = 0; i < sources.length; i++) {
+			sources[i].seek(target);
+			if (sources[i].isValid()) {
+				heap.add(i);
+			}
+		}
+	}
+
+	@Override
+	public void seekToFirst() throws IOException {
+		heap.clear();
+		for (int i = 0; i < sources.length; i++) {
+			sources[i].seekToFirst();
+			if (sources[i].isValid()) {
+				heap.add(i);
+			}
+		}
+	}
+}
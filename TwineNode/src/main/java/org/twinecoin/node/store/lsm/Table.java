@@ -0,0 +1,256 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.store.ByteArrayComparator;
+
+/**
+ * Reader for a table written by {@link TableBuilder}.  The index and bloom
+ * filter are held in memory and data blocks are read on demand.<br>
+ * <br>
+ * Tables are reference counted by the versions that contain them.  The file
+ * is closed when the last reference is released and deleted if the table was
+ * marked obsolete by a compaction.
+ */
+class Table {
+	private final long fileNumber;
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final Block index;
+	private final byte[] filter;
+	private final byte[] smallest;
+	private final byte[] largest;
+	private final long entryCount;
+	private final AtomicInteger refs;
+
+	private volatile boolean obsolete;
+
+	private Table(long fileNumber, File file) throws IOException {
+		this.fileNumber = fileNumber;
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r");
+		this.refs = new AtomicInteger(0);
+		this.obsolete = false;
+		boolean success = false;
+		try {
+			this.channel = raf.getChannel();
+			this.fileSize = channel.size();
+			if (fileSize < TableBuilder.FOOTER_SIZE) {
+				throw new IOException("Table file too short, " + file);
+			}
+			byte[] footer = read(fileSize - TableBuilder.FOOTER_SIZE, TableBuilder.FOOTER_SIZE);
+			if (TableBuilder.getLong(footer, TableBuilder.FOOTER_SIZE - 8) != TableBuilder.MAGIC) {
+				throw new IOException("Table file has bad magic number, " + file);
+			}
+			this.filter = readBlock(TableBuilder.getLong(footer, 0), BlockBuilder.getInt(footer, 8));
+			this.index = new Block(readBlock(TableBuilder.getLong(footer, 12), BlockBuilder.getInt(footer, 20)));
+			byte[] meta = readBlock(TableBuilder.getLong(footer, 24), BlockBuilder.getInt(footer, 32));
+
+			int[] end = new int[1];
+			int length = (int) VarInt.read(meta, 0, end);
+			this.smallest = Arrays.copyOfRange(meta, end[0], end[0] + length);
+			length = (int) VarInt.read(meta, end[0] + length, end);
+			this.largest = Arrays.copyOfRange(meta, end[0], end[0] + length);
+			this.entryCount = VarInt.read(meta, end[0] + length, null);
+			success = true;
+		} finally {
+			if (!success) {
+				raf.close();
+			}
+		}
+	}
+
+	static Table open(long fileNumber, File file) throws IOException {
+		return new Table(fileNumber, file);
+	}
+
+	long getFileNumber() {
+		return fileNumber;
+	}
+
+	long getFileSize() {
+		return fileSize;
+	}
+
+	long getEntryCount() {
+		return entryCount;
+	}
+
+	byte[] getSmallest() {
+		return smallest;
+	}
+
+	byte[] getLargest() {
+		return largest;
+	}
+
+	boolean overlaps(byte[] from, byte[] to) {
+		ByteArrayComparator c = ByteArrayComparator.INSTANCE;
+		return (to == null || c.compare(smallest, to) <= 0) && (from == null || c.compare(largest, from) >= 0);
+	}
+
+	/**
+	 * Gets a value
+	 *
+	 * @return the value, {@link LsmStore#DELETED} or null if not present
+	 */
+	byte[] get(byte[] key) throws IOException {
+		if (!BloomFilter.mayContain(filter, key)) {
+			return null;
+		}
+		InternalIterator indexIterator = index.iterator();
+		indexIterator.seek(key);
+		if (!indexIterator.isValid()) {
+			return null;
+		}
+		InternalIterator blockIterator = readDataBlock(indexIterator.getValue()).iterator();
+		blockIterator.seek(key);
+		if (blockIterator.isValid() && Arrays.equals(blockIterator.getKey(), key)) {
+			return blockIterator.getValue();
+		}
+		return null;
+	}
+
+	InternalIterator iterator() {
+		return new TableIterator();
+	}
+
+	void ref() {
+		refs.incrementAndGet();
+	}
+
+	void unref() {
+		if (refs.decrementAndGet() == 0) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+			}
+			if (obsolete) {
+				file.delete();
+			}
+		}
+	}
+
+	void markObsolete() {
+		obsolete = true;
+	}
+
+	/**
+	 * Closes and deletes a table that was never added to a version
+	 */
+	void discard() {
+		obsolete = true;
+		ref();
+		unref();
+	}
+
+	private Block readDataBlock(byte[] handle) throws IOException {
+		int[] end = new int[1];
+		long offset = VarInt.read(handle, 0, end);
+		int size = (int) VarInt.read(handle, end[0], null);
+		return new Block(readBlock(offset, size));
+	}
+
+	private byte[] readBlock(long offset, int size) throws IOException {
+		byte[] data = read(offset, size + 4);
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, size);
+		if ((int) crc.getValue() != BlockBuilder.getInt(data, size)) {
+			throw new IOException("Checksum mismatch in table " + file + " at offset " + offset);
+		}
+		return Arrays.copyOf(data, size);
+	}
+
+	private byte[] read(long offset, int size) throws IOException {
+		if (offset < 0 || size < 0 || offset + size > fileSize) {
+			throw new IOException("Read outside table file " + file + ", offset " + offset + ", size " + size);
+		}
+		byte[] data = new byte[size];
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, offset + buf.position());
+			if (read < 0) {
+				throw new IOException("Unexpected end of table file " + file);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Two level iterator over the index and the data blocks
+	 */
+	private class TableIterator implements InternalIterator {
+		private final InternalIterator indexIterator = index.iterator();
+		private InternalIterator blockIterator = null;
+
+		@Override
+		public boolean isValid() {
+			return blockIterator != null && blockIterator.isValid();
+		}
+
+		@Override
+		public byte[] getKey() {
+			return blockIterator.getKey();
+		}
+
+		@Override
+		public byte[] getValue() {
+			return blockIterator.getValue();
+		}
+
+		@Override
+		public void next() throws IOException {
+			blockIterator.next();
+			skipEmptyBlocks();
+		}
+
+		@Override
+		public void seek(byte[] target) throws IOException {
+			indexIterator.seek(target);
+			loadBlock();
+			if (blockIterator != null) {
+				blockIterator.seek(target);
+			}
+			skipEmptyBlocks();
+		}
+
+		@Override
+		public void seekToFirst() throws IOException {
+			indexIterator.seekToFirst();
+			loadBlock();
+			if (blockIterator != null) {
+				blockIterator.seekToFirst();
+			}
+			skipEmptyBlocks();
+		}
+
+		private void loadBlock() throws IOException {
+			blockIterator = indexIterator.isValid() ? readDataBlock(indexIterator.getValue()).iterator() : null;
+		}
+
+		private void skipEmptyBlocks() throws IOException {
+			while (blockIterator != null && !blockIterator.isValid()) {
+				indexIterator.next();
+				loadBlock();
+				if (blockIterator != null) {
+					blockIterator.seekToFirst();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.twinecoin.common.VarInt;
+
+/**
+ * Writes an immutable sorted table.  Keys must be added in increasing order.<br>
+ * <br>
+ * File format<br>
+ * - data blocks<br>
+ * - bloom filter over all keys<br>
+ * - index block mapping the last key of each data block to its position<br>
+ * - meta block with the smallest key, largest key and entry count<br>
+ * - footer<br>
+ * <br>
+ * Every block is followed by its CRC32.
+ */
+class TableBuilder {
+	static final int BLOCK_SIZE = 4096;
+	static final long MAGIC = 0x5477696E65535354L;
+	static final int FOOTER_SIZE = 3 * (8 + 4) + 8;
+
+	private final File file;
+	private final FileOutputStream fileOut;
+	private final OutputStream out;
+	private final BlockBuilder dataBlock;
+	private final BlockBuilder indexBlock;
+	private final CRC32 crc;
+
+	private int[] hashes;
+	private long offset;
+	private long entryCount;
+	private byte[] smallest;
+	private byte[] lastKey;
+
+	TableBuilder(File file) throws IOException {
+		this.file = file;
+		this.fileOut = new FileOutputStream(file);
+		this.out = new BufferedOutputStream(fileOut, 65536);
+		this.dataBlock = new BlockBuilder(BLOCK_SIZE * 2);
+		this.indexBlock = new BlockBuilder(1024);
+		this.crc = new CRC32();
+		this.hashes = new int[1024];
+		this.offset = 0;
+		this.entryCount = 0;
+		this.smallest = null;
+		this.lastKey = null;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	void add(byte[] key, byte[] value) throws IOException {
+		if (dataBlock.getEstimatedSize() >= BLOCK_SIZE) {
+			flushDataBlock();
+		}
+		if (smallest == null) {
+			smallest = key;
+		}
+		if (entryCount == hashes.length) {
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+		}
+		hashes[(int) entryCount] = BloomFilter.hash(key);
+		dataBlock.add(key, value);
+		lastKey = key;
+		entryCount++;
+	}
+
+	long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Gets the approximate size of the file so far
+	 */
+	long getFileSize() {
+		return offset + dataBlock.getEstimatedSize();
+	}
+
+	/**
+	 * Completes the table, syncs it to disk and closes the file
+	 */
+	void finish() throws IOException {
+		try {
+			if (!dataBlock.isEmpty()) {
+				flushDataBlock();
+			}
+
+			long filterOffset = offset;
+			byte[] filter = BloomFilter.build(hashes, (int) entryCount, BloomFilter.BITS_PER_KEY);
+			writeBlock(filter);
+
+			long indexOffset = offset;
+			byte[] index = indexBlock.finish();
+			writeBlock(index);
+
+			long metaOffset = offset;
+			byte[] meta = encodeMeta();
+			writeBlock(meta);
+
+			byte[] footer = new byte[FOOTER_SIZE];
+			int pos = putLong(footer, 0, filterOffset);
+			pos = BlockBuilder.putInt(footer, pos, filter.length);
+			pos = putLong(footer, pos, indexOffset);
+			pos = BlockBuilder.putInt(footer, pos, index.length);
+			pos = putLong(footer, pos, metaOffset);
+			pos = BlockBuilder.putInt(footer, pos, meta.length);
+			putLong(footer, pos, MAGIC);
+			out.write(footer);
+			offset += footer.length;
+
+			out.flush();
+			fileOut.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Closes and deletes a partially written table
+	 */
+	void abandon() {
+		try {
+			out.close();
+		} catch (IOException e) {
+		} finally {
+			file.delete();
+		}
+	}
+
+	private void flushDataBlock() throws IOException {
+		long blockOffset = offset;
+		byte[] block = dataBlock.finish();
+		writeBlock(block);
+		dataBlock.reset();
+
+		byte[] handle = new byte[2 * VarInt.MAX_LENGTH];
+		int handleLength = VarInt.write(handle, 0, blockOffset);
+		handleLength = VarInt.write(handle, handleLength, block.length);
+		indexBlock.add(lastKey, Arrays.copyOf(handle, handleLength));
+	}
+
+	private void writeBlock(byte[] block) throws IOException {
+		crc.reset();
+		crc.update(block, 0, block.length);
+		byte[] check = new byte[4];
+		BlockBuilder.putInt(check, 0, (int) crc.getValue());
+		out.write(block);
+		out.write(check);
+		offset += block.length + 4;
+	}
+
+	private byte[] encodeMeta() {
+		byte[] largest = lastKey == null ? new byte[0] : lastKey;
+		byte[] first = smallest == null ? new byte[0] : smallest;
+		byte[] meta = new byte[3 * VarInt.MAX_LENGTH + first.length + largest.length];
+		int pos = VarInt.write(meta, 0, first.length);
+		System.arraycopy(first, 0, meta, pos, first.length);
+		pos += first.length;
+		pos = VarInt.write(meta, pos, largest.length);
+		System.arraycopy(largest, 0, meta, pos, largest.length);
+		pos += largest.length;
+		pos = VarInt.write(meta, pos, entryCount);
+		return Arrays.copyOf(meta, pos);
+	}
+
+	static int putLong(byte[] buf, int offset, long value) {
+		BlockBuilder.putInt(buf, offset, (int) (value >>> 32));
+		return BlockBuilder.putInt(buf, offset + 4, (int) value);
+	}
+
+	static long getLong(byte[] buf, int offset) {
+		return (((long) BlockBuilder.getInt(buf, offset)) << 32) | (BlockBuilder.getInt(buf, offset + 4) & 0xFFFFFFFFL);
+	}
+}
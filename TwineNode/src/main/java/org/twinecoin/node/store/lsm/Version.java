@@ -0,0 +1,265 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.twinecoin.node.store.ByteArrayComparator;
+
+/**
+ * Immutable set of tables, arranged in levels.<br>
+ * <br>
+ * Level 0 holds memtable flushes, which may overlap, newest first.  Higher
+ * levels hold non-overlapping tables sorted by key.  A version keeps its
+ * tables open until the last reference is released.
+ */
+class Version {
+	static final int LEVELS = 7;
+
+	static final Comparator<Table> NEWEST_FIRST = new Comparator<Table>() {
+		@Override
+		public int compare(Table a, Table b) {
+			return Long.compare(b.getFileNumber(), a.getFileNumber());
+		}
+	};
+
+	static final Comparator<Table> SMALLEST_FIRST = new Comparator<Table>() {
+		@Override
+		public int compare(Table a, Table b) {
+			return ByteArrayComparator.INSTANCE.compare(a.getSmallest(), b.getSmallest());
+		}
+	};
+
+	private final List<List<Table>> levels;
+	private final AtomicInteger refs;
+
+	Version(List<List<Table>> levels) {
+		this.levels = levels;
+		this.refs = new AtomicInteger(1);
+		for (List<Table> level : levels) {
+			for (Table table : level) {
+				table.ref();
+			}
+		}
+	}
+
+	static Version empty() {
+		List<List<Table>> levels = new ArrayList<List<Table>>(LEVELS);
+		for (int i = 0; i < LEVELS; i++) {
+			levels.add(new ArrayList<Table>());
+		}
+		return new Version(levels);
+	}
+
+	void ref() {
+		refs.incrementAndGet();
+	}
+
+	void unref() {
+		if (refs.decrementAndGet() == 0) {
+			for (List<Table> level : levels) {
+				for (Table table : level) {
+					table.unref();
+				}
+			}
+		}
+	}
+
+	List<Table> getTables(int level) {
+		return levels.get(level);
+	}
+
+	int getTableCount(int level) {
+		return levels.get(level).size();
+	}
+
+	long getLevelSize(int level) {
+		long size = 0;
+		for (Table table : levels.get(level)) {
+			size += table.getFileSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Gets a value
+	 *
+	 * @return the value, {@link LsmStore#DELETED} or null if not present
+	 */
+	byte[] get(byte[] key) throws IOException {
+		ByteArrayComparator c = ByteArrayComparator.INSTANCE;
+		for (Table table : levels.get(0)) {
+			if (c.compare(key, table.getSmallest()) >= 0 && c.compare(key, table.getLargest()) <= 0) {
+				byte[] value = table.get(key);
+				if (value != null) {
+					return value;
+				}
+			}
+		}
+		for (int level = 1; level < LEVELS; level++) {
+			List<Table> tables = levels.get(level);
+			int i = findTable(tables, key);
+			if (i < tables.size() && c.compare(key, tables.get(i).getSmallest()) >= 0) {
+				byte[] value = tables.get(i).get(key);
+				if (value != null) {
+					return value;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the tables in a level that overlap a key range.  Null bounds are
+	 * unbounded.
+	 */
+	List<Table> getOverlapping(int level, byte[] from, byte[] to) {
+		List<Table> overlapping = new ArrayList<Table>();
+		for (Table table : levels.get(level)) {
+			if (table.overlaps(from, to)) {
+				overlapping.add(table);
+			}
+		}
+		return overlapping;
+	}
+
+	/**
+	 * Checks if any level deeper than the given level has a table overlapping
+	 * the range
+	 */
+	boolean hasOverlapBelow(int level, byte[] from, byte[] to) {
+		for (int i = level + 1; i < LEVELS; i++) {
+			for (Table table : levels.get(i)) {
+				if (table.overlaps(from, to)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates a new version with tables removed and added
+	 */
+	Version apply(List<Table> removed, int level, List<Table> added) {
+		List<List<Table>> newLevels = new ArrayList<List<Table>>(LEVELS);
+		for (int i = 0; i < LEVELS; i++) {
+			List<Table> tables = new ArrayList<Table>(levels.get(i));
+			tables.removeAll(removed);
+			if (i == level) {
+				tables.addAll(added);
+				Collections.sort(tables, level == 0 ? NEWEST_FIRST : SMALLEST_FIRST);
+			}
+			newLevels.add(tables);
+		}
+		return new Version(newLevels);
+	}
+
+	/**
+	 * Adds iterators for all levels, newest data first
+	 */
+	void addIterators(List<InternalIterator> iterators) {
+		for (Table table : levels.get(0)) {
+			iterators.add(table.iterator());
+		}
+		for (int level = 1; level < LEVELS; level++) {
+			if (!levels.get(level).isEmpty()) {
+				iterators.add(new LevelIterator(levels.get(level)));
+			}
+		}
+	}
+
+	/**
+	 * Finds the first table with a largest key greater than or equal to the key
+	 */
+	static int findTable(List<Table> tables, byte[] key) {
+		int left = 0;
+		int right = tables.size();
+		while (left < right) {
+			int mid = (left + right) >>> 1;
+			if (ByteArrayComparator.INSTANCE.compare(tables.get(mid).getLargest(), key) < 0) {
+				left = mid + 1;
+			} else {
+				right = mid;
+			}
+		}
+		return left;
+	}
+
+	/**
+	 * Iterator over the non-overlapping tables of a level, which opens one
+	 * table at a time
+	 */
+	static class LevelIterator implements InternalIterator {
+		private final List<Table> tables;
+		private int tableIndex;
+		private InternalIterator current;
+
+		LevelIterator(List<Table> tables) {
+			this.tables = tables;
+			this.tableIndex = tables.size();
+			this.current = null;
+		}
+
+		@Override
+		public boolean isValid() {
+			return current != null && current.isValid();
+		}
+
+		@Override
+		public byte[] getKey() {
+			return current.getKey();
+		}
+
+		@Override
+		public byte[] getValue() {
+			return current.getValue();
+		}
+
+		@Override
+		public void next() throws IOException {
+			current.next();
+			skipEmptyTables();
+		}
+
+		@Override
+		public void seek(byte[] target) throws IOException {
+			tableIndex = findTable(tables, target);
+			current = tableIndex < tables.size() ? tables.get(tableIndex).iterator() : null;
+			if (current != null) {
+				current.seek(target);
+			}
+			skipEmptyTables();
+		}
+
+		@Override
+		public void seekToFirst() throws IOException {
+			tableIndex = 0;
+			current = tables.isEmpty() ? null : tables.get(0).iterator();
+			if (current != null) {
+				current.seekToFirst();
+			}
+			skipEmptyTables();
+		}
+
+		private void skipEmptyTables() throws IOException {
+			while (current != null && !current.isValid()) {
+				tableIndex++;
+				if (tableIndex < tables.size()) {
+					current = tables.get(tableIndex).iterator();
+					current.seekToFirst();
+				} else {
+					current = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.store.WriteBatch;
+
+/**
+ * Append-only log of write batches.<br>
+ * <br>
+ * Record format<br>
+ * - payload length (4 bytes)<br>
+ * - CRC32 of the payload (4 bytes)<br>
+ * - payload: entry count, then for each entry the key length, the value
+ * length plus one (zero for deletes), the key and the value<br>
+ * <br>
+ * A torn record at the end of the log is ignored on replay.
+ */
+class WriteAheadLog {
+	private static final int HEADER_SIZE = 8;
+
+	private final File file;
+	private final FileOutputStream out;
+	private final FileChannel channel;
+	private final boolean sync;
+
+	WriteAheadLog(File file, boolean sync) throws IOException {
+		this.file = file;
+		this.out = new FileOutputStream(file, true);
+		this.channel = out.getChannel();
+		this.sync = sync;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	void append(WriteBatch batch) throws IOException {
+		int payloadSize = VarInt.size(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			byte[] key = batch.getKey(i);
+			byte[] value = batch.getValue(i);
+			int valueLength = value == null ? 0 : value.length;
+			payloadSize += VarInt.size(key.length) + VarInt.size(valueLength + 1) + key.length + valueLength;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+		buf.position(HEADER_SIZE);
+		VarInt.write(buf, batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			byte[] key = batch.getKey(i);
+			byte[] value = batch.getValue(i);
+			VarInt.write(buf, key.length);
+			VarInt.write(buf, value == null ? 0 : value.length + 1);
+			buf.put(key);
+			if (value != null) {
+				buf.put(value);
+			}
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), HEADER_SIZE, payloadSize);
+		buf.putInt(0, payloadSize);
+		buf.putInt(4, (int) crc.getValue());
+		buf.position(0);
+
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		if (sync) {
+			channel.force(false);
+		}
+	}
+
+	void close() throws IOException {
+		channel.force(false);
+		out.close();
+	}
+
+	/**
+	 * Replays a log into a memtable
+	 *
+	 * @return the number of batches replayed
+	 */
+	static int replay(File file, MemTable memTable, Logger logger) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel in = raf.getChannel();
+			long size = in.size();
+			long position = 0;
+			int count = 0;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (position + HEADER_SIZE <= size) {
+				header.clear();
+				readFully(in, header, position);
+				int payloadSize = header.getInt(0);
+				int expectedCrc = header.getInt(4);
+				if (payloadSize < 0 || position + HEADER_SIZE + payloadSize > size) {
+					break;
+				}
+				ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+				readFully(in, payload, position + HEADER_SIZE);
+				CRC32 crc = new CRC32();
+				crc.update(payload.array(), 0, payloadSize);
+				if ((int) crc.getValue() != expectedCrc) {
+					break;
+				}
+				payload.flip();
+				memTable.apply(decode(payload));
+				position += HEADER_SIZE + payloadSize;
+				count++;
+			}
+			if (position != size) {
+				logger.warning("Ignoring " + (size - position) + " bytes of incomplete records at end of log, " + file);
+			}
+			return count;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static WriteBatch decode(ByteBuffer payload) {
+		WriteBatch batch = new WriteBatch();
+		int count = VarInt.readInt(payload);
+		for (int i = 0; i < count; i++) {
+			byte[] key = new byte[VarInt.readInt(payload)];
+			int valueLength = VarInt.readInt(payload);
+			payload.get(key);
+			if (valueLength == 0) {
+				batch.delete(key);
+			} else {
+				byte[] value = new byte[valueLength - 1];
+				payload.get(value);
+				batch.put(key, value);
+			}
+		}
+		return batch;
+	}
+
+	private static void readFully(FileChannel in, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = in.read(buf, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of log file");
+			}
+			position += read;
+		}
+	}
+}
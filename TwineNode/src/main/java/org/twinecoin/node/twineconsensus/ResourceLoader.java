@@ -14,15 +14,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.logging.Logger;
 
+import org.twinecoin.common.ByteBufferPool;
 import org.twinecoin.common.Convert;
 import org.twinecoin.common.SHA256;
 
 public class ResourceLoader {
 	
+	private static final int COPY_BUFFER_SIZE = 8192;
+
 	private final Logger logger;
 	
 	public ResourceLoader(Logger logger) {
@@ -58,13 +62,18 @@ public class ResourceLoader {
 
 		try {
 			targetOut = new FileOutputStream(targetFile);
-			byte[] buf = new byte[8192];
-			int read = 0;
-			while (read >= 0) {
-				read = resourceIn.read(buf);
-				if (read > 0) {
-					targetOut.write(buf, 0, read);
+			ByteBuffer buf = ByteBufferPool.getShared().acquire(COPY_BUFFER_SIZE, false);
+			try {
+				byte[] array = buf.array();
+				int read = 0;
+				while (read >= 0) {
+					read = resourceIn.read(array, 0, buf.limit());
+					if (read > 0) {
+						targetOut.write(array, 0, read);
+					}
 				}
+			} finally {
+				ByteBufferPool.getShared().release(buf);
 			}
 		} catch (FileNotFoundException e) {
 			logger.severe("Unable to find resource file, " + e.getMessage());
@@ -0,0 +1,180 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.address;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.api.data.AddressHistoryEntry;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.output.OutputView;
+import org.twinecoin.node.store.lsm.LsmStore;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+
+public class TwineAddressTrackerTest {
+
+	private static final byte[] SCRIPT_A = new byte[] {0x51, 1};
+	private static final byte[] SCRIPT_B = new byte[] {0x51, 2};
+	private static final byte[] SCRIPT_C = new byte[] {0x51, 3};
+
+	private File dir;
+	private Logger logger;
+	private Map<OutPoint, UnspentOutput> outputs;
+
+	@Before
+	public void before() {
+		dir = TestFiles.createTestDir("addressindex");
+		TwineLogger twineLogger = new TwineLogger(TwineAddressTrackerTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+		outputs = new HashMap<OutPoint, UnspentOutput>();
+	}
+
+	@After
+	public void after() {
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void testPaging() throws IOException {
+		LsmStore store = new LsmStore(dir, logger, 2);
+		try {
+			TwineAddressTracker tracker = new TwineAddressTracker(store, logger);
+			assertEquals("Unexpected empty best height", -1, tracker.getBestHeight());
+			connect(tracker, 0, 1000);
+
+			byte[] a = TwineAddressTracker.getScriptHash(SCRIPT_A);
+			List<AddressHistoryEntry> expected = expectedHistory(1000);
+			assertTrue("Test should cover several segments", expected.size() > 2 * TwineAddressTracker.SEGMENT_ENTRIES);
+			assertEquals("Unexpected history size", expected.size(), tracker.getHistorySize(a));
+			assertEquals("Full history mismatch", expected, tracker.getHistory(a, 0, Integer.MAX_VALUE));
+
+			int offset = TwineAddressTracker.SEGMENT_ENTRIES - 7;
+			assertEquals("Page across segments mismatch", expected.subList(offset, offset + 100), tracker.getHistory(a, offset, 100));
+			assertEquals("Last page mismatch", expected.subList(expected.size() - 5, expected.size()), tracker.getHistory(a, expected.size() - 5, 100));
+			assertEquals("Page past the end not empty", 0, tracker.getHistory(a, expected.size(), 10).size());
+
+			assertEquals("Unexpected history size", 333, tracker.getHistorySize(TwineAddressTracker.getScriptHash(SCRIPT_C)));
+			assertEquals("Unexpected history size", 1333, tracker.getHistorySize(TwineAddressTracker.getScriptHash(SCRIPT_B)));
+			assertEquals("Unknown script has history", 0, tracker.getHistorySize(new byte[32]));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testDisconnect() throws IOException {
+		LsmStore store = new LsmStore(dir, logger, 2);
+		byte[] a = TwineAddressTracker.getScriptHash(SCRIPT_A);
+		try {
+			TwineAddressTracker tracker = new TwineAddressTracker(store, logger);
+			assertFalse("Empty index started above the genesis block", tracker.connectBlock(5, createBlock(5), view()));
+			connect(tracker, 0, 600);
+			assertFalse("Block at wrong height accepted", tracker.connectBlock(700, createBlock(700), view()));
+			assertFalse("Block below the best block disconnected", tracker.disconnectBlock(500));
+
+			// Unwind across a segment boundary
+			for (int height = 599; height >= 300; height--) {
+				assertTrue("Block not disconnected", tracker.disconnectBlock(height));
+			}
+			assertEquals("Unexpected best height", 299, tracker.getBestHeight());
+			assertEquals("History mismatch after disconnect", expectedHistory(300), tracker.getHistory(a, 0, Integer.MAX_VALUE));
+
+			connect(tracker, 300, 700);
+		} finally {
+			store.close();
+		}
+
+		store = new LsmStore(dir, logger, 2);
+		try {
+			TwineAddressTracker tracker = new TwineAddressTracker(store, logger);
+			assertEquals("Best height not restored", 699, tracker.getBestHeight());
+			assertEquals("History mismatch after reconnect", expectedHistory(700), tracker.getHistory(a, 0, Integer.MAX_VALUE));
+		} finally {
+			store.close();
+		}
+	}
+
+	private void connect(TwineAddressTracker tracker, int from, int to) {
+		for (int height = from; height < to; height++) {
+			List<Transaction> block = createBlock(height);
+			assertTrue("Block not connected", tracker.connectBlock(height, block, view()));
+			for (Transaction tx : block) {
+				for (int i = 0; i < tx.getOutputs().size(); i++) {
+					TxOutput output = tx.getOutputs().get(i);
+					outputs.put(new OutPoint(tx.getTxid(), i), new UnspentOutput(output.getValue(), output.getScript(), height, false));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Each block pays script B in the coinbase and script A at position 1.
+	 * Every third block also spends the script A output of the previous block
+	 * to script C at position 2, and spends the new script A output within
+	 * the block at position 3.
+	 */
+	private static List<Transaction> createBlock(int height) {
+		List<Transaction> block = new ArrayList<Transaction>();
+		block.add(transaction(null, SCRIPT_B, height));
+		block.add(transaction(null, SCRIPT_A, height));
+		if (height % 3 == 1) {
+			block.add(transaction(new OutPoint(transaction(null, SCRIPT_A, height - 1).getTxid(), 0), SCRIPT_C, height));
+			block.add(transaction(new OutPoint(block.get(1).getTxid(), 0), SCRIPT_B, height));
+		}
+		return block;
+	}
+
+	private static List<AddressHistoryEntry> expectedHistory(int blocks) {
+		List<AddressHistoryEntry> history = new ArrayList<AddressHistoryEntry>();
+		for (int height = 0; height < blocks; height++) {
+			history.add(new AddressHistoryEntry(height, 1));
+			if (height % 3 == 1) {
+				history.add(new AddressHistoryEntry(height, 2));
+				history.add(new AddressHistoryEntry(height, 3));
+			}
+		}
+		return history;
+	}
+
+	private static Transaction transaction(OutPoint spent, byte[] script, int height) {
+		byte[] txid = new byte[OutPoint.TXID_LENGTH];
+		txid[0] = (byte) height;
+		txid[1] = (byte) (height >> 8);
+		txid[2] = script[1];
+		List<TxInput> inputs = Arrays.asList(new TxInput(spent == null ? new OutPoint(txid, 0) : spent, new byte[0], -1));
+		List<TxOutput> outputs = Arrays.asList(new TxOutput(1000, script));
+		return new Transaction(1, inputs, outputs, 0);
+	}
+
+	private OutputView view() {
+		return new OutputView() {
+			@Override
+			public UnspentOutput getOutput(OutPoint outPoint) {
+				return outputs.get(outPoint);
+			}
+		};
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.block;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.common.VarInt;
+
+/**
+ * Time to hash every transaction of a block received in a buffer.<br>
+ * <br>
+ * decode - decode each transaction into a {@link Transaction}<br>
+ * view - wrap the block in a {@link BlockView} and hash each
+ * transaction in place<br>
+ * <br>
+ * mvn -Pbenchmark verify -Dbenchmark=BlockViewBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockViewBenchmark {
+	private static final int BLOCK_SIZE = 2000;
+
+	private ByteBuffer block;
+
+	@Setup
+	public void setup() {
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			transactions.add(BlockViewTest.createTransaction(i, 2, 2));
+		}
+		byte[] serialized = BlockViewTest.serialize(transactions);
+		block = ByteBuffer.allocateDirect(serialized.length);
+		block.put(serialized);
+		block.flip();
+	}
+
+	@Benchmark
+	public int decode() {
+		ByteBuffer buf = block.duplicate();
+		buf.position(CompactBlock.HEADER_LENGTH);
+		int count = VarInt.readInt(buf);
+		int check = 0;
+		for (int i = 0; i < count; i++) {
+			check += Transaction.read(buf).getTxid()[0];
+		}
+		return check;
+	}
+
+	@Benchmark
+	public int view() {
+		BlockView view = BlockView.wrap(block);
+		int check = 0;
+		for (int i = 0; i < view.getTransactionCount(); i++) {
+			check += view.getTransaction(i).getTxid()[0];
+		}
+		return check;
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.block;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TransactionView;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.common.Pair;
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+
+public class BlockViewTest {
+
+	@Test
+	public void testTransactionView() {
+		Transaction tx = createTransaction(7, 3, 4);
+		ByteBuffer buf = ByteBuffer.allocateDirect(tx.getSize() + 10);
+		buf.put(new byte[5]);
+		buf.put(tx.getSerialized());
+		buf.flip();
+		buf.position(5);
+
+		TransactionView view = TransactionView.wrap(buf);
+		assertEquals("Buffer not moved past the transaction", 5 + tx.getSize(), buf.position());
+		assertEquals("Size mismatch", tx.getSize(), view.getSize());
+		assertArrayEquals("Txid mismatch", tx.getTxid(), view.getTxid());
+		assertEquals("Version mismatch", tx.getVersion(), view.getVersion());
+		assertEquals("Lock time mismatch", tx.getLockTime(), view.getLockTime());
+		assertEquals("Input count mismatch", 3, view.getInputCount());
+		assertEquals("Output count mismatch", 4, view.getOutputCount());
+		for (int i = 0; i < 3; i++) {
+			TxInput input = view.getInput(i);
+			assertEquals("Outpoint mismatch", tx.getInputs().get(i).getOutPoint(), view.getOutPoint(i));
+			assertArrayEquals("Input script mismatch", tx.getInputs().get(i).getScript(), input.getScript());
+			assertEquals("Sequence mismatch", tx.getInputs().get(i).getSequence(), input.getSequence());
+		}
+		for (int i = 0; i < 4; i++) {
+			assertEquals("Output value mismatch", tx.getOutputs().get(i).getValue(), view.getOutputValue(i));
+			assertEquals("Output script mismatch", ByteBuffer.wrap(tx.getOutputs().get(i).getScript()), view.getOutputScript(i));
+			assertArrayEquals("Output mismatch", tx.getOutputs().get(i).getScript(), view.getOutput(i).getScript());
+		}
+		assertArrayEquals("Decoded transaction mismatch", tx.getSerialized(), view.toTransaction().getSerialized());
+
+		ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(tx.getSerialized(), tx.getSize() - 1));
+		try {
+			TransactionView.wrap(truncated);
+			fail("Truncated transaction accepted");
+		} catch (RuntimeException e) {
+			assertEquals("Buffer moved after failure", 0, truncated.position());
+		}
+	}
+
+	@Test
+	public void testMappedBlock() throws IOException {
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		for (int i = 0; i < 50; i++) {
+			transactions.add(createTransaction(i, 1 + i % 3, 1 + i % 4));
+		}
+		byte[] block = serialize(transactions);
+
+		File dir = TestFiles.createTestDir("blockview");
+		try {
+			File file = new File(dir, "blk00000.dat");
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.write(new byte[100]);
+				raf.write(block);
+				MappedByteBuffer mapped = raf.getChannel().map(MapMode.READ_ONLY, 0, raf.length());
+				mapped.position(100);
+
+				BlockView view = BlockView.wrap(mapped);
+				assertEquals("Buffer position moved", 100, mapped.position());
+				assertEquals("Transaction count mismatch", 50, view.getTransactionCount());
+				assertArrayEquals("Txid mismatch", transactions.get(31).getTxid(), view.getTransaction(31).getTxid());
+				assertEquals("Output value mismatch", transactions.get(17).getOutputs().get(0).getValue(), view.getTransaction(17).getOutputValue(0));
+				assertEquals("Block size mismatch", block.length, view.getSize());
+				assertArrayEquals("Merkle root mismatch", PartialBlock.getMerkleRoot(transactions), view.getMerkleRoot());
+
+				byte[] header = Arrays.copyOf(block, CompactBlock.HEADER_LENGTH);
+				CompactBlock compact = new CompactBlock(header, 0, new long[0], new ArrayList<Pair<Integer, Transaction>>());
+				assertArrayEquals("Block hash mismatch", compact.getBlockHash(), view.getBlockHash());
+				assertTrue("Transaction views not kept", view.getTransaction(3) == view.getTransactions().get(3));
+			} finally {
+				raf.close();
+			}
+		} finally {
+			TestFiles.delete(dir);
+		}
+	}
+
+	static byte[] serialize(List<Transaction> transactions) {
+		int size = CompactBlock.HEADER_LENGTH + VarInt.size(transactions.size());
+		for (Transaction tx : transactions) {
+			size += tx.getSize();
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		for (int i = 0; i < CompactBlock.HEADER_LENGTH; i++) {
+			buf.put((byte) i);
+		}
+		VarInt.write(buf, transactions.size());
+		for (Transaction tx : transactions) {
+			buf.put(tx.getSerialized());
+		}
+		return buf.array();
+	}
+
+	static Transaction createTransaction(int id, int inputCount, int outputCount) {
+		List<TxInput> inputs = new ArrayList<TxInput>();
+		for (int i = 0; i < inputCount; i++) {
+			byte[] txid = new byte[OutPoint.TXID_LENGTH];
+			txid[0] = (byte) id;
+			txid[1] = (byte) i;
+			inputs.add(new TxInput(new OutPoint(txid, 200 + i), new byte[72 + i], i - 1));
+		}
+		List<TxOutput> outputs = new ArrayList<TxOutput>();
+		for (int i = 0; i < outputCount; i++) {
+			byte[] script = new byte[25];
+			script[0] = (byte) i;
+			outputs.add(new TxOutput(1000L * id + i * 100000000L, script));
+		}
+		return new Transaction(1, inputs, outputs, id);
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.mempool.TwineMemoryPool;
+import org.twinecoin.node.output.MemoryOutputStore;
+import org.twinecoin.node.output.TwineOutputTracker;
+
+/**
+ * Compact block reconstruction time against memory pool size and the
+ * fraction of the block already in the pool.<br>
+ * <br>
+ * reconstruct - decode a compact block of {@link #BLOCK_SIZE} transactions,
+ * match it against the pool and fill the missing transactions<br>
+ * <br>
+ * mvn -Pbenchmark verify -Dbenchmark=CompactBlockBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompactBlockBenchmark {
+	private static final int BLOCK_SIZE = 2000;
+
+	@Param({"10000", "100000"})
+	public int poolSize;
+
+	@Param({"0.5", "0.9", "1.0"})
+	public double knownFraction;
+
+	private TwineMemoryPool pool;
+	private byte[] serialized;
+	private List<Transaction> blockTransactions;
+
+	@Setup
+	public void setup() throws IOException {
+		TwineLogger twineLogger = new TwineLogger(CompactBlockBenchmark.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		Logger logger = twineLogger.getLogger();
+
+		Random random = new Random(0);
+		MemoryOutputStore store = new MemoryOutputStore();
+		List<Pair<OutPoint, UnspentOutput>> batch = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		List<OutPoint> funding = new ArrayList<OutPoint>();
+		for (int i = 0; i < poolSize + BLOCK_SIZE; i++) {
+			byte[] txid = new byte[OutPoint.TXID_LENGTH];
+			random.nextBytes(txid);
+			OutPoint outPoint = new OutPoint(txid, 0);
+			batch.add(new Pair<OutPoint, UnspentOutput>(outPoint, new UnspentOutput(100000000, new byte[25], 1, false)));
+			funding.add(outPoint);
+		}
+		store.writeBatch(batch);
+
+		TwineOutputTracker outputs = new TwineOutputTracker(store, logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		pool = new TwineMemoryPool(outputs, logger, Long.MAX_VALUE, 1000);
+		List<Transaction> poolTransactions = new ArrayList<Transaction>(poolSize);
+		for (int i = 0; i < poolSize; i++) {
+			Transaction tx = spend(random, funding.get(i));
+			pool.addTransaction(tx);
+			poolTransactions.add(tx);
+		}
+		Collections.shuffle(poolTransactions, random);
+
+		int known = (int) (BLOCK_SIZE * knownFraction);
+		blockTransactions = new ArrayList<Transaction>(BLOCK_SIZE + 1);
+		blockTransactions.add(spend(random, new OutPoint(new byte[OutPoint.TXID_LENGTH], 0)));
+		blockTransactions.addAll(poolTransactions.subList(0, Math.min(known, poolSize)));
+		for (int i = blockTransactions.size() - 1; i < BLOCK_SIZE; i++) {
+			blockTransactions.add(spend(random, funding.get(poolSize + i)));
+		}
+		byte[] header = new byte[CompactBlock.HEADER_LENGTH];
+		random.nextBytes(header);
+		serialized = CompactBlock.create(header, random.nextLong(), blockTransactions).serialize();
+	}
+
+	@Benchmark
+	public List<Transaction> reconstruct() {
+		CompactBlock block = CompactBlock.read(ByteBuffer.wrap(serialized));
+		PartialBlock partial = PartialBlock.reconstruct(block, pool);
+		if (!partial.isComplete()) {
+			// Stands in for the round trip to the peer
+			partial.fill(partial.getRequest().select(blockTransactions));
+		}
+		return partial.getTransactions();
+	}
+
+	private static Transaction spend(Random random, OutPoint outPoint) {
+		byte[] inputScript = new byte[107];
+		random.nextBytes(inputScript);
+		List<TxInput> inputs = Arrays.asList(new TxInput(outPoint, inputScript, -1));
+		List<TxOutput> outputs = Arrays.asList(new TxOutput(100000000 - 1000 - random.nextInt(20000), new byte[25]));
+		return new Transaction(1, inputs, outputs, 0);
+	}
+}
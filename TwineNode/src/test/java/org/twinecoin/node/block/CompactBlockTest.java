@@ -0,0 +1,143 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.block;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.twinecoin.api.MemoryPool.Result;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+import org.twinecoin.common.SipHash;
+import org.twinecoin.node.mempool.TwineMemoryPool;
+import org.twinecoin.node.output.MemoryOutputStore;
+import org.twinecoin.node.output.TwineOutputTracker;
+import org.twinecoin.node.test.TestUtils.TestLog;
+
+public class CompactBlockTest {
+
+	@Test
+	public void testSipHashVectors() {
+		byte[] key = new byte[16];
+		byte[] message = new byte[15];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = (byte) i;
+		}
+		for (int i = 0; i < message.length; i++) {
+			message[i] = (byte) i;
+		}
+		long k0 = SipHash.readLong(key, 0);
+		long k1 = SipHash.readLong(key, 8);
+		assertEquals("Empty message hash mismatch", 0x726fdb47dd0e0e31L, SipHash.hash(k0, k1, new byte[0]));
+		assertEquals("8 byte message hash mismatch", 0x93f5f5799a932462L, SipHash.hash(k0, k1, message, 0, 8));
+		assertEquals("15 byte message hash mismatch", 0xa129ca6149be45e5L, SipHash.hash(k0, k1, message));
+
+		long[] words = new long[] {SipHash.readLong(message, 0), SipHash.readLong(key, 0), SipHash.readLong(key, 8)};
+		assertEquals("Word hash mismatch", SipHash.hash(k0, k1, message, 0, 8), SipHash.hash(k0, k1, words, 0, 1));
+		assertEquals("Word hash mismatch", SipHash.hash(k0, k1, key), SipHash.hash(k0, k1, words, 1, 2));
+	}
+
+	@Test
+	public void testSerialize() {
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		for (int i = 0; i < 20; i++) {
+			transactions.add(spend(utxo(i), 1000 + i));
+		}
+		CompactBlock block = CompactBlock.create(createHeader(1), 12345, transactions);
+		assertEquals("Unexpected short ID count", 19, block.getShortIds().length);
+
+		CompactBlock decoded = CompactBlock.read(ByteBuffer.wrap(block.serialize()));
+		assertArrayEquals("Header mismatch", block.getHeader(), decoded.getHeader());
+		assertEquals("Nonce mismatch", block.getNonce(), decoded.getNonce());
+		assertArrayEquals("Short IDs mismatch", block.getShortIds(), decoded.getShortIds());
+		assertEquals("Prefilled count mismatch", 1, decoded.getPrefilled().size());
+		assertArrayEquals("Prefilled transaction mismatch", transactions.get(0).getTxid(), decoded.getPrefilled().get(0).getB().getTxid());
+
+		BlockTransactionsRequest request = new BlockTransactionsRequest(block.getBlockHash(), new int[] {1, 2, 7, 19});
+		BlockTransactionsRequest decodedRequest = BlockTransactionsRequest.read(ByteBuffer.wrap(request.serialize()));
+		assertArrayEquals("Request block hash mismatch", block.getBlockHash(), decodedRequest.getBlockHash());
+		assertArrayEquals("Request positions mismatch", request.getPositions(), decodedRequest.getPositions());
+	}
+
+	@Test
+	public void testReconstruct() throws IOException {
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(10, 100000), TestLog.getLogger(CompactBlockTest.class), Long.MAX_VALUE, 1000);
+
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		transactions.add(spend(utxo(1000), 5000000000L));
+		for (int i = 0; i < 8; i++) {
+			Transaction tx = spend(utxo(i), 99000);
+			transactions.add(tx);
+			if (i != 2 && i != 5) {
+				assertEquals("Transaction not accepted", Result.ACCEPTED, pool.addTransaction(tx));
+			}
+		}
+		CompactBlock block = CompactBlock.create(createHeader(2), 99, transactions);
+
+		PartialBlock partial = PartialBlock.reconstruct(block, pool);
+		assertEquals("Unexpected missing count", 2, partial.getMissingCount());
+		assertNull("Incomplete block returned", partial.getTransactions());
+		BlockTransactionsRequest request = partial.getRequest();
+		assertArrayEquals("Unexpected request", new int[] {3, 6}, request.getPositions());
+
+		List<Transaction> served = request.select(transactions);
+		assertFalse("Transactions in wrong order accepted", partial.fill(Arrays.asList(served.get(1), served.get(0))));
+		assertTrue("Requested transactions not accepted", partial.fill(served));
+		assertTrue("Block not complete", partial.isComplete());
+		assertEquals("Block transactions mismatch", transactions, partial.getTransactions());
+		assertArrayEquals("Merkle root mismatch", PartialBlock.getMerkleRoot(transactions), PartialBlock.getMerkleRoot(partial.getTransactions()));
+
+		// A block with a repeated short ID must be fetched in full
+		long[] shortIds = block.getShortIds().clone();
+		shortIds[1] = shortIds[0];
+		CompactBlock duplicate = new CompactBlock(block.getHeader(), block.getNonce(), shortIds, block.getPrefilled());
+		assertNull("Duplicate short IDs accepted", PartialBlock.reconstruct(duplicate, pool));
+	}
+
+	private static byte[] createHeader(int seed) {
+		byte[] header = new byte[CompactBlock.HEADER_LENGTH];
+		header[0] = (byte) seed;
+		return header;
+	}
+
+	private static TwineOutputTracker createOutputs(int count, long value) throws IOException {
+		MemoryOutputStore store = new MemoryOutputStore();
+		List<Pair<OutPoint, UnspentOutput>> batch = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		for (int i = 0; i < count; i++) {
+			batch.add(new Pair<OutPoint, UnspentOutput>(utxo(i), new UnspentOutput(value, new byte[] {0x51}, 1, false)));
+		}
+		store.writeBatch(batch);
+		return new TwineOutputTracker(store, TestLog.getLogger(CompactBlockTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	private static OutPoint utxo(int id) {
+		byte[] txid = new byte[OutPoint.TXID_LENGTH];
+		txid[0] = (byte) id;
+		txid[1] = (byte) (id >> 8);
+		txid[31] = 1;
+		return new OutPoint(txid, 0);
+	}
+
+	private static Transaction spend(OutPoint outPoint, long value) {
+		List<TxInput> inputs = Arrays.asList(new TxInput(outPoint, new byte[72], -1));
+		List<TxOutput> outputs = Arrays.asList(new TxOutput(value, new byte[25]));
+		return new Transaction(1, inputs, outputs, 0);
+	}
+}
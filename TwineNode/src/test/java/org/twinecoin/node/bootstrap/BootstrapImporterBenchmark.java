@@ -0,0 +1,196 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.bootstrap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TransactionView;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.SHA256;
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.block.AssumeValid;
+import org.twinecoin.node.block.CompactBlock;
+import org.twinecoin.node.block.PartialBlock;
+import org.twinecoin.node.block.ScriptVerifier;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.output.MemoryOutputStore;
+import org.twinecoin.node.output.TwineOutputTracker;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+
+/**
+ * Time to sync a locally generated chain from a bootstrap file.<br>
+ * <br>
+ * Each block after the genesis block spends every output of the coinbase
+ * before it.  The script check is a stand-in that burns the given number of
+ * CPU tokens per input, about the cost of a signature check at the default.<br>
+ * <br>
+ * none - every script is checked<br>
+ * half - the assumed-valid block is half way up the chain<br>
+ * tip - the assumed-valid block is the last block<br>
+ * <br>
+ * mvn -Pbenchmark verify -Dbenchmark=BootstrapImporterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BootstrapImporterBenchmark {
+	// Work of 2 per block
+	private static final int TARGET = 0x207FFFFF;
+
+	@Param({"none", "half", "tip"})
+	public String assumeValid;
+
+	@Param({"500"})
+	public int blocks;
+
+	@Param({"100"})
+	public int transactionsPerBlock;
+
+	@Param({"20000"})
+	public int scriptCost;
+
+	private File dir;
+	private File file;
+	private Logger logger;
+	private List<byte[]> blockHashes;
+	private ScriptVerifier verifier;
+	private TwineOutputTracker tracker;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("bootstrap-bench").toFile();
+		file = new File(dir, "bootstrap");
+		TwineLogger twineLogger = new TwineLogger(BootstrapImporterBenchmark.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+		blockHashes = writeChain();
+		verifier = new ScriptVerifier() {
+			@Override
+			public boolean verify(TransactionView tx, int input, UnspentOutput spent) {
+				Blackhole.consumeCPU(scriptCost);
+				return true;
+			}
+		};
+	}
+
+	@Setup(org.openjdk.jmh.annotations.Level.Invocation)
+	public void setupInvocation() throws IOException {
+		tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		TestFiles.delete(dir);
+	}
+
+	@Benchmark
+	public boolean sync() {
+		AssumeValid assumed = null;
+		if ("half".equals(assumeValid)) {
+			assumed = new AssumeValid(blockHashes.get(blocks / 2), BigInteger.ZERO);
+		} else if ("tip".equals(assumeValid)) {
+			assumed = new AssumeValid(blockHashes.get(blocks - 1), BigInteger.ZERO);
+		}
+		return new BootstrapImporter(tracker, null, null, verifier, assumed, logger, 2).importFile(file);
+	}
+
+	/**
+	 * Writes the chain to the bootstrap file
+	 *
+	 * @return the block hashes
+	 */
+	private List<byte[]> writeChain() throws IOException {
+		List<byte[]> hashes = new ArrayList<byte[]>();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			byte[] previous = new byte[OutPoint.TXID_LENGTH];
+			Transaction previousCoinbase = null;
+			for (int height = 0; height < blocks; height++) {
+				List<Transaction> transactions = new ArrayList<Transaction>();
+				Transaction coinbase = coinbase(height);
+				transactions.add(coinbase);
+				for (int i = 1; previousCoinbase != null && i < transactionsPerBlock; i++) {
+					TxInput input = new TxInput(new OutPoint(previousCoinbase.getTxid(), i - 1), new byte[72], -1);
+					transactions.add(new Transaction(1, Arrays.asList(input), Arrays.asList(new TxOutput(900, script(i))), 0));
+				}
+				byte[] block = serialize(previous, transactions);
+				raf.writeInt(BootstrapImporter.MAGIC);
+				raf.writeInt(block.length);
+				raf.write(block);
+				byte[] first = SHA256.getDigest(block, 0, CompactBlock.HEADER_LENGTH);
+				previous = SHA256.getDigest(first, 0, first.length);
+				hashes.add(previous);
+				previousCoinbase = coinbase;
+			}
+		} finally {
+			raf.close();
+		}
+		return hashes;
+	}
+
+	private Transaction coinbase(int height) {
+		TxInput input = new TxInput(new OutPoint(new byte[OutPoint.TXID_LENGTH], height), new byte[] {(byte) height, (byte) (height >> 8)}, -1);
+		List<TxOutput> outputs = new ArrayList<TxOutput>();
+		for (int i = 0; i < transactionsPerBlock - 1; i++) {
+			outputs.add(new TxOutput(1000, script(i)));
+		}
+		return new Transaction(1, Arrays.asList(input), outputs, 0);
+	}
+
+	private static byte[] script(int id) {
+		return new byte[] {0x76, (byte) id, (byte) (id >> 8), (byte) (id >> 16)};
+	}
+
+	private static byte[] serialize(byte[] previous, List<Transaction> transactions) {
+		int size = CompactBlock.HEADER_LENGTH + VarInt.size(transactions.size());
+		for (Transaction tx : transactions) {
+			size += tx.getSize();
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(1);
+		buf.put(previous);
+		buf.put(PartialBlock.getMerkleRoot(transactions));
+		buf.putInt(0);
+		buf.putInt(TARGET);
+		buf.putInt(0);
+		VarInt.write(buf, transactions.size());
+		for (Transaction tx : transactions) {
+			buf.put(tx.getSerialized());
+		}
+		return buf.array();
+	}
+}
@@ -0,0 +1,362 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.bootstrap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.api.MemoryPool.Result;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TransactionView;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.SHA256;
+import org.twinecoin.common.VarInt;
+import org.twinecoin.node.address.TwineAddressTracker;
+import org.twinecoin.node.block.AssumeValid;
+import org.twinecoin.node.block.CompactBlock;
+import org.twinecoin.node.block.PartialBlock;
+import org.twinecoin.node.block.ScriptVerifier;
+import org.twinecoin.node.filter.TwineFilterTracker;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.mempool.TwineMemoryPool;
+import org.twinecoin.node.output.MemoryOutputStore;
+import org.twinecoin.node.output.TwineOutputTracker;
+import org.twinecoin.node.store.lsm.LsmStore;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+
+public class BootstrapImporterTest {
+
+	private File dir;
+	private Logger logger;
+
+	@Before
+	public void before() {
+		dir = TestFiles.createTestDir("bootstrap");
+		TwineLogger twineLogger = new TwineLogger(BootstrapImporterTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+	}
+
+	@After
+	public void after() {
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void testImportAndResume() throws IOException {
+		List<byte[]> blocks = createChain(300);
+		File file = new File(dir, "bootstrap");
+		write(file, blocks.subList(0, 200));
+
+		TwineOutputTracker tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		BootstrapImporter importer = new BootstrapImporter(tracker, null, null, logger, 4);
+		assertTrue("Import failed", importer.importFile(file));
+		assertEquals("Unexpected best height", 199, tracker.getBestHeight());
+		assertArrayEquals("Unexpected best block", blockHash(blocks.get(199)), tracker.getBestBlock());
+
+		Transaction coinbase = coinbase(199);
+		assertNotNull("Coinbase output missing", tracker.getOutput(new OutPoint(coinbase.getTxid(), 0)));
+		assertTrue("Coinbase flag not set", tracker.getOutput(new OutPoint(coinbase.getTxid(), 0)).isCoinbase());
+		assertNull("Spent coinbase output present", tracker.getOutput(new OutPoint(coinbase(198).getTxid(), 0)));
+		Transaction spend = spend(199);
+		assertNull("Output spent in the same block present", tracker.getOutput(new OutPoint(spend.getTxid(), 0)));
+		assertEquals("Unexpected output value", 1900, tracker.getOutput(new OutPoint(spend.getTxid(), 1)).getValue());
+		assertEquals("Unexpected output height", 199, tracker.getOutput(new OutPoint(chained(199).getTxid(), 0)).getHeight());
+
+		assertTrue("Repeated import failed", importer.importFile(file));
+		assertEquals("Best height changed", 199, tracker.getBestHeight());
+
+		write(file, blocks);
+		assertTrue("Resumed import failed", importer.importFile(file));
+		assertEquals("Unexpected best height after resume", 299, tracker.getBestHeight());
+		assertArrayEquals("Unexpected best block after resume", blockHash(blocks.get(299)), tracker.getBestBlock());
+	}
+
+	@Test
+	public void testIndexesAhead() throws IOException {
+		List<byte[]> blocks = createChain(100);
+		File file = new File(dir, "bootstrap");
+		write(file, blocks);
+		LsmStore addressStore = new LsmStore(new File(dir, "addressindex"), logger, 1);
+		LsmStore filterStore = new LsmStore(new File(dir, "filterindex"), logger, 1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			TwineAddressTracker addressTracker = new TwineAddressTracker(addressStore, logger);
+			TwineFilterTracker filterTracker = new TwineFilterTracker(filterStore, logger, executor);
+			TwineOutputTracker lost = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+			assertTrue("Import failed", new BootstrapImporter(lost, addressTracker, filterTracker, logger, 2).importFile(file));
+			byte[] scriptHash = TwineAddressTracker.getScriptHash(script(70));
+			long historySize = addressTracker.getHistorySize(scriptHash);
+			List<byte[]> headers = filterTracker.getFilterHeaders(0, 99);
+
+			// The indexes reached the end of the chain, but the output set was
+			// only flushed to height 49
+			write(file, blocks.subList(0, 50));
+			TwineOutputTracker tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+			assertTrue("Import failed", new BootstrapImporter(tracker, null, null, logger, 2).importFile(file));
+			write(file, blocks);
+			assertTrue("Import with indexes ahead failed", new BootstrapImporter(tracker, addressTracker, filterTracker, logger, 2).importFile(file));
+			assertEquals("Unexpected best height", 99, tracker.getBestHeight());
+			assertEquals("Unexpected address index height", 99, addressTracker.getBestHeight());
+			assertEquals("Address history changed", historySize, addressTracker.getHistorySize(scriptHash));
+			List<byte[]> reimported = filterTracker.getFilterHeaders(0, 99);
+			for (int i = 0; i < headers.size(); i++) {
+				assertArrayEquals("Filter header changed", headers.get(i), reimported.get(i));
+			}
+
+			// An index behind the output set stops the import
+			LsmStore emptyStore = new LsmStore(new File(dir, "empty"), logger, 1);
+			TwineAddressTracker empty = new TwineAddressTracker(emptyStore, logger);
+			assertFalse("Import with index behind succeeded", new BootstrapImporter(tracker, empty, null, logger, 2).importFile(file));
+			emptyStore.close();
+		} finally {
+			executor.shutdown();
+			addressStore.close();
+			filterStore.close();
+		}
+	}
+
+	@Test
+	public void testMemoryPool() throws IOException {
+		List<byte[]> blocks = createChain(100);
+		File file = new File(dir, "bootstrap");
+		write(file, blocks.subList(0, 60));
+		TwineOutputTracker tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		BootstrapImporter importer = new BootstrapImporter(tracker, null, null, logger, 2);
+		assertTrue("Import failed", importer.importFile(file));
+
+		TwineMemoryPool pool = new TwineMemoryPool(tracker, logger, Long.MAX_VALUE, 0);
+		assertEquals("Transaction not accepted", Result.ACCEPTED, pool.addTransaction(spend(60)));
+		importer.setMemoryPool(pool);
+		write(file, blocks);
+		assertTrue("Import failed", importer.importFile(file));
+		assertEquals("Confirmed transaction left in the pool", 0, pool.size());
+	}
+
+	@Test
+	public void testStop() throws IOException {
+		List<byte[]> blocks = createChain(50);
+		File file = new File(dir, "bootstrap");
+		write(file, blocks);
+		TwineOutputTracker tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		BootstrapImporter importer = new BootstrapImporter(tracker, null, null, logger, 2);
+		importer.stop();
+		assertFalse("Stopped importer imported", importer.importFile(file));
+		assertEquals("Blocks connected after stop", -1, tracker.getBestHeight());
+	}
+
+	@Test
+	public void testInvalidBlocks() throws IOException {
+		List<byte[]> blocks = createChain(100);
+		File file = new File(dir, "bootstrap");
+
+		// Merkle root mismatch
+		byte[] corrupt = blocks.get(60).clone();
+		corrupt[40] ^= 1;
+		List<byte[]> modified = new ArrayList<byte[]>(blocks);
+		modified.set(60, corrupt);
+		write(file, modified);
+		TwineOutputTracker tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		assertFalse("Invalid block imported", new BootstrapImporter(tracker, null, null, logger, 3).importFile(file));
+		assertEquals("Blocks before the invalid block not connected", 59, tracker.getBestHeight());
+
+		// Spend of a missing output
+		List<Transaction> transactions = new ArrayList<Transaction>();
+		transactions.add(coinbase(30));
+		transactions.add(spend(40));
+		modified = new ArrayList<byte[]>(blocks);
+		modified.set(30, serialize(blockHash(blocks.get(29)), transactions));
+		write(file, modified);
+		tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		assertFalse("Invalid block imported", new BootstrapImporter(tracker, null, null, logger, 1).importFile(file));
+		assertEquals("Blocks before the invalid block not connected", 29, tracker.getBestHeight());
+		assertNull("Outputs of the invalid block added", tracker.getOutput(new OutPoint(coinbase(30).getTxid(), 0)));
+
+		// Truncated file
+		write(file, blocks);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 10);
+		} finally {
+			raf.close();
+		}
+		tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		assertFalse("Truncated file imported", new BootstrapImporter(tracker, null, null, logger, 2).importFile(file));
+		assertEquals("Complete blocks not connected", 98, tracker.getBestHeight());
+	}
+
+	@Test
+	public void testAssumeValid() throws IOException {
+		assertEquals("Unexpected work", BigInteger.valueOf(2), AssumeValid.getWork(0x207FFFFF));
+		assertEquals("Unexpected work", BigInteger.valueOf(0x100010001L), AssumeValid.getWork(0x1D00FFFF));
+		assertEquals("Unexpected work", BigInteger.ZERO, AssumeValid.getWork(0x04923456));
+
+		List<byte[]> blocks = createChain(100);
+		File file = new File(dir, "bootstrap");
+		write(file, blocks);
+		final AtomicInteger checks = new AtomicInteger();
+		ScriptVerifier verifier = new ScriptVerifier() {
+			@Override
+			public boolean verify(TransactionView tx, int input, UnspentOutput spent) {
+				checks.incrementAndGet();
+				return spent.getHeight() != 70;
+			}
+		};
+		ScriptVerifier valid = new ScriptVerifier() {
+			@Override
+			public boolean verify(TransactionView tx, int input, UnspentOutput spent) {
+				checks.incrementAndGet();
+				return true;
+			}
+		};
+
+		// Each block after the genesis block has two inputs
+		TwineOutputTracker tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		AssumeValid assumeValid = new AssumeValid(blockHash(blocks.get(59)), BigInteger.ZERO);
+		assertTrue("Import failed", new BootstrapImporter(tracker, null, null, valid, assumeValid, logger, 2).importFile(file));
+		assertEquals("Unexpected best height", 99, tracker.getBestHeight());
+		assertEquals("Unexpected script checks", 80, checks.get());
+
+		// Not enough work, so every script is checked
+		checks.set(0);
+		tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		assumeValid = new AssumeValid(blockHash(blocks.get(59)), BigInteger.ONE);
+		assertTrue("Import failed", new BootstrapImporter(tracker, null, null, valid, assumeValid, logger, 2).importFile(file));
+		assertEquals("Unexpected script checks", 198, checks.get());
+
+		// Block not in the chain
+		checks.set(0);
+		tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		assumeValid = new AssumeValid(new byte[32], BigInteger.ZERO);
+		assertTrue("Import failed", new BootstrapImporter(tracker, null, null, valid, assumeValid, logger, 2).importFile(file));
+		assertEquals("Unexpected script checks", 198, checks.get());
+
+		// An invalid script above the assumed-valid block stops the import
+		tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		assumeValid = new AssumeValid(blockHash(blocks.get(59)), BigInteger.ZERO);
+		assertFalse("Invalid script imported", new BootstrapImporter(tracker, null, null, verifier, assumeValid, logger, 2).importFile(file));
+		assertEquals("Blocks before the invalid script not connected", 69, tracker.getBestHeight());
+
+		// An invalid script below it is not checked
+		tracker = new TwineOutputTracker(new MemoryOutputStore(), logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		assumeValid = new AssumeValid(blockHash(blocks.get(80)), BigInteger.ZERO);
+		assertTrue("Import failed", new BootstrapImporter(tracker, null, null, verifier, assumeValid, logger, 2).importFile(file));
+		assertEquals("Unexpected best height", 99, tracker.getBestHeight());
+
+		// Blocks are matched to the scanned headers before they are connected
+		assumeValid = new AssumeValid(blockHash(blocks.get(59)), BigInteger.ZERO);
+		for (byte[] block : blocks) {
+			assertTrue("Header not added", assumeValid.addHeader(ByteBuffer.wrap(block)));
+		}
+		assertTrue("Ancestor not covered", assumeValid.isCovered(10, blockHash(blocks.get(10))));
+		assertTrue("Assumed-valid block not covered", assumeValid.isCovered(59, blockHash(blocks.get(59))));
+		assertFalse("Block at another height covered", assumeValid.isCovered(10, blockHash(blocks.get(11))));
+		assertFalse("Descendant covered", assumeValid.isCovered(60, blockHash(blocks.get(60))));
+	}
+
+	/**
+	 * Creates a chain where each block spends the coinbase of its parent and
+	 * then spends an output created earlier in the same block
+	 */
+	private static List<byte[]> createChain(int length) {
+		List<byte[]> blocks = new ArrayList<byte[]>();
+		byte[] previous = new byte[32];
+		for (int height = 0; height < length; height++) {
+			List<Transaction> transactions = new ArrayList<Transaction>();
+			transactions.add(coinbase(height));
+			if (height > 0) {
+				transactions.add(spend(height));
+				transactions.add(chained(height));
+			}
+			byte[] block = serialize(previous, transactions);
+			blocks.add(block);
+			previous = blockHash(block);
+		}
+		return blocks;
+	}
+
+	private static Transaction coinbase(int height) {
+		byte[] txid = new byte[OutPoint.TXID_LENGTH];
+		TxInput input = new TxInput(new OutPoint(txid, height), new byte[] {(byte) height, (byte) (height >> 8)}, -1);
+		return new Transaction(1, Arrays.asList(input), Arrays.asList(new TxOutput(5000, script(height))), 0);
+	}
+
+	private static Transaction spend(int height) {
+		TxInput input = new TxInput(new OutPoint(coinbase(height - 1).getTxid(), 0), new byte[72], -1);
+		return new Transaction(1, Arrays.asList(input), Arrays.asList(new TxOutput(3000, script(height + 1)), new TxOutput(1900, script(height + 2))), 0);
+	}
+
+	private static Transaction chained(int height) {
+		TxInput input = new TxInput(new OutPoint(spend(height).getTxid(), 0), new byte[72], -1);
+		return new Transaction(1, Arrays.asList(input), Arrays.asList(new TxOutput(2900, script(height + 3))), 0);
+	}
+
+	private static byte[] script(int id) {
+		return new byte[] {0x76, (byte) id, (byte) (id >> 8), (byte) (id >> 16)};
+	}
+
+	private static byte[] serialize(byte[] previous, List<Transaction> transactions) {
+		int size = CompactBlock.HEADER_LENGTH + VarInt.size(transactions.size());
+		for (Transaction tx : transactions) {
+			size += tx.getSize();
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(1);
+		buf.put(previous);
+		buf.put(PartialBlock.getMerkleRoot(transactions));
+		buf.putInt(0);
+		buf.putInt(0);
+		buf.putInt(0);
+		VarInt.write(buf, transactions.size());
+		for (Transaction tx : transactions) {
+			buf.put(tx.getSerialized());
+		}
+		return buf.array();
+	}
+
+	private static byte[] blockHash(byte[] block) {
+		byte[] first = SHA256.getDigest(block, 0, CompactBlock.HEADER_LENGTH);
+		return SHA256.getDigest(first, 0, first.length);
+	}
+
+	private static void write(File file, List<byte[]> blocks) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			for (byte[] block : blocks) {
+				raf.writeInt(BootstrapImporter.MAGIC);
+				raf.writeInt(block.length);
+				raf.write(block);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+}
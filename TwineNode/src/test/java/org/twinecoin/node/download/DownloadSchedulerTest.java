@@ -0,0 +1,225 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.common.SHA256;
+import org.twinecoin.node.log.TwineLogger;
+
+public class DownloadSchedulerTest {
+
+	private static final int START_HEIGHT = 1000;
+	private static final int MAX_BLOCK_SIZE = 20000;
+
+	private Logger logger;
+	private ScheduledExecutorService executor;
+	private List<byte[]> blocks;
+	private List<byte[]> hashes;
+
+	@Before
+	public void before() {
+		TwineLogger twineLogger = new TwineLogger(DownloadSchedulerTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+		executor = Executors.newScheduledThreadPool(4);
+		Random random = new Random(42);
+		blocks = new ArrayList<byte[]>();
+		hashes = new ArrayList<byte[]>();
+		for (int i = 0; i < 400; i++) {
+			byte[] block = new byte[2000 + random.nextInt(MAX_BLOCK_SIZE - 2000)];
+			random.nextBytes(block);
+			blocks.add(block);
+			hashes.add(SHA256.getDigest(block, 0, block.length));
+		}
+	}
+
+	@After
+	public void after() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testLatencyAndBandwidthProfiles() throws InterruptedException {
+		OrderChecker checker = new OrderChecker(-1);
+		long budget = 200000;
+		int maxInFlight = 8;
+		DownloadScheduler scheduler = new DownloadScheduler(hashes, START_HEIGHT, checker, logger, 128, maxInFlight, budget, 300);
+		SimulatedSource fast = new SimulatedSource(scheduler, 2, 20000000);
+		SimulatedSource medium = new SimulatedSource(scheduler, 20, 2000000);
+		SimulatedSource slow = new SimulatedSource(scheduler, 60, 200000);
+		SimulatedSource stalling = new SimulatedSource(scheduler, -1, 0);
+		scheduler.addSource(stalling);
+		scheduler.addSource(slow);
+		scheduler.addSource(medium);
+		scheduler.addSource(fast);
+
+		assertTrue("Download not complete", scheduler.awaitCompletion(30000));
+		assertEquals("Blocks connected out of order", 0, checker.errors.get());
+		assertEquals("Unexpected connected count", blocks.size(), checker.connected.get());
+		assertEquals("Unexpected next height", START_HEIGHT + blocks.size(), scheduler.getNextHeight());
+		assertEquals("Blocks left buffered", 0, scheduler.getBufferedBytes());
+
+		// Blocks in flight when the budget is reached may still arrive
+		assertTrue("Memory budget exceeded", scheduler.getPeakBufferedBytes() <= budget + 4 * maxInFlight * MAX_BLOCK_SIZE);
+		assertTrue("Stall not detected", scheduler.getStallCount() > 0);
+		assertEquals("Stalling source delivered", 0, stalling.delivered.get());
+		assertTrue("Fast source not preferred", fast.delivered.get() > slow.delivered.get());
+		assertTrue("Throughput not tracked", scheduler.getThroughput(fast) > scheduler.getThroughput(slow));
+	}
+
+	@Test
+	public void testRemoveSource() throws InterruptedException {
+		OrderChecker checker = new OrderChecker(-1);
+		DownloadScheduler scheduler = new DownloadScheduler(hashes, START_HEIGHT, checker, logger, 64, 4, 1 << 20, 60000);
+		SimulatedSource first = new SimulatedSource(scheduler, 5, 5000000);
+		SimulatedSource second = new SimulatedSource(scheduler, 5, 5000000);
+		scheduler.addSource(first);
+		scheduler.addSource(second);
+		while (checker.connected.get() < 100) {
+			Thread.sleep(5);
+		}
+		// Blocks in flight from the removed source are requested again,
+		// without waiting for the stall timeout
+		first.ignoreRequests = true;
+		scheduler.removeSource(first);
+		assertTrue("Download not complete", scheduler.awaitCompletion(30000));
+		assertEquals("Blocks connected out of order", 0, checker.errors.get());
+		assertEquals("Unexpected stall count", 0, scheduler.getStallCount());
+	}
+
+	@Test
+	public void testInvalidBlock() throws InterruptedException {
+		OrderChecker checker = new OrderChecker(START_HEIGHT + 150);
+		DownloadScheduler scheduler = new DownloadScheduler(hashes, START_HEIGHT, checker, logger, 64, 4, 1 << 20, 60000);
+		scheduler.addSource(new SimulatedSource(scheduler, 1, 10000000));
+		assertFalse("Invalid block accepted", scheduler.awaitCompletion(30000));
+		assertEquals("Unexpected next height", START_HEIGHT + 150, scheduler.getNextHeight());
+		assertEquals("Unexpected connected count", 150, checker.connected.get());
+	}
+
+	@Test
+	public void testUnrequestedBlocks() {
+		OrderChecker checker = new OrderChecker(-1);
+		long budget = 50000;
+		DownloadScheduler scheduler = new DownloadScheduler(hashes, START_HEIGHT, checker, logger, 64, 4, budget, 60000);
+		SimulatedSource source = new SimulatedSource(scheduler, -1, 0);
+
+		// Outside the window
+		scheduler.blockReceived(source, hashes.get(100), ByteBuffer.wrap(blocks.get(100)));
+		assertEquals("Block outside the window held", 0, scheduler.getBufferedBytes());
+
+		// Within the window, until the budget is used
+		int held = 0;
+		for (int i = 1; i < 20; i++) {
+			long buffered = scheduler.getBufferedBytes();
+			scheduler.blockReceived(source, hashes.get(i), ByteBuffer.wrap(blocks.get(i)));
+			if (scheduler.getBufferedBytes() > buffered && held == i - 1) {
+				held = i;
+			}
+		}
+		assertTrue("No blocks held", held > 0);
+		assertTrue("Memory budget exceeded", scheduler.getPeakBufferedBytes() <= budget);
+
+		// The next block to connect is always accepted
+		scheduler.blockReceived(source, hashes.get(0), ByteBuffer.wrap(blocks.get(0)));
+		assertEquals("Blocks connected out of order", 0, checker.errors.get());
+		assertEquals("Unexpected next height", START_HEIGHT + held + 1, scheduler.getNextHeight());
+	}
+
+	/**
+	 * Checks that blocks are connected in order and match their hashes
+	 */
+	private class OrderChecker implements BlockConnector {
+		private final int invalidHeight;
+		private final AtomicInteger connected = new AtomicInteger();
+		private final AtomicInteger errors = new AtomicInteger();
+
+		OrderChecker(int invalidHeight) {
+			this.invalidHeight = invalidHeight;
+		}
+
+		@Override
+		public boolean connect(int height, ByteBuffer block) {
+			if (height == invalidHeight) {
+				return false;
+			}
+			byte[] data = new byte[block.remaining()];
+			block.get(data);
+			if (height != START_HEIGHT + connected.get() || !Arrays.equals(blocks.get(height - START_HEIGHT), data)) {
+				errors.incrementAndGet();
+			}
+			connected.incrementAndGet();
+			return true;
+		}
+	}
+
+	/**
+	 * A peer that serves requests one at a time after a latency, at a fixed
+	 * bandwidth.  A negative latency never answers.
+	 */
+	private class SimulatedSource implements BlockSource {
+		private final DownloadScheduler scheduler;
+		private final long latencyMillis;
+		private final long bytesPerSecond;
+		private final AtomicInteger delivered = new AtomicInteger();
+		private long busyUntil;
+		private volatile boolean ignoreRequests;
+
+		SimulatedSource(DownloadScheduler scheduler, long latencyMillis, long bytesPerSecond) {
+			this.scheduler = scheduler;
+			this.latencyMillis = latencyMillis;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		@Override
+		public synchronized void requestBlocks(List<byte[]> requested) {
+			if (latencyMillis < 0 || ignoreRequests) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			for (final byte[] hash : requested) {
+				final byte[] block = blocks.get(indexOf(hash));
+				busyUntil = Math.max(busyUntil, now + latencyMillis) + block.length * 1000L / bytesPerSecond;
+				executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (!ignoreRequests) {
+							delivered.incrementAndGet();
+							scheduler.blockReceived(SimulatedSource.this, hash, ByteBuffer.wrap(block));
+						}
+					}
+				}, busyUntil - now, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private int indexOf(byte[] hash) {
+		for (int i = 0; i < hashes.size(); i++) {
+			if (Arrays.equals(hashes.get(i), hash)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown block");
+	}
+}
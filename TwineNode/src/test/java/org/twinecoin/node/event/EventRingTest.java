@@ -0,0 +1,129 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.twinecoin.api.EventSubscription;
+import org.twinecoin.api.data.NodeEvent;
+
+public class EventRingTest {
+
+	private static final byte[] HASH = new byte[32];
+
+	@Test
+	public void testPublishAndPoll() throws InterruptedException {
+		EventRing ring = new EventRing(100);
+		assertEquals("Capacity not rounded up", 128, ring.getCapacity());
+		ring.publish(NodeEvent.Type.BLOCK_CONNECTED, HASH, 1);
+		EventSubscription first = ring.subscribe();
+		EventSubscription second = ring.subscribe();
+		assertNull("Event from before the subscription", first.poll());
+
+		for (int i = 0; i < 100; i++) {
+			ring.publish(NodeEvent.Type.TRANSACTION_ACCEPTED, HASH, -1);
+		}
+		// Every subscriber sees every event
+		for (EventSubscription subscription : new EventSubscription[] {first, second}) {
+			for (int i = 0; i < 100; i++) {
+				NodeEvent event = subscription.poll();
+				assertNotNull("Event missing", event);
+				assertEquals("Unexpected sequence", i + 1, event.getSequence());
+			}
+			assertNull("Unexpected event", subscription.poll());
+			assertEquals("Unexpected dropped count", 0, subscription.getDroppedCount());
+		}
+
+		assertNull("Event before timeout", first.take(20));
+		second.close();
+		assertEquals("Unexpected subscriber count", 1, ring.getSubscriberCount());
+		assertNull("Event from closed subscription", second.take(1000));
+		first.close();
+	}
+
+	@Test
+	public void testDrops() {
+		EventRing ring = new EventRing(64);
+		EventSubscription subscription = ring.subscribe();
+		for (int i = 0; i < 1000; i++) {
+			ring.publish(NodeEvent.Type.TRANSACTION_ACCEPTED, HASH, -1);
+		}
+		// The slow subscriber skips to the oldest held event
+		NodeEvent event = subscription.poll();
+		assertEquals("Unexpected sequence after lap", 1000 - 64, event.getSequence());
+		assertEquals("Unexpected dropped count", 1000 - 64, subscription.getDroppedCount());
+		int received = 1;
+		while (subscription.poll() != null) {
+			received++;
+		}
+		assertEquals("Unexpected received count", 64, received);
+		subscription.close();
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		final EventRing ring = new EventRing(1 << 10);
+		final int publishers = 4;
+		final int perPublisher = 20000;
+		final long total = publishers * perPublisher;
+		final int subscribers = 4;
+		final CountDownLatch done = new CountDownLatch(subscribers);
+		final AtomicInteger errors = new AtomicInteger();
+		for (int s = 0; s < subscribers; s++) {
+			final EventSubscription subscription = ring.subscribe();
+			new Thread() {
+				@Override
+				public void run() {
+					long last = -1;
+					long received = 0;
+					try {
+						while (last < total - 1) {
+							NodeEvent event = subscription.take(10000);
+							if (event == null) {
+								break;
+							}
+							if (event.getSequence() <= last) {
+								errors.incrementAndGet();
+							}
+							last = event.getSequence();
+							received++;
+						}
+					} catch (InterruptedException e) {
+						errors.incrementAndGet();
+					}
+					// Each event is either received or counted as dropped
+					if (received + subscription.getDroppedCount() != total) {
+						errors.incrementAndGet();
+					}
+					subscription.close();
+					done.countDown();
+				}
+			}.start();
+		}
+		for (int p = 0; p < publishers; p++) {
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perPublisher; i++) {
+						ring.publish(NodeEvent.Type.TRANSACTION_ACCEPTED, HASH, -1);
+					}
+				}
+			}.start();
+		}
+		assertTrue("Subscribers not finished", done.await(60, TimeUnit.SECONDS));
+		assertEquals("Events out of order or miscounted", 0, errors.get());
+		assertEquals("Unexpected published count", total, ring.getPublishedCount());
+		assertEquals("Unexpected subscriber count", 0, ring.getSubscriberCount());
+	}
+}
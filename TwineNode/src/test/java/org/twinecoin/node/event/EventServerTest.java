@@ -0,0 +1,126 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.event;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+import org.junit.Test;
+import org.twinecoin.api.data.NodeEvent;
+import org.twinecoin.node.log.TwineLogger;
+
+public class EventServerTest {
+
+	@Test
+	public void testEncodeDecode() {
+		byte[] hash = new byte[EventServer.HASH_LENGTH];
+		for (int i = 0; i < hash.length; i++) {
+			hash[i] = (byte) i;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(EventServer.MAX_EVENT_LENGTH * 2);
+		EventServer.encode(new NodeEvent(Long.MAX_VALUE, NodeEvent.Type.BLOCK_CONNECTED, hash, Integer.MAX_VALUE), buf);
+		assertTrue("Maximum length exceeded", buf.position() <= EventServer.MAX_EVENT_LENGTH);
+		int length = buf.position();
+		EventServer.encode(new NodeEvent(7, NodeEvent.Type.TRANSACTION_EVICTED, hash, -1), buf);
+		buf.flip();
+
+		// A partial event leaves the position unchanged
+		ByteBuffer partial = buf.duplicate();
+		partial.limit(length - 1);
+		assertNull("Event decoded from partial buffer", EventServer.decode(partial));
+		assertEquals("Position moved", 0, partial.position());
+
+		NodeEvent block = EventServer.decode(buf);
+		assertEquals("Unexpected type", NodeEvent.Type.BLOCK_CONNECTED, block.getType());
+		assertEquals("Unexpected sequence", Long.MAX_VALUE, block.getSequence());
+		assertEquals("Unexpected height", Integer.MAX_VALUE, block.getHeight());
+		assertArrayEquals("Unexpected hash", hash, block.getHash());
+		NodeEvent tx = EventServer.decode(buf);
+		assertEquals("Unexpected type", NodeEvent.Type.TRANSACTION_EVICTED, tx.getType());
+		assertEquals("Unexpected sequence", 7, tx.getSequence());
+		assertEquals("Unexpected height", -1, tx.getHeight());
+		assertEquals("Unexpected remaining", 0, buf.remaining());
+
+		try {
+			EventServer.decode(ByteBuffer.wrap(new byte[] {(byte) 0x7F, 0}));
+			fail("Unknown type decoded");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testStream() throws IOException, InterruptedException {
+		TwineLogger twineLogger = new TwineLogger(EventServerTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		EventRing ring = new EventRing();
+		EventServer server = new EventServer(ring, twineLogger.getLogger(), Executors.defaultThreadFactory());
+		InetSocketAddress address = server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		assertNotNull("Server not started", address);
+		try {
+			Socket socket = new Socket(address.getAddress(), address.getPort());
+			socket.setSoTimeout(10000);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (server.getClientCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals("Client not registered", 1, server.getClientCount());
+
+			int count = 1000;
+			for (int i = 0; i < count; i++) {
+				byte[] hash = new byte[EventServer.HASH_LENGTH];
+				hash[0] = (byte) i;
+				if ((i & 1) == 0) {
+					ring.publish(NodeEvent.Type.TIP_CHANGED, hash, i);
+				} else {
+					ring.publish(NodeEvent.Type.TRANSACTION_ACCEPTED, hash, -1);
+				}
+			}
+
+			InputStream in = socket.getInputStream();
+			ByteBuffer buf = ByteBuffer.allocate(EventServer.BUFFER_SIZE * 2);
+			int received = 0;
+			while (received < count) {
+				int read = in.read(buf.array(), buf.position(), buf.remaining());
+				if (read < 0) {
+					fail("Stream closed");
+				}
+				buf.position(buf.position() + read);
+				buf.flip();
+				NodeEvent event;
+				while ((event = EventServer.decode(buf)) != null) {
+					assertEquals("Unexpected sequence", received, event.getSequence());
+					assertEquals("Unexpected hash", (byte) received, event.getHash()[0]);
+					if ((received & 1) == 0) {
+						assertEquals("Unexpected height", received, event.getHeight());
+					}
+					received++;
+				}
+				buf.compact();
+			}
+			assertEquals("Unexpected dropped count", 0, server.getDroppedCount());
+
+			server.close();
+			assertEquals("Stream not closed", -1, in.read());
+			socket.close();
+		} finally {
+			server.close();
+		}
+	}
+}
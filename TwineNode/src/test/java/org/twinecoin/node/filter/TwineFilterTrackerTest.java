@@ -0,0 +1,189 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.filter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.common.Convert;
+import org.twinecoin.common.SHA256;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.store.lsm.LsmStore;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+
+public class TwineFilterTrackerTest {
+
+	private File dir;
+	private Logger logger;
+	private ExecutorService executor;
+
+	@Before
+	public void before() {
+		dir = TestFiles.createTestDir("filterindex");
+		TwineLogger twineLogger = new TwineLogger(TwineFilterTrackerTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void after() {
+		executor.shutdown();
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void testGolombCodedSet() {
+		assertEquals("Unexpected high product", -2L, GolombCodedSet.multiplyHigh(-1L, -1L));
+		assertEquals("Unexpected high product", 2L, GolombCodedSet.multiplyHigh(1L << 63, 4));
+		assertEquals("Unexpected high product", 0x12345678L, GolombCodedSet.multiplyHigh(0x1234567800000000L, 1L << 32));
+
+		List<byte[]> elements = new ArrayList<byte[]>();
+		List<byte[]> others = new ArrayList<byte[]>();
+		for (int i = 0; i < 200; i++) {
+			elements.add(script(i));
+			others.add(script(i + 1000000));
+		}
+		byte[] set = GolombCodedSet.encode(11, 22, elements);
+		for (byte[] element : elements) {
+			assertTrue("Element not matched", GolombCodedSet.match(set, 11, 22, element));
+		}
+		int falsePositives = 0;
+		for (byte[] other : others) {
+			if (GolombCodedSet.match(set, 11, 22, other)) {
+				falsePositives++;
+			}
+		}
+		assertTrue("Too many false positives, " + falsePositives, falsePositives <= 1);
+		assertTrue("Element not matched", GolombCodedSet.matchAny(set, 11, 22, Arrays.asList(others.get(3), elements.get(150))));
+		assertFalse("Different key matched", GolombCodedSet.matchAny(set, 12, 22, elements.subList(0, 1)));
+
+		byte[] empty = GolombCodedSet.encode(11, 22, new ArrayList<byte[]>());
+		assertEquals("Unexpected empty set length", 1, empty.length);
+		assertFalse("Empty set matched", GolombCodedSet.match(empty, 11, 22, elements.get(0)));
+	}
+
+	@Test
+	public void testFilterHeader() {
+		// BIP158 test vector for testnet block 0, header in internal byte order
+		byte[] filter = Convert.hexToBytes("019dfca8");
+		byte[] header = FilterBlock.getHeader(filter, new byte[32]);
+		assertArrayEquals("Unexpected filter header", Convert.hexToBytes("50b781aed7b7129012a6d20e2d040027937f3affaee573779908ebb779455821"), header);
+		assertArrayEquals("Unexpected filter header", header, FilterBlock.getNextHeader(FilterBlock.getFilterHash(filter), new byte[32]));
+	}
+
+	@Test
+	public void testConnectAndBuild() throws IOException {
+		int blocks = 2 * TwineFilterTracker.BUILD_RANGE + 100;
+		File connectDir = new File(dir, "connect");
+		File buildDir = new File(dir, "build");
+
+		LsmStore connectStore = new LsmStore(connectDir, logger, 2);
+		LsmStore buildStore = new LsmStore(buildDir, logger, 2);
+		try {
+			TwineFilterTracker connected = new TwineFilterTracker(connectStore, logger, executor);
+			for (int height = 0; height < blocks; height++) {
+				assertTrue("Block not queued", connected.connectBlock(height, block(height)));
+			}
+			assertFalse("Block at wrong height queued", connected.connectBlock(blocks + 1, block(blocks + 1)));
+			assertTrue("Queue not written", connected.flush());
+			assertEquals("Unexpected best height", blocks - 1, connected.getBestHeight());
+
+			TwineFilterTracker built = new TwineFilterTracker(buildStore, logger, executor);
+			assertTrue("Index not built", built.build(new FilterBlockSource() {
+				@Override
+				public FilterBlock getBlock(int height) {
+					return block(height);
+				}
+			}, blocks - 1));
+			assertEquals("Unexpected best height", blocks - 1, built.getBestHeight());
+
+			byte[] header = new byte[32];
+			for (int start = 0; start < blocks; start += TwineFilterTracker.MAX_QUERY_RANGE) {
+				int stop = Math.min(blocks - 1, start + TwineFilterTracker.MAX_QUERY_RANGE - 1);
+				List<byte[]> filters = connected.getFilters(start, stop);
+				List<byte[]> headers = connected.getFilterHeaders(start, stop);
+				List<byte[]> builtHeaders = built.getFilterHeaders(start, stop);
+				assertEquals("Unexpected filter count", stop - start + 1, filters.size());
+				for (int i = 0; i < filters.size(); i++) {
+					header = FilterBlock.getHeader(filters.get(i), header);
+					assertArrayEquals("Header chain mismatch", header, headers.get(i));
+					assertArrayEquals("Built header mismatch", header, builtHeaders.get(i));
+				}
+			}
+			assertArrayEquals("Built filter mismatch", connected.getFilters(1500, 1510).get(3), built.getFilters(1500, 1510).get(3));
+
+			byte[] filter = connected.getFilters(77, 77).get(0);
+			byte[] blockHash = block(77).getBlockHash();
+			assertTrue("Block script not matched", GolombCodedSet.match(filter, FilterBlock.getK0(blockHash), FilterBlock.getK1(blockHash), script(77)));
+
+			assertNull("Range past the best block returned", connected.getFilters(blocks - 5, blocks));
+			assertNull("Oversized range returned", connected.getFilters(0, TwineFilterTracker.MAX_QUERY_RANGE));
+			assertNull("Reversed range returned", connected.getFilterHeaders(10, 5));
+
+			assertTrue("Block not disconnected", connected.disconnectBlock(blocks - 1));
+			assertTrue("Block not queued", connected.connectBlock(blocks - 1, block(blocks - 1)));
+			assertTrue("Queue not written", connected.flush());
+			assertArrayEquals("Header mismatch after reconnect", header, connected.getFilterHeaders(blocks - 1, blocks - 1).get(0));
+		} finally {
+			connectStore.close();
+			buildStore.close();
+		}
+
+		connectStore = new LsmStore(connectDir, logger, 2);
+		try {
+			TwineFilterTracker reopened = new TwineFilterTracker(connectStore, logger, executor);
+			assertEquals("Best height not restored", blocks - 1, reopened.getBestHeight());
+			assertTrue("Block not queued after reopen", reopened.connectBlock(blocks, block(blocks)));
+			assertTrue("Queue not written", reopened.flush());
+		} finally {
+			connectStore.close();
+		}
+	}
+
+	@Test
+	public void testEncodeFailure() throws IOException {
+		LsmStore store = new LsmStore(dir, logger, 2);
+		try {
+			TwineFilterTracker tracker = new TwineFilterTracker(store, logger, executor);
+			assertFalse("Missing filter elements queued", tracker.connectBlock(0, null));
+			assertTrue("Block not queued", tracker.connectBlock(0, block(0)));
+			// Encoding fails without a block hash to key the filter
+			assertTrue("Block not queued", tracker.connectBlock(1, new FilterBlock(null, Arrays.asList(script(1)))));
+			assertTrue("Block not queued", tracker.connectBlock(2, block(2)));
+			assertFalse("Flush succeeded after an encode failure", tracker.flush());
+			assertFalse("Block queued after an encode failure", tracker.connectBlock(3, block(3)));
+			assertTrue("Block after the failure written", tracker.getBestHeight() < 1);
+		} finally {
+			store.close();
+		}
+	}
+
+	private static FilterBlock block(int height) {
+		byte[] blockHash = SHA256.getDigest(script(height), 0, 4);
+		return new FilterBlock(blockHash, Arrays.asList(script(height), script(height + 1), new byte[] {0x51}));
+	}
+
+	private static byte[] script(int id) {
+		return new byte[] {0x76, (byte) id, (byte) (id >> 8), (byte) (id >> 16), (byte) (id >> 24)};
+	}
+}
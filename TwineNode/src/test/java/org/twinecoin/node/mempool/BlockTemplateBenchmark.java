@@ -0,0 +1,137 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.output.MemoryOutputStore;
+import org.twinecoin.node.output.TwineOutputTracker;
+
+/**
+ * Block template refresh time against memory pool size.<br>
+ * <br>
+ * build - a full selection for a 1MB block<br>
+ * arrival - a new transaction arrives and the template is fetched, which is
+ * either an incremental update or a rebuild depending on its fee rate<br>
+ * <br>
+ * mvn -Pbenchmark verify -Dbenchmark=BlockTemplateBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockTemplateBenchmark {
+	private static final long MAX_BLOCK_SIZE = 1000000;
+
+	@Param({"10000", "100000"})
+	public int poolSize;
+
+	private Random random;
+	private MemoryOutputStore store;
+	private TwineMemoryPool pool;
+	private BlockTemplateBuilder builder;
+	private List<OutPoint> spare;
+	private int spareIndex;
+
+	@Setup
+	public void setup() throws IOException {
+		TwineLogger twineLogger = new TwineLogger(BlockTemplateBenchmark.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		Logger logger = twineLogger.getLogger();
+
+		random = new Random(0);
+		store = new MemoryOutputStore();
+		List<Pair<OutPoint, UnspentOutput>> batch = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		List<OutPoint> funding = new ArrayList<OutPoint>();
+		for (int i = 0; i < 2 * poolSize; i++) {
+			byte[] txid = new byte[OutPoint.TXID_LENGTH];
+			random.nextBytes(txid);
+			OutPoint outPoint = new OutPoint(txid, 0);
+			batch.add(new Pair<OutPoint, UnspentOutput>(outPoint, new UnspentOutput(100000000, new byte[25], 1, false)));
+			funding.add(outPoint);
+		}
+		store.writeBatch(batch);
+
+		TwineOutputTracker outputs = new TwineOutputTracker(store, logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		pool = new TwineMemoryPool(outputs, logger, Long.MAX_VALUE, 1000);
+		List<OutPoint> poolOutputs = new ArrayList<OutPoint>();
+		for (int i = 0; i < poolSize; i++) {
+			OutPoint outPoint;
+			long value = 100000000;
+			if (random.nextInt(4) == 0 && !poolOutputs.isEmpty()) {
+				outPoint = poolOutputs.remove(random.nextInt(poolOutputs.size()));
+				value = pool.getTransaction(outPoint.getTxid()).getOutputs().get(0).getValue();
+			} else {
+				outPoint = funding.get(i);
+			}
+			Transaction tx = spend(outPoint, value, 250 + random.nextInt(20000));
+			pool.addTransaction(tx);
+			poolOutputs.add(new OutPoint(tx.getTxid(), 0));
+		}
+		spare = funding.subList(poolSize, funding.size());
+		spareIndex = 0;
+		builder = new BlockTemplateBuilder(pool, MAX_BLOCK_SIZE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		builder.close();
+	}
+
+	@Benchmark
+	public BlockTemplate build() {
+		BlockTemplateBuilder fresh = new BlockTemplateBuilder(pool, MAX_BLOCK_SIZE);
+		try {
+			return fresh.getTemplate();
+		} finally {
+			fresh.close();
+		}
+	}
+
+	@Benchmark
+	public BlockTemplate arrival() {
+		if (spareIndex < spare.size()) {
+			pool.addTransaction(spend(spare.get(spareIndex++), 100000000, 250 + random.nextInt(20000)));
+		}
+		return builder.getTemplate();
+	}
+
+	private Transaction spend(OutPoint outPoint, long value, long fee) {
+		byte[] inputScript = new byte[107];
+		random.nextBytes(inputScript);
+		List<TxInput> inputs = Arrays.asList(new TxInput(outPoint, inputScript, -1));
+		List<TxOutput> outputs = Arrays.asList(new TxOutput(value - fee, new byte[25]));
+		return new Transaction(1, inputs, outputs, 0);
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.twinecoin.node.mempool.TwineMemoryPoolTest.createOutputs;
+import static org.twinecoin.node.mempool.TwineMemoryPoolTest.spend;
+import static org.twinecoin.node.mempool.TwineMemoryPoolTest.utxo;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.twinecoin.api.MemoryPool.Result;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.node.test.TestUtils.TestLog;
+
+public class BlockTemplateBuilderTest {
+
+	@Test
+	public void testChildPaysForParent() throws IOException {
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(10, 100000), TestLog.getLogger(BlockTemplateBuilderTest.class), Long.MAX_VALUE, 1000);
+		Transaction parent = spend(utxo(1), 100000 - 200);
+		Transaction child = spend(new OutPoint(parent.getTxid(), 0), 100000 - 200 - 20000);
+		Transaction middle = spend(utxo(2), 100000 - 5000);
+		add(pool, parent);
+		add(pool, child);
+		add(pool, middle);
+
+		// Room for two transactions, the parent and child package pays the most
+		int size = parent.getSize();
+		BlockTemplateBuilder builder = new BlockTemplateBuilder(pool, 2 * size);
+		List<Transaction> selected = builder.getTemplate().getTransactions();
+
+		assertEquals("Unexpected template size", 2, selected.size());
+		assertEquals("Parent not first", parent, selected.get(0));
+		assertEquals("Child not selected", child, selected.get(1));
+		assertEquals("Unexpected template fee", 200 + 20000, builder.getTemplate().getFee());
+		builder.close();
+	}
+
+	@Test
+	public void testPackageUpdatedAfterAncestorSelected() throws IOException {
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(10, 1000000), TestLog.getLogger(BlockTemplateBuilderTest.class), Long.MAX_VALUE, 1000);
+		// The parent is selected on its own merit, then its low fee child competes alone
+		Transaction parent = spend(utxo(1), 1000000 - 50000);
+		Transaction child = spend(new OutPoint(parent.getTxid(), 0), 1000000 - 50000 - 300);
+		Transaction other = spend(utxo(2), 1000000 - 1000);
+		add(pool, parent);
+		add(pool, child);
+		add(pool, other);
+
+		BlockTemplateBuilder builder = new BlockTemplateBuilder(pool, 100000);
+		List<Transaction> selected = builder.getTemplate().getTransactions();
+		assertEquals("Unexpected template size", 3, selected.size());
+		assertEquals("Parent not first", parent, selected.get(0));
+		assertEquals("Higher fee rate not second", other, selected.get(1));
+		assertEquals("Child not last", child, selected.get(2));
+		builder.close();
+	}
+
+	@Test
+	public void testIncrementalUpdates() throws IOException {
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(10, 100000), TestLog.getLogger(BlockTemplateBuilderTest.class), Long.MAX_VALUE, 1000);
+		BlockTemplateBuilder builder = new BlockTemplateBuilder(pool, 1000000);
+		Transaction first = spend(utxo(1), 90000);
+		add(pool, first);
+		assertEquals("Unexpected template size", 1, builder.getTemplate().getTransactions().size());
+		long rebuilds = builder.getRebuildCount();
+
+		// Fits and has no missing parents, so it is appended without a rebuild
+		Transaction child = spend(new OutPoint(first.getTxid(), 0), 80000);
+		add(pool, child);
+		add(pool, spend(utxo(2), 90000));
+		assertEquals("Transactions not appended", 3, builder.getTemplate().getTransactions().size());
+		assertEquals("Unexpected rebuild", rebuilds, builder.getRebuildCount());
+
+		// Removing a selected transaction forces a rebuild
+		pool.removeForBlock(Collections.singletonList(first));
+		List<Transaction> selected = builder.getTemplate().getTransactions();
+		assertEquals("Template not rebuilt", rebuilds + 1, builder.getRebuildCount());
+		assertEquals("Unexpected template size", 2, selected.size());
+		assertFalse("Confirmed transaction still selected", selected.contains(first));
+		assertTrue("Child not selected", selected.contains(child));
+		builder.close();
+	}
+
+	@Test
+	public void testAppendedPackageLowersThreshold() throws IOException {
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(10, 100000), TestLog.getLogger(BlockTemplateBuilderTest.class), Long.MAX_VALUE, 1000);
+		Transaction high = spend(utxo(1), 100000 - 10000);
+		Transaction low = spend(utxo(2), 100000 - 200);
+		Transaction middle = spend(utxo(3), 100000 - 5000);
+		BlockTemplateBuilder builder = new BlockTemplateBuilder(pool, 2 * high.getSize());
+		add(pool, high);
+		assertEquals("Unexpected template size", 1, builder.getTemplate().getTransactions().size());
+
+		// The low fee transaction fits and is appended
+		add(pool, low);
+		assertTrue("Transaction not appended", builder.getTemplate().getTransactions().contains(low));
+
+		// The block is full, but the new transaction pays more than the appended one
+		add(pool, middle);
+		List<Transaction> selected = builder.getTemplate().getTransactions();
+		assertEquals("Unexpected template size", 2, selected.size());
+		assertTrue("Higher fee transaction not selected", selected.contains(middle));
+		assertFalse("Lowest fee transaction still selected", selected.contains(low));
+		builder.close();
+	}
+
+	private static void add(TwineMemoryPool pool, Transaction tx) {
+		assertEquals("Transaction not accepted", Result.ACCEPTED, pool.addTransaction(tx));
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.twinecoin.node.mempool.TwineMemoryPoolTest.spend;
+import static org.twinecoin.node.mempool.TwineMemoryPoolTest.utxo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.twinecoin.node.mempool.MemoryPoolListener.RemovalReason;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+import org.twinecoin.node.test.TestUtils.TestLog;
+
+public class FeeEstimatorTest {
+
+	@Test
+	public void testEstimate() {
+		FeeEstimator estimator = new FeeEstimator(TestLog.getLogger(FeeEstimatorTest.class), 0);
+		assertEquals("Estimate without data", -1, estimator.estimateFeeRate(1), 0);
+
+		simulate(estimator, 100);
+
+		// Only the high fee transactions confirm, all in the next block
+		double estimate = estimator.estimateFeeRate(1);
+		assertTrue("Estimate too low, " + estimate, estimate > 15000);
+		assertTrue("Estimate too high, " + estimate, estimate < 25000);
+		assertEquals("Longer target should not need a higher fee", estimate, estimator.estimateFeeRate(10), estimate * 0.1);
+		assertEquals("Target out of range accepted", -1, estimator.estimateFeeRate(FeeEstimator.MAX_TARGET + 1), 0);
+		assertEquals("Unexpected tracked count", 100 * 20, estimator.getTrackedCount());
+	}
+
+	@Test
+	public void testPersistence() {
+		File dir = TestFiles.createTestDir("fee");
+		try {
+			FeeEstimator estimator = new FeeEstimator(TestLog.getLogger(FeeEstimatorTest.class), 0);
+			simulate(estimator, 50);
+			File file = new File(dir, "fee_estimates.dat");
+			assertTrue("Estimates not saved", estimator.save(file));
+
+			FeeEstimator restored = new FeeEstimator(TestLog.getLogger(FeeEstimatorTest.class), 50);
+			assertTrue("Estimates not loaded", restored.load(file));
+			assertEquals("Estimate changed after restart", estimator.estimateFeeRate(2), restored.estimateFeeRate(2), 1e-6);
+
+			// Statistics decay over blocks missed while the node was down
+			FeeEstimator late = new FeeEstimator(TestLog.getLogger(FeeEstimatorTest.class), 60);
+			assertTrue("Estimates not loaded", late.load(file));
+			assertEquals("Unexpected best height", 60, late.getBestHeight());
+		} finally {
+			TestFiles.delete(dir);
+		}
+	}
+
+	/**
+	 * Adds 20 high fee and 20 low fee transactions per block.  The high fee
+	 * transactions are confirmed in the next block and the low fee
+	 * transactions are never confirmed.
+	 */
+	private static void simulate(FeeEstimator estimator, int blocks) {
+		int id = 0;
+		for (int height = 1; height <= blocks; height++) {
+			List<MemoryPoolEntry> high = new ArrayList<MemoryPoolEntry>();
+			for (int i = 0; i < 20; i++) {
+				high.add(createEntry(id++, 20));
+				estimator.transactionAdded(high.get(i));
+				estimator.transactionAdded(createEntry(id++, 1.1));
+			}
+			for (MemoryPoolEntry entry : high) {
+				estimator.transactionRemoved(entry, RemovalReason.BLOCK);
+			}
+			estimator.processBlock(height);
+		}
+	}
+
+	/**
+	 * Creates an entry with a fee rate in units of 1000 per 1000 bytes
+	 */
+	private static MemoryPoolEntry createEntry(int id, double feeRate) {
+		MemoryPoolEntry sizing = new MemoryPoolEntry(spend(utxo(id), 1000), 0, 0, id);
+		long fee = (long) (feeRate * sizing.getSize());
+		return new MemoryPoolEntry(spend(utxo(id), 1000), fee, 0, id);
+	}
+}
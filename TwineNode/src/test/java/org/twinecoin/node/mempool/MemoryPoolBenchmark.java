@@ -0,0 +1,151 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.twinecoin.api.MemoryPool.Result;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.output.MemoryOutputStore;
+import org.twinecoin.node.output.TwineOutputTracker;
+
+/**
+ * Accept and evict throughput for a flood of transactions.<br>
+ * <br>
+ * Each invocation offers the same transactions to an empty pool from several
+ * threads.  One in five transactions spends an output of an earlier pool
+ * transaction, and fee rates are random.  With the smaller memory limit most
+ * of the flood is evicted or rejected for low fees.<br>
+ * <br>
+ * mvn -Pbenchmark verify -Dbenchmark=MemoryPoolBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MemoryPoolBenchmark {
+	private static final int TRANSACTIONS = 300000;
+
+	@Param({"1024", "64"})
+	public int maxMemoryMb;
+
+	@Param({"4"})
+	public int threads;
+
+	private Logger logger;
+	private MemoryOutputStore store;
+	private List<Transaction> transactions;
+	private ExecutorService executor;
+
+	private TwineMemoryPool pool;
+
+	@Setup
+	public void setup() {
+		TwineLogger twineLogger = new TwineLogger(MemoryPoolBenchmark.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+
+		Random random = new Random(0);
+		store = new MemoryOutputStore();
+		List<Pair<OutPoint, UnspentOutput>> batch = new ArrayList<Pair<OutPoint, UnspentOutput>>(TRANSACTIONS);
+		transactions = new ArrayList<Transaction>(TRANSACTIONS);
+		List<Pair<OutPoint, Long>> poolOutputs = new ArrayList<Pair<OutPoint, Long>>();
+		for (int i = 0; i < TRANSACTIONS; i++) {
+			OutPoint outPoint;
+			long value;
+			if (random.nextInt(5) == 0 && !poolOutputs.isEmpty()) {
+				Pair<OutPoint, Long> parent = poolOutputs.remove(random.nextInt(poolOutputs.size()));
+				outPoint = parent.getA();
+				value = parent.getB();
+			} else {
+				byte[] txid = new byte[OutPoint.TXID_LENGTH];
+				random.nextBytes(txid);
+				outPoint = new OutPoint(txid, 0);
+				value = 100000000;
+				batch.add(new Pair<OutPoint, UnspentOutput>(outPoint, new UnspentOutput(value, new byte[25], 1, false)));
+			}
+			long fee = 250 + random.nextInt(50000);
+			byte[] inputScript = new byte[107];
+			random.nextBytes(inputScript);
+			List<TxInput> inputs = Arrays.asList(new TxInput(outPoint, inputScript, -1));
+			List<TxOutput> outputs = Arrays.asList(new TxOutput((value - fee) / 2, new byte[25]), new TxOutput((value - fee) - (value - fee) / 2, new byte[25]));
+			Transaction tx = new Transaction(1, inputs, outputs, 0);
+			transactions.add(tx);
+			poolOutputs.add(new Pair<OutPoint, Long>(new OutPoint(tx.getTxid(), 0), outputs.get(0).getValue()));
+			poolOutputs.add(new Pair<OutPoint, Long>(new OutPoint(tx.getTxid(), 1), outputs.get(1).getValue()));
+		}
+		store.writeBatch(batch);
+		executor = Executors.newFixedThreadPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Setup(org.openjdk.jmh.annotations.Level.Invocation)
+	public void createPool() throws IOException {
+		TwineOutputTracker outputs = new TwineOutputTracker(store, logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		pool = new TwineMemoryPool(outputs, logger, ((long) maxMemoryMb) << 20, 1000);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TRANSACTIONS)
+	public int accept() throws Exception {
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger accepted = new AtomicInteger();
+		List<Future<?>> workers = new ArrayList<Future<?>>();
+		for (int t = 0; t < threads; t++) {
+			workers.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					int i;
+					while ((i = next.getAndIncrement()) < transactions.size()) {
+						if (pool.addTransaction(transactions.get(i)) == Result.ACCEPTED) {
+							accepted.incrementAndGet();
+						}
+					}
+				}
+			}));
+		}
+		for (Future<?> worker : workers) {
+			worker.get();
+		}
+		return accepted.get();
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.twinecoin.node.mempool.TwineMemoryPoolTest.createOutputs;
+import static org.twinecoin.node.mempool.TwineMemoryPoolTest.spend;
+import static org.twinecoin.node.mempool.TwineMemoryPoolTest.utxo;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.twinecoin.api.MemoryPool.Result;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.node.test.TestUtils.TestLog;
+
+public class OrphanPoolTest {
+
+	@Test
+	public void testPromoteChildren() throws IOException {
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(10, 100000), TestLog.getLogger(OrphanPoolTest.class), Long.MAX_VALUE, 1000);
+		OrphanPool orphans = new OrphanPool(pool, TestLog.getLogger(OrphanPoolTest.class));
+
+		Transaction parent = spend(utxo(1), 99000);
+		Transaction child = spend(new OutPoint(parent.getTxid(), 0), 97000);
+		Transaction grandchild = spend(new OutPoint(child.getTxid(), 0), 95000);
+
+		// Children arrive first and wait for their parents
+		assertEquals("Grandchild not orphaned", Result.MISSING_INPUTS, orphans.submit(grandchild, 1));
+		assertEquals("Child not orphaned", Result.MISSING_INPUTS, orphans.submit(child, 1));
+		assertEquals("Unexpected orphan count", 2, orphans.size());
+		assertTrue("Orphan memory not counted", orphans.getMemoryUsage() > 0);
+
+		// The parent promotes the child, which promotes the grandchild
+		assertEquals("Parent not accepted", Result.ACCEPTED, orphans.submit(parent, 2));
+		assertTrue("Child not promoted", pool.contains(child.getTxid()));
+		assertTrue("Grandchild not promoted", pool.contains(grandchild.getTxid()));
+		assertEquals("Orphans not removed", 0, orphans.size());
+		assertEquals("Unexpected promoted count", 2, orphans.getPromotedCount());
+		assertEquals("Memory not released", 0, orphans.getMemoryUsage());
+	}
+
+	@Test
+	public void testLimits() throws IOException {
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(10, 100000), TestLog.getLogger(OrphanPoolTest.class), Long.MAX_VALUE, 1000);
+		long orphanSize = MemoryPoolEntry.estimateMemoryUsage(spend(utxo(1000), 99000)) + 96;
+		OrphanPool orphans = new OrphanPool(pool, TestLog.getLogger(OrphanPoolTest.class), 10, orphanSize * 20, OrphanPool.DEFAULT_EXPIRY_MILLIS);
+
+		for (int i = 0; i < 50; i++) {
+			orphans.submit(spend(utxo(1000 + i), 99000), i % 2);
+		}
+		assertEquals("Count limit not applied", 10, orphans.size());
+		assertEquals("Unexpected eviction count", 40, orphans.getEvictedCount());
+
+		orphans = new OrphanPool(pool, TestLog.getLogger(OrphanPoolTest.class), 100, orphanSize * 20, OrphanPool.DEFAULT_EXPIRY_MILLIS);
+		for (int i = 0; i < 50; i++) {
+			orphans.submit(spend(utxo(1000 + i), 99000), i % 2);
+		}
+		assertEquals("Byte limit not applied", 20, orphans.size());
+		assertTrue("Memory limit exceeded", orphans.getMemoryUsage() <= orphanSize * 20);
+
+		int removed = orphans.removeForPeer(0);
+		assertEquals("Peer orphans not removed", 20 - removed, orphans.size());
+		for (int i = 0; i < 50; i++) {
+			assertFalse("Peer orphan still held", i % 2 == 0 && orphans.contains(spend(utxo(1000 + i), 99000).getTxid()));
+		}
+
+		// Block transactions are no longer orphans
+		Transaction tx = spend(utxo(2000), 99000);
+		orphans.submit(tx, 1);
+		assertTrue("Orphan not held", orphans.contains(tx.getTxid()));
+		orphans.removeForBlock(Collections.singletonList(tx));
+		assertFalse("Confirmed orphan not removed", orphans.contains(tx.getTxid()));
+	}
+
+	@Test
+	public void testExpiry() throws IOException {
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(10, 100000), TestLog.getLogger(OrphanPoolTest.class), Long.MAX_VALUE, 1000);
+		OrphanPool orphans = new OrphanPool(pool, TestLog.getLogger(OrphanPoolTest.class), 100, OrphanPool.DEFAULT_MAX_BYTES, 0);
+
+		for (int i = 0; i < 3; i++) {
+			orphans.submit(spend(utxo(1000 + i), 99000), 1);
+		}
+		assertEquals("Expired orphans not removed", 1, orphans.size());
+		assertEquals("Unexpected expiry count", 2, orphans.getExpiredCount());
+		assertEquals("Unexpected eviction count", 0, orphans.getEvictedCount());
+	}
+}
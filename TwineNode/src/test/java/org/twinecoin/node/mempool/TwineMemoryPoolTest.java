@@ -0,0 +1,143 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.mempool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.twinecoin.api.MemoryPool.Result;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.Transaction;
+import org.twinecoin.api.data.TxInput;
+import org.twinecoin.api.data.TxOutput;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+import org.twinecoin.node.output.MemoryOutputStore;
+import org.twinecoin.node.output.TwineOutputTracker;
+import org.twinecoin.node.test.TestUtils.TestLog;
+
+public class TwineMemoryPoolTest {
+
+	@Test
+	public void testAcceptAndConflict() throws IOException {
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(10, 100000), TestLog.getLogger(TwineMemoryPoolTest.class), Long.MAX_VALUE, 1000);
+
+		Transaction tx = spend(utxo(1), 100000 - 1000);
+		assertEquals("Transaction not accepted", Result.ACCEPTED, pool.addTransaction(tx));
+		assertEquals("Duplicate accepted", Result.ALREADY_KNOWN, pool.addTransaction(tx));
+		assertEquals("Conflict accepted", Result.CONFLICT, pool.addTransaction(spend(utxo(1), 100000 - 2000)));
+		assertEquals("Missing input accepted", Result.MISSING_INPUTS, pool.addTransaction(spend(utxo(99), 100)));
+		assertEquals("Overspend accepted", Result.INVALID, pool.addTransaction(spend(utxo(2), 100001)));
+		assertEquals("Low fee accepted", Result.FEE_TOO_LOW, pool.addTransaction(spend(utxo(3), 100000 - 10)));
+
+		assertTrue("Transaction not found", pool.contains(tx.getTxid()));
+		assertEquals("Spender not indexed", tx, pool.getSpender(utxo(1)));
+		assertEquals("Unexpected fee", 1000, pool.getEntry(tx.getTxid()).getFee());
+		assertEquals("Unexpected pool size", 1, pool.size());
+	}
+
+	@Test
+	public void testChainTotals() throws IOException {
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(10, 100000), TestLog.getLogger(TwineMemoryPoolTest.class), Long.MAX_VALUE, 1000);
+
+		Transaction parent = spend(utxo(1), 99000);
+		Transaction child = spend(new OutPoint(parent.getTxid(), 0), 97000);
+		Transaction grandchild = spend(new OutPoint(child.getTxid(), 0), 90000);
+		assertEquals("Parent not accepted", Result.ACCEPTED, pool.addTransaction(parent));
+		assertEquals("Child not accepted", Result.ACCEPTED, pool.addTransaction(child));
+		assertEquals("Grandchild not accepted", Result.ACCEPTED, pool.addTransaction(grandchild));
+
+		MemoryPoolEntry parentEntry = pool.getEntry(parent.getTxid());
+		MemoryPoolEntry grandchildEntry = pool.getEntry(grandchild.getTxid());
+		assertEquals("Unexpected descendant count", 3, parentEntry.getDescendantCount());
+		assertEquals("Unexpected descendant fee", 1000 + 2000 + 7000, parentEntry.getDescendantFee());
+		assertEquals("Unexpected ancestor count", 3, grandchildEntry.getAncestorCount());
+		assertEquals("Unexpected ancestor fee", 1000 + 2000 + 7000, grandchildEntry.getAncestorFee());
+
+		// Confirming the parent leaves the descendants with fewer ancestors
+		pool.removeForBlock(Collections.singletonList(parent));
+		assertFalse("Parent not removed", pool.contains(parent.getTxid()));
+		assertEquals("Ancestor count not updated", 2, grandchildEntry.getAncestorCount());
+		assertEquals("Ancestor fee not updated", 2000 + 7000, grandchildEntry.getAncestorFee());
+
+		// A conflicting block transaction removes the child and its descendants
+		pool.removeForBlock(Collections.singletonList(spend(new OutPoint(parent.getTxid(), 0), 1)));
+		assertEquals("Conflicts not removed", 0, pool.size());
+		assertEquals("Memory not released", 0, pool.getMemoryUsage());
+	}
+
+	@Test
+	public void testChainLimit() throws IOException {
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(1, 10000000), TestLog.getLogger(TwineMemoryPoolTest.class), Long.MAX_VALUE, 1000);
+		OutPoint previous = utxo(0);
+		long value = 10000000;
+		for (int i = 0; i < TwineMemoryPool.MAX_ANCESTORS; i++) {
+			value -= 1000;
+			Transaction tx = spend(previous, value);
+			assertEquals("Chain transaction not accepted", Result.ACCEPTED, pool.addTransaction(tx));
+			previous = new OutPoint(tx.getTxid(), 0);
+		}
+		assertEquals("Chain limit not enforced", Result.TOO_LONG_CHAIN, pool.addTransaction(spend(previous, value - 1000)));
+	}
+
+	@Test
+	public void testEvictsLowestFeeRate() throws IOException {
+		Transaction sample = spend(utxo(0), 99000);
+		long entrySize = MemoryPoolEntry.estimateMemoryUsage(sample);
+		TwineMemoryPool pool = new TwineMemoryPool(createOutputs(20, 100000), TestLog.getLogger(TwineMemoryPoolTest.class), entrySize * 10 + 100, 1000);
+
+		List<Transaction> txs = new ArrayList<Transaction>();
+		for (int i = 0; i < 10; i++) {
+			Transaction tx = spend(utxo(i), 100000 - 1000 * (i + 1));
+			txs.add(tx);
+			assertEquals("Transaction not accepted", Result.ACCEPTED, pool.addTransaction(tx));
+		}
+		// A higher fee transaction pushes out the lowest fee rate transaction
+		assertEquals("High fee transaction not accepted", Result.ACCEPTED, pool.addTransaction(spend(utxo(10), 50000)));
+		assertEquals("Unexpected pool size", 10, pool.size());
+		assertFalse("Lowest fee rate not evicted", pool.contains(txs.get(0).getTxid()));
+		assertTrue("Minimum fee not raised", pool.getMinFeeRate() > 1000);
+		assertEquals("Unexpected evicted count", 1, pool.getEvictedCount());
+		assertTrue("Memory limit exceeded", pool.getMemoryUsage() <= entrySize * 10 + 100);
+
+		// Anything below the evicted fee rate is now rejected
+		assertEquals("Low fee accepted when full", Result.FEE_TOO_LOW, pool.addTransaction(spend(utxo(11), 100000 - 1000)));
+	}
+
+	static TwineOutputTracker createOutputs(int count, long value) throws IOException {
+		MemoryOutputStore store = new MemoryOutputStore();
+		List<Pair<OutPoint, UnspentOutput>> batch = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		for (int i = 0; i < count; i++) {
+			batch.add(new Pair<OutPoint, UnspentOutput>(utxo(i), new UnspentOutput(value, new byte[] {0x51}, 1, false)));
+		}
+		store.writeBatch(batch);
+		return new TwineOutputTracker(store, TestLog.getLogger(TwineMemoryPoolTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	static OutPoint utxo(int id) {
+		byte[] txid = new byte[OutPoint.TXID_LENGTH];
+		txid[0] = (byte) id;
+		txid[1] = (byte) (id >> 8);
+		txid[2] = (byte) (id >> 16);
+		txid[31] = 1;
+		return new OutPoint(txid, 0);
+	}
+
+	static Transaction spend(OutPoint outPoint, long value) {
+		List<TxInput> inputs = Arrays.asList(new TxInput(outPoint, new byte[72], -1));
+		List<TxOutput> outputs = Arrays.asList(new TxOutput(value, new byte[25]));
+		return new Transaction(1, inputs, outputs, 0);
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+
+public class AddressManagerTest {
+
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	private File dir;
+	private Logger logger;
+
+	@Before
+	public void before() {
+		dir = TestFiles.createTestDir("addressmanager");
+		TwineLogger twineLogger = new TwineLogger(AddressManagerTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+	}
+
+	@After
+	public void after() {
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void testAddAndPromote() throws IOException {
+		AddressManager manager = new AddressManager(logger);
+		long now = System.currentTimeMillis();
+		assertNull("Address selected from empty tables", manager.select());
+
+		InetSocketAddress address = address(10, 1, 2, 3, 9333);
+		assertTrue("Address not added", manager.add(address, now));
+		assertFalse("Duplicate added", manager.add(address, now + 1000));
+		assertEquals("Last seen not updated", (int) ((now + 1000) / 1000), manager.getEntry(address).getLastSeen());
+		assertEquals("Unexpected new count", 1, manager.getNewCount());
+		assertEquals("Unexpected selection", address, manager.select());
+
+		manager.attempt(address);
+		assertEquals("Attempt not recorded", 1, manager.getEntry(address).getAttempts());
+
+		manager.good(address);
+		assertTrue("Address not promoted", manager.isTried(address));
+		assertEquals("Attempts not reset", 0, manager.getEntry(address).getAttempts());
+		assertEquals("Unexpected new count", 0, manager.getNewCount());
+		assertEquals("Unexpected tried count", 1, manager.getTriedCount());
+		assertFalse("Tried address added to new table", manager.add(address, now));
+		assertEquals("Unexpected selection", address, manager.select());
+
+		// Unresolved addresses and unknown ports are not kept
+		assertFalse("Unresolved address added", manager.add(InetSocketAddress.createUnresolved("example.com", 9333), now));
+		assertFalse("Port 0 added", manager.add(address(10, 1, 2, 4, 0), now));
+	}
+
+	@Test
+	public void testGroupLimits() throws IOException {
+		AddressManager manager = new AddressManager(logger);
+		long now = System.currentTimeMillis();
+		// One /16 can only reach its share of the new buckets
+		int added = 0;
+		for (int i = 0; i < 20000; i++) {
+			if (manager.add(address(10, 5, i >> 8, i & 0xFF, 9333), now)) {
+				added++;
+			}
+		}
+		assertTrue("Group not limited", added <= AddressManager.NEW_BUCKETS_PER_GROUP * AddressManager.BUCKET_SIZE);
+		assertEquals("Unexpected new count", added, manager.getNewCount());
+
+		// Stale entries are replaced by fresh addresses in the same slot
+		AddressManager stale = new AddressManager(logger);
+		int replaced = 0;
+		for (int i = 0; i < 2000; i++) {
+			stale.add(address(10, 6, i >> 8, i & 0xFF, 9333), now - 40 * DAY_MILLIS);
+		}
+		int before = stale.getNewCount();
+		for (int i = 0; i < 2000; i++) {
+			if (stale.add(address(10, 6, 100 + (i >> 8), i & 0xFF, 9333), now)) {
+				replaced++;
+			}
+		}
+		assertTrue("Stale entries not replaced", replaced > 0);
+		assertTrue("Unexpected new count after replacement", stale.getNewCount() >= before);
+	}
+
+	@Test
+	public void testSelectionSpread() throws IOException {
+		AddressManager manager = new AddressManager(logger);
+		long now = System.currentTimeMillis();
+		Set<InetSocketAddress> known = new HashSet<InetSocketAddress>();
+		for (int i = 0; i < 200; i++) {
+			InetSocketAddress address = address(20 + i, 1, 1, 1, 9333);
+			manager.add(address, now);
+			known.add(address);
+		}
+		for (int i = 0; i < 20; i++) {
+			InetSocketAddress address = address(20 + i, 1, 1, 1, 9333);
+			manager.good(address);
+		}
+		Set<InetSocketAddress> selected = new HashSet<InetSocketAddress>();
+		int tried = 0;
+		for (int i = 0; i < 2000; i++) {
+			InetSocketAddress address = manager.select();
+			assertTrue("Unknown address selected", known.contains(address));
+			selected.add(address);
+			if (manager.isTried(address)) {
+				tried++;
+			}
+		}
+		assertTrue("Selection not spread", selected.size() > 100);
+		assertTrue("Tried table not favoured", tried > 500 && tried < 1500);
+	}
+
+	@Test
+	public void testPersistence() throws IOException {
+		File file = new File(dir, "peers.dat");
+		long now = System.currentTimeMillis();
+		AddressManager manager = new AddressManager(logger);
+		assertTrue("File not mapped", manager.load(file));
+		InetSocketAddress v6 = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 19333);
+		for (int i = 0; i < 100; i++) {
+			manager.add(address(30, 1, 1, i, 9333), now);
+		}
+		manager.add(v6, now);
+		manager.good(address(30, 1, 1, 7, 9333));
+		manager.close();
+
+		AddressManager loaded = new AddressManager(logger);
+		assertTrue("File not mapped", loaded.load(file));
+		assertEquals("Unexpected new count", manager.getNewCount(), loaded.getNewCount());
+		assertEquals("Unexpected tried count", 1, loaded.getTriedCount());
+		assertTrue("Tried address not restored", loaded.isTried(address(30, 1, 1, 7, 9333)));
+		AddressEntry entry = loaded.getEntry(v6);
+		assertNotNull("IPv6 address not restored", entry);
+		assertEquals("Unexpected IPv6 address", v6, entry.getAddress());
+		assertEquals("Unexpected last seen", (int) (now / 1000), entry.getLastSeen());
+		// Slots are restored with the saved key, so lookups find them
+		assertFalse("Restored address added again", loaded.add(address(30, 1, 1, 50, 9333), now));
+		loaded.close();
+
+		// A damaged file is replaced
+		File damaged = new File(dir, "damaged.dat");
+		FileOutputStream out = new FileOutputStream(damaged);
+		out.write(new byte[100]);
+		out.close();
+		AddressManager replaced = new AddressManager(logger);
+		assertTrue("Damaged file not replaced", replaced.load(damaged));
+		assertEquals("Entries read from damaged file", 0, replaced.getNewCount());
+		replaced.close();
+	}
+
+	private static InetSocketAddress address(int a, int b, int c, int d, int port) throws IOException {
+		return new InetSocketAddress(InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d}), port);
+	}
+}
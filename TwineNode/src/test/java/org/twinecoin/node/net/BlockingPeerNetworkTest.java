@@ -0,0 +1,143 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.node.log.TwineLogger;
+
+public class BlockingPeerNetworkTest {
+
+	private static final int[] SIZES = new int[] {0, 1, 100, BlockingPeerNetwork.BUFFER_SIZE - MessageFrame.HEADER_LENGTH, BlockingPeerNetwork.BUFFER_SIZE + 5000, 300000, 10};
+
+	private Logger logger;
+
+	@Before
+	public void before() {
+		TwineLogger twineLogger = new TwineLogger(BlockingPeerNetworkTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+	}
+
+	@Test
+	public void testPlatformThreads() throws IOException, InterruptedException {
+		testMessages(Executors.defaultThreadFactory());
+	}
+
+	@Test
+	public void testVirtualThreads() throws IOException, InterruptedException {
+		ThreadFactory factory = VirtualThreads.getFactory("peer-");
+		Assume.assumeTrue(factory != null);
+		testMessages(factory);
+	}
+
+	private void testMessages(ThreadFactory factory) throws IOException, InterruptedException {
+		AtomicInteger serverDisconnects = new AtomicInteger();
+		BlockingPeerNetwork server = new BlockingPeerNetwork(new PeerNetworkTest.EchoListener(serverDisconnects), logger, factory);
+		InetSocketAddress serverAddress = server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+		int peers = 50;
+		final CountDownLatch connected = new CountDownLatch(peers);
+		final CountDownLatch received = new CountDownLatch(peers * SIZES.length);
+		final CountDownLatch clientDisconnects = new CountDownLatch(peers);
+		final ConcurrentHashMap<String, Integer> checksums = new ConcurrentHashMap<String, Integer>();
+		final AtomicInteger mismatches = new AtomicInteger();
+
+		// Blocking peers on both sides
+		BlockingPeerNetwork client = new BlockingPeerNetwork(new PeerListener() {
+			@Override
+			public void connected(Peer peer) {
+				connected.countDown();
+			}
+
+			@Override
+			public void messageReceived(Peer peer, String command, ByteBuffer payload) {
+				Integer expected = checksums.get(command);
+				if (expected == null || expected.intValue() != MessageFrame.getChecksum(payload)) {
+					mismatches.incrementAndGet();
+				}
+				received.countDown();
+			}
+
+			@Override
+			public void disconnected(Peer peer) {
+				clientDisconnects.countDown();
+			}
+		}, logger, factory);
+		try {
+			List<Peer> clientPeers = new ArrayList<Peer>();
+			for (int i = 0; i < peers; i++) {
+				clientPeers.add(client.connect(serverAddress));
+			}
+			for (int i = 0; i < SIZES.length; i++) {
+				ByteBuffer payload = PeerNetworkTest.payload(i, SIZES[i]);
+				checksums.put("size" + i, MessageFrame.getChecksum(payload));
+				for (Peer peer : clientPeers) {
+					assertTrue("Message not queued", peer.send("size" + i, payload));
+				}
+			}
+			assertTrue("Peers not connected", connected.await(10, TimeUnit.SECONDS));
+			assertTrue("Echoes not received", received.await(20, TimeUnit.SECONDS));
+			assertEquals("Echo payload mismatch", 0, mismatches.get());
+			assertEquals("Unexpected client peer count", peers, client.getPeerCount());
+			assertEquals("Unexpected server peer count", peers, server.getPeerCount());
+
+			// An invalid message closes only the sending peer
+			ByteBuffer payload = PeerNetworkTest.payload(1, 40);
+			ByteBuffer header = MessageFrame.encodeHeader("ping", payload);
+			header.putInt(MessageFrame.CHECKSUM_OFFSET, header.getInt(MessageFrame.CHECKSUM_OFFSET) + 1);
+			Socket socket = new Socket(serverAddress.getAddress(), serverAddress.getPort());
+			try {
+				socket.setSoTimeout(10000);
+				OutputStream out = socket.getOutputStream();
+				out.write(header.array());
+				out.write(payload.array());
+				out.flush();
+				assertEquals("Connection not closed", -1, socket.getInputStream().read());
+			} finally {
+				socket.close();
+			}
+			waitFor(serverDisconnects, 1);
+			assertEquals("Unexpected server peer count after invalid message", peers, server.getPeerCount());
+		} finally {
+			client.close();
+		}
+		assertTrue("Client peers not closed", clientDisconnects.await(10, TimeUnit.SECONDS));
+		waitFor(serverDisconnects, peers + 1);
+		assertEquals("Client peers not removed", 0, client.getPeerCount());
+		assertEquals("Server peers not removed", 0, server.getPeerCount());
+		server.close();
+	}
+
+	private static void waitFor(AtomicInteger counter, int value) throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while (counter.get() < value && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals("Unexpected disconnect count", value, counter.get());
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.common.Convert;
+import org.twinecoin.node.log.TwineLogger;
+
+public class InventoryRelayTest {
+
+	private Logger logger;
+	private ScheduledExecutorService executor;
+	private Random random;
+
+	@Before
+	public void before() {
+		TwineLogger twineLogger = new TwineLogger(InventoryRelayTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+		executor = Executors.newSingleThreadScheduledExecutor();
+		random = new Random(42);
+	}
+
+	@After
+	public void after() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testRollingBloomFilter() {
+		RollingBloomFilter filter = new RollingBloomFilter(1000, 0.000001);
+		List<byte[]> first = txids(1000);
+		for (byte[] txid : first) {
+			filter.insert(txid);
+		}
+		for (byte[] txid : first) {
+			assertTrue("Recent entry forgotten", filter.contains(txid));
+		}
+		int falsePositives = 0;
+		for (byte[] txid : txids(10000)) {
+			if (filter.contains(txid)) {
+				falsePositives++;
+			}
+		}
+		assertTrue("Too many false positives, " + falsePositives, falsePositives < 10);
+
+		// Two more generations push out the first entries
+		for (byte[] txid : txids(1000)) {
+			filter.insert(txid);
+		}
+		int remembered = 0;
+		for (byte[] txid : first) {
+			if (filter.contains(txid)) {
+				remembered++;
+			}
+		}
+		assertTrue("Old entries not forgotten, " + remembered, remembered < 10);
+	}
+
+	@Test
+	public void testEncoding() {
+		List<byte[]> txids = txids(300);
+		ByteBuffer payload = InventoryRelay.encode(txids);
+		List<byte[]> decoded = InventoryRelay.decode(payload);
+		assertEquals("Payload position moved", 0, payload.position());
+		assertEquals("Unexpected count", txids.size(), decoded.size());
+		for (int i = 0; i < txids.size(); i++) {
+			assertArrayEquals("Unexpected txid", txids.get(i), decoded.get(i));
+		}
+		assertEquals("Empty list not decoded", 0, InventoryRelay.decode(InventoryRelay.encode(new ArrayList<byte[]>())).size());
+
+		assertNull("Empty payload accepted", InventoryRelay.decode(ByteBuffer.allocate(0)));
+		ByteBuffer truncated = payload.duplicate();
+		truncated.limit(truncated.limit() - 1);
+		assertNull("Truncated payload accepted", InventoryRelay.decode(truncated));
+		ByteBuffer extra = ByteBuffer.allocate(payload.remaining() + 1);
+		extra.put(payload.duplicate()).put((byte) 0).flip();
+		assertNull("Trailing data accepted", InventoryRelay.decode(extra));
+		ByteBuffer huge = ByteBuffer.wrap(Convert.hexToBytes("ffffffffffffffff7f"));
+		assertNull("Huge count accepted", InventoryRelay.decode(huge));
+	}
+
+	@Test
+	public void testBatching() throws InterruptedException {
+		InventoryRelay relay = new InventoryRelay(executor, logger, 20, 10);
+		RecordingPeer inbound1 = new RecordingPeer(true);
+		RecordingPeer inbound2 = new RecordingPeer(true);
+		RecordingPeer outbound = new RecordingPeer(false);
+		relay.addPeer(inbound1);
+		relay.addPeer(inbound2);
+		relay.addPeer(outbound);
+
+		List<byte[]> txids = txids(2000);
+		for (byte[] txid : txids) {
+			relay.relay(txid);
+		}
+		// Relaying again does not queue the txids twice
+		for (byte[] txid : txids) {
+			relay.relay(txid);
+		}
+		awaitEmpty(relay, inbound1, inbound2, outbound);
+		Thread.sleep(100);
+
+		for (RecordingPeer peer : new RecordingPeer[] {inbound1, inbound2, outbound}) {
+			assertEquals("Unexpected announced count", txids.size(), peer.announced().size());
+			assertTrue("Txids not batched, " + peer.messages.size(), peer.messages.size() < 20);
+		}
+		assertEquals("Unexpected announced total", 3 * txids.size(), relay.getAnnouncedCount());
+		assertTrue("Unexpected batch count", relay.getBatchCount() >= 3);
+
+		// Inventory known to a peer is not announced to it
+		byte[] fromPeer = txids(1).get(0);
+		byte[] marked = txids(1).get(0);
+		List<byte[]> inventory = new ArrayList<byte[]>();
+		inventory.add(fromPeer);
+		assertTrue("Valid inventory rejected", relay.inventoryReceived(outbound, InventoryRelay.encode(inventory)));
+		assertFalse("Invalid inventory accepted", relay.inventoryReceived(outbound, ByteBuffer.wrap(new byte[] {5})));
+		relay.markKnown(inbound1, marked);
+		relay.relay(fromPeer);
+		relay.relay(marked);
+		awaitEmpty(relay, inbound1, inbound2, outbound);
+		Thread.sleep(100);
+
+		assertFalse("Known inventory announced", outbound.announced().contains(ByteBuffer.wrap(fromPeer)));
+		assertTrue("Inventory not announced", outbound.announced().contains(ByteBuffer.wrap(marked)));
+		assertFalse("Marked inventory announced", inbound1.announced().contains(ByteBuffer.wrap(marked)));
+		assertTrue("Inventory not announced", inbound2.announced().contains(ByteBuffer.wrap(marked)));
+
+		// Removed peers get nothing
+		relay.removePeer(inbound2);
+		int messages = inbound2.messages.size();
+		relay.relay(txids(1).get(0));
+		awaitEmpty(relay, inbound1, outbound);
+		Thread.sleep(100);
+		assertEquals("Removed peer sent inventory", messages, inbound2.messages.size());
+		relay.close();
+	}
+
+	private void awaitEmpty(InventoryRelay relay, RecordingPeer... peers) throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		for (RecordingPeer peer : peers) {
+			while (relay.getQueuedCount(peer) > 0) {
+				assertTrue("Inventory not sent", System.currentTimeMillis() < end);
+				Thread.sleep(5);
+			}
+		}
+	}
+
+	private List<byte[]> txids(int count) {
+		List<byte[]> txids = new ArrayList<byte[]>();
+		for (int i = 0; i < count; i++) {
+			byte[] txid = new byte[32];
+			random.nextBytes(txid);
+			txids.add(txid);
+		}
+		return txids;
+	}
+
+	/**
+	 * A peer that records the payloads sent to it
+	 */
+	private static class RecordingPeer extends Peer {
+		private final List<ByteBuffer> messages = new CopyOnWriteArrayList<ByteBuffer>();
+
+		RecordingPeer(boolean inbound) {
+			super(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9333), inbound);
+		}
+
+		@Override
+		public boolean send(String command, ByteBuffer payload) {
+			assertEquals("Unexpected command", InventoryRelay.INV_COMMAND, command);
+			messages.add(payload);
+			return true;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		Set<ByteBuffer> announced() {
+			Set<ByteBuffer> announced = new HashSet<ByteBuffer>();
+			for (ByteBuffer message : messages) {
+				for (byte[] txid : InventoryRelay.decode(message)) {
+					announced.add(ByteBuffer.wrap(txid));
+				}
+			}
+			return announced;
+		}
+	}
+}
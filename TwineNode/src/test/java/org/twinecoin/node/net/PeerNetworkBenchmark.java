@@ -0,0 +1,126 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.twinecoin.node.log.TwineLogger;
+
+/**
+ * Loopback harness for the peer network.  A client network with the given
+ * number of peers sends messages to a server network that echoes them.<br>
+ * <br>
+ * roundTrip - latency of one message and its echo, reported as percentiles<br>
+ * burst - messages per second with {@link #BURST} messages in flight, spread
+ * over the peers<br>
+ * <br>
+ * mvn -Pbenchmark verify -Dbenchmark=PeerNetworkBenchmark
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PeerNetworkBenchmark {
+	private static final int BURST = 1000;
+	private static final int PAYLOAD_SIZE = 200;
+
+	@Param({"1", "1000"})
+	private int peers;
+
+	private PeerNetwork server;
+	private PeerNetwork client;
+	private List<Peer> clientPeers;
+	private Semaphore echoes;
+	private ByteBuffer payload;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		TwineLogger twineLogger = new TwineLogger(PeerNetworkBenchmark.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		server = new SelectorPeerNetwork(new PeerNetworkTest.EchoListener(new AtomicInteger()), twineLogger.getLogger(), 2);
+		InetSocketAddress address = server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+		echoes = new Semaphore(0);
+		final CountDownLatch connected = new CountDownLatch(peers);
+		client = new SelectorPeerNetwork(new PeerListener() {
+			@Override
+			public void connected(Peer peer) {
+				connected.countDown();
+			}
+
+			@Override
+			public void messageReceived(Peer peer, String command, ByteBuffer payload) {
+				echoes.release();
+			}
+
+			@Override
+			public void disconnected(Peer peer) {
+			}
+		}, twineLogger.getLogger(), 2);
+		clientPeers = new ArrayList<Peer>();
+		for (int i = 0; i < peers; i++) {
+			clientPeers.add(client.connect(address));
+		}
+		if (!connected.await(30, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Peers not connected");
+		}
+		payload = PeerNetworkTest.payload(7, PAYLOAD_SIZE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+		server.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void roundTrip() throws InterruptedException {
+		nextPeer().send("ping", payload);
+		echoes.acquire();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BURST)
+	public void burst() throws InterruptedException {
+		for (int i = 0; i < BURST; i++) {
+			nextPeer().send("ping", payload);
+		}
+		echoes.acquire(BURST);
+	}
+
+	private Peer nextPeer() {
+		next = (next + 1) % clientPeers.size();
+		return clientPeers.get(next);
+	}
+}
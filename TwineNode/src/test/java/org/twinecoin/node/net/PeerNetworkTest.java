@@ -0,0 +1,245 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.node.log.TwineLogger;
+
+public class PeerNetworkTest {
+
+	private static final int[] SIZES = new int[] {0, 1, 100, SelectorPeerNetwork.BUFFER_SIZE - MessageFrame.HEADER_LENGTH, SelectorPeerNetwork.BUFFER_SIZE + 5000, 300000};
+
+	private Logger logger;
+	private PeerNetwork server;
+	private InetSocketAddress serverAddress;
+	private AtomicInteger serverDisconnects;
+
+	@Before
+	public void before() throws IOException {
+		TwineLogger twineLogger = new TwineLogger(PeerNetworkTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+		serverDisconnects = new AtomicInteger();
+		server = new SelectorPeerNetwork(new EchoListener(serverDisconnects), logger, 2);
+		serverAddress = server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	}
+
+	@After
+	public void after() {
+		server.close();
+	}
+
+	@Test
+	public void testMessageFrame() {
+		ByteBuffer payload = ByteBuffer.wrap(new byte[] {1, 2, 3});
+		ByteBuffer header = MessageFrame.encodeHeader("block", payload);
+		assertEquals("Unexpected header length", MessageFrame.HEADER_LENGTH, header.remaining());
+		assertEquals("Payload position moved", 0, payload.position());
+		assertEquals("Unexpected magic", MessageFrame.MAGIC, header.getInt(0));
+		assertEquals("Unexpected command", "block", MessageFrame.readCommand(header, 0));
+		assertEquals("Unexpected length", 3, header.getInt(MessageFrame.LENGTH_OFFSET));
+		assertEquals("Unexpected checksum", MessageFrame.getChecksum(payload), header.getInt(MessageFrame.CHECKSUM_OFFSET));
+
+		header.put(MessageFrame.COMMAND_OFFSET + 7, (byte) 'x');
+		assertNull("Command with data after padding accepted", MessageFrame.readCommand(header, 0));
+	}
+
+	@Test
+	public void testReceiveSize() {
+		assertEquals("Unexpected size for small message", 100, Peer.getReceiveSize(100, 50, 1 << 16));
+		assertEquals("Unexpected size for new message", 1 << 16, Peer.getReceiveSize(MessageFrame.MAX_PAYLOAD_LENGTH, MessageFrame.HEADER_LENGTH, 1 << 16));
+		assertEquals("Buffer not doubled", 1 << 18, Peer.getReceiveSize(MessageFrame.MAX_PAYLOAD_LENGTH, 1 << 17, 1 << 16));
+		assertEquals("Buffer larger than message", 300000, Peer.getReceiveSize(300000, 200000, 1 << 16));
+	}
+
+	@Test
+	public void testMessages() throws IOException, InterruptedException {
+		int peers = 50;
+		final CountDownLatch connected = new CountDownLatch(peers);
+		final CountDownLatch received = new CountDownLatch(peers * SIZES.length);
+		final ConcurrentHashMap<String, Integer> checksums = new ConcurrentHashMap<String, Integer>();
+		final AtomicInteger mismatches = new AtomicInteger();
+
+		PeerNetwork client = new SelectorPeerNetwork(new PeerListener() {
+			@Override
+			public void connected(Peer peer) {
+				connected.countDown();
+			}
+
+			@Override
+			public void messageReceived(Peer peer, String command, ByteBuffer payload) {
+				Integer expected = checksums.get(command);
+				if (expected == null || expected.intValue() != MessageFrame.getChecksum(payload)) {
+					mismatches.incrementAndGet();
+				}
+				received.countDown();
+			}
+
+			@Override
+			public void disconnected(Peer peer) {
+			}
+		}, logger, 3);
+		try {
+			List<Peer> clientPeers = new ArrayList<Peer>();
+			for (int i = 0; i < peers; i++) {
+				clientPeers.add(client.connect(serverAddress));
+			}
+			// Messages are queued until each peer connects
+			for (int i = 0; i < SIZES.length; i++) {
+				ByteBuffer payload = payload(i, SIZES[i]);
+				checksums.put("size" + i, MessageFrame.getChecksum(payload));
+				for (Peer peer : clientPeers) {
+					assertTrue("Message not queued", peer.send("size" + i, payload));
+				}
+			}
+			assertTrue("Peers not connected", connected.await(10, TimeUnit.SECONDS));
+			assertTrue("Echoes not received", received.await(20, TimeUnit.SECONDS));
+			assertEquals("Echo payload mismatch", 0, mismatches.get());
+			assertEquals("Unexpected client peer count", peers, client.getPeerCount());
+			assertEquals("Unexpected server peer count", peers, server.getPeerCount());
+
+			clientPeers.get(0).close();
+			waitFor(serverDisconnects, 1);
+			assertEquals("Unexpected server peer count after close", peers - 1, server.getPeerCount());
+		} finally {
+			client.close();
+		}
+		waitFor(serverDisconnects, peers);
+		assertEquals("Client peers not closed", 0, client.getPeerCount());
+	}
+
+	@Test
+	public void testInvalidMessages() throws IOException, InterruptedException {
+		ByteBuffer payload = payload(1, 40);
+		ByteBuffer header = MessageFrame.encodeHeader("ping", payload);
+
+		// Bad checksum
+		header.putInt(MessageFrame.CHECKSUM_OFFSET, header.getInt(MessageFrame.CHECKSUM_OFFSET) + 1);
+		assertDisconnected(header, payload, 1);
+
+		// Bad magic
+		header = MessageFrame.encodeHeader("ping", payload);
+		header.putInt(0, 0x01020304);
+		assertDisconnected(header, payload, 2);
+
+		// Oversized payload
+		header = MessageFrame.encodeHeader("ping", payload);
+		header.putInt(MessageFrame.LENGTH_OFFSET, MessageFrame.MAX_PAYLOAD_LENGTH + 1);
+		assertDisconnected(header, payload, 3);
+
+		// A valid message is echoed, split over several writes
+		header = MessageFrame.encodeHeader("ping", payload);
+		Socket socket = new Socket(serverAddress.getAddress(), serverAddress.getPort());
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(header.array(), 0, 10);
+			out.flush();
+			Thread.sleep(50);
+			out.write(header.array(), 10, MessageFrame.HEADER_LENGTH - 10);
+			out.write(payload.array());
+			out.flush();
+			byte[] echo = new byte[MessageFrame.HEADER_LENGTH + payload.remaining()];
+			readFully(socket.getInputStream(), echo);
+			assertEquals("Unexpected echo command", "ping", MessageFrame.readCommand(ByteBuffer.wrap(echo), 0));
+			assertEquals("Unexpected echo checksum", MessageFrame.getChecksum(payload), ByteBuffer.wrap(echo).getInt(MessageFrame.CHECKSUM_OFFSET));
+		} finally {
+			socket.close();
+		}
+	}
+
+	private void assertDisconnected(ByteBuffer header, ByteBuffer payload, int disconnects) throws IOException, InterruptedException {
+		Socket socket = new Socket(serverAddress.getAddress(), serverAddress.getPort());
+		try {
+			socket.setSoTimeout(10000);
+			OutputStream out = socket.getOutputStream();
+			out.write(header.array());
+			out.write(payload.array());
+			out.flush();
+			assertEquals("Connection not closed", -1, socket.getInputStream().read());
+		} finally {
+			socket.close();
+		}
+		waitFor(serverDisconnects, disconnects);
+	}
+
+	private static void waitFor(AtomicInteger counter, int value) throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while (counter.get() < value && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals("Unexpected disconnect count", value, counter.get());
+	}
+
+	private static void readFully(InputStream in, byte[] buf) throws IOException {
+		int read = 0;
+		while (read < buf.length) {
+			int n = in.read(buf, read, buf.length - read);
+			if (n < 0) {
+				throw new IOException("Connection closed");
+			}
+			read += n;
+		}
+	}
+
+	static ByteBuffer payload(int id, int size) {
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		for (int i = 0; i < size; i++) {
+			buf.put((byte) (id * 31 + i));
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Sends a copy of every message back to its sender
+	 */
+	static class EchoListener implements PeerListener {
+		private final AtomicInteger disconnects;
+
+		EchoListener(AtomicInteger disconnects) {
+			this.disconnects = disconnects;
+		}
+
+		@Override
+		public void connected(Peer peer) {
+		}
+
+		@Override
+		public void messageReceived(Peer peer, String command, ByteBuffer payload) {
+			ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+			copy.put(payload);
+			copy.flip();
+			peer.send(command, copy);
+		}
+
+		@Override
+		public void disconnected(Peer peer) {
+			disconnects.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.twinecoin.node.test.TestUtils.TestHash.hash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.node.test.TestUtils.TestLog;
+
+public class OutputReadViewTest {
+
+	@Test
+	public void testIsolation() throws IOException {
+		MemoryOutputStore store = new MemoryOutputStore();
+		TwineOutputTracker tracker = new TwineOutputTracker(store, TestLog.getLogger(OutputReadViewTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+		tracker.addOutput(outPoint(1), output(1));
+		tracker.addOutput(outPoint(2), output(2));
+		tracker.setBestBlock(hash(1), 1);
+
+		OutputReadView view = tracker.getReadView();
+		assertEquals("Unexpected view height", 1, view.getHeight());
+		assertArrayEquals("Unexpected view commitment", tracker.getCommitment(), view.getCommitment());
+
+		tracker.spendOutput(outPoint(1));
+		tracker.addOutput(outPoint(3), output(3));
+		assertNull("Block in progress visible", view.getOutput(outPoint(3)));
+		tracker.setBestBlock(hash(2), 2);
+		assertTrue("Flush failed", tracker.flush());
+
+		// The store is now ahead of the view
+		assertNull("Spent output still in store", store.getOutput(outPoint(1)));
+		assertEquals("Spent output not visible in view", 1, view.getOutput(outPoint(1)).getValue());
+		assertNull("Later output visible in view", view.getOutput(outPoint(3)));
+		assertEquals("Unchanged output not visible", 2, view.getOutput(outPoint(2)).getValue());
+
+		OutputReadView latest = tracker.getReadView();
+		assertNull("Spent output visible in latest view", latest.getOutput(outPoint(1)));
+		assertEquals("New output not visible in latest view", 3, latest.getOutput(outPoint(3)).getValue());
+
+		// Roll back the flushed block with the view still open
+		tracker.spendOutput(outPoint(3));
+		tracker.addOutput(outPoint(1), output(1));
+		tracker.setBestBlock(hash(1), 1);
+		assertEquals("Latest view changed by later block", 3, latest.getOutput(outPoint(3)).getValue());
+		assertEquals("View changed by later block", 1, view.getOutput(outPoint(1)).getValue());
+
+		OutputReadView retained = view.retain();
+		assertEquals("Unexpected reference count", 2, view.getReferenceCount());
+		assertEquals("Unexpected open view count", 3, tracker.getOpenReadViewCount());
+		view.close();
+		view.close();
+		latest.close();
+		assertEquals("Retained handle closed", 1, retained.getOutput(outPoint(1)).getValue());
+		retained.close();
+		assertEquals("Read views not released", 0, tracker.getOpenReadViewCount());
+		tracker.close();
+	}
+
+	@Test
+	public void testConcurrentReads() throws IOException, InterruptedException {
+		final int blocks = 300;
+		MemoryOutputStore store = new MemoryOutputStore();
+		// A small cache flushes every few blocks
+		final TwineOutputTracker tracker = new TwineOutputTracker(store, TestLog.getLogger(OutputReadViewTest.class), 2000, Long.MAX_VALUE);
+		tracker.addOutput(outPoint(0), output(0));
+		tracker.setBestBlock(hash(0), 0);
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final AtomicLong reads = new AtomicLong();
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int i = 0; i < 3; i++) {
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (!done.get() && failure.get() == null) {
+							OutputReadView view = tracker.getReadView();
+							try {
+								int height = view.getHeight();
+								for (int repeat = 0; repeat < 3; repeat++) {
+									UnspentOutput current = view.getOutput(outPoint(height));
+									if (current == null || current.getValue() != height) {
+										failure.set("Output " + height + " missing at height " + height);
+									} else if (height > 0 && view.getOutput(outPoint(height - 1)) != null) {
+										failure.set("Output " + (height - 1) + " unspent at height " + height);
+									} else if (view.getOutput(outPoint(height + 1)) != null) {
+										failure.set("Output " + (height + 1) + " visible at height " + height);
+									}
+									reads.addAndGet(3);
+								}
+							} finally {
+								view.close();
+							}
+						}
+					} catch (IOException e) {
+						failure.set(e.getMessage());
+					}
+				}
+			});
+			reader.start();
+			readers.add(reader);
+		}
+
+		for (int height = 1; height <= blocks; height++) {
+			assertEquals("Unexpected spent output", height - 1, tracker.spendOutput(outPoint(height - 1)).getValue());
+			tracker.addOutput(outPoint(height), output(height));
+			tracker.setBestBlock(hash(height), height);
+		}
+		done.set(true);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		assertNull(failure.get(), failure.get());
+		assertTrue("Readers did not run", reads.get() > 0);
+		assertEquals("Read views not released", 0, tracker.getOpenReadViewCount());
+		tracker.close();
+	}
+
+	private static OutPoint outPoint(int id) {
+		return new OutPoint(hash(id), 0);
+	}
+
+	private static UnspentOutput output(long value) {
+		return new UnspentOutput(value, new byte[] {0x51}, 1, false);
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.twinecoin.node.test.TestUtils.TestHash.hash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+import org.twinecoin.node.test.TestUtils.TestLog;
+
+public class TwineOutputTrackerTest {
+
+	@Test
+	public void testFreshSpentNeverWritten() throws IOException {
+		RecordingStore store = new RecordingStore();
+		TwineOutputTracker tracker = new TwineOutputTracker(store, TestLog.getLogger(TwineOutputTrackerTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+
+		tracker.addOutput(outPoint(1, 0), output(100));
+		tracker.addOutput(outPoint(2, 0), output(200));
+		assertEquals("Unexpected spent output", 100, tracker.spendOutput(outPoint(1, 0)).getValue());
+		tracker.setBestBlock(hash(9), 1);
+
+		assertTrue("Flush failed", tracker.flush());
+
+		assertEquals("Unexpected number of written entries", 1, store.written.size());
+		assertEquals("Unexpected written outpoint", outPoint(2, 0), store.written.get(0).getA());
+		assertEquals("Unexpected skipped count", 1, tracker.getStatistics().getSkippedEntries());
+		assertEquals("Unexpected flushed count", 1, tracker.getStatistics().getFlushedEntries());
+		assertEquals("Best block not written", 1, store.getBestHeight());
+		tracker.close();
+	}
+
+	@Test
+	public void testAtomicFlush() throws IOException {
+		RecordingStore store = new RecordingStore();
+		TwineOutputTracker tracker = new TwineOutputTracker(store, TestLog.getLogger(TwineOutputTrackerTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+		for (int i = 0; i < 20000; i++) {
+			tracker.addOutput(outPoint(i, 0), output(i + 1));
+		}
+		tracker.setBestBlock(hash(1), 1);
+		assertTrue("Flush failed", tracker.flush());
+
+		// The outputs, commitment and best block reach the store in one write
+		assertEquals("Unexpected number of store writes", 1, store.layers);
+		assertEquals("Unexpected number of written entries", 20000, store.written.size());
+		assertArrayEquals("Commitment not written", tracker.getCommitment(), store.getCommitment(1));
+		assertEquals("Best block not written", 1, store.getBestHeight());
+		tracker.close();
+	}
+
+	@Test
+	public void testSortedFlushAndDelete() throws IOException {
+		RecordingStore store = new RecordingStore();
+		TwineOutputTracker tracker = new TwineOutputTracker(store, TestLog.getLogger(TwineOutputTrackerTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+
+		for (int i = 50; i > 0; i--) {
+			tracker.addOutput(outPoint(i, i & 3), output(i));
+		}
+		tracker.setBestBlock(hash(1), 1);
+		assertTrue("Flush failed", tracker.flush());
+
+		for (int i = 1; i < store.written.size(); i++) {
+			assertTrue("Flush was not sorted", store.written.get(i - 1).getA().compareTo(store.written.get(i).getA()) < 0);
+		}
+
+		store.written.clear();
+		assertEquals("Unexpected spent output", 7, tracker.spendOutput(outPoint(7, 3)).getValue());
+		tracker.setBestBlock(hash(2), 2);
+		assertTrue("Flush failed", tracker.flush());
+
+		assertEquals("Unexpected number of written entries", 1, store.written.size());
+		assertNull("Spend not written as delete", store.written.get(0).getB());
+		assertNull("Output still in store", store.getOutput(outPoint(7, 3)));
+		assertNull("Output still in tracker", tracker.getOutput(outPoint(7, 3)));
+		tracker.close();
+	}
+
+	@Test
+	public void testReadsDuringBackgroundFlush() throws IOException, InterruptedException {
+		RecordingStore store = new RecordingStore();
+		store.block = new CountDownLatch(1);
+		TwineOutputTracker tracker = new TwineOutputTracker(store, TestLog.getLogger(TwineOutputTrackerTest.class), 1, Long.MAX_VALUE);
+
+		tracker.addOutput(outPoint(1, 0), output(10));
+		tracker.addOutput(outPoint(2, 0), output(20));
+		// Exceeds the memory target, so the flush starts in the background
+		tracker.setBestBlock(hash(1), 1);
+
+		assertEquals("Active layer not reset", 0, tracker.getActiveSize());
+		assertEquals("Output not visible in frozen layer", 10, tracker.getOutput(outPoint(1, 0)).getValue());
+		assertEquals("Unexpected spent output", 20, tracker.spendOutput(outPoint(2, 0)).getValue());
+		tracker.addOutput(outPoint(3, 0), output(30));
+
+		store.block.countDown();
+		tracker.setBestBlock(hash(2), 2);
+		assertTrue("Flush failed", tracker.flush());
+
+		assertEquals("Output missing from store", 10, store.getOutput(outPoint(1, 0)).getValue());
+		assertNull("Spent output still in store", store.getOutput(outPoint(2, 0)));
+		assertEquals("Output missing from store", 30, store.getOutput(outPoint(3, 0)).getValue());
+		assertEquals("Best block not written", 2, store.getBestHeight());
+		tracker.close();
+	}
+
+	@Test
+	public void testHitRate() throws IOException {
+		RecordingStore store = new RecordingStore();
+		List<Pair<OutPoint, UnspentOutput>> batch = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		batch.add(new Pair<OutPoint, UnspentOutput>(outPoint(5, 0), output(5)));
+		store.writeBatch(batch);
+
+		TwineOutputTracker tracker = new TwineOutputTracker(store, TestLog.getLogger(TwineOutputTrackerTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+
+		assertEquals("Unexpected output value", 5, tracker.getOutput(outPoint(5, 0)).getValue());
+		assertEquals("Unexpected output value", 5, tracker.getOutput(outPoint(5, 0)).getValue());
+		assertEquals("Unexpected hit count", 1, tracker.getStatistics().getHits());
+		assertEquals("Unexpected miss count", 1, tracker.getStatistics().getMisses());
+		assertEquals("Unexpected hit rate", 0.5, tracker.getStatistics().getHitRate(), 0.0001);
+		tracker.close();
+	}
+
+	@Test
+	public void testCommitmentIndependentOfHistory() throws IOException {
+		TwineOutputTracker first = new TwineOutputTracker(new MemoryOutputStore(), TestLog.getLogger(TwineOutputTrackerTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+		for (int i = 1; i <= 10; i++) {
+			first.addOutput(outPoint(i, 0), output(i));
+		}
+		first.setBestBlock(hash(1), 1);
+		byte[] atHeight1 = first.getCommitment();
+		first.spendOutput(outPoint(3, 0));
+		first.spendOutput(outPoint(8, 0));
+		first.addOutput(outPoint(11, 0), output(11));
+		first.setBestBlock(hash(2), 2);
+
+		// Same final set, built in a different order and without the spent outputs
+		TwineOutputTracker second = new TwineOutputTracker(new MemoryOutputStore(), TestLog.getLogger(TwineOutputTrackerTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+		for (int i = 11; i > 0; i--) {
+			if (i != 3 && i != 8) {
+				second.addOutput(outPoint(i, 0), output(i));
+			}
+		}
+		second.setBestBlock(hash(2), 2);
+
+		assertArrayEquals("Commitments differ for the same set", first.getCommitment(), second.getCommitment());
+		assertArrayEquals("Commitment at height 1 not kept", atHeight1, first.getCommitment(1));
+		assertFalse("Commitment did not change", Arrays.equals(atHeight1, first.getCommitment(2)));
+		assertNull("Commitment above best block", first.getCommitment(3));
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testCommitmentPersisted() throws IOException {
+		MemoryOutputStore store = new MemoryOutputStore();
+		TwineOutputTracker tracker = new TwineOutputTracker(store, TestLog.getLogger(TwineOutputTrackerTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+		for (int i = 1; i <= 20; i++) {
+			tracker.addOutput(outPoint(i, 1), output(i));
+		}
+		tracker.setBestBlock(hash(1), 1);
+		byte[] atHeight1 = tracker.getCommitment();
+		tracker.spendOutput(outPoint(5, 1));
+		tracker.setBestBlock(hash(2), 2);
+		byte[] atHeight2 = tracker.getCommitment();
+		assertTrue("Close failed", tracker.close());
+
+		TwineOutputTracker reopened = new TwineOutputTracker(store, TestLog.getLogger(TwineOutputTrackerTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+		assertArrayEquals("Set hash not restored", atHeight2, reopened.getCommitment());
+		assertArrayEquals("Commitment not stored", atHeight1, reopened.getCommitment(1));
+
+		// A store written without a set hash is rescanned
+		store.setBestBlock(hash(2), 2, null);
+		TwineOutputTracker rescanned = new TwineOutputTracker(store, TestLog.getLogger(TwineOutputTrackerTest.class), Long.MAX_VALUE, Long.MAX_VALUE);
+		assertArrayEquals("Set hash not recomputed", atHeight2, rescanned.getCommitment());
+		reopened.close();
+		rescanned.close();
+	}
+
+	private static OutPoint outPoint(int id, int index) {
+		return new OutPoint(hash(id), index);
+	}
+
+	private static UnspentOutput output(long value) {
+		return new UnspentOutput(value, new byte[] {0x51}, 1, false);
+	}
+
+	private static class RecordingStore extends MemoryOutputStore {
+		private final List<Pair<OutPoint, UnspentOutput>> written = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		private volatile CountDownLatch block = null;
+		private volatile int layers = 0;
+
+		@Override
+		public void writeLayer(List<Pair<OutPoint, UnspentOutput>> batch, List<Pair<Integer, byte[]>> commitments, byte[] blockHash, int height, byte[] setHash) {
+			layers++;
+			super.writeLayer(batch, commitments, blockHash, height, setHash);
+		}
+
+		@Override
+		public void writeBatch(List<Pair<OutPoint, UnspentOutput>> batch) {
+			if (block != null) {
+				try {
+					block.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			written.addAll(batch);
+			super.writeBatch(batch);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output.snapshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.MuHash;
+import org.twinecoin.common.Pair;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.output.MemoryOutputStore;
+import org.twinecoin.node.output.OutputIterator;
+import org.twinecoin.node.output.OutputSerializer;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+
+public class OutputSnapshotTest {
+
+	private File dir;
+	private Logger logger;
+	private ExecutorService executor;
+
+	@Before
+	public void before() {
+		dir = TestFiles.createTestDir("snapshot");
+		TwineLogger twineLogger = new TwineLogger(OutputSnapshotTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void after() {
+		executor.shutdown();
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void testDumpAndLoad() throws IOException {
+		MemoryOutputStore source = createStore(10000);
+		File file = new File(dir, "utxo_snapshot");
+
+		OutputSnapshot written = new OutputSnapshotWriter(logger, executor, 4, 1000).write(source, file);
+		assertEquals("Unexpected output count", 10000, written.getOutputCount());
+		assertEquals("Unexpected chunk count", 10, written.getChunkCount());
+
+		MemoryOutputStore target = new MemoryOutputStore();
+		OutputSnapshot loaded = new OutputSnapshotReader(logger, executor).load(file, target, written.getSetHash());
+
+		assertArrayEquals("Commitment changed on load", written.getCommitment(), loaded.getCommitment());
+		assertEquals("Best block height not loaded", 1234, target.getBestHeight());
+		assertArrayEquals("Set hash not loaded", written.getSetHash(), new MuHash(target.getSetHash()).getDigest());
+		assertStoresEqual(source, target);
+	}
+
+	@Test
+	public void testCommitmentDependsOnContent() throws IOException {
+		File file1 = new File(dir, "snapshot1");
+		File file2 = new File(dir, "snapshot2");
+		MemoryOutputStore store = createStore(3000);
+		OutputSnapshot first = new OutputSnapshotWriter(logger, executor, 4, 1000).write(store, file1);
+
+		List<Pair<OutPoint, UnspentOutput>> batch = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		batch.add(new Pair<OutPoint, UnspentOutput>(new OutPoint(new byte[32], 7), new UnspentOutput(1, new byte[0], 1, true)));
+		store.writeBatch(batch);
+		OutputSnapshot second = new OutputSnapshotWriter(logger, executor, 4, 1000).write(store, file2);
+
+		assertFalse("Commitment did not change", Arrays.equals(first.getCommitment(), second.getCommitment()));
+	}
+
+	@Test
+	public void testSetHashChecked() throws IOException {
+		MemoryOutputStore source = createStore(3000);
+		File file = new File(dir, "utxo_snapshot");
+		OutputSnapshot written = new OutputSnapshotWriter(logger, executor, 4, 1000).write(source, file);
+
+		// The trusted value is the commitment an output tracker reports
+		MuHash trusted = new MuHash();
+		OutputIterator iterator = source.iterator();
+		while (iterator.hasNext()) {
+			Pair<OutPoint, UnspentOutput> entry = iterator.next();
+			trusted.insert(OutputSerializer.encodeElement(entry.getA(), entry.getB()));
+		}
+		iterator.close();
+		assertArrayEquals("Set hash does not match the output commitment", trusted.getDigest(), written.getSetHash());
+
+		MemoryOutputStore target = new MemoryOutputStore();
+		try {
+			new OutputSnapshotReader(logger, executor).load(file, target, written.getCommitment());
+			fail("Snapshot loaded with the wrong set hash");
+		} catch (IOException e) {
+			assertTrue("Unexpected error, " + e.getMessage(), e.getMessage().contains("set hash"));
+		}
+		assertNull("Best block set after failed load", target.getBestBlock());
+	}
+
+	@Test
+	public void testCorruptChunkRejected() throws IOException {
+		MemoryOutputStore source = createStore(5000);
+		File file = new File(dir, "utxo_snapshot");
+		new OutputSnapshotWriter(logger, executor, 4, 1000).write(source, file);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(OutputSnapshot.HEADER_SIZE + 100);
+			int b = raf.read();
+			raf.seek(OutputSnapshot.HEADER_SIZE + 100);
+			raf.write(b ^ 0x01);
+		} finally {
+			raf.close();
+		}
+
+		MemoryOutputStore target = new MemoryOutputStore();
+		try {
+			new OutputSnapshotReader(logger, executor).load(file, target, null);
+			fail("Corrupt snapshot loaded");
+		} catch (IOException e) {
+			assertTrue("Unexpected error, " + e.getMessage(), e.getMessage().contains("checksum"));
+		}
+		assertNull("Best block set after failed load", target.getBestBlock());
+	}
+
+	private static MemoryOutputStore createStore(int count) {
+		Random random = new Random(42);
+		MemoryOutputStore store = new MemoryOutputStore();
+		List<Pair<OutPoint, UnspentOutput>> batch = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		for (int i = 0; i < count; i++) {
+			byte[] txid = new byte[32];
+			random.nextBytes(txid);
+			byte[] script = new byte[random.nextInt(40)];
+			random.nextBytes(script);
+			batch.add(new Pair<OutPoint, UnspentOutput>(new OutPoint(txid, random.nextInt(4)), new UnspentOutput(random.nextInt(1000000), script, random.nextInt(1000), random.nextBoolean())));
+		}
+		store.writeBatch(batch);
+		byte[] blockHash = new byte[32];
+		blockHash[0] = 1;
+		store.setBestBlock(blockHash, 1234, null);
+		return store;
+	}
+
+	private static void assertStoresEqual(MemoryOutputStore expected, MemoryOutputStore actual) throws IOException {
+		assertEquals("Unexpected output count", expected.size(), actual.size());
+		OutputIterator iterator = expected.iterator();
+		try {
+			while (iterator.hasNext()) {
+				Pair<OutPoint, UnspentOutput> entry = iterator.next();
+				UnspentOutput output = actual.getOutput(entry.getA());
+				assertEquals("Unexpected value", entry.getB().getValue(), output.getValue());
+				assertEquals("Unexpected height", entry.getB().getHeight(), output.getHeight());
+				assertEquals("Unexpected coinbase flag", entry.getB().isCoinbase(), output.isCoinbase());
+				assertArrayEquals("Unexpected script", entry.getB().getScript(), output.getScript());
+			}
+		} finally {
+			iterator.close();
+		}
+	}
+}
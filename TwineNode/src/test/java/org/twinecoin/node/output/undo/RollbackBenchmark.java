@@ -0,0 +1,115 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output.undo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.output.KeyValueOutputStore;
+import org.twinecoin.node.output.TwineOutputTracker;
+import org.twinecoin.node.store.lsm.LsmStore;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+
+/**
+ * Time to roll back reorgs of increasing depth.<br>
+ * <br>
+ * Each iteration connects a chain of blocks, flushes it, and then rolls the
+ * chain back.  Each block spends outputs from earlier blocks and creates new
+ * ones.<br>
+ * <br>
+ * mvn -Pbenchmark verify -Dbenchmark=RollbackBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RollbackBenchmark {
+
+	@Param({"1", "6", "36", "144"})
+	public int depth;
+
+	@Param({"2000"})
+	public int outputsPerBlock;
+
+	private File dir;
+	private LsmStore chainState;
+	private UndoStore undoStore;
+	private TwineOutputTracker tracker;
+
+	@Setup(org.openjdk.jmh.annotations.Level.Iteration)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("rollback-bench").toFile();
+		TwineLogger twineLogger = new TwineLogger(RollbackBenchmark.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		Logger logger = twineLogger.getLogger();
+
+		chainState = new LsmStore(new File(dir, "chainstate"), logger, 2);
+		undoStore = new UndoStore(new File(dir, "blocks"), chainState, logger);
+		tracker = new TwineOutputTracker(new KeyValueOutputStore(chainState), undoStore, logger, 300L << 20, Long.MAX_VALUE);
+
+		Random random = new Random(depth);
+		List<OutPoint> unspent = new ArrayList<OutPoint>();
+		byte[] script = new byte[25];
+		for (int height = 0; height <= depth; height++) {
+			int spends = height == 0 ? 0 : outputsPerBlock / 2;
+			for (int i = 0; i < spends && !unspent.isEmpty(); i++) {
+				int index = random.nextInt(unspent.size());
+				tracker.spendOutput(unspent.get(index));
+				unspent.set(index, unspent.get(unspent.size() - 1));
+				unspent.remove(unspent.size() - 1);
+			}
+			for (int i = 0; i < outputsPerBlock; i++) {
+				byte[] txid = new byte[OutPoint.TXID_LENGTH];
+				random.nextBytes(txid);
+				random.nextBytes(script);
+				OutPoint outPoint = new OutPoint(txid, i & 1);
+				tracker.addOutput(outPoint, new UnspentOutput(random.nextInt(100000000), script.clone(), height, i == 0));
+				unspent.add(outPoint);
+			}
+			byte[] blockHash = new byte[OutPoint.TXID_LENGTH];
+			random.nextBytes(blockHash);
+			tracker.setBestBlock(blockHash, height);
+		}
+		tracker.flush();
+	}
+
+	@TearDown(org.openjdk.jmh.annotations.Level.Iteration)
+	public void tearDown() throws IOException {
+		tracker.close();
+		undoStore.close();
+		chainState.close();
+		TestFiles.delete(dir);
+	}
+
+	@Benchmark
+	public boolean rollback() {
+		return tracker.rollback(depth);
+	}
+}
@@ -0,0 +1,257 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.output.undo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.twinecoin.node.test.TestUtils.TestHash.hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.api.data.OutPoint;
+import org.twinecoin.api.data.UnspentOutput;
+import org.twinecoin.common.Pair;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.output.ChainListener;
+import org.twinecoin.node.output.MemoryOutputStore;
+import org.twinecoin.node.output.TwineOutputTracker;
+import org.twinecoin.node.store.lsm.LsmStore;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+
+public class UndoStoreTest {
+
+	private File dir;
+	private Logger logger;
+	private LsmStore index;
+
+	@Before
+	public void before() throws IOException {
+		dir = TestFiles.createTestDir("undo");
+		TwineLogger twineLogger = new TwineLogger(UndoStoreTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+		index = new LsmStore(new File(dir, "chainstate"), logger, 1);
+	}
+
+	@After
+	public void after() throws IOException {
+		index.close();
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void testAmountCompression() {
+		long[] amounts = new long[] {0, 1, 9, 10, 50, 100000000, 123456789, 2100000000000000L, 1000000000000L, Long.MAX_VALUE / 10};
+		for (long amount : amounts) {
+			assertEquals("Amount did not round trip", amount, UndoSerializer.decompressAmount(UndoSerializer.compressAmount(amount)));
+		}
+		assertTrue("Round amount not compressed", UndoSerializer.compressAmount(5000000000L) < 100);
+	}
+
+	@Test
+	public void testEncodeDecode() {
+		List<OutPoint> created = new ArrayList<OutPoint>();
+		created.add(new OutPoint(hash(1), 0));
+		created.add(new OutPoint(hash(1), 1));
+		created.add(new OutPoint(hash(1), 7));
+		created.add(new OutPoint(hash(2), 3));
+
+		byte[] p2pkh = new byte[25];
+		p2pkh[0] = (byte) 0x76;
+		p2pkh[1] = (byte) 0xA9;
+		p2pkh[2] = 20;
+		p2pkh[10] = 5;
+		p2pkh[23] = (byte) 0x88;
+		p2pkh[24] = (byte) 0xAC;
+		byte[] p2sh = new byte[23];
+		p2sh[0] = (byte) 0xA9;
+		p2sh[1] = 20;
+		p2sh[5] = 9;
+		p2sh[22] = (byte) 0x87;
+
+		List<Pair<OutPoint, UnspentOutput>> spent = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		spent.add(new Pair<OutPoint, UnspentOutput>(new OutPoint(hash(3), 0), new UnspentOutput(5000000000L, p2pkh, 10, true)));
+		spent.add(new Pair<OutPoint, UnspentOutput>(new OutPoint(hash(4), 2), new UnspentOutput(12345, p2sh, 11, false)));
+		spent.add(new Pair<OutPoint, UnspentOutput>(new OutPoint(hash(5), 1), new UnspentOutput(1, new byte[] {0x51}, 12, false)));
+
+		byte[] encoded = UndoSerializer.encode(new BlockUndo(hash(9), hash(8), 20, created, spent));
+		BlockUndo decoded = UndoSerializer.decode(ByteBuffer.wrap(encoded));
+
+		assertArrayEquals("Unexpected block hash", hash(9), decoded.getBlockHash());
+		assertArrayEquals("Unexpected previous block hash", hash(8), decoded.getPreviousBlockHash());
+		assertEquals("Unexpected height", 20, decoded.getHeight());
+		assertEquals("Unexpected created outputs", created, decoded.getCreated());
+		assertEquals("Unexpected spent count", spent.size(), decoded.getSpent().size());
+		for (int i = 0; i < spent.size(); i++) {
+			UnspentOutput expected = spent.get(i).getB();
+			UnspentOutput actual = decoded.getSpent().get(i).getB();
+			assertEquals("Unexpected outpoint", spent.get(i).getA(), decoded.getSpent().get(i).getA());
+			assertEquals("Unexpected value", expected.getValue(), actual.getValue());
+			assertEquals("Unexpected height", expected.getHeight(), actual.getHeight());
+			assertEquals("Unexpected coinbase flag", expected.isCoinbase(), actual.isCoinbase());
+			assertArrayEquals("Unexpected script", expected.getScript(), actual.getScript());
+		}
+	}
+
+	@Test
+	public void testRollback() throws IOException {
+		UndoStore undoStore = new UndoStore(new File(dir, "blocks"), index, logger);
+		MemoryOutputStore store = new MemoryOutputStore();
+		TwineOutputTracker tracker = new TwineOutputTracker(store, undoStore, logger, Long.MAX_VALUE, Long.MAX_VALUE);
+
+		tracker.addOutput(new OutPoint(hash(1), 0), output(100, 0));
+		tracker.addOutput(new OutPoint(hash(1), 1), output(200, 0));
+		tracker.setBestBlock(hash(101), 0);
+		tracker.addOutput(new OutPoint(hash(2), 0), output(300, 1));
+		tracker.setBestBlock(hash(102), 1);
+		byte[] commitment = tracker.getCommitment();
+		assertTrue("Flush failed", tracker.flush());
+
+		// Spends a flushed output, an output from this block and a new output
+		tracker.spendOutput(new OutPoint(hash(1), 0));
+		tracker.addOutput(new OutPoint(hash(3), 0), output(400, 2));
+		tracker.addOutput(new OutPoint(hash(4), 0), output(500, 2));
+		tracker.spendOutput(new OutPoint(hash(4), 0));
+		tracker.setBestBlock(hash(103), 2);
+		tracker.spendOutput(new OutPoint(hash(2), 0));
+		tracker.setBestBlock(hash(104), 3);
+
+		assertTrue("Rollback failed", tracker.rollback(2));
+
+		assertArrayEquals("Best block not rewound", hash(102), tracker.getBestBlock());
+		assertEquals("Best height not rewound", 1, tracker.getBestHeight());
+		assertArrayEquals("Commitment not restored", commitment, tracker.getCommitment());
+		assertEquals("Spent output not restored", 100, tracker.getOutput(new OutPoint(hash(1), 0)).getValue());
+		assertEquals("Spent output not restored", 300, tracker.getOutput(new OutPoint(hash(2), 0)).getValue());
+		assertNull("Created output not removed", tracker.getOutput(new OutPoint(hash(3), 0)));
+		assertNull("Created output not removed", tracker.getOutput(new OutPoint(hash(4), 0)));
+		assertTrue("Flush failed", tracker.close());
+		undoStore.close();
+
+		// Records survive a restart
+		undoStore = new UndoStore(new File(dir, "blocks"), index, logger);
+		assertEquals("Undo record not found", 1, undoStore.read(hash(102)).getHeight());
+		assertNull("Unexpected undo record", undoStore.read(hash(200)));
+		undoStore.close();
+	}
+
+	@Test
+	public void testCorruptRollback() throws IOException {
+		UndoStore undoStore = new UndoStore(new File(dir, "blocks"), index, logger);
+		TwineOutputTracker tracker = new TwineOutputTracker(new MemoryOutputStore(), undoStore, logger, Long.MAX_VALUE, Long.MAX_VALUE);
+		final List<Integer> disconnected = new ArrayList<Integer>();
+		tracker.addListener(new ChainListener() {
+			@Override
+			public void blockConnected(byte[] blockHash, int height) {
+			}
+
+			@Override
+			public void blockDisconnected(byte[] blockHash, int height) {
+				disconnected.add(height);
+			}
+		});
+
+		tracker.addOutput(new OutPoint(hash(1), 0), output(100, 0));
+		tracker.setBestBlock(hash(101), 0);
+		tracker.spendOutput(new OutPoint(hash(1), 0));
+		tracker.addOutput(new OutPoint(hash(2), 0), output(200, 1));
+		tracker.setBestBlock(hash(102), 1);
+
+		// Replace the undo record with one that restores the wrong value
+		List<OutPoint> created = new ArrayList<OutPoint>();
+		created.add(new OutPoint(hash(2), 0));
+		List<Pair<OutPoint, UnspentOutput>> spent = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		spent.add(new Pair<OutPoint, UnspentOutput>(new OutPoint(hash(1), 0), output(999, 0)));
+		undoStore.write(new BlockUndo(hash(102), hash(101), 1, created, spent));
+
+		assertFalse("Corrupt rollback succeeded", tracker.rollback(1));
+		assertTrue("Listener told of corrupt rollback", disconnected.isEmpty());
+		assertFalse("Rollback allowed after corruption", tracker.rollback(1));
+		assertFalse("Corrupt output set flushed", tracker.flush());
+		try {
+			tracker.setBestBlock(hash(103), 2);
+			fail("Block connected after corruption");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		undoStore.close();
+	}
+
+	@Test
+	public void testPrune() throws IOException {
+		File blocks = new File(dir, "blocks");
+		UndoStore undoStore = new UndoStore(blocks, index, logger, 1024);
+		List<OutPoint> created = new ArrayList<OutPoint>();
+		for (int i = 0; i < 10; i++) {
+			created.add(new OutPoint(hash(200), i));
+		}
+		List<Pair<OutPoint, UnspentOutput>> spent = new ArrayList<Pair<OutPoint, UnspentOutput>>();
+		int blockCount = 1000;
+		for (int height = 0; height < blockCount; height++) {
+			undoStore.write(new BlockUndo(blockHash(height), blockHash(height - 1), height, created, spent));
+		}
+		long usage = undoStore.getDiskUsage();
+		assertTrue("Too few undo files", blocks.list().length > 10);
+
+		// Nothing is pruned while every file is within the depth
+		assertEquals("Unexpected bytes deleted", 0, undoStore.prune(0, -1));
+
+		Executor direct = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		};
+		long target = usage / 4;
+		UndoPruner pruner = new UndoPruner(undoStore, direct, logger, target);
+		pruner.blockConnected(blockHash(blockCount - 1), blockCount - 1);
+		int prunedHeight = undoStore.getPrunedHeight();
+		assertTrue("Nothing pruned", prunedHeight > 0);
+		assertTrue("Pruned within safety depth", prunedHeight <= blockCount - 1 - UndoPruner.SAFETY_DEPTH);
+		assertTrue("Files not reduced", undoStore.getDiskUsage() < usage);
+		assertNull("Pruned record found", undoStore.read(blockHash(0)));
+		assertNull("Pruned record found", undoStore.read(blockHash(prunedHeight)));
+		assertEquals("Recent record not found", blockCount - 1, undoStore.read(blockHash(blockCount - 1)).getHeight());
+		assertEquals("Unpruned record not found", prunedHeight + 1, undoStore.read(blockHash(prunedHeight + 1)).getHeight());
+		undoStore.close();
+
+		// The pruned height survives a restart and writes continue in the
+		// newest file
+		int files = blocks.list().length;
+		undoStore = new UndoStore(blocks, index, logger, 1024);
+		assertEquals("Pruned height not restored", prunedHeight, undoStore.getPrunedHeight());
+		undoStore.write(new BlockUndo(blockHash(blockCount), blockHash(blockCount - 1), blockCount, created, spent));
+		assertEquals("Unexpected record", blockCount, undoStore.read(blockHash(blockCount)).getHeight());
+		assertTrue("Unexpected file count", blocks.list().length <= files + 1);
+		assertNull("Pruned file recreated", undoStore.read(blockHash(0)));
+		assertTrue("Pruned file recreated", !new File(blocks, "rev00000.dat").exists());
+		undoStore.close();
+	}
+
+	private static byte[] blockHash(int height) {
+		byte[] hash = new byte[OutPoint.TXID_LENGTH];
+		ByteBuffer.wrap(hash).putInt(1, height);
+		return hash;
+	}
+
+	private static UnspentOutput output(long value, int height) {
+		return new UnspentOutput(value, new byte[] {0x51}, height, false);
+	}
+}
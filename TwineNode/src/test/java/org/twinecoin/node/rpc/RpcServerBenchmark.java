@@ -0,0 +1,156 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.rpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.net.VirtualThreads;
+
+/**
+ * Loopback harness for the RPC server, with {@link #CLIENTS} client threads
+ * posting requests over keep-alive connections.<br>
+ * <br>
+ * latency - time for one request, reported as percentiles<br>
+ * throughput - requests per second<br>
+ * <br>
+ * Each request is a batch of the given number of calls.  The stream
+ * parameter sets the number of array elements each call returns.  Virtual
+ * threads fall back to the pool before JDK 21.<br>
+ * <br>
+ * mvn -Pbenchmark verify -Dbenchmark=RpcServerBenchmark
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(RpcServerBenchmark.CLIENTS)
+public class RpcServerBenchmark {
+	static final int CLIENTS = 16;
+
+	@Param({"pool", "virtual"})
+	private String executor;
+
+	@Param({"1", "100"})
+	private int batch;
+
+	@Param({"1", "10000"})
+	private int stream;
+
+	private ExecutorService threads;
+	private RpcServer server;
+	private URL url;
+	private byte[] request;
+
+	@Setup
+	public void setup() throws IOException {
+		TwineLogger twineLogger = new TwineLogger(RpcServerBenchmark.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		ThreadFactory factory = "virtual".equals(executor) ? VirtualThreads.getFactory("rpc-") : null;
+		threads = factory == null ? Executors.newFixedThreadPool(4) : Executors.newCachedThreadPool(factory);
+		server = new RpcServer(twineLogger.getLogger(), threads);
+		server.register("range", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) throws RpcException {
+				final int count = params.getInt(0, 0, Integer.MAX_VALUE);
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.beginArray();
+						for (int i = 0; i < count; i++) {
+							out.value(i);
+						}
+						out.endArray();
+					}
+				};
+			}
+		});
+		InetSocketAddress address = server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		url = new URL("http://127.0.0.1:" + address.getPort() + "/");
+
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < batch; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"jsonrpc\":\"2.0\",\"method\":\"range\",\"params\":[").append(stream).append("],\"id\":").append(i).append('}');
+		}
+		request = sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.close();
+		threads.shutdown();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long latency() throws IOException {
+		return post();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public long throughput() throws IOException {
+		return post();
+	}
+
+	/**
+	 * Posts the request and reads the response
+	 *
+	 * @return the response length
+	 */
+	private long post() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setFixedLengthStreamingMode(request.length);
+		OutputStream out = connection.getOutputStream();
+		out.write(request);
+		out.close();
+		if (connection.getResponseCode() != 200) {
+			throw new IOException("Unexpected status " + connection.getResponseCode());
+		}
+		// Read to the end, so the connection is kept alive
+		InputStream in = connection.getInputStream();
+		byte[] buf = new byte[8192];
+		long length = 0;
+		int read;
+		while ((read = in.read(buf)) >= 0) {
+			length += read;
+		}
+		in.close();
+		return length;
+	}
+}
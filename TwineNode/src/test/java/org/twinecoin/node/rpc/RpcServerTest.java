@@ -0,0 +1,262 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.node.log.TwineLogger;
+
+public class RpcServerTest {
+
+	private Logger logger;
+	private ExecutorService executor;
+	private RpcServer server;
+	private URL url;
+	private AtomicInteger notified;
+
+	@Before
+	public void before() throws IOException {
+		TwineLogger twineLogger = new TwineLogger(RpcServerTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+		executor = Executors.newFixedThreadPool(4);
+		notified = new AtomicInteger();
+		server = new RpcServer(logger, executor);
+		server.register("echo", new RpcMethod() {
+			@Override
+			public RpcResult call(final RpcParams params) {
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.jsonValue(params.get(0));
+					}
+				};
+			}
+		});
+		server.register("add", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) throws RpcException {
+				final long sum = params.getLong(0) + params.getLong(1);
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.value(sum);
+					}
+				};
+			}
+		});
+		server.register("notify", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) {
+				notified.incrementAndGet();
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.nullValue();
+					}
+				};
+			}
+		});
+		server.register("range", new RpcMethod() {
+			@Override
+			public RpcResult call(RpcParams params) throws RpcException {
+				final int count = params.getInt(0, 0, 10000000);
+				return new RpcResult() {
+					@Override
+					public void write(JsonWriter out) throws IOException {
+						out.beginArray();
+						for (int i = 0; i < count; i++) {
+							out.value(i);
+						}
+						out.endArray();
+					}
+				};
+			}
+		});
+		InetSocketAddress address = server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		url = new URL("http://127.0.0.1:" + address.getPort() + "/");
+	}
+
+	@After
+	public void after() {
+		server.close();
+		executor.shutdown();
+	}
+
+	@Test
+	public void testJson() throws IOException {
+		String json = "{\"a\":[1,-2,3.5,1e3,true,false,null],\"b\":\"q\\\"\\\\\\n\\u00e9\\ud83d\\ude00\",\"c\":{},\"d\":[]}";
+		Object value = JsonReader.parse(json);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		// A small buffer so values span flushes
+		JsonWriter out = new JsonWriter(bytes, 8);
+		out.jsonValue(value);
+		out.flush();
+		String written = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		assertEquals("Unexpected round trip", "{\"a\":[1,-2,3.5,1000,true,false,null],\"b\":\"q\\\"\\\\\\n\u00e9\ud83d\ude00\",\"c\":{},\"d\":[]}", written);
+		bytes.reset();
+		out = new JsonWriter(bytes);
+		out.jsonValue(JsonReader.parse(written));
+		out.flush();
+		assertEquals("Written JSON not parsed back", written, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+
+		assertEquals("Unexpected long", Long.MIN_VALUE, JsonReader.parse(Long.toString(Long.MIN_VALUE)));
+		assertNull("Unexpected null", JsonReader.parse(" null "));
+		String[] invalid = new String[] {"", "{", "[1,]", "{\"a\" 1}", "01", "1.", "\"\\x\"", "tru", "[1] 2", "\"a\nb\""};
+		for (String s : invalid) {
+			try {
+				JsonReader.parse(s);
+				fail("Invalid JSON parsed, " + s);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+		StringBuilder deep = new StringBuilder();
+		for (int i = 0; i <= JsonReader.MAX_DEPTH + 1; i++) {
+			deep.append('[');
+		}
+		try {
+			JsonReader.parse(deep.toString());
+			fail("Deep nesting parsed");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testCalls() throws IOException {
+		Map<?, ?> response = (Map<?, ?>) post("{\"jsonrpc\":\"2.0\",\"method\":\"add\",\"params\":[2,3],\"id\":7}");
+		assertEquals("Unexpected result", 5L, response.get("result"));
+		assertEquals("Unexpected id", 7L, response.get("id"));
+		assertEquals("Unexpected version", "2.0", response.get("jsonrpc"));
+
+		response = (Map<?, ?>) post("{\"method\":\"echo\",\"params\":[{\"x\":[\"y\"]}],\"id\":\"abc\"}");
+		assertEquals("Unexpected result", JsonReader.parse("{\"x\":[\"y\"]}"), response.get("result"));
+		assertEquals("Unexpected id", "abc", response.get("id"));
+
+		assertError(post("{\"method\":\"missing\",\"id\":1}"), RpcException.METHOD_NOT_FOUND);
+		assertError(post("{\"method\":\"add\",\"params\":[1,\"2\"],\"id\":1}"), RpcException.INVALID_PARAMS);
+		assertError(post("{\"method\":\"add\",\"params\":{\"a\":1},\"id\":1}"), RpcException.INVALID_PARAMS);
+		assertError(post("{\"params\":[],\"id\":1}"), RpcException.INVALID_REQUEST);
+		assertError(post("{\"method\":\"add\""), RpcException.PARSE_ERROR);
+		assertError(post("[]"), RpcException.INVALID_REQUEST);
+
+		// Notifications are run without a response
+		assertNull("Response to notification", post("{\"method\":\"notify\"}"));
+		assertEquals("Notification not run", 1, notified.get());
+
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		assertEquals("GET not rejected", 405, connection.getResponseCode());
+		connection.disconnect();
+	}
+
+	@Test
+	public void testBatch() throws IOException {
+		List<?> responses = (List<?>) post("[" +
+				"{\"method\":\"add\",\"params\":[1,1],\"id\":1}," +
+				"{\"method\":\"notify\"}," +
+				"5," +
+				"{\"method\":\"missing\",\"id\":2}," +
+				"{\"method\":\"add\",\"params\":[2,2],\"id\":3}]");
+		assertEquals("Unexpected response count", 4, responses.size());
+		assertEquals("Unexpected result", 2L, ((Map<?, ?>) responses.get(0)).get("result"));
+		assertError(responses.get(1), RpcException.INVALID_REQUEST);
+		assertError(responses.get(2), RpcException.METHOD_NOT_FOUND);
+		assertEquals("Unexpected id", 2L, ((Map<?, ?>) responses.get(2)).get("id"));
+		assertEquals("Unexpected result", 4L, ((Map<?, ?>) responses.get(3)).get("result"));
+		assertEquals("Notification not run", 1, notified.get());
+
+		assertNull("Response to notification batch", post("[{\"method\":\"notify\"},{\"method\":\"notify\"}]"));
+		assertEquals("Notifications not run", 3, notified.get());
+		// Calls to missing methods are not counted
+		assertEquals("Unexpected call count", 5, server.getCallCount());
+	}
+
+	@Test
+	public void testStreaming() throws IOException {
+		int count = 1000000;
+		List<?> result = (List<?>) ((Map<?, ?>) post("{\"method\":\"range\",\"params\":[" + count + "],\"id\":1}")).get("result");
+		assertEquals("Unexpected result size", count, result.size());
+		for (int i = 0; i < count; i += 9973) {
+			assertEquals("Unexpected element", (long) i, result.get(i));
+		}
+
+		// Oversized requests are rejected before parsing
+		byte[] large = new byte[RpcServer.MAX_REQUEST_SIZE + 1];
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(large);
+			out.close();
+			assertEquals("Oversized request not rejected", 413, connection.getResponseCode());
+		} catch (IOException e) {
+			// The server may close the connection before the body is sent
+		}
+		connection.disconnect();
+	}
+
+	private static void assertError(Object response, int code) {
+		Map<?, ?> error = (Map<?, ?>) ((Map<?, ?>) response).get("error");
+		assertTrue("No error", error != null);
+		assertEquals("Unexpected error code", (long) code, error.get("code"));
+	}
+
+	/**
+	 * Posts a request and parses the response
+	 *
+	 * @return the response, or null if there was no content
+	 */
+	private Object post(String request) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "application/json");
+		OutputStream out = connection.getOutputStream();
+		out.write(request.getBytes(StandardCharsets.UTF_8));
+		out.close();
+		int status = connection.getResponseCode();
+		if (status == 204) {
+			return null;
+		}
+		assertEquals("Unexpected status", 200, status);
+		assertEquals("Unexpected content type", "application/json", connection.getContentType());
+		InputStream in = connection.getInputStream();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int read;
+		while ((read = in.read(buf)) >= 0) {
+			bytes.write(buf, 0, read);
+		}
+		in.close();
+		byte[] body = bytes.toByteArray();
+		return JsonReader.parse(body, 0, body.length);
+	}
+}
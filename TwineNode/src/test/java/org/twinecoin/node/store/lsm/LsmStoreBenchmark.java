@@ -0,0 +1,228 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.store.KeyValueIterator;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+
+/**
+ * YCSB style workloads against a store in a temporary directory.  Keys are
+ * chosen from a scrambled zipfian distribution.<br>
+ * <br>
+ * A - 50% read, 50% update<br>
+ * B - 95% read, 5% update<br>
+ * C - 100% read<br>
+ * E - 95% scan of up to 100 entries, 5% insert<br>
+ * F - 50% read, 50% read-modify-write<br>
+ * <br>
+ * mvn -Pbenchmark verify -Dbenchmark=LsmStoreBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(4)
+public class LsmStoreBenchmark {
+
+	@Param({"A", "B", "C", "E", "F"})
+	public String workload;
+
+	@Param({"200000"})
+	public int recordCount;
+
+	@Param({"100"})
+	public int valueSize;
+
+	private File dir;
+	private LsmStore store;
+	private AtomicLong insertCount;
+	private double zeta;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("lsm-bench").toFile();
+		TwineLogger twineLogger = new TwineLogger(LsmStoreBenchmark.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		store = new LsmStore(dir, twineLogger.getLogger(), 2);
+
+		byte[] value = new byte[valueSize];
+		Random random = new Random(0);
+		for (int i = 0; i < recordCount; i++) {
+			random.nextBytes(value);
+			store.put(key(i), value.clone());
+		}
+		store.waitForBackgroundWork();
+		insertCount = new AtomicLong(recordCount);
+		zeta = ZipfianKeys.zeta(recordCount);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		store.close();
+		TestFiles.delete(dir);
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		private Random random;
+		private ZipfianKeys keys;
+		private byte[] value;
+
+		@Setup
+		public void setup(LsmStoreBenchmark benchmark) {
+			random = new Random(Thread.currentThread().getId());
+			keys = new ZipfianKeys(benchmark.recordCount, benchmark.zeta, random);
+			value = new byte[benchmark.valueSize];
+		}
+	}
+
+	@Benchmark
+	public void operation(ThreadState state, Blackhole blackhole) throws IOException {
+		int choice = state.random.nextInt(100);
+		switch (workload.charAt(0)) {
+		case 'A':
+			if (choice < 50) {
+				read(state, blackhole);
+			} else {
+				update(state);
+			}
+			break;
+		case 'B':
+			if (choice < 95) {
+				read(state, blackhole);
+			} else {
+				update(state);
+			}
+			break;
+		case 'C':
+			read(state, blackhole);
+			break;
+		case 'E':
+			if (choice < 95) {
+				scan(state, blackhole);
+			} else {
+				insert(state);
+			}
+			break;
+		case 'F':
+			if (choice < 50) {
+				read(state, blackhole);
+			} else {
+				byte[] key = key(state.keys.next());
+				blackhole.consume(store.get(key));
+				state.random.nextBytes(state.value);
+				store.put(key, state.value.clone());
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown workload, " + workload);
+		}
+	}
+
+	private void read(ThreadState state, Blackhole blackhole) throws IOException {
+		blackhole.consume(store.get(key(state.keys.next())));
+	}
+
+	private void update(ThreadState state) throws IOException {
+		state.random.nextBytes(state.value);
+		store.put(key(state.keys.next()), state.value.clone());
+	}
+
+	private void insert(ThreadState state) throws IOException {
+		state.random.nextBytes(state.value);
+		store.put(key(insertCount.getAndIncrement()), state.value.clone());
+	}
+
+	private void scan(ThreadState state, Blackhole blackhole) throws IOException {
+		int length = 1 + state.random.nextInt(100);
+		KeyValueIterator iterator = store.iterator(key(state.keys.next()), null);
+		try {
+			for (int i = 0; i < length && iterator.hasNext(); i++) {
+				blackhole.consume(iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+	}
+
+	private static byte[] key(long id) {
+		// Hash the id so inserts are spread across the key space
+		long h = id * 0x9E3779B97F4A7C15L;
+		return String.format("user%019d", h & Long.MAX_VALUE).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Zipfian distribution over [0, n) with the YCSB constant of 0.99
+	 */
+	static class ZipfianKeys {
+		private static final double THETA = 0.99;
+
+		private final long n;
+		private final double zetan;
+		private final double alpha;
+		private final double eta;
+		private final Random random;
+
+		ZipfianKeys(long n, double zetan, Random random) {
+			this.n = n;
+			this.zetan = zetan;
+			this.alpha = 1.0 / (1.0 - THETA);
+			this.eta = (1 - Math.pow(2.0 / n, 1 - THETA)) / (1 - zeta(2) / zetan);
+			this.random = random;
+		}
+
+		static double zeta(long n) {
+			double sum = 0;
+			for (long i = 1; i <= n; i++) {
+				sum += 1 / Math.pow(i, THETA);
+			}
+			return sum;
+		}
+
+		long next() {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			long rank;
+			if (uz < 1.0) {
+				rank = 0;
+			} else if (uz < 1.0 + Math.pow(0.5, THETA)) {
+				rank = 1;
+			} else {
+				rank = (long) (n * Math.pow(eta * u - eta + 1, alpha));
+			}
+			// Scramble so popular keys are not clustered
+			long h = (rank + 1) * 0xC2B2AE3D27D4EB4FL;
+			h ^= h >>> 29;
+			return (h & Long.MAX_VALUE) % n;
+		}
+	}
+}
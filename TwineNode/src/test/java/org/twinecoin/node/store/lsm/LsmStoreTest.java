@@ -0,0 +1,274 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.store.lsm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twinecoin.common.Pair;
+import org.twinecoin.node.log.TwineLogger;
+import org.twinecoin.node.store.ByteArrayComparator;
+import org.twinecoin.node.store.KeyValueIterator;
+import org.twinecoin.node.store.WriteBatch;
+import org.twinecoin.node.test.TestUtils.TestFiles;
+
+public class LsmStoreTest {
+
+	private File dir;
+	private Logger logger;
+
+	@Before
+	public void before() {
+		dir = TestFiles.createTestDir("lsmstore");
+		TwineLogger twineLogger = new TwineLogger(LsmStoreTest.class.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		logger = twineLogger.getLogger();
+	}
+
+	@After
+	public void after() {
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void testPutGetDelete() throws IOException {
+		LsmStore store = new LsmStore(dir, logger, 2);
+		try {
+			store.put(bytes("a"), bytes("1"));
+			store.put(bytes("b"), bytes("2"));
+			store.put(bytes("empty"), new byte[0]);
+			store.delete(bytes("a"));
+
+			assertNull("Deleted key returned a value", store.get(bytes("a")));
+			assertArrayEquals("Unexpected value", bytes("2"), store.get(bytes("b")));
+			assertArrayEquals("Empty value not stored", new byte[0], store.get(bytes("empty")));
+			assertNull("Unknown key returned a value", store.get(bytes("c")));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testLogRecovery() throws IOException {
+		LsmStore store = new LsmStore(dir, logger, 2);
+		store.write(new WriteBatch().put(bytes("x"), bytes("1")).put(bytes("y"), bytes("2")).delete(bytes("x")));
+		store.close();
+
+		store = new LsmStore(dir, logger, 2);
+		try {
+			assertNull("Deleted key returned after recovery", store.get(bytes("x")));
+			assertArrayEquals("Value lost on recovery", bytes("2"), store.get(bytes("y")));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testRecoveryWithPendingFlush() throws IOException {
+		HeldExecutor compactions = new HeldExecutor();
+		HeldExecutor flushes = new HeldExecutor();
+		LsmStore store = new LsmStore(dir, logger, 1, 4096, false, compactions, flushes);
+		int count = 0;
+		// Fill level 0 to the compaction trigger
+		for (int i = 0; i < LsmStore.L0_COMPACTION_TRIGGER; i++) {
+			while (!flushes.hasPending()) {
+				store.put(bytes("key" + count), bytes("value" + count));
+				count++;
+			}
+			flushes.runPending();
+		}
+		assertTrue("Compaction not scheduled", compactions.hasPending());
+
+		// Freeze another memtable, then compact while it is unflushed
+		while (!flushes.hasPending()) {
+			store.put(bytes("key" + count), bytes("value" + count));
+			count++;
+		}
+		store.put(bytes("key" + count), bytes("value" + count));
+		count++;
+		compactions.runPending();
+		assertEquals("Level 0 not compacted", 0, store.getTableCount(0));
+
+		// Crash without flushing or closing
+		store = new LsmStore(dir, logger, 1, 4096, false);
+		try {
+			for (int i = 0; i < count; i++) {
+				assertArrayEquals("Write lost on recovery", bytes("value" + i), store.get(bytes("key" + i)));
+			}
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testCompactionMatchesModel() throws IOException {
+		TreeMap<byte[], byte[]> model = new TreeMap<byte[], byte[]>(ByteArrayComparator.INSTANCE);
+		Random random = new Random(1);
+
+		LsmStore store = new LsmStore(dir, logger, 3, 32768, false);
+		try {
+			for (int i = 0; i < 40000; i++) {
+				byte[] key = bytes("key" + random.nextInt(10000));
+				if (random.nextInt(4) == 0) {
+					store.delete(key);
+					model.remove(key);
+				} else {
+					byte[] value = bytes("value" + i);
+					store.put(key, value);
+					model.put(key, value);
+				}
+			}
+			store.waitForBackgroundWork();
+			int deepTables = 0;
+			for (int level = 1; level < Version.LEVELS; level++) {
+				deepTables += store.getTableCount(level);
+			}
+			assertTrue("No tables compacted out of level 0", deepTables > 0);
+			assertStoreMatches(store, model);
+		} finally {
+			store.close();
+		}
+
+		store = new LsmStore(dir, logger, 3, 32768, false);
+		try {
+			assertStoreMatches(store, model);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testRangeIterator() throws IOException {
+		LsmStore store = new LsmStore(dir, logger, 2, 16384, false);
+		try {
+			for (int i = 0; i < 5000; i++) {
+				store.put(bytes(String.format("k%05d", i)), bytes("v" + i));
+			}
+			store.waitForBackgroundWork();
+			store.delete(bytes("k01001"));
+
+			KeyValueIterator iterator = store.iterator(bytes("k01000"), bytes("k01010"));
+			try {
+				int count = 0;
+				while (iterator.hasNext()) {
+					Pair<byte[], byte[]> entry = iterator.next();
+					assertFalse("Deleted key returned by iterator", "k01001".equals(string(entry.getA())));
+					count++;
+				}
+				assertEquals("Unexpected number of entries in range", 9, count);
+			} finally {
+				iterator.close();
+			}
+		} finally {
+			store.close();
+		}
+	}
+
+	private static void assertStoreMatches(LsmStore store, TreeMap<byte[], byte[]> model) throws IOException {
+		for (int i = 0; i < 10000; i++) {
+			byte[] key = bytes("key" + i);
+			assertArrayEquals("Unexpected value for " + string(key), model.get(key), store.get(key));
+		}
+		KeyValueIterator iterator = store.iterator(null, null);
+		try {
+			for (byte[] key : model.keySet()) {
+				assertTrue("Iterator ended early", iterator.hasNext());
+				Pair<byte[], byte[]> entry = iterator.next();
+				assertArrayEquals("Iterator returned unexpected key", key, entry.getA());
+				assertArrayEquals("Iterator returned unexpected value", model.get(key), entry.getB());
+			}
+			assertFalse("Iterator returned extra entries", iterator.hasNext());
+		} finally {
+			iterator.close();
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String string(byte[] b) {
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Holds tasks until the test runs them
+	 */
+	private static class HeldExecutor extends AbstractExecutorService {
+		private final List<Runnable> pending = new ArrayList<Runnable>();
+		private boolean shutdown;
+
+		synchronized boolean hasPending() {
+			return !pending.isEmpty();
+		}
+
+		void runPending() {
+			List<Runnable> tasks;
+			synchronized (this) {
+				tasks = new ArrayList<Runnable>(pending);
+				pending.clear();
+			}
+			for (Runnable task : tasks) {
+				task.run();
+			}
+		}
+
+		@Override
+		public synchronized void execute(Runnable command) {
+			if (shutdown) {
+				throw new RejectedExecutionException();
+			}
+			pending.add(command);
+		}
+
+		@Override
+		public synchronized void shutdown() {
+			shutdown = true;
+		}
+
+		@Override
+		public synchronized List<Runnable> shutdownNow() {
+			shutdown = true;
+			List<Runnable> tasks = new ArrayList<Runnable>(pending);
+			pending.clear();
+			return tasks;
+		}
+
+		@Override
+		public synchronized boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public synchronized boolean isTerminated() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.test.TestUtils;
+
+import java.io.File;
+
+public class TestFiles {
+	private final static String testRunDir = "testrundir";
+
+	/**
+	 * Creates an empty directory under the test run directory
+	 */
+	public static File createTestDir(String name) {
+		File dir = new File(testRunDir, name);
+		delete(dir);
+		dir.mkdirs();
+		return dir;
+	}
+
+	/**
+	 * Deletes a file or directory tree
+	 */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,23 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.test.TestUtils;
+
+public class TestHash {
+	public final static int HASH_LENGTH = 32;
+
+	/**
+	 * Creates a distinct 32 byte hash for the given id<br>
+	 * <br>
+	 * The last byte is always set, so the hash never equals the all zero hash.
+	 */
+	public static byte[] hash(int id) {
+		byte[] hash = new byte[HASH_LENGTH];
+		hash[0] = (byte) id;
+		hash[1] = (byte) (id >> 8);
+		hash[31] = 1;
+		return hash;
+	}
+}
@@ -0,0 +1,23 @@
+/**
+ *               Copyright (c) 2017 Twinecoin Developers
+ * The file is licenced under the MIT software license, see LICENCE
+ * or http://www.opensource.org/licenses/mit-license.php.
+ */
+package org.twinecoin.node.test.TestUtils;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.twinecoin.node.log.TwineLogger;
+
+public class TestLog {
+
+	/**
+	 * Creates a logger named after the test class with console output disabled
+	 */
+	public static Logger getLogger(Class<?> testClass) {
+		TwineLogger twineLogger = new TwineLogger(testClass.getSimpleName());
+		twineLogger.setConsoleLevel(Level.OFF);
+		return twineLogger.getLogger();
+	}
+}